@@ -0,0 +1,200 @@
+package mpicbg.icp;
+
+import fiji.util.KDTree;
+import fiji.util.NearestNeighborSearch;
+import fiji.util.node.Leaf;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.pointdescriptor.exception.NoSuitablePointsException;
+
+/**
+ * {@link ICP} for a reference that does not move. The {@link KDTree} of the reference points is built once and
+ * for every (transformed) target point the nearest reference point is searched, multithreaded. A reference point
+ * that is the nearest neighbor of more than one target point is ambigous and not used. The {@link PointMatch}es
+ * of a target point are kept and reused as long as its nearest reference point does not change.
+ *
+ * Note that the {@link SimplePointMatchIdentification} of {@link ICP} searches the other way round, for every
+ * reference point the nearest target point, which requires a new {@link KDTree} every iteration. The correspondences
+ * (and therefore the resulting model) are not necessarily the same.
+ *
+ * If more than one thread is used, {@link #close()} has to be called once the ICP is finished.
+ *
+ * @param <P>
+ */
+public class FixedReferenceICP< P extends Point & Leaf< P > > extends ICP< P >
+{
+	final double distanceThreshold;
+	final int numThreads;
+
+	final KDTree< P > referenceTree;
+	final IdentityHashMap< P, Integer > referenceIndex;
+
+	// for each target point the index of its nearest reference point (or -1) and the corresponding PointMatch
+	final int[] nearest, matchedReference;
+	final PointMatch[] matchBuffer;
+
+	// how many target points have a certain reference point as nearest neighbor
+	final int[] count;
+
+	// searches the nearest neighbors in all iterations (null if single-threaded)
+	final ExecutorService taskExecutor;
+
+	/**
+	 * @param target - the {@link List} of target points, they are transformed by the model
+	 * @param reference - the {@link List} of reference points, they do not move
+	 * @param distanceThreshold - the maximal distance so that the nearest neighbor of a point is still counted as a corresponding point
+	 * @param numThreads - how many threads search the nearest neighbors
+	 */
+	public FixedReferenceICP( final List< P > target, final List< P > reference, final double distanceThreshold, final int numThreads )
+	{
+		super( target, reference, distanceThreshold );
+
+		this.distanceThreshold = distanceThreshold;
+		this.numThreads = Math.max( 1, numThreads );
+
+		// the KDTree might reorder the list it is built from
+		this.referenceTree = new KDTree< P >( new ArrayList< P >( reference ) );
+		this.referenceIndex = new IdentityHashMap< P, Integer >();
+
+		for ( int j = 0; j < reference.size(); ++j )
+			referenceIndex.put( reference.get( j ), j );
+
+		this.nearest = new int[ target.size() ];
+		this.matchedReference = new int[ target.size() ];
+		this.matchBuffer = new PointMatch[ target.size() ];
+		this.count = new int[ reference.size() ];
+		this.taskExecutor = this.numThreads > 1 ? Executors.newFixedThreadPool( this.numThreads ) : null;
+	}
+
+	/**
+	 * Shuts down the threads that search the nearest neighbors
+	 */
+	public void close()
+	{
+		if ( taskExecutor != null )
+			taskExecutor.shutdown();
+	}
+
+	@Override
+	public void runICPIteration( final Model< ? > lastModel, final Model< ? > newModel ) throws NotEnoughDataPointsException, IllDefinedDataPointsException, NoSuitablePointsException
+	{
+		/* apply initial model of the target (from last iteration) and find the nearest reference points */
+		findNearestNeighbors( lastModel );
+
+		/* count how often each reference point was found */
+		for ( int j = 0; j < count.length; ++j )
+			count[ j ] = 0;
+
+		for ( int i = 0; i < nearest.length; ++i )
+			if ( nearest[ i ] >= 0 )
+				++count[ nearest[ i ] ];
+
+		/* assemble the matches, remove ambigous correspondences */
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+		ambigousMatches = new ArrayList< PointMatch >();
+
+		for ( int i = 0; i < nearest.length; ++i )
+		{
+			final int j = nearest[ i ];
+
+			if ( j < 0 )
+				continue;
+
+			if ( matchBuffer[ i ] == null || matchedReference[ i ] != j )
+			{
+				matchBuffer[ i ] = new PointMatch( target.get( i ), reference.get( j ) );
+				matchedReference[ i ] = j;
+			}
+
+			if ( count[ j ] == 1 )
+				matches.add( matchBuffer[ i ] );
+			else
+				ambigousMatches.add( matchBuffer[ i ] );
+		}
+
+		/* fit the model */
+		newModel.fit( matches );
+
+		/* apply the new model of the target to determine the error */
+		for ( final P point : target )
+			point.apply( newModel );
+
+		/* compute the output */
+		avgError = PointMatch.meanDistance( matches );
+		maxError = PointMatch.maxDistance( matches );
+		numMatches = matches.size();
+		pointMatches = matches;
+	}
+
+	protected void findNearestNeighbors( final Model< ? > model )
+	{
+		final int numPoints = target.size();
+		final int numTasks = Math.min( numThreads, Math.max( 1, numPoints ) );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int start = (int)( (long)numPoints * t / numTasks );
+			final int end = (int)( (long)numPoints * ( t + 1 ) / numTasks );
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call()
+				{
+					final NearestNeighborSearch< P > nnSearch = new NearestNeighborSearch< P >( referenceTree );
+
+					for ( int i = start; i < end; ++i )
+					{
+						final P point = target.get( i );
+						point.apply( model );
+
+						final P correspondingPoint = nnSearch.findNearestNeighbor( point );
+
+						if ( correspondingPoint != null && Point.distance( point, correspondingPoint ) <= distanceThreshold )
+							nearest[ i ] = referenceIndex.get( correspondingPoint );
+						else
+							nearest[ i ] = -1;
+					}
+
+					return null;
+				}
+			} );
+		}
+
+		if ( numTasks == 1 )
+		{
+			try
+			{
+				tasks.get( 0 ).call();
+			}
+			catch ( final Exception e )
+			{
+				throw new RuntimeException( e );
+			}
+
+			return;
+		}
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			taskExecutor.invokeAll( tasks );
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Nearest neighbor search of the ICP was interrupted: " + e );
+		}
+	}
+}
@@ -10,6 +10,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import spim.Threads;
 import mpicbg.imglib.cursor.Cursor;
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
 import mpicbg.imglib.cursor.LocalizableCursor;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.interpolation.Interpolator;
@@ -53,7 +54,20 @@ public class AdjustInput
 
 	public static double[] normAllImages( final ArrayList<LRFFT> data )
 	{
-		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( data.get( 0 ).getImage().getNumPixels(), Threads.numThreads() );
+		// the views might only cover a part of the deconvolved image
+		boolean cropped = false;
+		long numPixels = 1;
+
+		for ( final LRFFT fft : data )
+			cropped |= fft.isCropped();
+
+		for ( final int dim : data.get( 0 ).getDimensions() )
+			numPixels *= dim;
+
+		final boolean anyCropped = cropped;
+		final int[] dimensions = data.get( 0 ).getDimensions();
+
+		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( numPixels, Threads.numThreads() );
 		final int numThreads = threadChunks.size();
 		
 		IJ.log( new Date( System.currentTimeMillis() ) + ": numThreads = " + numThreads );
@@ -92,38 +106,97 @@ public class AdjustInput
             		
             		for ( final LRFFT fft : data )
             		{
-            			cursorsImage.add( fft.getImage().createCursor() );
-            			if ( fft.getWeight() != null )
-            				cursorsWeight.add( fft.getWeight().createCursor() );
+            			if ( anyCropped )
+            			{
+            				cursorsImage.add( fft.getImage().createLocalizableByDimCursor() );
+            				cursorsWeight.add( fft.getWeight().createLocalizableByDimCursor() );
+            			}
+            			else
+            			{
+            				cursorsImage.add( fft.getImage().createCursor() );
+            				if ( fft.getWeight() != null )
+            					cursorsWeight.add( fft.getWeight().createCursor() );
+            			}
             		}
 
-        			for ( final Cursor<FloatType> c : cursorsImage )
-        				c.fwd( start );
-        			
-        			for ( final Cursor<FloatType> c : cursorsWeight )
-        				c.fwd( start );
-            		
+            		// the position in the deconvolved image and in the individual views (if cropped)
+            		final int n = dimensions.length;
+            		final int[] pos = new int[ n ];
+            		final int[] local = new int[ n ];
+
+            		if ( anyCropped )
+            		{
+            			long index = start;
+
+            			for ( int d = 0; d < n; ++d )
+            			{
+            				pos[ d ] = (int)( index % dimensions[ d ] );
+            				index /= dimensions[ d ];
+            			}
+            		}
+            		else
+            		{
+            			for ( final Cursor<FloatType> c : cursorsImage )
+            				c.fwd( start );
+
+            			for ( final Cursor<FloatType> c : cursorsWeight )
+            				c.fwd( start );
+            		}
         			
             		for ( long l = 0; l < loopSize; ++l )
             		{
-        				for ( final Cursor<FloatType> c : cursorsImage )
-        					c.fwd();
-        				
-        				for ( final Cursor<FloatType> c : cursorsWeight )
-        					c.fwd();
-        				
         				// sum up individual intensities
         				double sumLocal = 0;
         				int countLocal = 0;
-        				
-        				for ( int i = 0; i < cursorsImage.size(); ++i )
-        				{
-        					if ( cursorsWeight.get( i ).getType().get() != 0 )
-        					{
-        						sumLocal += cursorsImage.get( i ).getType().get();
-        						countLocal++;
-        					}
-        				}
+
+            			if ( anyCropped )
+            			{
+            				for ( int i = 0; i < cursorsImage.size(); ++i )
+            				{
+            					final LRFFT fft = data.get( i );
+
+            					if ( !inside( pos, fft.getOffset(), fft.getImage().getDimensions(), local ) )
+            						continue;
+
+            					final LocalizableByDimCursor<FloatType> w = (LocalizableByDimCursor<FloatType>)cursorsWeight.get( i );
+            					w.setPosition( local );
+
+            					if ( w.getType().get() != 0 )
+            					{
+            						final LocalizableByDimCursor<FloatType> c = (LocalizableByDimCursor<FloatType>)cursorsImage.get( i );
+            						c.setPosition( local );
+
+            						sumLocal += c.getType().get();
+            						countLocal++;
+            					}
+            				}
+
+            				// next position
+            				for ( int d = 0; d < n; ++d )
+            				{
+            					if ( ++pos[ d ] < dimensions[ d ] )
+            						break;
+
+            					pos[ d ] = 0;
+            				}
+            			}
+            			else
+            			{
+	        				for ( final Cursor<FloatType> c : cursorsImage )
+	        					c.fwd();
+	        				
+	        				for ( final Cursor<FloatType> c : cursorsWeight )
+	        					c.fwd();
+	        				
+	        				for ( int i = 0; i < cursorsImage.size(); ++i )
+	        				{
+	        					if ( cursorsWeight.get( i ).getType().get() != 0 )
+	        					{
+	        						sumLocal += cursorsImage.get( i ).getType().get();
+	        						countLocal++;
+	        					}
+	        				}
+            			}
         				
         				// at least two overlap to compute the average intensity there
         				if ( countLocal > 1 )
@@ -245,6 +318,26 @@ public class AdjustInput
 		return new double[]{ avg, minNumOverlapResult, avgNumOverlapFinal };
 	}
 
+	/**
+	 * @param pos - the position in the deconvolved image
+	 * @param offset - the position of the view in the deconvolved image
+	 * @param size - the size of the view
+	 * @param local - the position in the view (output)
+	 * @return - true if the position is inside the view
+	 */
+	final protected static boolean inside( final int[] pos, final int[] offset, final int[] size, final int[] local )
+	{
+		for ( int d = 0; d < pos.length; ++d )
+		{
+			local[ d ] = pos[ d ] - offset[ d ];
+
+			if ( local[ d ] < 0 || local[ d ] >= size[ d ] )
+				return false;
+		}
+
+		return true;
+	}
+
 	/**
 	 * Adds additive gaussian noise: i = i + gauss(x, sigma)
 	 * 
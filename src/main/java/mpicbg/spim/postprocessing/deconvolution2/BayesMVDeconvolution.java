@@ -5,13 +5,22 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Vector;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import spim.Threads;
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
 import mpicbg.imglib.cursor.Cursor;
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.cursor.LocalizableCursor;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.ImageFactory;
 import mpicbg.imglib.image.display.imagej.ImageJFunctions;
@@ -31,6 +40,9 @@ public class BayesMVDeconvolution implements Deconvolver
 	// check in advance if values are reasonable
 	public static boolean checkNumbers = true;
 	
+	// stop before numIterations if the relative change of psi in an iteration is below this value (0 == never)
+	public static double convergenceThreshold = 0;
+
 	public static boolean debug = true;
 	public static int debugInterval = 1;
 	final static float minValue = 0.0001f;
@@ -44,9 +56,16 @@ public class BayesMVDeconvolution implements Deconvolver
     
     boolean collectStatistics = true;
     
+    // the threads used by all iterations
+    ExecutorService taskExecutor = null;
+    
     // current iteration
     int i = 0;
     
+    // the relative change of the last iteration and if it was below the convergenceThreshold
+    double lastRelativeChange = Double.NaN;
+    boolean converged = false;
+    
 	// the multi-view deconvolved image
 	Image<FloatType> psi;
 	
@@ -56,6 +75,18 @@ public class BayesMVDeconvolution implements Deconvolver
 	String name;
 	
 	public BayesMVDeconvolution( final LRInput views, final PSFTYPE iterationType, final int numIterations, final double lambda, double osemspeedup, final int osemspeedupindex, final String name )
+	{
+		this( views, iterationType, numIterations, lambda, osemspeedup, osemspeedupindex, name, null, 0, false );
+	}
+
+	/**
+	 * @param checkpointFile - psi is written to this file every checkpointInterval iterations (null == never)
+	 * @param checkpointInterval - how often a checkpoint is written (0 == never)
+	 * @param resumeFromCheckpoint - continue from the checkpoint if it exists and matches this deconvolution
+	 */
+	public BayesMVDeconvolution(
+			final LRInput views, final PSFTYPE iterationType, final int numIterations, final double lambda, double osemspeedup, final int osemspeedupindex, final String name,
+			final File checkpointFile, final int checkpointInterval, final boolean resumeFromCheckpoint )
 	{
 		this.name = name;
 		this.data = views.getViews();
@@ -65,7 +96,7 @@ public class BayesMVDeconvolution implements Deconvolver
 		this.lambda = lambda;
 		
 		if ( initialImage != null )
-			this.psi = loadInitialImage( initialImage, checkNumbers, minValue, data.get( 0 ).getImage().getDimensions(), data.get( 0 ).getImage().getImageFactory() );
+			this.psi = loadInitialImage( initialImage, checkNumbers, minValue, data.get( 0 ).getDimensions(), data.get( 0 ).getImage().getImageFactory() );
 				
 		final double[] result = AdjustInput.normAllImages( data );
 		this.avg = (float)result[ 0 ];
@@ -89,7 +120,8 @@ public class BayesMVDeconvolution implements Deconvolver
 		//
 		if ( this.psi == null )
 		{
-			this.psi = data.get( 0 ).getImage().createNewImage( "psi (deconvolved image)" );
+			// the views might only cover a part of the deconvolved image
+			this.psi = data.get( 0 ).getImage().getImageFactory().createImage( data.get( 0 ).getDimensions(), "psi (deconvolved image)" );
 
 			for ( final FloatType f : psi )
 				f.set( avg );
@@ -99,61 +131,95 @@ public class BayesMVDeconvolution implements Deconvolver
 		
 		//this.stack = new ImageStack( this.psi.getDimension( 0 ), this.psi.getDimension( 1 ) );
 		
-		// run the deconvolution
-		while ( i < numIterations )
+		// a checkpoint only matches if it was computed from the same PSFs and weights
+		final boolean saveCheckpoints = checkpointInterval > 0 && checkpointFile != null;
+		final long hash = ( saveCheckpoints || ( resumeFromCheckpoint && checkpointFile != null ) ) ? DeconvolutionCheckpoint.hash( views ) : 0;
+
+		// continue an interrupted deconvolution
+		if ( resumeFromCheckpoint && checkpointFile != null )
+			this.i = Math.max( 0, DeconvolutionCheckpoint.load( checkpointFile, psi, numViews, iterationType, lambda, avg, osemspeedup, hash ) );
+
+		// run the deconvolution, all iterations share the same threads
+		taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+
+		try
 		{
-			runIteration();
-			
-			if ( debug && (i-1) % debugInterval == 0 )
+			while ( i < numIterations && !converged )
 			{
-				psi.getDisplay().setMinMax( 0, 1 );
-				final ImagePlus tmp = ImageJFunctions.copyToImagePlus( psi );
-				
-				if ( this.stack == null )
-				{
-					this.stack = tmp.getImageStack();
-					for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
-						this.stack.setSliceLabel( "Iteration 1", i + 1 );
-					
-					tmp.setTitle( "debug view" );
-					this.ci = new CompositeImage( tmp, CompositeImage.COMPOSITE );
-					this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 1 );
-					this.ci.show();
-				}
-				else if ( stack.getSize() == this.psi.getDimension( 2 ) )
+				runIteration();
+				showDebug();
+
+				if ( convergenceThreshold > 0 && lastRelativeChange < convergenceThreshold )
 				{
-					IJ.log( "Stack size = " + this.stack.getSize() );
-					final ImageStack t = tmp.getImageStack();
-					for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
-						this.stack.addSlice( "Iteration 2", t.getProcessor( i + 1 ) );
-					IJ.log( "Stack size = " + this.stack.getSize() );
-					this.ci.hide();
-					IJ.log( "Stack size = " + this.stack.getSize() );
-					
-					this.ci = new CompositeImage( new ImagePlus( "debug view", this.stack ), CompositeImage.COMPOSITE );
-					this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 2 );
-					this.ci.show();
+					converged = true;
+					IJ.log( "Converged after " + i + " iterations (relative change " + lastRelativeChange + " < " + convergenceThreshold + ")." );
 				}
-				else
-				{
-					final ImageStack t = tmp.getImageStack();
-					for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
-						this.stack.addSlice( "Iteration " + i, t.getProcessor( i + 1 ) );
 
-					this.ci.setStack( this.stack, 1, this.psi.getDimension( 2 ), stack.getSize() / this.psi.getDimension( 2 ) );	
-				}
-				/*
-				Image<FloatType> psiCopy = psi.clone();
-				//ViewDataBeads.normalizeImage( psiCopy );
-				psiCopy.setName( "Iteration " + i + " l=" + lambda );
-				psiCopy.getDisplay().setMinMax( 0, 1 );
-				ImageJFunctions.copyToImagePlus( psiCopy ).show();
-				psiCopy.close();
-				psiCopy = null;*/
+				if ( saveCheckpoints && ( i % checkpointInterval == 0 || i == numIterations || converged ) )
+					DeconvolutionCheckpoint.save( checkpointFile, psi, i, numViews, iterationType, lambda, avg, osemspeedup, hash );
 			}
 		}
+		finally
+		{
+			taskExecutor.shutdown();
+			taskExecutor = null;
+		}
 		
-		IJ.log( "DONE (" + new Date(System.currentTimeMillis()) + ")." );
+		IJ.log( "DONE after " + i + " iterations (" + new Date(System.currentTimeMillis()) + ")." );
+	}
+
+	/**
+	 * Shows the current psi if debug is enabled
+	 */
+	protected void showDebug()
+	{
+		if ( debug && (i-1) % debugInterval == 0 )
+		{
+			psi.getDisplay().setMinMax( 0, 1 );
+			final ImagePlus tmp = ImageJFunctions.copyToImagePlus( psi );
+			
+			if ( this.stack == null )
+			{
+				this.stack = tmp.getImageStack();
+				for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
+					this.stack.setSliceLabel( "Iteration 1", i + 1 );
+				
+				tmp.setTitle( "debug view" );
+				this.ci = new CompositeImage( tmp, CompositeImage.COMPOSITE );
+				this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 1 );
+				this.ci.show();
+			}
+			else if ( stack.getSize() == this.psi.getDimension( 2 ) )
+			{
+				IJ.log( "Stack size = " + this.stack.getSize() );
+				final ImageStack t = tmp.getImageStack();
+				for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
+					this.stack.addSlice( "Iteration 2", t.getProcessor( i + 1 ) );
+				IJ.log( "Stack size = " + this.stack.getSize() );
+				this.ci.hide();
+				IJ.log( "Stack size = " + this.stack.getSize() );
+				
+				this.ci = new CompositeImage( new ImagePlus( "debug view", this.stack ), CompositeImage.COMPOSITE );
+				this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 2 );
+				this.ci.show();
+			}
+			else
+			{
+				final ImageStack t = tmp.getImageStack();
+				for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
+					this.stack.addSlice( "Iteration " + i, t.getProcessor( i + 1 ) );
+
+				this.ci.setStack( this.stack, 1, this.psi.getDimension( 2 ), stack.getSize() / this.psi.getDimension( 2 ) );	
+			}
+			/*
+			Image<FloatType> psiCopy = psi.clone();
+			//ViewDataBeads.normalizeImage( psiCopy );
+			psiCopy.setName( "Iteration " + i + " l=" + lambda );
+			psiCopy.getDisplay().setMinMax( 0, 1 );
+			ImageJFunctions.copyToImagePlus( psiCopy ).show();
+			psiCopy.close();
+			psiCopy = null;*/
+		}
 	}
 	
 	
@@ -231,27 +297,55 @@ public class BayesMVDeconvolution implements Deconvolver
 	
 	public Image<FloatType> getPsi() { return psi; }	
 	public int getCurrentIteration() { return i; }
+	public double getLastRelativeChange() { return lastRelativeChange; }
+	public boolean hasConverged() { return converged; }
 	
 	public void runIteration() 
 	{
-		runIteration( psi, data, lambda, minValue, collectStatistics, i++ );
+		// called from outside of the deconvolution loop
+		final boolean ownThreads = ( taskExecutor == null );
+
+		if ( ownThreads )
+			taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+
+		try
+		{
+			lastRelativeChange = runIteration( psi, data, lambda, minValue, collectStatistics, taskExecutor, i++ );
+		}
+		finally
+		{
+			if ( ownThreads )
+			{
+				taskExecutor.shutdown();
+				taskExecutor = null;
+			}
+		}
 	}
 
-	final private static void runIteration( final Image< FloatType> psi, final ArrayList< LRFFT > data, 
-			final double lambda, final float minValue, final boolean collectStatistic, final int iteration )
+	/**
+	 * One iteration, i.e. one update of psi for each view. For each view there are two passes over the image, the quotient
+	 * between the blurred psi and the view (between the two convolutions) and the update of psi, which also collects
+	 * the statistics. If all images are stored in arrays, the passes work directly on the float[].
+	 * 
+	 * The statistics sum up the changes applied by the individual views, so the sum change is an upper bound of the total
+	 * change of psi in this iteration and the max change is the largest change applied by a single view.
+	 * 
+	 * @return - the relative change, i.e. the sum change divided by the sum of psi over all updated pixels of all views
+	 */
+	final private static double runIteration( final Image< FloatType> psi, final ArrayList< LRFFT > data, 
+			final double lambda, final float minValue, final boolean collectStatistic, final ExecutorService taskExecutor, final int iteration )
 	{
 		IJ.log( "iteration: " + iteration + " (" + new Date(System.currentTimeMillis()) + ")" );
 		
 		final int numViews = data.size();
 		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( psi.getNumPixels(), Threads.numThreads() );
-		final int numThreads = threadChunks.size();
-		
-		final Image< FloatType > lastIteration;
-		
-		if ( collectStatistic )
-			lastIteration = psi.clone();
-		else
-			lastIteration = null;
+
+		final float[] psiArray = getFloatArray( psi );
+		final int[] dimensions = psi.getDimensions();
+
+		double sumChange = 0;
+		double maxChange = -1;
+		double sumPsi = 0;
 
 		//int view = iteration % numViews;
 		for ( int view = 0; view < numViews; ++view )
@@ -266,29 +360,29 @@ public class BayesMVDeconvolution implements Deconvolver
 			//System.out.println( view + " 1: " + fftConvolution.getProcessingTime() + " ms." );
 			System.out.println( view + " a: " + (time - System.currentTimeMillis()) + " ms." );
 			
-			// size = 666, 363, 537
-			
 			// compute quotient img/psiBlurred
-			final AtomicInteger ai = new AtomicInteger(0);					
-	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ithread] = new Thread(new Runnable()
-	            {
-	                public void run()
-	                {
-	                	// Thread ID
-	                	final int myNumber = ai.getAndIncrement();
-	        
-	                	// get chunk of pixels to process
-	                	final Chunk myChunk = threadChunks.get( myNumber );
-	                	
-	            		computeQuotient( myChunk.getStartPosition(), myChunk.getLoopSize(), psiBlurred, processingData );                		
-	                }
-	            });
-	        
-	        SimpleMultiThreading.startAndJoin( threads );
+			final float[] psiBlurredArray = getFloatArray( psiBlurred );
+			final float[] imgArray = getFloatArray( processingData.getImage() );
+			final ArrayList< Callable< double[] > > tasks = new ArrayList< Callable< double[] > >();
 
-			//System.out.println( view + " b: " + (time - System.currentTimeMillis()) + " ms." );
+			for ( final Chunk myChunk : threadChunks )
+				tasks.add( new Callable< double[] >()
+				{
+					@Override
+					public double[] call()
+					{
+						if ( psiBlurredArray != null && imgArray != null )
+							computeQuotientArray( myChunk.getStartPosition(), myChunk.getLoopSize(), psiBlurredArray, dimensions, imgArray, processingData.getOffset(), processingData.getImage().getDimensions() );
+						else if ( processingData.isCropped() )
+							computeQuotientCropped( myChunk.getStartPosition(), myChunk.getLoopSize(), psiBlurred, processingData );
+						else
+							computeQuotient( myChunk.getStartPosition(), myChunk.getLoopSize(), psiBlurred, processingData );
+
+						return null;
+					}
+				});
+
+			invokeAll( taskExecutor, tasks );
 
 	        time = System.currentTimeMillis();
 	        
@@ -298,94 +392,241 @@ public class BayesMVDeconvolution implements Deconvolver
 			//System.out.println( view + " 2: " + invFFConvolution.getProcessingTime() + " ms." );
 			System.out.println( view + " b: " + (time - System.currentTimeMillis()) + " ms." );
 
-			ai.set( 0 );
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ithread] = new Thread(new Runnable()
-	            {
-	                public void run()
-	                {
-	                	// Thread ID
-	                	final int myNumber = ai.getAndIncrement();
-	        
-	                	// get chunk of pixels to process
-	                	final Chunk myChunk = threadChunks.get( myNumber );
-	                	
-	            		computeFinalValues( myChunk.getStartPosition(), myChunk.getLoopSize(), psi, integral, processingData.getWeight(), lambda );                		
-	                }
-	            });
-	        
-	        SimpleMultiThreading.startAndJoin( threads );
+			// update psi and collect the statistics, only the part of the image where the view contributes is updated
+			final float[] integralArray = getFloatArray( integral );
+			final float[] weightArray = getFloatArray( processingData.getWeight() );
+			final Vector< Chunk > viewChunks = processingData.isCropped() ?
+					SimpleMultiThreading.divideIntoChunks( processingData.getWeight().getNumPixels(), Threads.numThreads() ) : threadChunks;
 
-			// the result from the previous iteration
-			//System.out.println( view + " d: " + (time - System.currentTimeMillis()) + " ms." );
+			tasks.clear();
+
+			for ( final Chunk myChunk : viewChunks )
+				tasks.add( new Callable< double[] >()
+				{
+					@Override
+					public double[] call()
+					{
+						final double[] stats = new double[]{ 0, -1, 0 };
+
+						if ( psiArray != null && integralArray != null && weightArray != null )
+							computeFinalValuesArray( myChunk.getStartPosition(), myChunk.getLoopSize(), psiArray, integralArray, dimensions, weightArray, processingData.getOffset(), processingData.getWeight().getDimensions(), lambda, stats );
+						else if ( processingData.isCropped() )
+							computeFinalValuesCropped( myChunk.getStartPosition(), myChunk.getLoopSize(), psi, integral, processingData.getWeight(), processingData.getOffset(), lambda, stats );
+						else
+							computeFinalValues( myChunk.getStartPosition(), myChunk.getLoopSize(), psi, integral, processingData.getWeight(), lambda, stats );
+
+						return stats;
+					}
+				});
+
+			// accumulate the results from the individual threads
+			for ( final double[] stats : invokeAll( taskExecutor, tasks ) )
+			{
+				sumChange += stats[ 0 ];
+				maxChange = Math.max( maxChange, stats[ 1 ] );
+				sumPsi += stats[ 2 ];
+			}
 		}
 		
+		final double relativeChange = sumPsi > 0 ? sumChange / sumPsi : 0;
+
 		if ( collectStatistic )
+			IJ.log("iteration: " + iteration + " --- sum change: " + sumChange + " --- max change per pixel: " + maxChange + " --- relative change: " + relativeChange );
+		
+		//System.out.println( "final: " + (time - System.currentTimeMillis()) + " ms." );
+
+		return relativeChange;
+	}
+
+	private static final ArrayList< double[] > invokeAll( final ExecutorService taskExecutor, final ArrayList< Callable< double[] > > tasks )
+	{
+		final ArrayList< double[] > results = new ArrayList< double[] >();
+
+		try
 		{
-			final AtomicInteger ai = new AtomicInteger(0);					
-	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-	        
-	        final double[][] sumMax = new double[ numThreads ][ 2 ];
-	        
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ithread] = new Thread(new Runnable()
-	            {
-	                public void run()
-	                {
-	                	// Thread ID
-	                	final int myNumber = ai.getAndIncrement();
-	        
-	                	// get chunk of pixels to process
-	                	final Chunk myChunk = threadChunks.get( myNumber );
-	                	
-	                	collectStatistics( myChunk.getStartPosition(), myChunk.getLoopSize(), psi, lastIteration, sumMax[ myNumber ] );
-	                }
-	            });
-	        
-	        SimpleMultiThreading.startAndJoin( threads );
-			
-	        // accumulate the results from the individual threads
-			double sumChange = 0;
-			double maxChange = -1;
-			
-			for ( int i = 0; i < numThreads; ++i )
+			// invokeAll() returns when all tasks are complete
+			final List< Future< double[] > > futures = taskExecutor.invokeAll( tasks );
+
+			for ( final Future< double[] > future : futures )
+				results.add( future.get() );
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "Deconvolution iteration failed: " + e, e );
+		}
+
+		return results;
+	}
+
+	/**
+	 * @return - the float[] of the image if it is stored in an {@link Array}, otherwise null
+	 */
+	@SuppressWarnings( "rawtypes" )
+	static final float[] getFloatArray( final Image< FloatType > image )
+	{
+		if ( image.getContainer() instanceof Array )
+		{
+			final Object access = ( (Array)image.getContainer() ).update( null );
+
+			if ( access instanceof FloatArray )
+				return ( (FloatArray)access ).getCurrentStorageArray();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Computes the position of a linear index in an array
+	 */
+	private static final void indexToPosition( long index, final int[] dimensions, final int[] position )
+	{
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			position[ d ] = (int)( index % dimensions[ d ] );
+			index /= dimensions[ d ];
+		}
+	}
+
+	/**
+	 * Moves the position one line further after the end of a line was reached
+	 */
+	private static final void nextLine( final int[] dimensions, final int[] position )
+	{
+		position[ 0 ] = 0;
+
+		for ( int d = 1; d < dimensions.length; ++d )
+		{
+			if ( ++position[ d ] < dimensions[ d ] )
+				break;
+
+			position[ d ] = 0;
+		}
+	}
+
+	/**
+	 * Same as computeQuotient and computeQuotientCropped on the float[] of the images, processes the chunk line by line.
+	 * 
+	 * @param psiBlurred - the blurred psi, is replaced by the quotient
+	 * @param dimensions - the size of psiBlurred
+	 * @param img - the image of the view
+	 * @param offset - the position of the view in psiBlurred
+	 * @param size - the size of the view
+	 */
+	private static final void computeQuotientArray( final long start, final long loopSize, final float[] psiBlurred, final int[] dimensions, final float[] img, final int[] offset, final int[] size )
+	{
+		final int n = dimensions.length;
+		final int[] pos = new int[ n ];
+
+		indexToPosition( start, dimensions, pos );
+
+		final int end = (int)( start + loopSize );
+		int i = (int)start;
+
+		while ( i < end )
+		{
+			final int lineEnd = Math.min( end, i + dimensions[ 0 ] - pos[ 0 ] );
+
+			// index of the beginning of the line in the view
+			boolean inside = true;
+			int lineIndex = 0;
+
+			for ( int d = n - 1; d > 0; --d )
 			{
-				sumChange += sumMax[ i ][ 0 ];
-				maxChange = Math.max( maxChange, sumMax[ i ][ 1 ] );
+				final int l = pos[ d ] - offset[ d ];
+				inside &= l >= 0 && l < size[ d ];
+				lineIndex = lineIndex * size[ d ] + l;
 			}
-			
-			IJ.log("iteration: " + iteration + " --- sum change: " + sumChange + " --- max change per pixel: " + maxChange );
+
+			lineIndex *= size[ 0 ];
+
+			if ( inside )
+			{
+				for ( int x = pos[ 0 ] - offset[ 0 ]; i < lineEnd; ++i, ++x )
+				{
+					if ( x >= 0 && x < size[ 0 ] )
+						psiBlurred[ i ] = img[ lineIndex + x ] / psiBlurred[ i ];
+					else
+						psiBlurred[ i ] = 0;
+				}
+			}
+			else
+			{
+				for ( ; i < lineEnd; ++i )
+					psiBlurred[ i ] = 0;
+			}
+
+			nextLine( dimensions, pos );
 		}
-		
-		//System.out.println( "final: " + (time - System.currentTimeMillis()) + " ms." );
 	}
-	
-	private static final void collectStatistics( final long start, final long loopSize, final Image< FloatType > psi, final Image< FloatType > lastIteration, final double[] sumMax )
+
+	/**
+	 * Same as computeFinalValues and computeFinalValuesCropped on the float[] of the images, processes the chunk line by line.
+	 * 
+	 * @param start - the first pixel in the weight
+	 * @param loopSize - the number of pixels in the weight
+	 * @param psi - the deconvolved image
+	 * @param integral - the convolved quotient, same size as psi
+	 * @param dimensions - the size of psi
+	 * @param weight - the weight of the view
+	 * @param offset - the position of the view in psi
+	 * @param size - the size of the view
+	 * @param stats - the sum and max of the changes and the sum of psi where it was updated (output)
+	 */
+	private static final void computeFinalValuesArray( final long start, final long loopSize, final float[] psi, final float[] integral, final int[] dimensions, final float[] weight, final int[] offset, final int[] size, final double lambda, final double[] stats )
 	{
+		final int n = dimensions.length;
+		final int[] pos = new int[ n ];
+
+		indexToPosition( start, size, pos );
+
 		double sumChange = 0;
 		double maxChange = -1;
-		
-		final Cursor< FloatType > cursorPsi = psi.createCursor();
-		final Cursor< FloatType > cursorLast = lastIteration.createCursor();
-		
-		cursorPsi.fwd( start );
-		cursorLast.fwd( start );
-		
-		for ( long l = 0; l < loopSize; ++l )
+		double sumPsi = 0;
+
+		final int end = (int)( start + loopSize );
+		int i = (int)start;
+
+		while ( i < end )
 		{
-			final float last = cursorLast.next().get();
-			final float next = cursorPsi.next().get();
-			
-			final float change = Math.abs( next - last );				
-				
-			sumChange += change;
-			maxChange = Math.max( maxChange, change );
+			final int lineEnd = Math.min( end, i + size[ 0 ] - pos[ 0 ] );
+
+			// index of the beginning of the line in psi
+			int lineIndex = 0;
+
+			for ( int d = n - 1; d > 0; --d )
+				lineIndex = lineIndex * dimensions[ d ] + pos[ d ] + offset[ d ];
+
+			lineIndex = lineIndex * dimensions[ 0 ] + offset[ 0 ];
+
+			for ( int x = pos[ 0 ]; i < lineEnd; ++i, ++x )
+			{
+				final float w = weight[ i ];
+
+				// zero weight, no change
+				if ( w == 0 )
+					continue;
+
+				final int j = lineIndex + x;
+				final float lastPsiValue = psi[ j ];
+
+				// apply the apropriate amount
+				final float change = ( computeNextValue( lastPsiValue, integral[ j ], lambda ) - lastPsiValue ) * w;
+				psi[ j ] = lastPsiValue + change;
+
+				final float absChange = Math.abs( change );
+				sumChange += absChange;
+				maxChange = Math.max( maxChange, absChange );
+				sumPsi += lastPsiValue;
+			}
+
+			nextLine( size, pos );
 		}
-		
-		sumMax[ 0 ] = sumChange;
-		sumMax[ 1 ] = maxChange;
+
+		stats[ 0 ] = sumChange;
+		stats[ 1 ] = maxChange;
+		stats[ 2 ] = sumPsi;
 	}
-	
+
 	private static final void computeQuotient( final long start, final long loopSize, final Image< FloatType > psiBlurred, final LRFFT processingData )
 	{
 		final Cursor<FloatType> cursorImg = processingData.getImage().createCursor();
@@ -410,8 +651,143 @@ public class BayesMVDeconvolution implements Deconvolver
 		
 	}
 	
-	private static final void computeFinalValues( final long start, final long loopSize, final Image< FloatType > psi, final Image<FloatType> integral, final Image<FloatType> weight, final double lambda )
+	/**
+	 * Same as computeQuotient for a view that only covers a part of the image, outside of the view the quotient is 0
+	 * (as the image of the view would be 0 there).
+	 */
+	private static final void computeQuotientCropped( final long start, final long loopSize, final Image< FloatType > psiBlurred, final LRFFT processingData )
 	{
+		final int n = psiBlurred.getNumDimensions();
+		final int[] offset = processingData.getOffset();
+		final int[] size = processingData.getImage().getDimensions();
+		final int[] pos = new int[ n ];
+
+		final LocalizableByDimCursor<FloatType> cursorImg = processingData.getImage().createLocalizableByDimCursor();
+		final LocalizableCursor<FloatType> cursorPsiBlurred = psiBlurred.createLocalizableCursor();
+
+		cursorPsiBlurred.fwd( start );
+
+		for ( long l = 0; l < loopSize; ++l )
+		{
+			cursorPsiBlurred.fwd();
+			cursorPsiBlurred.getPosition( pos );
+
+			boolean inside = true;
+
+			for ( int d = 0; d < n && inside; ++d )
+			{
+				pos[ d ] -= offset[ d ];
+				inside = pos[ d ] >= 0 && pos[ d ] < size[ d ];
+			}
+
+			if ( inside )
+			{
+				cursorImg.setPosition( pos );
+				cursorPsiBlurred.getType().set( cursorImg.getType().get() / cursorPsiBlurred.getType().get() );
+			}
+			else
+			{
+				cursorPsiBlurred.getType().set( 0 );
+			}
+		}
+
+		cursorImg.close();
+		cursorPsiBlurred.close();
+	}
+
+	/**
+	 * Same as computeFinalValues for a view that only covers a part of the image, iterates only the part of the view.
+	 */
+	private static final void computeFinalValuesCropped( final long start, final long loopSize, final Image< FloatType > psi, final Image<FloatType> integral, final Image<FloatType> weight, final int[] offset, final double lambda, final double[] stats )
+	{
+		final int n = psi.getNumDimensions();
+		final int[] pos = new int[ n ];
+
+		double sumChange = 0;
+		double maxChange = -1;
+		double sumPsi = 0;
+
+		final LocalizableCursor< FloatType > cursorWeight = weight.createLocalizableCursor();
+		final LocalizableByDimCursor< FloatType > cursorPsi = psi.createLocalizableByDimCursor();
+		final LocalizableByDimCursor< FloatType > cursorIntegral = integral.createLocalizableByDimCursor();
+
+		cursorWeight.fwd( start );
+
+		for ( long l = 0; l < loopSize; ++l )
+		{
+			cursorWeight.fwd();
+
+			final float w = cursorWeight.getType().get();
+
+			// zero weight, no change
+			if ( w == 0 )
+				continue;
+
+			cursorWeight.getPosition( pos );
+
+			for ( int d = 0; d < n; ++d )
+				pos[ d ] += offset[ d ];
+
+			cursorPsi.setPosition( pos );
+			cursorIntegral.setPosition( pos );
+
+			final float lastPsiValue = cursorPsi.getType().get();
+			final float nextPsiValue = computeNextValue( lastPsiValue, cursorIntegral.getType().get(), lambda );
+
+			// apply the apropriate amount
+			final float change = ( nextPsiValue - lastPsiValue ) * w;
+			cursorPsi.getType().set( lastPsiValue + change );
+
+			final float absChange = Math.abs( change );
+			sumChange += absChange;
+			maxChange = Math.max( maxChange, absChange );
+			sumPsi += lastPsiValue;
+		}
+
+		cursorWeight.close();
+		cursorPsi.close();
+		cursorIntegral.close();
+
+		stats[ 0 ] = sumChange;
+		stats[ 1 ] = maxChange;
+		stats[ 2 ] = sumPsi;
+	}
+
+	/**
+	 * @param lastPsiValue - the current value of psi
+	 * @param integral - the convolved quotient at this location
+	 * @param lambda - the Tikhonov parameter (0 == no regularization)
+	 * @return - the new value of psi for a weight of 1
+	 */
+	static final float computeNextValue( final float lastPsiValue, final float integral, final double lambda )
+	{
+		float value = lastPsiValue * integral;
+
+		if ( value > 0 )
+		{
+			//
+			// perform Tikhonov regularization if desired
+			//
+			if ( lambda > 0 )
+				value = ( (float)( (Math.sqrt( 1.0 + 2.0*lambda*value ) - 1.0) / lambda ) );
+		}
+		else
+		{
+			value = minValue;
+		}
+
+		if ( Double.isNaN( value ) )
+			return (float)minValue;
+		else
+			return (float)Math.max( minValue, value );
+	}
+
+	private static final void computeFinalValues( final long start, final long loopSize, final Image< FloatType > psi, final Image<FloatType> integral, final Image<FloatType> weight, final double lambda, final double[] stats )
+	{
+		double sumChange = 0;
+		double maxChange = -1;
+		double sumPsi = 0;
+		
 		final Cursor< FloatType > cursorPsi = psi.createCursor();
 		final Cursor< FloatType > cursorIntegral = integral.createCursor();
 		final Cursor< FloatType > cursorWeight = weight.createCursor();
@@ -428,39 +804,37 @@ public class BayesMVDeconvolution implements Deconvolver
 			
 			final float lastPsiValue = cursorPsi.getType().get();
 			
-			float value = lastPsiValue * cursorIntegral.getType().get();
-
-			if ( value > 0 )
-			{
-				//
-				// perform Tikhonov regularization if desired
-				//		
-				if ( lambda > 0 )
-					value = ( (float)( (Math.sqrt( 1.0 + 2.0*lambda*value ) - 1.0) / lambda ) );
-			}
-			else
-			{
-				value = minValue;
-			}
 			//
 			// get the final value and some statistics
 			//
-			float nextPsiValue;
-			
-			if ( Double.isNaN( value ) )
-				nextPsiValue = (float)minValue;
-			else
-				nextPsiValue = (float)Math.max( minValue, value );
+			float nextPsiValue = computeNextValue( lastPsiValue, cursorIntegral.getType().get(), lambda );
 			
 			// compute the difference between old and new
 			float change = nextPsiValue - lastPsiValue;				
 			
 			// apply the apropriate amount
-			change *= cursorWeight.getType().get();
+			final float w = cursorWeight.getType().get();
+			change *= w;
 			nextPsiValue = lastPsiValue + change;
 
 			// store the new value
 			cursorPsi.getType().set( (float)nextPsiValue );
-		}		
+
+			if ( w != 0 )
+			{
+				final float absChange = Math.abs( change );
+				sumChange += absChange;
+				maxChange = Math.max( maxChange, absChange );
+				sumPsi += lastPsiValue;
+			}
+		}
+		
+		cursorPsi.close();
+		cursorIntegral.close();
+		cursorWeight.close();
+
+		stats[ 0 ] = sumChange;
+		stats[ 1 ] = maxChange;
+		stats[ 2 ] = sumPsi;
 	}
 }
@@ -0,0 +1,747 @@
+package mpicbg.spim.postprocessing.deconvolution2;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.container.constant.ConstantContainer;
+import mpicbg.imglib.cursor.Cursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.spim.postprocessing.deconvolution2.LRFFT.PSFTYPE;
+import mpicbg.util.RealSum;
+import net.imglib2.img.Img;
+import net.imglib2.util.Util;
+
+/**
+ * Multi-view deconvolution for images that do not fit into memory. psi, the transformed views and their weights are
+ * stored in {@link DiskFloatImage}s and every iteration updates psi view by view and block by block, so only a few
+ * blocks are in memory at any time.
+ *
+ * A block of psi is read with a halo of half the size of both kernels (mirrored at the image borders like in
+ * {@link Block}), convolved with kernel1, divided into the view, convolved with kernel2, and only its inner
+ * (effective) part is updated and written to a second file. The two files are swapped after each view, so the
+ * views are applied sequentially like in {@link BayesMVDeconvolution}. The OSEM speedup is applied to the weights
+ * while reading them. The blocks of a view are distributed over all devices of the deviceList, one thread per device.
+ *
+ * The result stays on disk until {@link #delete()} is called, so it can be streamed to the export with
+ * {@link DiskFloatImage#stream()}, {@link #getPsi()} loads it into memory.
+ */
+public class BayesMVDeconvolutionOutOfCore implements Deconvolver
+{
+	final int numViews, numDimensions;
+	final float avg;
+	final double lambda;
+	final float osemspeedup;
+
+	// the blocks and their size, including the halo for both convolutions
+	final int[] dimensions, blockSize;
+	final Block[] blocks;
+	final int[] deviceList;
+	final ImageFactory< FloatType > factory = new ImageFactory< FloatType >( new FloatType(), new ArrayContainerFactory() );
+
+	// current iteration
+	int i = 0;
+
+	// the relative change of the last iteration and if it was below the convergenceThreshold
+	double lastRelativeChange = Double.NaN;
+	boolean converged = false;
+
+	// psi is read from one file and written to the other, they are swapped after each view,
+	// psiIn holds the result once the deconvolution is done
+	DiskFloatImage psiIn, psiOut;
+
+	// the multi-view deconvolved image, only loaded into memory if requested
+	Image< FloatType > psi;
+
+	// the input data
+	final LRInput views;
+	final ArrayList< LRFFT > data;
+	final ArrayList< DiskFloatImage > images, weights;
+	final String name;
+
+	/**
+	 * @param views - the views, their image and weight are only placeholders of the size of the transformed views (e.g. a
+	 * ConstantContainer), all of them must use blocks of the size computed by getBlockSize()
+	 * @param images - the transformed views, same order as the views
+	 * @param weights - the normalized weights of the transformed views
+	 * @param directory - where psi is stored during the deconvolution
+	 */
+	public BayesMVDeconvolutionOutOfCore( final LRInput views, final ArrayList< DiskFloatImage > images, final ArrayList< DiskFloatImage > weights, final File directory,
+			final PSFTYPE iterationType, final int numIterations, final double lambda, double osemspeedup, final int osemspeedupindex, final String name )
+	{
+		this.name = name;
+		this.data = views.getViews();
+		this.views = views;
+		this.images = images;
+		this.weights = weights;
+		this.numViews = data.size();
+		this.dimensions = data.get( 0 ).getDimensions();
+		this.numDimensions = dimensions.length;
+		this.lambda = lambda;
+		this.deviceList = data.get( 0 ).deviceList;
+
+		boolean finished = false;
+
+		try
+		{
+			final double[] result = normAllImages( images, weights, dimensions );
+			this.avg = (float)result[ 0 ];
+
+			if ( osemspeedupindex == 1 )//min
+				osemspeedup = Math.max( 1, result[ 1 ] );//but not smaller than 1
+			else if ( osemspeedupindex == 2 )//avg
+				osemspeedup = Math.max( 1, result[ 2 ] );//but not smaller than 1
+
+			this.osemspeedup = (float)osemspeedup;
+
+			IJ.log( "Average intensity in overlapping area: " + avg );
+			IJ.log( "OSEM acceleration: " + osemspeedup );
+
+			// init all views
+			views.init( iterationType );
+
+			// the blocks need a halo for both convolutions
+			final int[] kernelSize = getCombinedKernelSize( data );
+			this.blockSize = data.get( 0 ).blockSize.clone();
+			this.blocks = Block.divideIntoBlocks( dimensions, blockSize, kernelSize );
+
+			for ( final LRFFT view : data )
+				if ( !view.useBlocks || !Arrays.equals( view.blockSize, blockSize ) )
+					throw new IllegalArgumentException( "All views need to use blocks of size " + Util.printCoordinates( blockSize ) + " for kernels of size " + Util.printCoordinates( kernelSize ) + "." );
+				else if ( !Arrays.equals( view.deviceList, deviceList ) )
+					throw new IllegalArgumentException( "All views need to use the same devices." );
+
+			long bytesOnDisk = 2 * numPixels( dimensions ) * 4;
+
+			for ( int v = 0; v < numViews; ++v )
+				bytesOnDisk += ( images.get( v ).getNumPixels() + weights.get( v ).getNumPixels() ) * 4;
+
+			IJ.log( "Out-of-core deconvolution in " + blocks.length + " blocks of " + Util.printCoordinates( blockSize ) + " px, " + ( bytesOnDisk / ( 1024 * 1024 ) ) + " MB on disk in '" + directory + "'." );
+
+			//
+			// the real data image psi is initialized with the average
+			//
+			psiIn = DiskFloatImage.createTemp( directory, "psi", new int[ numDimensions ], dimensions );
+			psiOut = DiskFloatImage.createTemp( directory, "psi", new int[ numDimensions ], dimensions );
+			psiIn.fill( avg );
+
+			while ( i < numIterations && !converged )
+			{
+				runIteration();
+
+				if ( BayesMVDeconvolution.convergenceThreshold > 0 && lastRelativeChange < BayesMVDeconvolution.convergenceThreshold )
+				{
+					converged = true;
+					IJ.log( "Converged after " + i + " iterations (relative change " + lastRelativeChange + " < " + BayesMVDeconvolution.convergenceThreshold + ")." );
+				}
+			}
+
+			finished = true;
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Out-of-core deconvolution failed: " + e, e );
+		}
+		finally
+		{
+			// only the result is kept
+			if ( psiOut != null )
+				psiOut.delete();
+
+			psiOut = null;
+
+			if ( !finished )
+				delete();
+		}
+
+		IJ.log( "DONE after " + i + " iterations (" + new Date(System.currentTimeMillis()) + ")." );
+	}
+
+	/**
+	 * @param image - the transformed view on disk
+	 * @param dimensions - the size of the deconvolved image
+	 * @param kernel - the PSF of the view
+	 * @param blockSize - the block size computed by getBlockSize()
+	 * @return - an {@link LRFFT} that only holds the kernels, image and weight are constant placeholders of the size of the view
+	 */
+	public static LRFFT createView( final DiskFloatImage image, final int[] dimensions, final Img< net.imglib2.type.numeric.real.FloatType > kernel, final int[] deviceList, final int[] blockSize )
+	{
+		final Image< FloatType > placeholder = new Image< FloatType >( new ConstantContainer< FloatType >( image.getSize(), new FloatType( 0 ) ), new FloatType() );
+
+		return new LRFFT( placeholder, placeholder, image.getOffset(), dimensions, LRFFT.wrap( kernel ), deviceList, true, blockSize );
+	}
+
+	/**
+	 * @param blockSize - the requested block size
+	 * @param kernelSize - the size of the largest PSF of all views
+	 * @return - the block size that leaves space for the halo of both convolutions (kernel2 has the size of kernel1)
+	 */
+	public static int[] getBlockSize( final int[] blockSize, final int[] kernelSize )
+	{
+		final int[] size = blockSize.clone();
+
+		for ( int d = 0; d < size.length; ++d )
+			while ( size[ d ] - ( 2 * kernelSize[ d ] - 1 ) + 1 <= 0 )
+				size[ d ] *= 2;
+
+		return size;
+	}
+
+	/**
+	 * @return - the size of a kernel that covers the support of the convolution with kernel1 followed by kernel2 for all views
+	 */
+	protected static int[] getCombinedKernelSize( final ArrayList< LRFFT > data )
+	{
+		final int[] kernelSize = new int[ data.get( 0 ).getDimensions().length ];
+
+		for ( final LRFFT view : data )
+			for ( int d = 0; d < kernelSize.length; ++d )
+				kernelSize[ d ] = Math.max( kernelSize[ d ], view.getKernel1().getDimension( d ) + view.getKernel2().getDimension( d ) - 1 );
+
+		return kernelSize;
+	}
+
+	/**
+	 * Same as AdjustInput.normAllImages, reads the images and weights slab by slab
+	 *
+	 * @return - the average intensity in the overlapping area, the minimal and the average number of overlapping views
+	 */
+	protected static double[] normAllImages( final ArrayList< DiskFloatImage > images, final ArrayList< DiskFloatImage > weights, final int[] dimensions ) throws IOException
+	{
+		final int n = dimensions.length;
+		final int numViews = images.size();
+		final int slices = DiskFloatImage.slicesPerSlab( dimensions, numViews * 2 );
+
+		final int[] min = new int[ n ];
+		final int[] size = dimensions.clone();
+		size[ n - 1 ] = slices;
+
+		final int slabPixels = (int)numPixels( size );
+		final float[][] img = new float[ numViews ][];
+		final float[][] weight = new float[ numViews ][];
+		final int[] overlapping = new int[ numViews ];
+
+		int minNumOverlap = numViews;
+		long avgNumOverlap = 0;
+		long countAvgNumOverlap = 0;
+
+		final RealSum sum = new RealSum();
+		// the number of overlapping pixels
+		long count = 0;
+
+		for ( int z = 0; z < dimensions[ n - 1 ]; z += slices )
+		{
+			min[ n - 1 ] = z;
+			size[ n - 1 ] = Math.min( slices, dimensions[ n - 1 ] - z );
+
+			// only read the views that overlap with the slab
+			int numOverlapping = 0;
+
+			for ( int v = 0; v < numViews; ++v )
+			{
+				if ( !weights.get( v ).intersects( min, size ) )
+					continue;
+
+				if ( img[ v ] == null )
+				{
+					img[ v ] = new float[ slabPixels ];
+					weight[ v ] = new float[ slabPixels ];
+				}
+
+				images.get( v ).read( min, size, img[ v ] );
+				weights.get( v ).read( min, size, weight[ v ] );
+				overlapping[ numOverlapping++ ] = v;
+			}
+
+			final long numPixels = numPixels( size );
+
+			for ( int j = 0; j < numPixels; ++j )
+			{
+				// sum up individual intensities
+				double sumLocal = 0;
+				int countLocal = 0;
+
+				for ( int k = 0; k < numOverlapping; ++k )
+				{
+					final int v = overlapping[ k ];
+
+					if ( weight[ v ][ j ] != 0 )
+					{
+						sumLocal += img[ v ][ j ];
+						countLocal++;
+					}
+				}
+
+				// at least two overlap
+				if ( countLocal > 1 )
+				{
+					sum.add( sumLocal );
+					count += countLocal;
+				}
+
+				if ( countLocal > 0 )
+				{
+					avgNumOverlap += countLocal;
+					countAvgNumOverlap++;
+
+					minNumOverlap = Math.min( countLocal, minNumOverlap );
+				}
+			}
+		}
+
+		final double avgNumOverlapFinal = (avgNumOverlap/(double)countAvgNumOverlap);
+		IJ.log( "Min number of overlapping views: " + minNumOverlap );
+		IJ.log( "Average number of overlapping views: " + avgNumOverlapFinal );
+
+		if ( count == 0 )
+			return new double[]{ 1, minNumOverlap, avgNumOverlapFinal };
+
+		// return the average intensity in the overlapping area
+		return new double[]{ sum.getSum() / (double)count, minNumOverlap, avgNumOverlapFinal };
+	}
+
+	public LRInput getData() { return views; }
+	public String getName() { return name; }
+	public double getAvg() { return avg; }
+
+	/**
+	 * @return - the deconvolved image on disk, null after {@link #delete()}
+	 */
+	public DiskFloatImage getPsiOnDisk() { return psiIn; }
+
+	/**
+	 * Loads the deconvolved image into memory (once), note that this needs as much memory as an in-core deconvolution
+	 * of the same size holds for psi
+	 */
+	public Image<FloatType> getPsi()
+	{
+		if ( psi == null && psiIn != null )
+		{
+			try
+			{
+				psi = psiIn.load();
+			}
+			catch ( final IOException e )
+			{
+				throw new RuntimeException( "Could not load the deconvolved image from '" + psiIn.getFile() + "': " + e, e );
+			}
+		}
+
+		return psi;
+	}
+
+	/**
+	 * Deletes the deconvolved image on disk, call it once it is exported
+	 */
+	public void delete()
+	{
+		if ( psiIn != null )
+			psiIn.delete();
+
+		psiIn = null;
+	}
+
+	public int getCurrentIteration() { return i; }
+	public double getLastRelativeChange() { return lastRelativeChange; }
+	public boolean hasConverged() { return converged; }
+
+	/**
+	 * Runs one iteration, psi is only on disk while the constructor runs the deconvolution
+	 */
+	public void runIteration()
+	{
+		if ( psiOut == null )
+			throw new IllegalStateException( "The out-of-core deconvolution is finished, psi is not on disk anymore." );
+
+		try
+		{
+			lastRelativeChange = runIteration( i++ );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Out-of-core deconvolution iteration failed: " + e, e );
+		}
+	}
+
+	/**
+	 * One iteration, i.e. one update of psi for each view computed block by block. The blocks of a view are
+	 * distributed over the devices, each device thread reads, convolves and writes its own blocks.
+	 *
+	 * @return - the relative change, i.e. the sum change divided by the sum of psi over all updated pixels of all views
+	 */
+	protected double runIteration( final int iteration ) throws IOException
+	{
+		IJ.log( "iteration: " + iteration + " (" + new Date(System.currentTimeMillis()) + ")" );
+
+		// sum change, max change and sum psi of all blocks
+		final double[] stats = new double[]{ 0, -1, 0 };
+		final IOException[] failed = new IOException[ 1 ];
+
+		// the buffers of each device are reused for all views
+		final BlockBuffers[] buffers = new BlockBuffers[ deviceList.length ];
+
+		for ( int j = 0; j < deviceList.length; ++j )
+			buffers[ j ] = new BlockBuffers();
+
+		for ( int view = 0; view < numViews; ++view )
+		{
+			final LRFFT processingData = data.get( view );
+			final DiskFloatImage image = images.get( view );
+			final DiskFloatImage weight = weights.get( view );
+			final DiskFloatImage in = psiIn;
+			final DiskFloatImage out = psiOut;
+
+			final AtomicInteger ai = new AtomicInteger();
+			final Thread[] threads = SimpleMultiThreading.newThreads( deviceList.length );
+
+			for ( int j = 0; j < deviceList.length; ++j )
+			{
+				final int deviceId = deviceList[ j ];
+				final BlockBuffers buffer = buffers[ j ];
+
+				threads[ j ] = new Thread( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						int b;
+
+						try
+						{
+							while ( ( b = ai.getAndIncrement() ) < blocks.length )
+							{
+								final double[] blockStats = updateBlock( blocks[ b ], processingData, deviceId, image, weight, in, out, buffer );
+
+								synchronized ( stats )
+								{
+									stats[ 0 ] += blockStats[ 0 ];
+									stats[ 1 ] = Math.max( stats[ 1 ], blockStats[ 1 ] );
+									stats[ 2 ] += blockStats[ 2 ];
+								}
+							}
+						}
+						catch ( final IOException e )
+						{
+							synchronized ( failed )
+							{
+								failed[ 0 ] = e;
+							}
+
+							// stop the other threads
+							ai.set( blocks.length );
+						}
+					}
+				});
+			}
+
+			SimpleMultiThreading.startAndJoin( threads );
+
+			if ( failed[ 0 ] != null )
+				throw failed[ 0 ];
+
+			// the updated psi is the input for the next view
+			psiIn = out;
+			psiOut = in;
+		}
+
+		final double sumChange = stats[ 0 ];
+		final double maxChange = stats[ 1 ];
+		final double relativeChange = stats[ 2 ] > 0 ? sumChange / stats[ 2 ] : 0;
+
+		IJ.log("iteration: " + iteration + " --- sum change: " + sumChange + " --- max change per pixel: " + maxChange + " --- relative change: " + relativeChange );
+
+		return relativeChange;
+	}
+
+	/**
+	 * Updates the effective part of one block of psi for one view
+	 *
+	 * @return - the sum and max of the changes and the sum of psi where it was updated
+	 */
+	protected double[] updateBlock( final Block block, final LRFFT processingData, final int deviceId, final DiskFloatImage image, final DiskFloatImage weight,
+			final DiskFloatImage psiIn, final DiskFloatImage psiOut, final BlockBuffers buffer ) throws IOException
+	{
+		// the weight is zero outside of the view, psi does not change
+		if ( !weight.intersects( block.effectiveOffset, block.effectiveSize ) )
+		{
+			psiIn.read( block.effectiveOffset, block.effectiveSize, buffer.newPsiArray );
+			psiOut.write( block.effectiveOffset, block.effectiveSize, buffer.newPsiArray );
+			return new double[]{ 0, -1, 0 };
+		}
+
+		readBlock( psiIn, block, buffer.psiBlock );
+
+		// convolve psi (current guess of the image) with the PSF of the current view (might be in place)
+		System.arraycopy( buffer.psiArray, 0, buffer.quotientArray, 0, buffer.psiArray.length );
+		final float[] psiBlurredArray = toFloatArray( processingData.convolve1Block( buffer.quotientBlock, deviceId ) );
+
+		// compute quotient img/psiBlurred and mirror it at the image borders
+		image.read( block.offset, blockSize, buffer.imgArray );
+		computeQuotient( psiBlurredArray, buffer.imgArray, buffer.quotientArray, block, processingData.getKernel1().getDimensions() );
+		mirrorBlock( buffer.quotientBlock, block );
+
+		// blur the residuals image with the kernel
+		final float[] integralArray = toFloatArray( processingData.convolve2Block( buffer.quotientBlock, deviceId ) );
+
+		// update the effective part of the block
+		weight.read( block.effectiveOffset, block.effectiveSize, buffer.weightArray );
+
+		final double[] stats = computeFinalValues( buffer.psiArray, integralArray, buffer.weightArray, buffer.newPsiArray, block, lambda, osemspeedup );
+
+		psiOut.write( block.effectiveOffset, block.effectiveSize, buffer.newPsiArray );
+
+		return stats;
+	}
+
+	/**
+	 * The images and arrays one device thread needs to update a block
+	 */
+	protected class BlockBuffers
+	{
+		final Image< FloatType > psiBlock = factory.createImage( blockSize );
+		final Image< FloatType > quotientBlock = factory.createImage( blockSize );
+		final float[] psiArray = BayesMVDeconvolution.getFloatArray( psiBlock );
+		final float[] quotientArray = BayesMVDeconvolution.getFloatArray( quotientBlock );
+		final float[] imgArray = new float[ (int)numPixels( blockSize ) ];
+		final float[] weightArray = new float[ imgArray.length ];
+		final float[] newPsiArray = new float[ imgArray.length ];
+	}
+
+	/**
+	 * Reads a block of psi, the parts outside of the image are mirrored
+	 */
+	protected void readBlock( final DiskFloatImage psi, final Block block, final Image< FloatType > target ) throws IOException
+	{
+		if ( block.inside )
+		{
+			psi.read( block.offset, blockSize, BayesMVDeconvolution.getFloatArray( target ) );
+			return;
+		}
+
+		final int[] min = new int[ numDimensions ];
+		final int[] size = new int[ numDimensions ];
+
+		getPartInside( block, min, size );
+
+		final float[] region = new float[ (int)numPixels( size ) ];
+		psi.read( min, size, region );
+
+		fillFromRegion( region, min, size, block, target );
+	}
+
+	/**
+	 * Replaces the parts of a block outside of the image with the mirrored parts inside of it,
+	 * like a block that is copied from an image in memory
+	 */
+	protected void mirrorBlock( final Image< FloatType > blockImage, final Block block )
+	{
+		if ( block.inside )
+			return;
+
+		final int[] min = new int[ numDimensions ];
+		final int[] size = new int[ numDimensions ];
+
+		getPartInside( block, min, size );
+
+		final float[] blockArray = BayesMVDeconvolution.getFloatArray( blockImage );
+		final float[] region = new float[ (int)numPixels( size ) ];
+		final int[] pos = new int[ numDimensions ];
+
+		// copy the part inside of the image row by row
+		for ( int row = 0; row < region.length; row += size[ 0 ] )
+		{
+			int index = 0;
+
+			for ( int d = numDimensions - 1; d >= 0; --d )
+				index = index * blockSize[ d ] + pos[ d ] + min[ d ] - block.offset[ d ];
+
+			System.arraycopy( blockArray, index, region, row, size[ 0 ] );
+
+			nextRow( size, pos );
+		}
+
+		fillFromRegion( region, min, size, block, blockImage );
+	}
+
+	/**
+	 * Fills the block from the part of it that is inside of the image using the mirror strategy of {@link Block}
+	 */
+	protected void fillFromRegion( final float[] region, final int[] min, final int[] size, final Block block, final Image< FloatType > target )
+	{
+		final int[] regionOffset = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+			regionOffset[ d ] = block.offset[ d ] - min[ d ];
+
+		new Block( blockSize, regionOffset, block.effectiveSize, block.effectiveOffset, block.effectiveLocalOffset, false ).copyBlock( LRFFT.createImageFromArray( region, size ), target );
+	}
+
+	/**
+	 * @param min - the first pixel of the block that is inside of the image (output)
+	 * @param size - the size of the part inside of the image (output)
+	 */
+	protected void getPartInside( final Block block, final int[] min, final int[] size )
+	{
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			min[ d ] = Math.max( 0, block.offset[ d ] );
+			size[ d ] = Math.min( dimensions[ d ], block.offset[ d ] + blockSize[ d ] ) - min[ d ];
+		}
+	}
+
+	/**
+	 * Computes the quotient where the blurred psi is correct (not closer than half the kernel to the border of
+	 * the block) and inside of the image, the quotient is 0 everywhere else.
+	 *
+	 * @param psiBlurred - the blurred block of psi
+	 * @param img - the block of the view (0 outside of the view)
+	 * @param quotient - the quotient (output), may be the same array as psiBlurred
+	 * @param kernelSize - the size of kernel1
+	 */
+	protected void computeQuotient( final float[] psiBlurred, final float[] img, final float[] quotient, final Block block, final int[] kernelSize )
+	{
+		final int[] from = new int[ numDimensions ];
+		final int[] to = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			from[ d ] = Math.max( kernelSize[ d ] / 2, -block.offset[ d ] );
+			to[ d ] = Math.min( blockSize[ d ] - kernelSize[ d ] / 2, dimensions[ d ] - block.offset[ d ] );
+		}
+
+		final int[] pos = new int[ numDimensions ];
+		final int numPixels = (int)numPixels( blockSize );
+
+		for ( int row = 0; row < numPixels; row += blockSize[ 0 ] )
+		{
+			boolean valid = true;
+
+			for ( int d = 1; d < numDimensions && valid; ++d )
+				valid = pos[ d ] >= from[ d ] && pos[ d ] < to[ d ];
+
+			for ( int x = 0; x < blockSize[ 0 ]; ++x )
+			{
+				final int j = row + x;
+
+				if ( valid && x >= from[ 0 ] && x < to[ 0 ] )
+					quotient[ j ] = img[ j ] / psiBlurred[ j ];
+				else
+					quotient[ j ] = 0;
+			}
+
+			nextRow( blockSize, pos );
+		}
+	}
+
+	/**
+	 * Same as BayesMVDeconvolution.computeFinalValues for the effective part of a block
+	 *
+	 * @param psi - the block of psi
+	 * @param integral - the convolved quotient, same size as the block
+	 * @param weight - the weights of the effective part
+	 * @param newPsi - the updated effective part (output)
+	 * @return - the sum and max of the changes and the sum of psi where it was updated
+	 */
+	protected static double[] computeFinalValues( final float[] psi, final float[] integral, final float[] weight, final float[] newPsi, final Block block, final double lambda, final float osemspeedup )
+	{
+		final int n = block.numDimensions;
+		final int[] pos = new int[ n ];
+		final int numPixels = (int)numPixels( block.effectiveSize );
+
+		double sumChange = 0;
+		double maxChange = -1;
+		double sumPsi = 0;
+
+		for ( int k = 0; k < numPixels; )
+		{
+			// index of the beginning of the row in the block
+			int index = 0;
+
+			for ( int d = n - 1; d >= 0; --d )
+				index = index * block.blockSize[ d ] + pos[ d ] + block.effectiveLocalOffset[ d ];
+
+			for ( int x = 0; x < block.effectiveSize[ 0 ]; ++x, ++k )
+			{
+				final int j = index + x;
+				final float lastPsiValue = psi[ j ];
+
+				// individual contribution never higher than 1
+				final float w = osemspeedup == 1 ? weight[ k ] : Math.min( 1, weight[ k ] * osemspeedup );
+
+				// zero weight, no change
+				if ( w == 0 )
+				{
+					newPsi[ k ] = lastPsiValue;
+					continue;
+				}
+
+				// apply the apropriate amount
+				final float change = ( BayesMVDeconvolution.computeNextValue( lastPsiValue, integral[ j ], lambda ) - lastPsiValue ) * w;
+				newPsi[ k ] = lastPsiValue + change;
+
+				final float absChange = Math.abs( change );
+				sumChange += absChange;
+				maxChange = Math.max( maxChange, absChange );
+				sumPsi += lastPsiValue;
+			}
+
+			nextRow( block.effectiveSize, pos );
+		}
+
+		return new double[]{ sumChange, maxChange, sumPsi };
+	}
+
+	/**
+	 * @return - the float[] of the image, a copy if it is not stored in an array
+	 */
+	protected static float[] toFloatArray( final Image< FloatType > image )
+	{
+		final float[] array = BayesMVDeconvolution.getFloatArray( image );
+
+		if ( array != null )
+			return array;
+
+		final float[] copy = new float[ (int)image.getNumPixels() ];
+		final Cursor< FloatType > cursor = image.createCursor();
+
+		for ( int j = 0; j < copy.length; ++j )
+			copy[ j ] = cursor.next().get();
+
+		cursor.close();
+
+		return copy;
+	}
+
+	/**
+	 * Moves the position to the next row (dimensions 1...n-1)
+	 */
+	protected static final void nextRow( final int[] size, final int[] pos )
+	{
+		for ( int d = 1; d < size.length; ++d )
+		{
+			if ( ++pos[ d ] < size[ d ] )
+				break;
+
+			pos[ d ] = 0;
+		}
+	}
+
+	protected static final long numPixels( final int[] size )
+	{
+		long numPixels = 1;
+
+		for ( final int s : size )
+			numPixels *= s;
+
+		return numPixels;
+	}
+}
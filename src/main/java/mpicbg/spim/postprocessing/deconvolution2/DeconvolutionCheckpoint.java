@@ -0,0 +1,416 @@
+package mpicbg.spim.postprocessing.deconvolution2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.imglib.cursor.Cursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.multithreading.Chunk;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.postprocessing.deconvolution2.LRFFT.PSFTYPE;
+import net.imglib2.util.Util;
+import spim.Threads;
+
+/**
+ * Stores the current state of a {@link BayesMVDeconvolution} (psi, the iteration and the parameters) in a raw file,
+ * so that a deconvolution that was interrupted can be resumed.
+ *
+ * The file consists of a header (magic number, number of dimensions, dimensions, iteration, number of views, the
+ * {@link PSFTYPE}, lambda, the average intensity of the input, the OSEM speedup and a hash of the PSFs and weights)
+ * followed by the pixels of psi as little-endian floats in the iteration order of the image. A checkpoint is only
+ * loaded if all of these match the current deconvolution. The file is written to a temporary file first and renamed afterwards, so an interruption while
+ * writing does not destroy the last checkpoint.
+ */
+public class DeconvolutionCheckpoint
+{
+	final static int MAGIC = 0x424d5644; // "BMVD"
+
+	// how many floats are written or read at once
+	final static int bufferSize = 1024 * 1024;
+
+	/**
+	 * @param file - the checkpoint file
+	 * @param psi - the current deconvolved image
+	 * @param iteration - the number of iterations psi is the result of
+	 * @param numViews - the number of views
+	 * @param iterationType - the type of iteration
+	 * @param lambda - the Tikhonov parameter
+	 * @param avg - the average intensity of the input
+	 * @param osemspeedup - the OSEM speedup
+	 * @param hash - the hash of the PSFs and weights, see {@link #hash(LRInput)}
+	 * @return true if the checkpoint was written
+	 */
+	public static boolean save( final File file, final Image< FloatType > psi, final int iteration, final int numViews, final PSFTYPE iterationType, final double lambda, final double avg, final double osemspeedup, final long hash )
+	{
+		final long time = System.currentTimeMillis();
+		final File tmp = new File( file.getAbsolutePath() + ".tmp" );
+
+		FileOutputStream out = null;
+
+		try
+		{
+			out = new FileOutputStream( tmp );
+			final FileChannel channel = out.getChannel();
+
+			final int n = psi.getNumDimensions();
+			final ByteBuffer header = ByteBuffer.allocate( headerSize( n ) ).order( ByteOrder.LITTLE_ENDIAN );
+
+			header.putInt( MAGIC );
+			header.putInt( n );
+
+			for ( int d = 0; d < n; ++d )
+				header.putInt( psi.getDimension( d ) );
+
+			header.putInt( iteration );
+			header.putInt( numViews );
+			header.putInt( iterationType.ordinal() );
+			header.putDouble( lambda );
+			header.putDouble( avg );
+			header.putDouble( osemspeedup );
+			header.putLong( hash );
+			header.flip();
+
+			while ( header.hasRemaining() )
+				channel.write( header );
+
+			final ByteBuffer buffer = ByteBuffer.allocateDirect( bufferSize * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+			final FloatBuffer floats = buffer.asFloatBuffer();
+			final float[] data = BayesMVDeconvolution.getFloatArray( psi );
+
+			if ( data != null )
+			{
+				for ( int i = 0; i < data.length; i += bufferSize )
+				{
+					final int length = Math.min( bufferSize, data.length - i );
+
+					floats.clear();
+					floats.put( data, i, length );
+					write( channel, buffer, length );
+				}
+			}
+			else
+			{
+				final Cursor< FloatType > cursor = psi.createCursor();
+
+				floats.clear();
+
+				while ( cursor.hasNext() )
+				{
+					floats.put( cursor.next().get() );
+
+					if ( !floats.hasRemaining() )
+					{
+						write( channel, buffer, floats.position() );
+						floats.clear();
+					}
+				}
+
+				write( channel, buffer, floats.position() );
+				cursor.close();
+			}
+
+			out.close();
+			out = null;
+
+			// replace the last checkpoint
+			if ( file.exists() && !file.delete() )
+				throw new IOException( "Cannot delete '" + file + "'" );
+
+			if ( !tmp.renameTo( file ) )
+				throw new IOException( "Cannot rename '" + tmp + "' to '" + file + "'" );
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Saved checkpoint of iteration " + iteration + " to '" + file + "' (" + ( System.currentTimeMillis() - time ) + " ms)." );
+
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Could not save checkpoint '" + file + "': " + e );
+			e.printStackTrace();
+
+			return false;
+		}
+		finally
+		{
+			if ( out != null )
+				try { out.close(); } catch ( final IOException e ) {}
+		}
+	}
+
+	/**
+	 * Loads a checkpoint into psi if it was written for the same image size and parameters.
+	 *
+	 * @param file - the checkpoint file
+	 * @param psi - the deconvolved image, is overwritten if the checkpoint matches
+	 * @param numViews - the number of views
+	 * @param iterationType - the type of iteration
+	 * @param lambda - the Tikhonov parameter
+	 * @param avg - the average intensity of the input
+	 * @param osemspeedup - the OSEM speedup
+	 * @param hash - the hash of the PSFs and weights, see {@link #hash(LRInput)}
+	 * @return the iteration of the checkpoint or -1 if it does not exist or does not match
+	 */
+	public static int load( final File file, final Image< FloatType > psi, final int numViews, final PSFTYPE iterationType, final double lambda, final double avg, final double osemspeedup, final long hash )
+	{
+		if ( !file.exists() )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): No checkpoint '" + file + "' found, starting from the beginning." );
+			return -1;
+		}
+
+		FileInputStream in = null;
+
+		try
+		{
+			in = new FileInputStream( file );
+			final FileChannel channel = in.getChannel();
+
+			final int n = psi.getNumDimensions();
+			final ByteBuffer header = ByteBuffer.allocate( headerSize( n ) ).order( ByteOrder.LITTLE_ENDIAN );
+
+			read( channel, header );
+
+			if ( header.getInt() != MAGIC || header.getInt() != n )
+				return mismatch( file, "not a checkpoint of a " + n + "d deconvolution" );
+
+			final int[] dimensions = new int[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				dimensions[ d ] = header.getInt();
+
+			for ( int d = 0; d < n; ++d )
+				if ( dimensions[ d ] != psi.getDimension( d ) )
+					return mismatch( file, "dimensions " + Util.printCoordinates( dimensions ) + " != " + Util.printCoordinates( psi.getDimensions() ) );
+
+			final int iteration = header.getInt();
+			final int numViewsFile = header.getInt();
+			final int iterationTypeFile = header.getInt();
+			final double lambdaFile = header.getDouble();
+			final double avgFile = header.getDouble();
+			final double osemspeedupFile = header.getDouble();
+			final long hashFile = header.getLong();
+
+			if ( numViewsFile != numViews || iterationTypeFile != iterationType.ordinal() || lambdaFile != lambda || (float)avgFile != (float)avg || osemspeedupFile != osemspeedup )
+				return mismatch( file, "parameters differ (views=" + numViewsFile + ", iteration type=" + iterationTypeFile + ", lambda=" + lambdaFile + ", avg=" + avgFile + ", osem speedup=" + osemspeedupFile + ")" );
+
+			if ( hashFile != hash )
+				return mismatch( file, "the PSFs or weights differ" );
+
+			if ( channel.size() != header.capacity() + psi.getNumPixels() * 4 )
+				return mismatch( file, "file is incomplete" );
+
+			final ByteBuffer buffer = ByteBuffer.allocateDirect( bufferSize * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+			final FloatBuffer floats = buffer.asFloatBuffer();
+			final float[] data = BayesMVDeconvolution.getFloatArray( psi );
+
+			if ( data != null )
+			{
+				for ( int i = 0; i < data.length; i += bufferSize )
+				{
+					final int length = Math.min( bufferSize, data.length - i );
+
+					buffer.clear();
+					buffer.limit( length * 4 );
+					read( channel, buffer );
+
+					floats.clear();
+					floats.get( data, i, length );
+				}
+			}
+			else
+			{
+				final Cursor< FloatType > cursor = psi.createCursor();
+				long remaining = psi.getNumPixels();
+
+				while ( remaining > 0 )
+				{
+					final int length = (int)Math.min( bufferSize, remaining );
+
+					buffer.clear();
+					buffer.limit( length * 4 );
+					read( channel, buffer );
+
+					floats.clear();
+
+					for ( int i = 0; i < length; ++i )
+						cursor.next().set( floats.get() );
+
+					remaining -= length;
+				}
+
+				cursor.close();
+			}
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Resuming from checkpoint '" + file + "' after iteration " + iteration + "." );
+
+			return iteration;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Could not load checkpoint '" + file + "': " + e );
+			e.printStackTrace();
+
+			return -1;
+		}
+		finally
+		{
+			if ( in != null )
+				try { in.close(); } catch ( final IOException e ) {}
+		}
+	}
+
+	/**
+	 * Deletes the checkpoint, e.g. once the deconvolved image was exported.
+	 *
+	 * @param file - the checkpoint file
+	 */
+	public static void delete( final File file )
+	{
+		if ( file.exists() && !file.delete() )
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Could not delete checkpoint '" + file + "'." );
+	}
+
+	/**
+	 * The pixels are hashed in parallel, each pixel is mixed with its index and the results are summed up,
+	 * so the hash does not depend on how the image is divided among the threads.
+	 *
+	 * @param views - the input of the deconvolution after its initialization (normalization and OSEM adjustment)
+	 * @return a hash of the PSFs and weights of all views
+	 */
+	public static long hash( final LRInput views )
+	{
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+
+		try
+		{
+			long hash = 17;
+
+			for ( final LRFFT view : views.getViews() )
+			{
+				hash = hash( hash, view.getKernel1(), taskExecutor );
+				hash = hash( hash, view.getWeight(), taskExecutor );
+			}
+
+			return hash;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+	}
+
+	protected static long hash( long hash, final Image< FloatType > img, final ExecutorService taskExecutor )
+	{
+		for ( int d = 0; d < img.getNumDimensions(); ++d )
+			hash = 31 * hash + img.getDimension( d );
+
+		final float[] data = BayesMVDeconvolution.getFloatArray( img );
+		final ArrayList< Callable< Long > > tasks = new ArrayList< Callable< Long > >();
+
+		for ( final Chunk chunk : SimpleMultiThreading.divideIntoChunks( img.getNumPixels(), Threads.numThreads() ) )
+		{
+			tasks.add( new Callable< Long >()
+			{
+				@Override
+				public Long call()
+				{
+					final long start = chunk.getStartPosition();
+					final long end = start + chunk.getLoopSize();
+
+					long sum = 0;
+
+					if ( data != null )
+					{
+						for ( long i = start; i < end; ++i )
+							sum += mix( i, data[ (int)i ] );
+					}
+					else
+					{
+						final Cursor< FloatType > cursor = img.createCursor();
+						cursor.fwd( start );
+
+						for ( long i = start; i < end; ++i )
+						{
+							cursor.fwd();
+							sum += mix( i, cursor.getType().get() );
+						}
+
+						cursor.close();
+					}
+
+					return sum;
+				}
+			});
+		}
+
+		try
+		{
+			long sum = 0;
+
+			for ( final Future< Long > future : taskExecutor.invokeAll( tasks ) )
+				sum += future.get();
+
+			return 31 * hash + sum;
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( "Could not hash the input of the deconvolution: " + e, e );
+		}
+	}
+
+	/**
+	 * @return - the value mixed with its index (finalizer of SplitMix64)
+	 */
+	protected static final long mix( final long index, final float value )
+	{
+		long z = index * 0x9E3779B97F4A7C15L + Float.floatToIntBits( value );
+
+		z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+		z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+
+		return z ^ ( z >>> 31 );
+	}
+
+	protected static int headerSize( final int n )
+	{
+		return 4 * ( 2 + n + 3 ) + 8 * 4;
+	}
+
+	protected static int mismatch( final File file, final String reason )
+	{
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Checkpoint '" + file + "' does not match this deconvolution (" + reason + "), starting from the beginning." );
+		return -1;
+	}
+
+	protected static void write( final FileChannel channel, final ByteBuffer buffer, final int numFloats ) throws IOException
+	{
+		buffer.clear();
+		buffer.limit( numFloats * 4 );
+
+		while ( buffer.hasRemaining() )
+			channel.write( buffer );
+	}
+
+	protected static void read( final FileChannel channel, final ByteBuffer buffer ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer ) < 0 )
+				throw new IOException( "Unexpected end of file" );
+
+		buffer.flip();
+	}
+}
@@ -11,4 +11,8 @@ public interface Deconvolver
 	
 	public Image<FloatType> getPsi();
 	public void runIteration();
+
+	public int getCurrentIteration();
+	public double getLastRelativeChange();
+	public boolean hasConverged();
 }
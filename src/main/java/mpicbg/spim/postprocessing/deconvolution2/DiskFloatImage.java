@@ -0,0 +1,381 @@
+package mpicbg.spim.postprocessing.deconvolution2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.container.imageplus.ImagePlusContainerFactory;
+import mpicbg.imglib.cursor.Cursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.view.Views;
+import spim.process.fusion.BlockFusedImg;
+import spim.process.fusion.BlockFusedImg.BlockFusion;
+
+/**
+ * A float image that is stored in a raw file (little-endian, x fastest) and read and written region by region,
+ * used by the {@link BayesMVDeconvolutionOutOfCore} for images that do not fit into memory.
+ *
+ * The image may only cover a part of a larger image (e.g. a transformed view that only covers a part of the
+ * deconvolved image), regions are always given in coordinates of the larger image. Reading outside of the image
+ * returns 0, writing outside of it is ignored. Positional reads and writes are used instead of mapping the file,
+ * so the file can be deleted as soon as it is not needed anymore.
+ */
+public class DiskFloatImage
+{
+	// how many floats are written or read at once if the whole image is transferred
+	final static int bufferSize = 1024 * 1024;
+
+	final File file;
+	final RandomAccessFile raf;
+	final FileChannel channel;
+
+	final int numDimensions;
+	final int[] offset, size;
+	final long numPixels;
+
+	/**
+	 * @param file - the file, is created or overwritten
+	 * @param offset - the position of the image in the larger image
+	 * @param size - the size of the image
+	 */
+	public DiskFloatImage( final File file, final int[] offset, final int[] size ) throws IOException
+	{
+		this.file = file;
+		this.numDimensions = size.length;
+		this.offset = offset.clone();
+		this.size = size.clone();
+
+		long numPixels = 1;
+
+		for ( final int s : size )
+			numPixels *= s;
+
+		this.numPixels = numPixels;
+
+		this.raf = new RandomAccessFile( file, "rw" );
+		this.raf.setLength( numPixels * 4 );
+		this.channel = raf.getChannel();
+
+		// in case the plugin is interrupted
+		file.deleteOnExit();
+	}
+
+	/**
+	 * Creates a new temporary file in the directory
+	 */
+	public static DiskFloatImage createTemp( final File directory, final String prefix, final int[] offset, final int[] size ) throws IOException
+	{
+		return new DiskFloatImage( File.createTempFile( prefix, ".raw", directory ), offset, size );
+	}
+
+	/**
+	 * @param dimensions - the size of the images
+	 * @param numImages - how many images are held in memory at the same time
+	 * @return - how many planes of the last dimension can be processed at once using an eighth of the available memory
+	 * (and at most what fits into a float[] per image)
+	 */
+	public static int slicesPerSlab( final int[] dimensions, final int numImages )
+	{
+		long pixelsPerSlice = 1;
+
+		for ( int d = 0; d < dimensions.length - 1; ++d )
+			pixelsPerSlice *= dimensions[ d ];
+
+		final long slices = Math.min( Runtime.getRuntime().maxMemory() / 8 / ( pixelsPerSlice * 4 * numImages ), Integer.MAX_VALUE / pixelsPerSlice );
+
+		return (int)Math.max( 1, Math.min( dimensions[ dimensions.length - 1 ], slices ) );
+	}
+
+	public File getFile() { return file; }
+	public int[] getOffset() { return offset; }
+	public int[] getSize() { return size; }
+	public long getNumPixels() { return numPixels; }
+
+	/**
+	 * @return - true if the region overlaps with this image
+	 */
+	public boolean intersects( final int[] min, final int[] regionSize )
+	{
+		for ( int d = 0; d < numDimensions; ++d )
+			if ( min[ d ] >= offset[ d ] + size[ d ] || min[ d ] + regionSize[ d ] <= offset[ d ] )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Reads a region, pixels outside of the image are set to 0
+	 *
+	 * @param min - the first pixel of the region (coordinates of the larger image)
+	 * @param regionSize - the size of the region
+	 * @param target - the pixels of the region (x fastest), at least as large as the region
+	 */
+	public void read( final int[] min, final int[] regionSize, final float[] target ) throws IOException
+	{
+		transfer( min, regionSize, target, true );
+	}
+
+	/**
+	 * Writes a region, pixels outside of the image are ignored
+	 *
+	 * @param min - the first pixel of the region (coordinates of the larger image)
+	 * @param regionSize - the size of the region
+	 * @param source - the pixels of the region (x fastest), at least as large as the region
+	 */
+	public void write( final int[] min, final int[] regionSize, final float[] source ) throws IOException
+	{
+		transfer( min, regionSize, source, false );
+	}
+
+	/**
+	 * Transfers the region row by row, only the part of each row that is inside of the image touches the file
+	 */
+	protected void transfer( final int[] min, final int[] regionSize, final float[] data, final boolean read ) throws IOException
+	{
+		long numRows = 1;
+
+		for ( int d = 1; d < numDimensions; ++d )
+			numRows *= regionSize[ d ];
+
+		// the part of every row that is inside of the image
+		final int x0 = Math.max( min[ 0 ], offset[ 0 ] );
+		final int x1 = Math.min( min[ 0 ] + regionSize[ 0 ], offset[ 0 ] + size[ 0 ] );
+		final int length = Math.max( 0, x1 - x0 );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( length * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+		final FloatBuffer floats = buffer.asFloatBuffer();
+
+		// the position of the row in the region
+		final int[] pos = new int[ numDimensions ];
+
+		for ( long row = 0, i = 0; row < numRows; ++row, i += regionSize[ 0 ] )
+		{
+			boolean inside = length > 0;
+			long index = 0;
+
+			for ( int d = numDimensions - 1; d > 0 && inside; --d )
+			{
+				final int l = min[ d ] + pos[ d ] - offset[ d ];
+				inside = l >= 0 && l < size[ d ];
+				index = index * size[ d ] + l;
+			}
+
+			if ( inside )
+			{
+				final int start = (int)i + x0 - min[ 0 ];
+				final long position = ( index * size[ 0 ] + x0 - offset[ 0 ] ) * 4;
+
+				if ( read )
+				{
+					fill( data, (int)i, start, 0 );
+					fill( data, start + length, (int)i + regionSize[ 0 ], 0 );
+
+					buffer.clear();
+
+					while ( buffer.hasRemaining() )
+						if ( channel.read( buffer, position + buffer.position() ) < 0 )
+							throw new IOException( "Unexpected end of file '" + file + "'" );
+
+					floats.clear();
+					floats.get( data, start, length );
+				}
+				else
+				{
+					floats.clear();
+					floats.put( data, start, length );
+
+					buffer.clear();
+
+					while ( buffer.hasRemaining() )
+						channel.write( buffer, position + buffer.position() );
+				}
+			}
+			else if ( read )
+			{
+				fill( data, (int)i, (int)i + regionSize[ 0 ], 0 );
+			}
+
+			// next row
+			for ( int d = 1; d < numDimensions; ++d )
+			{
+				if ( ++pos[ d ] < regionSize[ d ] )
+					break;
+
+				pos[ d ] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Sets all pixels to the same value
+	 */
+	public void fill( final float value ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( (int)Math.min( bufferSize, numPixels ) * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+		final FloatBuffer floats = buffer.asFloatBuffer();
+
+		while ( floats.hasRemaining() )
+			floats.put( value );
+
+		for ( long i = 0; i < numPixels; i += bufferSize )
+		{
+			buffer.clear();
+			buffer.limit( (int)Math.min( bufferSize, numPixels - i ) * 4 );
+
+			while ( buffer.hasRemaining() )
+				channel.write( buffer, i * 4 + buffer.position() );
+		}
+	}
+
+	/**
+	 * Writes an image of the same size into the file
+	 */
+	public void write( final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > img ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( (int)Math.min( bufferSize, numPixels ) * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+		final FloatBuffer floats = buffer.asFloatBuffer();
+		final net.imglib2.Cursor< net.imglib2.type.numeric.real.FloatType > cursor = Views.flatIterable( img ).cursor();
+
+		long position = 0;
+
+		while ( cursor.hasNext() )
+		{
+			floats.put( cursor.next().get() );
+
+			if ( !floats.hasRemaining() || !cursor.hasNext() )
+			{
+				buffer.clear();
+				buffer.limit( floats.position() * 4 );
+
+				while ( buffer.hasRemaining() )
+					channel.write( buffer, position + buffer.position() );
+
+				position += floats.position() * 4;
+				floats.clear();
+			}
+		}
+	}
+
+	/**
+	 * Loads the whole image into memory, as an array if it is small enough
+	 */
+	public Image< FloatType > load() throws IOException
+	{
+		final ImageFactory< FloatType > factory;
+
+		if ( numPixels < Integer.MAX_VALUE )
+			factory = new ImageFactory< FloatType >( new FloatType(), new ArrayContainerFactory() );
+		else
+			factory = new ImageFactory< FloatType >( new FloatType(), new ImagePlusContainerFactory() );
+
+		final Image< FloatType > image = factory.createImage( size );
+		final float[] data = BayesMVDeconvolution.getFloatArray( image );
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( (int)Math.min( bufferSize, numPixels ) * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+		final FloatBuffer floats = buffer.asFloatBuffer();
+		final Cursor< FloatType > cursor = data == null ? image.createCursor() : null;
+
+		for ( long i = 0; i < numPixels; i += bufferSize )
+		{
+			final int length = (int)Math.min( bufferSize, numPixels - i );
+
+			buffer.clear();
+			buffer.limit( length * 4 );
+
+			while ( buffer.hasRemaining() )
+				if ( channel.read( buffer, i * 4 + buffer.position() ) < 0 )
+					throw new IOException( "Unexpected end of file '" + file + "'" );
+
+			floats.clear();
+
+			if ( data != null )
+				floats.get( data, (int)i, length );
+			else
+				for ( int j = 0; j < length; ++j )
+					cursor.next().set( floats.get() );
+		}
+
+		if ( cursor != null )
+			cursor.close();
+
+		return image;
+	}
+
+	/**
+	 * The image as a lazily loaded image that reads slabs of the last dimension (of the size computed by
+	 * slicesPerSlab()) when they are accessed, e.g. to stream it to an exporter. Only one slab is held in memory
+	 * and the file must not be deleted while the image is used.
+	 */
+	public BlockFusedImg< net.imglib2.type.numeric.real.FloatType > stream()
+	{
+		final long[] dim = new long[ numDimensions ];
+		final int[] slabSize = size.clone();
+
+		for ( int d = 0; d < numDimensions; ++d )
+			dim[ d ] = size[ d ];
+
+		slabSize[ numDimensions - 1 ] = slicesPerSlab( size, 1 );
+
+		return new BlockFusedImg< net.imglib2.type.numeric.real.FloatType >( dim, slabSize, new net.imglib2.type.numeric.real.FloatType(),
+				new BlockFusion< net.imglib2.type.numeric.real.FloatType >()
+		{
+			@Override
+			public void fuseBlock( final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > block )
+			{
+				final int[] min = new int[ numDimensions ];
+				final int[] blockSize = new int[ numDimensions ];
+				int blockPixels = 1;
+
+				for ( int d = 0; d < numDimensions; ++d )
+				{
+					min[ d ] = (int)block.min( d ) + offset[ d ];
+					blockSize[ d ] = (int)block.dimension( d );
+					blockPixels *= blockSize[ d ];
+				}
+
+				final float[] data = new float[ blockPixels ];
+
+				try
+				{
+					read( min, blockSize, data );
+				}
+				catch ( final IOException e )
+				{
+					throw new RuntimeException( "Could not read from '" + file + "': " + e, e );
+				}
+
+				final net.imglib2.Cursor< net.imglib2.type.numeric.real.FloatType > cursor = Views.flatIterable( block ).cursor();
+
+				for ( int i = 0; i < data.length; ++i )
+					cursor.next().set( data[ i ] );
+			}
+		}, 1 );
+	}
+
+	/**
+	 * Closes and deletes the file
+	 */
+	public void delete()
+	{
+		try
+		{
+			raf.close();
+		}
+		catch ( final IOException e ) {}
+
+		file.delete();
+	}
+
+	private static final void fill( final float[] data, final int from, final int to, final float value )
+	{
+		for ( int i = from; i < to; ++i )
+			data[ i ] = value;
+	}
+}
@@ -44,6 +44,10 @@ public class LRFFT
 	
 	final boolean useBlocks, useCUDA, useCPU;
 	final int[] blockSize, deviceList;
+
+	// the image and weight only cover the part of the deconvolved image where the view contributes,
+	// offset is their position and dimensions the size of the deconvolved image
+	final int[] offset, dimensions;
 	final int device0, numDevices;
 	final Block[] blocks;
 	final ImageFactory< FloatType > factory;
@@ -61,6 +65,24 @@ public class LRFFT
 		this( wrap( image ), wrap( weight ), wrap( kernel ), deviceList, useBlocks, blockSize );
 		
 	}
+
+	/**
+	 * @param image - the transformed view, only the part where the view contributes
+	 * @param weight - the weights of the view, same size as image
+	 * @param offset - the position of image and weight in the deconvolved image
+	 * @param dimensions - the size of the deconvolved image
+	 * @param kernel - the PSF
+	 */
+	public LRFFT(
+			final Img< net.imglib2.type.numeric.real.FloatType > image,
+			final Img< net.imglib2.type.numeric.real.FloatType > weight,
+			final int[] offset,
+			final int[] dimensions,
+			final Img< net.imglib2.type.numeric.real.FloatType > kernel,
+			final int[] deviceList, final boolean useBlocks, final int[] blockSize )
+	{
+		this( wrap( image ), wrap( weight ), offset, dimensions, wrap( kernel ), deviceList, useBlocks, blockSize );
+	}
 	
 	@SuppressWarnings("rawtypes")
 	public static final Image< FloatType > wrap( final Img< net.imglib2.type.numeric.real.FloatType > i )
@@ -112,10 +134,23 @@ public class LRFFT
 			final Image<FloatType> weight,
 			final Image<FloatType> kernel,
 			final int[] deviceList, final boolean useBlocks, final int[] blockSize )
+	{
+		this( image, weight, new int[ image.getNumDimensions() ], image.getDimensions(), kernel, deviceList, useBlocks, blockSize );
+	}
+
+	public LRFFT(
+			final Image<FloatType> image,
+			final Image<FloatType> weight,
+			final int[] offset,
+			final int[] dimensions,
+			final Image<FloatType> kernel,
+			final int[] deviceList, final boolean useBlocks, final int[] blockSize )
 	{
 		this.image = image;
 		this.kernel1 = kernel;
 		this.weight = weight;
+		this.offset = offset.clone();
+		this.dimensions = dimensions.clone();
 		
 		this.deviceList = deviceList;
 		this.device0 = deviceList[ 0 ];
@@ -146,7 +181,7 @@ public class LRFFT
 			for ( int d = 0; d < this.blockSize.length; ++d )
 				this.blockSize[ d ] = blockSize[ d ];
 						
-			this.blocks = Block.divideIntoBlocks( image.getDimensions(), this.blockSize, kernel.getDimensions() );
+			this.blocks = Block.divideIntoBlocks( this.dimensions, this.blockSize, kernel.getDimensions() );
 			
 			// blocksize might change during division if they were too small
 			 //this.blockSize = blockSize.clone();
@@ -163,9 +198,9 @@ public class LRFFT
 			this.blockSize = new int[ image.getNumDimensions() ];
 			
 			for ( int d = 0; d < this.blockSize.length; ++d )
-				this.blockSize[ d ] = image.getDimension( d ) + kernel.getDimension( d ) - 1;
+				this.blockSize[ d ] = this.dimensions[ d ] + kernel.getDimension( d ) - 1;
 			
-			this.blocks = Block.divideIntoBlocks( image.getDimensions(), this.blockSize, kernel.getDimensions() );
+			this.blocks = Block.divideIntoBlocks( this.dimensions, this.blockSize, kernel.getDimensions() );
 			this.factory = new ImageFactory< FloatType >( new FloatType(), new ArrayContainerFactory() );			
 		}
 		else
@@ -321,11 +356,14 @@ public class LRFFT
 			}
 			else
 			{
-				this.fftConvolution1 = new FourierConvolution<FloatType, FloatType>( this.image, this.kernel1 );	
+				// the convolutions are computed on the complete deconvolved image
+				final Image< FloatType > template = isCropped() ? new Image< FloatType > ( new ConstantContainer< FloatType >( dimensions, new FloatType( 1 ) ), new FloatType() ) : this.image;
+
+				this.fftConvolution1 = new FourierConvolution<FloatType, FloatType>( template, this.kernel1 );	
 				this.fftConvolution1.setNumThreads();
 				this.fftConvolution1.setKeepImgFFT( false );
 				
-				this.fftConvolution2 = new FourierConvolution<FloatType, FloatType>( this.image, this.kernel2 );	
+				this.fftConvolution2 = new FourierConvolution<FloatType, FloatType>( template, this.kernel2 );	
 				this.fftConvolution2.setNumThreads();
 				this.fftConvolution2.setKeepImgFFT( false );
 			}
@@ -386,6 +424,29 @@ public class LRFFT
 	}
 
 	public Image<FloatType> getImage() { return image; }
+
+	/**
+	 * @return - the position of image and weight in the deconvolved image
+	 */
+	public int[] getOffset() { return offset; }
+
+	/**
+	 * @return - the size of the deconvolved image
+	 */
+	public int[] getDimensions() { return dimensions; }
+
+	/**
+	 * @return - true if image and weight only cover a part of the deconvolved image
+	 */
+	public boolean isCropped()
+	{
+		for ( int d = 0; d < dimensions.length; ++d )
+			if ( offset[ d ] != 0 || image.getDimension( d ) != dimensions[ d ] )
+				return true;
+
+		return false;
+	}
+
 	public Image<FloatType> getWeight() { return weight; }
 	public Image<FloatType> getKernel1() { return kernel1; }
 	public Image<FloatType> getKernel2() { return kernel2; }
@@ -505,6 +566,62 @@ public class LRFFT
 	}
 	
 
+	/**
+	 * Convolves a single block (of the block size) with kernel1, the caller copies and pastes the blocks,
+	 * e.g. the {@link BayesMVDeconvolutionOutOfCore} that reads them from disk
+	 * 
+	 * @param block - the block, is overwritten if the convolution is computed in place
+	 * @return - the convolved block
+	 */
+	public Image< FloatType > convolve1Block( final Image< FloatType > block )
+	{
+		return convolve1Block( block, useCPU ? -1 : device0 );
+	}
+
+	/**
+	 * Convolves a single block (of the block size) with kernel1 on one device, several blocks can be convolved
+	 * at the same time as long as each device of the deviceList is only used by one thread
+	 * 
+	 * @param block - the block, is overwritten if the convolution is computed in place
+	 * @param deviceId - the device from the deviceList (-1 == CPU)
+	 * @return - the convolved block
+	 */
+	public Image< FloatType > convolve1Block( final Image< FloatType > block, final int deviceId )
+	{
+		return convolveBlock( block, fftConvolution1, kernel1, deviceId );
+	}
+
+	/**
+	 * Convolves a single block (of the block size) with kernel2, see convolve1Block
+	 */
+	public Image< FloatType > convolve2Block( final Image< FloatType > block )
+	{
+		return convolve2Block( block, useCPU ? -1 : device0 );
+	}
+
+	/**
+	 * Convolves a single block (of the block size) with kernel2 on one device, see convolve1Block
+	 */
+	public Image< FloatType > convolve2Block( final Image< FloatType > block, final int deviceId )
+	{
+		return convolveBlock( block, fftConvolution2, kernel2, deviceId );
+	}
+
+	protected Image< FloatType > convolveBlock( final Image< FloatType > block, final FourierConvolution<FloatType, FloatType> fftConv, final Image< FloatType > kernel, final int deviceId )
+	{
+		if ( deviceId == -1 )
+		{
+			fftConv.replaceImage( block );
+			fftConv.process();
+			return fftConv.getResult();
+		}
+		else
+		{
+			LRFFTThreads.convolveBlockCUDA( block, deviceId, kernel, blockSize );
+			return block;
+		}
+	}
+
 	final public static Image<FloatType> createImageFromArray( final float[] data, final int[] dim )
     {
         final FloatAccess access = new FloatArray( data );
@@ -607,7 +724,7 @@ public class LRFFT
 	@Override
 	public LRFFT clone()
 	{
-		final LRFFT viewClone = new LRFFT( this.image.clone(), this.weight.clone(), this.kernel1.clone(), deviceList, useBlocks, blockSize );
+		final LRFFT viewClone = new LRFFT( this.image.clone(), this.weight.clone(), offset, dimensions, this.kernel1.clone(), deviceList, useBlocks, blockSize );
 	
 		viewClone.numViews = numViews;
 		viewClone.iterationType = iterationType;
@@ -67,6 +67,15 @@ public class LRFFTThreads
 		blockStruct.pasteBlock( result, block );		
 	}
 	
+	/**
+	 * Convolves a block in place using CUDA, the caller copies and pastes the block
+	 */
+	final protected static void convolveBlockCUDA( final Image<FloatType> block, final int deviceId, final Image<FloatType> kernel, final int[] blockSize )
+	{
+		LRFFT.cuda.convolution3DfftCUDAInPlace( ((FloatArray)((Array)block.getContainer()).update( null )).getCurrentStorageArray(), getCUDACoordinates( blockSize ), 
+				((FloatArray)((Array)kernel.getContainer()).update( null )).getCurrentStorageArray(), getCUDACoordinates( kernel.getDimensions() ), deviceId );
+	}
+
 	final protected static Thread getCPUThread1( final AtomicInteger ai, final Block[] blocks, final int[] blockSize, final ImageFactory< FloatType > factory,
 			final Image<FloatType> image, final Image<FloatType> result, final FourierConvolution<FloatType, FloatType> fftConvolution1 )
 	{
@@ -210,6 +210,7 @@ public class Interactive_Remove_Detections implements PlugIn
 
 		newIpl.setInterestPoints( ipList );
 		newIpl.setParameters( "manually removed detections from '" +label + "'" );
+		newIpl.setStorageFormat( lists.getInterestPointList( label ).getStorageFormat() );
 		newIpl.saveInterestPoints();
 
 		lists.addInterestPointList( newLabel, newIpl );
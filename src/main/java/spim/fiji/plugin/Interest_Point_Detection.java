@@ -20,6 +20,7 @@ import spim.fiji.plugin.interestpointdetection.DifferenceOf;
 import spim.fiji.plugin.interestpointdetection.DifferenceOfGaussian;
 import spim.fiji.plugin.interestpointdetection.DifferenceOfMean;
 import spim.fiji.plugin.interestpointdetection.InterestPointDetection;
+import spim.fiji.plugin.interestpointdetection.InterestPointDetection.TimePointDone;
 import spim.fiji.plugin.queryXML.LoadParseQueryXML;
 import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
@@ -161,69 +162,74 @@ public class Interest_Point_Detection implements PlugIn
 		if ( !ipd.queryParameters( downsample, defineAnisotropy, additionalSmoothing, setMinMax ) )
 			return false;
 		
-		// now extract all the detections
-		for ( final TimePoint tp : SpimData2.getAllTimePointsSorted( data, viewIds ) )
+		// now extract all the detections, the views of all timepoints are processed together so that loading and
+		// computation can overlap (not only for the views of one timepoint), each timepoint is saved as soon as it is done
+		final List< TimePoint > timepoints = SpimData2.getAllTimePointsSorted( data, viewIds );
+
+		return ipd.findInterestPoints( timepoints, new TimePointDone()
 		{
-			final HashMap< ViewId, List< InterestPoint > > points = ipd.findInterestPoints( tp );
-			
-			if ( ipd instanceof DifferenceOf )
-			{
-				IOFunctions.println( "Opening of files took: " + ((DifferenceOf)ipd).getBenchmark().openFiles/1000 + " sec." );
-				IOFunctions.println( "Detecting interest points took: " + ((DifferenceOf)ipd).getBenchmark().computation/1000 + " sec." );
-			}
-			
-			// save the file and the path in the XML
-			final SequenceDescription seqDesc = data.getSequenceDescription();
-			
-			for ( final ViewId viewId : points.keySet() )
+			@Override
+			public boolean timePointDone( final TimePoint tp, final HashMap< ViewId, List< InterestPoint > > points )
 			{
-				final ViewDescription viewDesc = seqDesc.getViewDescription( viewId.getTimePointId(), viewId.getViewSetupId() );
-				final int channelId = viewDesc.getViewSetup().getChannel().getId();		
-				
-				final InterestPointList list = new InterestPointList(
-						data.getBasePath(),
-						new File( "interestpoints", "tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId() + "." + label ) );
-				
-				list.setParameters( ipd.getParameters( channelId ) );
-				list.setInterestPoints( points.get( viewId ) );
+				if ( ipd instanceof DifferenceOf )
+				{
+					IOFunctions.println( "Opening of files took: " + ((DifferenceOf)ipd).getBenchmark().openFiles/1000 + " sec (summed over all threads)." );
+					IOFunctions.println( "Detecting interest points took: " + ((DifferenceOf)ipd).getBenchmark().computation/1000 + " sec (summed over all threads)." );
+				}
 
-				if ( saveXML )
+				// save the file and the path in the XML
+				final SequenceDescription seqDesc = data.getSequenceDescription();
+				
+				for ( final ViewId viewId : points.keySet() )
 				{
-					if ( !list.saveInterestPoints() )
+					final ViewDescription viewDesc = seqDesc.getViewDescription( viewId.getTimePointId(), viewId.getViewSetupId() );
+					final int channelId = viewDesc.getViewSetup().getChannel().getId();		
+					
+					final InterestPointList list = new InterestPointList(
+							data.getBasePath(),
+							new File( "interestpoints", "tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId() + "." + label ) );
+					
+					list.setParameters( ipd.getParameters( channelId ) );
+					list.setInterestPoints( points.get( viewId ) );
+
+					if ( saveXML )
 					{
-						IOFunctions.println( "Error saving interest point list: " + new File( list.getBaseDir(), list.getFile().toString() + list.getInterestPointsExt() ) );
-						return false;
+						if ( !list.saveInterestPoints() )
+						{
+							IOFunctions.println( "Error saving interest point list: " + new File( list.getBaseDir(), list.getFile().toString() + list.getInterestPointsExt() ) );
+							return false;
+						}
+		
+						list.setCorrespondingInterestPoints( new ArrayList< CorrespondingInterestPoints >() );
+						if ( !list.saveCorrespondingInterestPoints() )
+							IOFunctions.println( "Failed to clear corresponding interest point list: " + new File( list.getBaseDir(), list.getFile().toString() + list.getCorrespondencesExt() ) );
 					}
-	
-					list.setCorrespondingInterestPoints( new ArrayList< CorrespondingInterestPoints >() );
-					if ( !list.saveCorrespondingInterestPoints() )
-						IOFunctions.println( "Failed to clear corresponding interest point list: " + new File( list.getBaseDir(), list.getFile().toString() + list.getCorrespondencesExt() ) );
-				}
 
-				final ViewInterestPointLists vipl = data.getViewInterestPoints().getViewInterestPointLists( viewId );
-				vipl.addInterestPointList( label, list );
-			}
-			
-			// update metadata if necessary
-			if ( data.getSequenceDescription().getImgLoader() instanceof AbstractImgLoader )
-			{
-				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Updating metadata ... " );
-				try
-				{
-					( (AbstractImgLoader)data.getSequenceDescription().getImgLoader() ).updateXMLMetaData( data, false );
+					final ViewInterestPointLists vipl = data.getViewInterestPoints().getViewInterestPointLists( viewId );
+					vipl.addInterestPointList( label, list );
 				}
-				catch( Exception e )
+				
+				// update metadata if necessary
+				if ( data.getSequenceDescription().getImgLoader() instanceof AbstractImgLoader )
 				{
-					IOFunctions.println( "Failed to update metadata, this should not happen: " + e );
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Updating metadata ... " );
+					try
+					{
+						( (AbstractImgLoader)data.getSequenceDescription().getImgLoader() ).updateXMLMetaData( data, false );
+					}
+					catch( Exception e )
+					{
+						IOFunctions.println( "Failed to update metadata, this should not happen: " + e );
+					}
 				}
-			}
-			
-			// save the xml
-			if ( saveXML )
-				SpimData2.saveXML( data, xmlFileName, clusterExtension );
-		}
+				
+				// save the xml
+				if ( saveXML )
+					SpimData2.saveXML( data, xmlFileName, clusterExtension );
 
-		return true;
+				return true;
+			}
+		});
 	}
 
 	public static void main( final String[] args )
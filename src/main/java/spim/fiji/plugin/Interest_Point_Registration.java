@@ -35,6 +35,7 @@ import spim.process.interestpointregistration.optimizationtypes.AllToAllRegistra
 import spim.process.interestpointregistration.optimizationtypes.AllToAllRegistrationWithRange;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationSubset;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType;
+import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType.GlobalSolver;
 import spim.process.interestpointregistration.optimizationtypes.IndividualTimepointRegistration;
 import spim.process.interestpointregistration.optimizationtypes.ReferenceTimepointRegistration;
 import spim.process.interestpointregistration.registrationstatistics.RegistrationStatistics;
@@ -84,6 +85,16 @@ public class Interest_Point_Registration implements PlugIn
 	public static int defaultReferenceTile = 0;
 	public static boolean defaultShowStatistics = true;
 
+	// which pairs of views are compared (all, only the overlapping ones, only the interest points in the overlap)
+	public static String[] comparePairsChoice = new String[]{ "All pairs of views", "Only overlapping views", "Only overlapping views, only interest points inside the overlap" };
+	public static int defaultComparePairs = 0;
+	// minimal overlap as fraction of the smaller view and the margin around the overlap when restricting the interest points
+	public static double defaultMinOverlap = 0.01;
+	public static double defaultOverlapMargin = 20;
+
+	public static String[] globalOptChoice = new String[]{ "Iterative (one tile after the other)", "Least-squares (all tiles at once; translation, rigid, affine)" };
+	public static int defaultGlobalOpt = 0;
+
 	public final static String warningLabel = " (WARNING: Only available for "; 
 	
 	static
@@ -297,8 +308,11 @@ public class Interest_Point_Registration implements PlugIn
 		{
 			gd2.addChoice( "Fix_tiles", fixTilesChoice, fixTilesChoice[ defaultFixTiles ] );
 			gd2.addChoice( "Map_back_tiles", mapBackChoice, mapBackChoice[ defaultMapBack ] );
+			gd2.addChoice( "Compare_pairs", comparePairsChoice, comparePairsChoice[ defaultComparePairs ] );
 		}
 
+		gd2.addChoice( "Global_optimization", globalOptChoice, globalOptChoice[ defaultGlobalOpt ] );
+
 		gd2.addMessage( "" );
 		gd2.addMessage( "Algorithm parameters [" + ipr.getDescription() + "]", new Font( Font.SANS_SERIF, Font.BOLD, 12 ) );
 		gd2.addMessage( "" );
@@ -346,18 +360,22 @@ public class Interest_Point_Registration implements PlugIn
 		else
 			considerTimepointsAsUnit = false;
 
-		final int fixTiles, mapBack;
+		final int fixTiles, mapBack, comparePairs;
 
 		if ( registrationType != RegistrationType.TO_REFERENCE_TIMEPOINT )
 		{
 			fixTiles = defaultFixTiles = gd2.getNextChoiceIndex();
 			mapBack = defaultMapBack = gd2.getNextChoiceIndex();
+			comparePairs = defaultComparePairs = gd2.getNextChoiceIndex();
 		}
 		else
 		{
 			fixTiles = mapBack = -1;
+			comparePairs = 0;
 		}
 
+		final int globalOpt = defaultGlobalOpt = gd2.getNextChoiceIndex();
+
 		if ( !ipr.parseDialog( gd2, registrationType ) )
 			return false;
 
@@ -381,6 +399,13 @@ public class Interest_Point_Registration implements PlugIn
 		else
 			type = null;
 
+		// only compare views that overlap according to their current registration
+		if ( comparePairs > 0 )
+			type.setOverlapCriteria( true, defaultMinOverlap, comparePairs == 2, defaultOverlapMargin );
+
+		if ( globalOpt == 1 )
+			type.setGlobalSolver( GlobalSolver.LEAST_SQUARES );
+
 		// set the fixed tiles and the potential mapping back to some tile
 		if ( !setFixedTilesAndReference( fixTiles, mapBack, type ) )
 			return false;
@@ -128,6 +128,7 @@ public class ThinOut_Detections implements PlugIn
 								"tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId() + "." + channel.getNewLabel() ) );
 
 				newIpl.setInterestPoints( new ArrayList< InterestPoint >() );
+				newIpl.setStorageFormat( oldIpl.getStorageFormat() );
 
 				int id = 0;
 				for ( int j = 0; j < list2.size(); ++j )
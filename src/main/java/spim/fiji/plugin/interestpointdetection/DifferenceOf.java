@@ -4,16 +4,24 @@ import ij.gui.GenericDialog;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.MultiResolutionImgLoader;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.exception.IncompatibleTypeException;
@@ -22,8 +30,10 @@ import net.imglib2.img.ImgFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
+import spim.Threads;
 import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.ViewSetupUtils;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.interestpointdetection.Downsample;
 
@@ -54,6 +64,14 @@ public abstract class DifferenceOf extends InterestPointDetection
 
 	public static double defaultMinIntensity = 0.0;
 	public static double defaultMaxIntensity = 65535.0;
+
+	// how many views are processed at the same time (0 == automatic), while they are processed the next views are
+	// already loaded as long as all of them together fit into this fraction of the available memory
+	public static int defaultMaxParallelViews = 0;
+	public static double defaultMemoryFraction = 0.5;
+
+	// how many timepoints are detected at the same time, the detections of all of them are held in memory
+	public static int defaultTimePointsInFlight = 2;
 	
 	protected double imageSigmaX, imageSigmaY, imageSigmaZ;
 	protected double additionalSigmaX, additionalSigmaY, additionalSigmaZ;
@@ -78,6 +96,249 @@ public abstract class DifferenceOf extends InterestPointDetection
 	protected abstract void addAddtionalParameters( final GenericDialog gd );
 	protected abstract boolean queryAdditionalParameters( final GenericDialog gd );
 	
+	/**
+	 * Detects the interest points in one (already opened and downsampled) view
+	 *
+	 * @param input - the downsampled image, it may be modified
+	 * @param vd - the view
+	 * @return - the interest points in the coordinates of the downsampled image
+	 */
+	protected abstract ArrayList< InterestPoint > computeInterestPoints(
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final ViewDescription vd );
+
+	/**
+	 * @return - true if the detection can work on an image that is loaded lazily (and is not modified), if the
+	 * ImgLoader supports it and no downsampling is necessary openAndDownsample() will then not load the whole image
+	 */
+	protected boolean loadLazily() { return false; }
+
+	/**
+	 * @return - how many views can be processed at the same time
+	 */
+	protected int maxParallelViews()
+	{
+		if ( defaultMaxParallelViews > 0 )
+			return defaultMaxParallelViews;
+		else
+			return Math.max( 1, Threads.numThreads() / 4 );
+	}
+
+	@Override
+	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
+	{
+		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
+		final ArrayList< TimePoint > timepoints = new ArrayList< TimePoint >();
+		timepoints.add( t );
+
+		findInterestPoints( timepoints, new TimePointDone()
+		{
+			@Override
+			public boolean timePointDone( final TimePoint tp, final HashMap< ViewId, List< InterestPoint > > ips )
+			{
+				interestPoints.putAll( ips );
+				return true;
+			}
+		});
+
+		return interestPoints;
+	}
+
+	/**
+	 * Detects the interest points of all views of all timepoints. One thread loads and downsamples the views one after
+	 * the other (continuing with the next timepoint) while several others compute the detections, the loading only proceeds
+	 * if the next view still fits into the memory budget (estimated from the size of the views and the downsampling).
+	 * Each timepoint is handed to done as soon as all of its views are finished. Only defaultTimePointsInFlight timepoints
+	 * are submitted at once, the next one is submitted once done returns, so the interest points of at most that many
+	 * timepoints are held in memory.
+	 *
+	 * @param timepoints - the timepoints to process
+	 * @param done - is called for every timepoint, in order
+	 * @return - false if the detection was stopped by done
+	 */
+	@Override
+	public boolean findInterestPoints( final List< TimePoint > timepoints, final TimePointDone done )
+	{
+		final int budgetMB = (int)Math.max( 1, Math.min( Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() * defaultMemoryFraction / ( 1024 * 1024 ) ) );
+		final Semaphore memory = new Semaphore( budgetMB );
+
+		// the loading thread and the computing threads together should not use more than the available threads
+		final int numParallelViews = Math.max( 1, Math.min( maxParallelViews(), Threads.numThreads() - 1 ) );
+		final int numTimePointsInFlight = Math.max( 1, defaultTimePointsInFlight );
+
+		IOFunctions.println(
+				"(" + new Date(System.currentTimeMillis()) + "): Processing " + numParallelViews + " view(s) in parallel, " +
+				"loading the next views while computing (memory budget " + budgetMB + " MB, " + numTimePointsInFlight + " timepoint(s) at once)." );
+
+		final ExecutorService loadExecutor = Executors.newSingleThreadExecutor();
+		final ExecutorService computeExecutor = Executors.newFixedThreadPool( numParallelViews );
+
+		final ArrayList< ArrayList< ViewDescription > > submitted = new ArrayList< ArrayList< ViewDescription > >();
+		final ArrayList< ArrayList< Future< ArrayList< InterestPoint > > > > results = new ArrayList< ArrayList< Future< ArrayList< InterestPoint > > > >();
+
+		boolean finished = true;
+
+		try
+		{
+			for ( int t = 0; t < Math.min( numTimePointsInFlight, timepoints.size() ); ++t )
+				submitTimePoint( timepoints.get( t ), submitted, results, loadExecutor, computeExecutor, memory, budgetMB );
+
+			for ( int t = 0; t < timepoints.size() && finished; ++t )
+			{
+				final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
+
+				for ( int i = 0; i < results.get( t ).size(); ++i )
+				{
+					final ViewDescription vd = submitted.get( t ).get( i );
+
+					// make sure not everything crashes if one file is missing
+					try
+					{
+						interestPoints.put( vd, results.get( t ).get( i ).get() );
+					}
+					catch ( Exception e )
+					{
+						IOFunctions.println( "An error occured (" + getDescription() + "): " + e );
+						IOFunctions.println( "Failed to segment angleId: " +
+								vd.getViewSetup().getAngle().getId() + " channelId: " +
+								vd.getViewSetup().getChannel().getId() + " illumId: " +
+								vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
+						e.printStackTrace();
+					}
+				}
+
+				// the futures hold the interest points, they are not needed anymore
+				submitted.set( t, null );
+				results.set( t, null );
+
+				finished = done.timePointDone( timepoints.get( t ), interestPoints );
+
+				// keep the window of timepoints full
+				if ( finished && t + numTimePointsInFlight < timepoints.size() )
+					submitTimePoint( timepoints.get( t + numTimePointsInFlight ), submitted, results, loadExecutor, computeExecutor, memory, budgetMB );
+			}
+		}
+		finally
+		{
+			// all tasks are finished unless the detection was stopped
+			loadExecutor.shutdownNow();
+			computeExecutor.shutdownNow();
+		}
+
+		return finished;
+	}
+
+	/**
+	 * Submits the loading and the detection of all views of one timepoint
+	 *
+	 * @param t - the timepoint
+	 * @param submitted - the submitted views of each timepoint, the views of t are added
+	 * @param results - the detections of each timepoint, the detections of t are added
+	 */
+	protected void submitTimePoint(
+			final TimePoint t,
+			final ArrayList< ArrayList< ViewDescription > > submitted,
+			final ArrayList< ArrayList< Future< ArrayList< InterestPoint > > > > results,
+			final ExecutorService loadExecutor,
+			final ExecutorService computeExecutor,
+			final Semaphore memory,
+			final int budgetMB )
+	{
+		final ArrayList< ViewDescription > submittedViews = new ArrayList< ViewDescription >();
+		final ArrayList< Future< ArrayList< InterestPoint > > > viewResults = new ArrayList< Future< ArrayList< InterestPoint > > >();
+
+		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
+		{
+			if ( !vd.isPresent() )
+				continue;
+
+			// a view that needs more than the budget is processed alone
+			final int requiredMB = (int)Math.min( budgetMB, estimateMemoryMB( vd ) );
+			final AffineTransform3D correctCoordinates = new AffineTransform3D();
+
+			final Future< RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > > loaded = loadExecutor.submit(
+					new Callable< RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > >()
+			{
+				@Override
+				public RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > call() throws Exception
+				{
+					memory.acquire( requiredMB );
+
+					try
+					{
+						final long time = System.currentTimeMillis();
+
+						final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = openAndDownsample( spimData, vd, correctCoordinates );
+
+						synchronized ( benchmark ) { benchmark.openFiles += System.currentTimeMillis() - time; }
+
+						return input;
+					}
+					catch ( Exception e )
+					{
+						memory.release( requiredMB );
+						throw e;
+					}
+				}
+			});
+
+			viewResults.add( computeExecutor.submit( new Callable< ArrayList< InterestPoint > >()
+			{
+				@Override
+				public ArrayList< InterestPoint > call() throws Exception
+				{
+					// waits until the view is loaded, the views are loaded in the order in which they are computed
+					final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = loaded.get();
+
+					try
+					{
+						final long time = System.currentTimeMillis();
+
+						preSmooth( input );
+
+						final ArrayList< InterestPoint > ips = computeInterestPoints( input, vd );
+
+						correctForDownsampling( ips, correctCoordinates );
+
+						synchronized ( benchmark ) { benchmark.computation += System.currentTimeMillis() - time; }
+
+						return ips;
+					}
+					finally
+					{
+						memory.release( requiredMB );
+					}
+				}
+			}));
+
+			submittedViews.add( vd );
+		}
+
+		submitted.add( submittedViews );
+		results.add( viewResults );
+	}
+
+	/**
+	 * @param vd - the view
+	 * @return - approximately how much memory (in MB) loading and processing this view needs
+	 */
+	protected long estimateMemoryMB( final ViewDescription vd )
+	{
+		final ImgLoader< ? > imgLoader = spimData.getSequenceDescription().getImgLoader();
+		final Dimensions size = ViewSetupUtils.getSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), imgLoader );
+
+		int dsXY = downsampleXY;
+
+		if ( dsXY < 1 )
+			dsXY = downsampleFactor( dsXY, downsampleZ, ViewSetupUtils.getVoxelSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), imgLoader ) );
+
+		final double numPixels = (double)size.dimension( 0 ) * size.dimension( 1 ) * size.dimension( 2 );
+		final double numPixelsDownsampled = numPixels / ( Math.max( 1, dsXY ) * Math.max( 1, dsXY ) * Math.max( 1, downsampleZ ) );
+
+		// the input as float and the downsampled image plus about three more copies of it during the detection
+		return (long)Math.ceil( ( numPixels * 4 + numPixelsDownsampled * 4 * 4 ) / ( 1024 * 1024 ) );
+	}
+
 	@Override
 	public boolean queryParameters( final boolean downsample, final boolean defineAnisotropy, final boolean additionalSmoothing, final boolean setMinMax )
 	{
@@ -415,20 +676,34 @@ public abstract class DifferenceOf extends InterestPointDetection
 					"Using precomputed Multiresolution Images [" + fx + "x" + fy + "x" + fz + "], " +
 					"Remaining downsampling [" + dsx + "x" + dsy + "x" + dsz + "]" );
 
-			input = mrImgLoader.getFloatImage( vd, bestLevel, false );
+			// no more downsampling necessary, the detection can read the image lazily
+			if ( dsx == 1 && dsy == 1 && dsz == 1 && loadLazily() )
+				input = ViewSetupUtils.getLazyImage( new net.imglib2.type.numeric.real.FloatType(), spimData, vd, bestLevel );
+
+			if ( input == null )
+				input = mrImgLoader.getFloatImage( vd, bestLevel, false );
 		}
 		else
 		{
-			input = imgLoader.getFloatImage( vd, false );
+			if ( dsx == 1 && dsy == 1 && dsz == 1 && loadLazily() )
+				input = ViewSetupUtils.getLazyImage( new net.imglib2.type.numeric.real.FloatType(), spimData, vd, 0 );
+
+			if ( input == null )
+				input = imgLoader.getFloatImage( vd, false );
+
 			t.identity();
 		}
 
-		final ImgFactory< net.imglib2.type.numeric.real.FloatType > f = ((Img<net.imglib2.type.numeric.real.FloatType>)input).factory();
-
 		t.set( downsampleXY, 0, 0 );
 		t.set( downsampleXY, 1, 1 );
 		t.set( downsampleZ, 2, 2 );
 
+		// nothing to downsample (the image might not be an Img if it is loaded lazily)
+		if ( dsx == 1 && dsy == 1 && dsz == 1 )
+			return input;
+
+		final ImgFactory< net.imglib2.type.numeric.real.FloatType > f = ((Img<net.imglib2.type.numeric.real.FloatType>)input).factory();
+
 		for ( ;dsx > 1; dsx /= 2 )
 			input = Downsample.simple2x( input, f, new boolean[]{ true, false, false } );
 
@@ -4,7 +4,6 @@ import ij.ImagePlus;
 import ij.gui.GenericDialog;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import mpicbg.imglib.image.Image;
@@ -26,6 +25,7 @@ import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.cuda.CUDADevice;
 import spim.process.cuda.CUDASeparableConvolution;
 import spim.process.cuda.CUDATools;
+import spim.process.cuda.JavaSeparableConvolution;
 import spim.process.cuda.NativeLibraryTools;
 import spim.process.interestpointdetection.ProcessDOG;
 
@@ -41,9 +41,12 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	public static boolean defaultFindMin[];
 	public static boolean defaultFindMax[];
 
-	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU approximate (Nvidia CUDA via JNA)", "GPU accurate (Nvidia CUDA via JNA)" };
+	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU approximate (Nvidia CUDA via JNA)", "GPU accurate (Nvidia CUDA via JNA)", "CPU (Java, tiled, low memory)", "CPU (Java, multithreaded separable convolution)" };
 	public static int defaultComputationChoiceIndex = 0;
 
+	// the size of the tiles when computing tiled
+	public static int defaultTileSize = 256;
+
 	double[] sigma;
 	double[] threshold;
 	boolean[] findMin;
@@ -58,6 +61,9 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	CUDASeparableConvolution cuda = null;
 	boolean accurateCUDA = false;
 
+	// compute the DoG in tiles, reading the image lazily if possible
+	boolean tiled = false;
+
 	public DifferenceOfGaussian( final SpimData2 spimData, final List< ViewId > viewIdsToProcess )
 	{
 		super( spimData, viewIdsToProcess );
@@ -74,78 +80,88 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 
 
 	@Override
-	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
+	protected int maxParallelViews()
 	{
-		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
-		
-		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
-		{
-			// make sure not everything crashes if one file is missing
-			try
-			{
-				//
-				// open the corresponding image (if present at this timepoint)
-				//
-				long time1 = System.currentTimeMillis();
-
-				if ( !vd.isPresent() )
-					continue;
-
-				final Channel c = vd.getViewSetup().getChannel();
-
-				final AffineTransform3D correctCoordinates = new AffineTransform3D();
-				final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = openAndDownsample( spimData, vd, correctCoordinates );
-
-				long time2 = System.currentTimeMillis();
-
-				benchmark.openFiles += time2 - time1;
-
-				preSmooth( input );
-
-				final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
-
-				//
-				// compute Difference-of-Mean
-				//
-				final ArrayList< InterestPoint > ips = 
-					ProcessDOG.compute(
-						cuda,
-						deviceList,
-						accurateCUDA,
-						percentGPUMem,
-						img,
-						(Img<net.imglib2.type.numeric.real.FloatType>)input,
-						(float)sigma[ c.getId() ],
-						(float)threshold[ c.getId() ],
-						localization,
-						Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
-						Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
-						Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
-						findMin[ c.getId() ],
-						findMax[ c.getId() ],
-						minIntensity,
-						maxIntensity );
+		// the GPU (or the multithreaded Java convolution that replaces it) processes one view at a time
+		if ( cuda != null )
+			return 1;
+		else
+			return super.maxParallelViews();
+	}
 
-				img.close();
+	@Override
+	public boolean findInterestPoints( final List< TimePoint > timepoints, final TimePointDone done )
+	{
+		try
+		{
+			return super.findInterestPoints( timepoints, done );
+		}
+		finally
+		{
+			// the Java convolution holds threads, it starts new ones if it is used again
+			if ( cuda instanceof JavaSeparableConvolution )
+				( (JavaSeparableConvolution)cuda ).shutdown();
+		}
+	}
 
-				correctForDownsampling( ips, correctCoordinates );
+	@Override
+	protected boolean loadLazily()
+	{
+		// the presmoothing would modify the image
+		return tiled && additionalSigmaX == 0 && additionalSigmaY == 0 && additionalSigmaZ == 0;
+	}
 
-				interestPoints.put( vd, ips );
+	@Override
+	protected ArrayList< InterestPoint > computeInterestPoints(
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final ViewDescription vd )
+	{
+		final Channel c = vd.getViewSetup().getChannel();
 
-				benchmark.computation += System.currentTimeMillis() - time2;
-			}
-			catch ( Exception  e )
-			{
-				IOFunctions.println( "An error occured (DOG): " + e ); 
-				IOFunctions.println( "Failed to segment angleId: " + 
-						vd.getViewSetup().getAngle().getId() + " channelId: " +
-						vd.getViewSetup().getChannel().getId() + " illumId: " +
-						vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
-				e.printStackTrace();
-			}
+		if ( tiled )
+		{
+			return ProcessDOG.computeTiled(
+					input,
+					defaultTileSize,
+					(float)sigma[ c.getId() ],
+					(float)threshold[ c.getId() ],
+					localization,
+					Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
+					Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
+					Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
+					findMin[ c.getId() ],
+					findMax[ c.getId() ],
+					minIntensity,
+					maxIntensity );
 		}
 
-		return interestPoints;
+		final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
+
+		//
+		// compute Difference-of-Gaussian
+		//
+		final ArrayList< InterestPoint > ips = 
+			ProcessDOG.compute(
+				cuda,
+				deviceList,
+				accurateCUDA,
+				percentGPUMem,
+				img,
+				(Img<net.imglib2.type.numeric.real.FloatType>)input,
+				(float)sigma[ c.getId() ],
+				(float)threshold[ c.getId() ],
+				localization,
+				Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
+				Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
+				Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
+				findMin[ c.getId() ],
+				findMax[ c.getId() ],
+				minIntensity,
+				maxIntensity );
+
+		img.close();
+
+		return ips;
 	}
 
 	@Override
@@ -335,7 +351,9 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 		else
 			accurateCUDA = true;
 
-		if ( computationTypeIndex >= 1 )
+		tiled = computationTypeIndex == 3;
+
+		if ( computationTypeIndex == 1 || computationTypeIndex == 2 )
 		{
 			final ArrayList< String > potentialNames = new ArrayList< String >();
 			potentialNames.add( "separable" );
@@ -372,6 +390,21 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 			}
 			// TODO: <<<< remove this, only for debug on non-CUDA machines
 		}
+		else if ( computationTypeIndex == 4 )
+		{
+			// the same block/device plumbing as for CUDA, the only "device" is the CPU; the image is in memory
+			// already so it is usually convolved as one single block in-place (no blocks, no border effects)
+			cuda = new JavaSeparableConvolution();
+			accurateCUDA = false;
+			deviceList = new ArrayList< CUDADevice >();
+
+			final ArrayList< CUDADevice > selectedDevices = CUDATools.queryCUDADetails( cuda, false, this );
+
+			if ( selectedDevices == null || selectedDevices.size() == 0 )
+				return false;
+			else
+				deviceList.addAll( selectedDevices );
+		}
 		else
 		{
 			deviceList = null;
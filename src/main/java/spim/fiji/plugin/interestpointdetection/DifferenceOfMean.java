@@ -4,14 +4,12 @@ import ij.ImagePlus;
 import ij.gui.GenericDialog;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.imglib.wrapper.ImgLib2;
 import mpicbg.spim.data.sequence.Channel;
-import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
@@ -58,75 +56,36 @@ public class DifferenceOfMean extends DifferenceOf
 	}
 
 	@Override
-	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
+	protected ArrayList< InterestPoint > computeInterestPoints(
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final ViewDescription vd )
 	{
-		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
-
-		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
-		{
-			// make sure not everything crashes if one file is missing
-			try
-			{
-				//
-				// open the corresponding image (if present at this timepoint)
-				//
-				long time1 = System.currentTimeMillis();
-
-				if ( !vd.isPresent() )
-					continue;
-
-				final Channel c = vd.getViewSetup().getChannel();
-
-				final AffineTransform3D correctCoordinates = new AffineTransform3D();
-				final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = openAndDownsample( spimData, vd, correctCoordinates );
-
-				long time2 = System.currentTimeMillis();
-
-				benchmark.openFiles += time2 - time1;
-
-				preSmooth( input );
-				
-				final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
-
-				//
-				// compute Difference-of-Mean
-				//
-				final ArrayList< InterestPoint > ips =
-					ProcessDOM.compute(
-						img,
-						(Img<net.imglib2.type.numeric.real.FloatType>)input,
-						radius1[ c.getId() ],
-						radius2[ c.getId() ],
-						(float)threshold[ c.getId() ],
-						localization,
-						imageSigmaX,
-						imageSigmaY,
-						imageSigmaZ,
-						findMin[ c.getId() ],
-						findMax[ c.getId() ],
-						minIntensity,
-						maxIntensity );
-
-				img.close();
-
-				correctForDownsampling( ips, correctCoordinates );
-
-				interestPoints.put( vd, ips );
-
-				benchmark.computation += System.currentTimeMillis() - time2;
-			}
-			catch ( Exception  e )
-			{
-				IOFunctions.println( "An error occured (DOM): " + e ); 
-				IOFunctions.println( "Failed to segment angleId: " + 
-						vd.getViewSetup().getAngle().getId() + " channelId: " +
-						vd.getViewSetup().getChannel().getId() + " illumId: " +
-						vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
-				e.printStackTrace();
-			}
-		}
-
-		return interestPoints;
+		final Channel c = vd.getViewSetup().getChannel();
+
+		final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
+
+		//
+		// compute Difference-of-Mean
+		//
+		final ArrayList< InterestPoint > ips =
+			ProcessDOM.compute(
+				img,
+				(Img<net.imglib2.type.numeric.real.FloatType>)input,
+				radius1[ c.getId() ],
+				radius2[ c.getId() ],
+				(float)threshold[ c.getId() ],
+				localization,
+				imageSigmaX,
+				imageSigmaY,
+				imageSigmaZ,
+				findMin[ c.getId() ],
+				findMax[ c.getId() ],
+				minIntensity,
+				maxIntensity );
+
+		img.close();
+
+		return ips;
 	}
 	
 	@Override
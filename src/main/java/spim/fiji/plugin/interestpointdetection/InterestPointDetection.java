@@ -11,6 +11,19 @@ import spim.fiji.spimdata.interestpoints.InterestPoint;
 
 public abstract class InterestPointDetection 
 {
+	/**
+	 * Is called as soon as all views of a timepoint are processed, e.g. to save the interest points
+	 */
+	public interface TimePointDone
+	{
+		/**
+		 * @param tp - the timepoint
+		 * @param interestPoints - the interest points of all views of this timepoint that were processed successfully
+		 * @return - false if the detection should stop
+		 */
+		public boolean timePointDone( final TimePoint tp, final HashMap< ViewId, List< InterestPoint > > interestPoints );
+	}
+
 	/**
 	 * which viewIds to process, set in queryParameters
 	 */
@@ -40,6 +53,24 @@ public abstract class InterestPointDetection
 	 * @return
 	 */
 	public abstract HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint tp );
+
+	/**
+	 * Perform the interestpoint detection for several timepoints, implementations
+	 * may process views of different timepoints at the same time. The results are
+	 * handed over timepoint by timepoint, in order, as soon as a timepoint is finished.
+	 * 
+	 * @param tps - the timepoints
+	 * @param done - is called for every timepoint
+	 * @return - false if the detection was stopped by done
+	 */
+	public boolean findInterestPoints( final List< TimePoint > tps, final TimePointDone done )
+	{
+		for ( final TimePoint tp : tps )
+			if ( !done.timePointDone( tp, findInterestPoints( tp ) ) )
+				return false;
+
+		return true;
+	}
 	
 	/**
 	 * Query the necessary parameters for the interestpoint detection
@@ -34,6 +34,9 @@ public abstract class InterestPointRegistration
 
 	List< List< PairwiseMatch > > statistics;
 
+	// how many threads each pairwise matching of the current subset may use, all pairs are matched at the same time
+	int threadsPerPair = 1;
+
 	/**
 	 * Instantiate the interest point registration. It is performed for a spimdata object on a
 	 * subset of angles, channels, illuminations and timepoints. Each channel is linked to a
@@ -84,6 +87,21 @@ public abstract class InterestPointRegistration
 	 */
 	protected abstract Callable< PairwiseMatch > pairwiseMatchingInstance( final PairwiseMatch pair, final String description );
 
+	/**
+	 * Called before the pairwise matching instances of a subset are created, e.g. to set up
+	 * data that is shared by all pairs of the subset
+	 *
+	 * @param subset
+	 */
+	protected void prepareSubset( final GlobalOptimizationSubset subset ) {}
+
+	/**
+	 * Called once all pairwise matchings of a subset are finished, e.g. to release shared data
+	 *
+	 * @param subset
+	 */
+	protected void finishSubset( final GlobalOptimizationSubset subset ) {}
+
 	/**
 	 * @return - the transformation model to be used for the global optimization, and in most cases also for RANSAC
 	 */
@@ -113,6 +131,7 @@ public abstract class InterestPointRegistration
 	public List< ViewId > getViewIdsToProcess() { return viewIdsToProcess; }
 	public List< ChannelProcess > getChannelsToProcess() { return channelsToProcess; }
 	public List< List< PairwiseMatch > > getStatistics() { return statistics; }
+	protected int getThreadsPerPair() { return threadsPerPair; }
 
 	/**
 	 * Registers all timepoints. No matter which matching is done it is always the same principle.
@@ -147,6 +166,11 @@ public abstract class InterestPointRegistration
 			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
 			final ArrayList< Callable< PairwiseMatch > > tasks = new ArrayList< Callable< PairwiseMatch > >(); // your tasks
 
+			// the pairs already run in parallel, only if there are fewer pairs than threads each of them can use more
+			threadsPerPair = Math.max( 1, Threads.numThreads() / Math.max( 1, pairs.size() ) );
+
+			prepareSubset( subset );
+
 			for ( final PairwiseMatch pair : pairs )
 			{
 				// just for logging the names and results of pairwise comparison
@@ -171,7 +195,9 @@ public abstract class InterestPointRegistration
 				IOFunctions.println( "Failed to compute registrations for " + subset.getDescription() );
 				e.printStackTrace();
 			}
-			
+
+			taskExecutor.shutdown();
+			finishSubset( subset );
 			
 			// some statistics
 			int sumCandidates = 0;
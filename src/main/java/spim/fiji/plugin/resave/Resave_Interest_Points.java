@@ -0,0 +1,106 @@
+package spim.fiji.plugin.resave;
+
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+import java.util.Date;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import spim.fiji.plugin.queryXML.LoadParseQueryXML;
+import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.interestpoints.InterestPointList;
+import spim.fiji.spimdata.interestpoints.InterestPointList.StorageFormat;
+import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
+
+/**
+ * Converts the interest points and correspondences of a dataset between text and binary files
+ * and stores the new format in the XML.
+ */
+public class Resave_Interest_Points implements PlugIn
+{
+	public static String[] formatChoice = new String[]{ "Text files (.ip.txt, .corr.txt)", "Binary files (.ip.bin, .corr.bin)" };
+	public static int defaultFormat = 1;
+	public static boolean defaultUseForNewDetections = true;
+
+	public static void main( final String[] args )
+	{
+		new Resave_Interest_Points().run( null );
+	}
+
+	@Override
+	public void run( final String arg0 )
+	{
+		final LoadParseQueryXML lpq = new LoadParseQueryXML();
+
+		if ( !lpq.queryXML( "Resaving interest points", "Resave", true, true, true, true ) )
+			return;
+
+		final GenericDialog gd = new GenericDialog( "Resave interest points" );
+
+		gd.addChoice( "Storage_format", formatChoice, formatChoice[ defaultFormat ] );
+		gd.addCheckbox( "Use_this_format_for_new_interest_points", defaultUseForNewDetections );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return;
+
+		final StorageFormat format = ( defaultFormat = gd.getNextChoiceIndex() ) == 1 ? StorageFormat.BINARY : StorageFormat.TEXT;
+
+		if ( defaultUseForNewDetections = gd.getNextBoolean() )
+			InterestPointList.defaultStorageFormat = format;
+
+		final SpimData2 data = lpq.getData();
+		final List< ViewId > viewIds = SpimData2.getAllViewIdsSorted( data, lpq.getViewSetupsToProcess(), lpq.getTimePointsToProcess() );
+
+		if ( convert( data, viewIds, format ) )
+			SpimData2.saveXML( data, lpq.getXMLFileName(), lpq.getClusterExtension() );
+	}
+
+	/**
+	 * @param data - the dataset
+	 * @param viewIds - which views to convert
+	 * @param format - the new format
+	 * @return true if at least one list was converted
+	 */
+	public static boolean convert( final SpimData2 data, final List< ViewId > viewIds, final StorageFormat format )
+	{
+		int converted = 0, failed = 0;
+
+		for ( final ViewId viewId : viewIds )
+		{
+			final ViewInterestPointLists lists = data.getViewInterestPoints().getViewInterestPointLists( viewId );
+
+			if ( lists == null )
+				continue;
+
+			for ( final String label : lists.getHashMap().keySet() )
+			{
+				final InterestPointList list = lists.getInterestPointList( label );
+
+				if ( list.getStorageFormat() == format )
+					continue;
+
+				if ( list.convertTo( format ) )
+				{
+					++converted;
+				}
+				else
+				{
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Could not convert interest points '" + label + "' of timepointid=" + viewId.getTimePointId() + ", viewid=" + viewId.getViewSetupId() );
+					++failed;
+				}
+
+				// release the memory, they are loaded again when requested
+				list.setInterestPoints( null );
+				list.setCorrespondingInterestPoints( null );
+			}
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Converted " + converted + " interest point lists to " + format + " (" + failed + " failed)." );
+
+		return converted > 0;
+	}
+}
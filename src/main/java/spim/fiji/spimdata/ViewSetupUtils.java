@@ -7,6 +7,13 @@ import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Dimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import bdv.img.hdf5.Hdf5ImageLoader;
 
 public class ViewSetupUtils
 {
@@ -61,4 +68,27 @@ public class ViewSetupUtils
 		else
 			return loader.getImageSize( new ViewId( t.getId(), setup.getId() ) );
 	}
+
+	/**
+	 * @return - an image of the view at the given mipmap level that loads its pixels only when they are accessed,
+	 * or null if the ImgLoader can only load the whole image at once
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > getLazyImage( final T type, final SpimData2 spimData, final ViewId view, final int level )
+	{
+		final ImgLoader< ? > imgLoader = spimData.getSequenceDescription().getImgLoader();
+
+		if ( !( imgLoader instanceof Hdf5ImageLoader ) )
+			return null;
+
+		// the cells of the HDF5 file are loaded on demand
+		final RandomAccessibleInterval< UnsignedShortType > img = ( (Hdf5ImageLoader)imgLoader ).getImage( view, level );
+
+		if ( (RealType)type instanceof FloatType )
+			return (RandomAccessibleInterval)new ConvertedRandomAccessibleInterval< UnsignedShortType, FloatType >( img, new RealFloatConverter< UnsignedShortType >(), new FloatType() );
+		else if ( (RealType)type instanceof UnsignedShortType )
+			return (RandomAccessibleInterval)img;
+		else
+			return null;
+	}
 }
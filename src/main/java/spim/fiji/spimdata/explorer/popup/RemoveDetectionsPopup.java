@@ -156,6 +156,7 @@ public class RemoveDetectionsPopup extends JMenu implements ViewExplorerSetable
 
 						newIpl.setInterestPoints( ipList );
 						newIpl.setParameters( "manually removed detections from '" +label + "'" );
+						newIpl.setStorageFormat( lists.getInterestPointList( label ).getStorageFormat() );
 
 						lists.addInterestPointList( newLabel, newIpl );
 
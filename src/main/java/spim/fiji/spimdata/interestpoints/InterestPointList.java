@@ -2,9 +2,18 @@ package spim.fiji.spimdata.interestpoints;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import mpicbg.spim.data.sequence.ViewId;
@@ -14,15 +23,36 @@ import mpicbg.spim.io.TextFileAccess;
 /**
  * A list of interest points for a certain label, can save and load from textfile as specified in the XML
  * 
+ * The interest points and correspondences can alternatively be stored in binary files (see {@link StorageFormat#BINARY}),
+ * which are column-wise, little-endian and read with a single bulk read instead of parsing every line. If the
+ * files of the selected format do not exist, the files of the other format are loaded.
+ * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
  */
 public class InterestPointList
 {
+	public static enum StorageFormat { TEXT, BINARY }
+
+	/**
+	 * The format of newly created lists
+	 */
+	public static StorageFormat defaultStorageFormat = StorageFormat.TEXT;
+
+	/*
+	 * .ip.bin: int magic, int n, double x[n], double y[n], double z[n], int id[n]
+	 * .corr.bin: int magic, int n, int numLabels, numLabels x ( int length, UTF-8 label ),
+	 *            int id[n], int timepointId[n], int viewSetupId[n], int labelIndex[n], int correspondingId[n]
+	 */
+	final static int INTERESTPOINTS_MAGIC = 0x31504953; // "SIP1"
+	final static int CORRESPONDENCES_MAGIC = 0x31435053; // "SPC1"
+	final static Charset UTF8 = Charset.forName( "UTF-8" );
+
 	File baseDir, file;
 	List< InterestPoint > interestPoints;
 	List< CorrespondingInterestPoints > correspondingInterestPoints;
 	String parameters;
+	StorageFormat storageFormat;
 	
 	/**
 	 * Instantiates a new {@link InterestPointList}
@@ -38,6 +68,7 @@ public class InterestPointList
 		this.interestPoints = null;
 		this.correspondingInterestPoints = null;
 		this.parameters = "";
+		this.storageFormat = defaultStorageFormat;
 	}
 
 	/**
@@ -62,9 +93,36 @@ public class InterestPointList
 	public void setFile( final File file ) { this.file = file; }
 	public void setBaseDir( final File baseDir ) { this.baseDir = baseDir; }
 	
-	public String getInterestPointsExt() { return ".ip.txt"; }
-	public String getCorrespondencesExt() { return ".corr.txt"; }
-	
+	public StorageFormat getStorageFormat() { return storageFormat; }
+	public void setStorageFormat( final StorageFormat storageFormat ) { this.storageFormat = storageFormat; }
+
+	public String getInterestPointsExt() { return getInterestPointsExt( getStorageFormat() ); }
+	public String getCorrespondencesExt() { return getCorrespondencesExt( getStorageFormat() ); }
+
+	public static String getInterestPointsExt( final StorageFormat format ) { return format == StorageFormat.BINARY ? ".ip.bin" : ".ip.txt"; }
+	public static String getCorrespondencesExt( final StorageFormat format ) { return format == StorageFormat.BINARY ? ".corr.bin" : ".corr.txt"; }
+
+	/**
+	 * Loads the interest points and correspondences (if not loaded yet) and saves them in another format.
+	 * The files of the old format are not deleted.
+	 * 
+	 * @param format - the new format
+	 * @return true if the interest points could be saved in the new format
+	 */
+	public boolean convertTo( final StorageFormat format )
+	{
+		if ( getInterestPoints() == null && !loadInterestPoints() )
+			return false;
+
+		// it is normal that there are no correspondences
+		if ( getCorrespondingInterestPoints() == null && !loadCorrespondingInterestPoints() )
+			setCorrespondingInterestPoints( new ArrayList< CorrespondingInterestPoints >() );
+
+		setStorageFormat( format );
+
+		return saveInterestPoints() && saveCorrespondingInterestPoints();
+	}
+
 	public boolean saveInterestPoints()
 	{
 		final List< InterestPoint > list = getInterestPoints();
@@ -81,6 +139,12 @@ public class InterestPointList
 				IOFunctions.println( "Creating directory: " + dir );
 				dir.mkdirs();
 			}
+
+			if ( getStorageFormat() == StorageFormat.BINARY )
+			{
+				saveInterestPointsBinary( list, new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
+				return true;
+			}
 			
 			PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
 			
@@ -119,6 +183,12 @@ public class InterestPointList
 				IOFunctions.println( "Creating directory: " + dir );
 				dir.mkdirs();
 			}
+
+			if ( getStorageFormat() == StorageFormat.BINARY )
+			{
+				saveCorrespondingInterestPointsBinary( list, new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );
+				return true;
+			}
 			
 			PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );
 			
@@ -145,9 +215,17 @@ public class InterestPointList
 	{
 		try 
 		{
+			final StorageFormat format = getExistingFormat( true );
+
+			if ( format == StorageFormat.BINARY )
+			{
+				this.correspondingInterestPoints = loadCorrespondingInterestPointsBinary( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt( format ) ) );
+				return true;
+			}
+
 			this.correspondingInterestPoints = new ArrayList< CorrespondingInterestPoints >();
 
-			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );			
+			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt( format ) ) );			
 
 			// the header
 			do {} while ( !in.readLine().startsWith( "id" ) );
@@ -183,9 +261,17 @@ public class InterestPointList
 	{
 		try
 		{
+			final StorageFormat format = getExistingFormat( false );
+
+			if ( format == StorageFormat.BINARY )
+			{
+				this.interestPoints = loadInterestPointsBinary( new File( getBaseDir(), getFile().toString() + getInterestPointsExt( format ) ) );
+				return true;
+			}
+
 			this.interestPoints = new ArrayList< InterestPoint >();
 
-			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
+			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt( format ) ) );
 
 			// the header
 			do {} while ( !in.readLine().startsWith( "id" ) );
@@ -215,4 +301,210 @@ public class InterestPointList
 			return false;
 		}
 	}
+
+	/**
+	 * @param correspondences - look for the correspondence files, otherwise the interest point files
+	 * @return the format of the list if its file exists, otherwise the other format if its file exists, otherwise the format of the list
+	 */
+	protected StorageFormat getExistingFormat( final boolean correspondences )
+	{
+		final StorageFormat other = getStorageFormat() == StorageFormat.BINARY ? StorageFormat.TEXT : StorageFormat.BINARY;
+
+		if ( getFile( getStorageFormat(), correspondences ).exists() || !getFile( other, correspondences ).exists() )
+			return getStorageFormat();
+
+		IOFunctions.println( "InterestPointList: '" + getFile( getStorageFormat(), correspondences ) + "' does not exist, loading '" + getFile( other, correspondences ) + "' instead." );
+
+		return other;
+	}
+
+	protected File getFile( final StorageFormat format, final boolean correspondences )
+	{
+		return new File( getBaseDir(), getFile().toString() + ( correspondences ? getCorrespondencesExt( format ) : getInterestPointsExt( format ) ) );
+	}
+
+	public static void saveInterestPointsBinary( final List< InterestPoint > list, final File file ) throws IOException
+	{
+		final int n = list.size();
+		final ByteBuffer buffer = ByteBuffer.allocate( 8 + n * ( 3 * 8 + 4 ) ).order( ByteOrder.LITTLE_ENDIAN );
+
+		buffer.putInt( INTERESTPOINTS_MAGIC );
+		buffer.putInt( n );
+
+		for ( int d = 0; d < 3; ++d )
+			for ( final InterestPoint p : list )
+				buffer.putDouble( p.getL()[ d ] );
+
+		for ( final InterestPoint p : list )
+			buffer.putInt( p.getId() );
+
+		write( buffer, file );
+	}
+
+	public static List< InterestPoint > loadInterestPointsBinary( final File file ) throws IOException
+	{
+		final ByteBuffer buffer = read( file );
+
+		if ( buffer.getInt() != INTERESTPOINTS_MAGIC )
+			throw new IOException( "'" + file + "' is not a binary interest point file." );
+
+		final int n = buffer.getInt();
+
+		final double[] x = new double[ n ];
+		final double[] y = new double[ n ];
+		final double[] z = new double[ n ];
+		final int[] id = new int[ n ];
+
+		final DoubleBuffer coordinates = buffer.asDoubleBuffer();
+		coordinates.get( x );
+		coordinates.get( y );
+		coordinates.get( z );
+
+		buffer.position( buffer.position() + n * 3 * 8 );
+		buffer.asIntBuffer().get( id );
+
+		final ArrayList< InterestPoint > list = new ArrayList< InterestPoint >( n );
+
+		for ( int i = 0; i < n; ++i )
+			list.add( new InterestPoint( id[ i ], new double[]{ x[ i ], y[ i ], z[ i ] } ) );
+
+		return list;
+	}
+
+	public static void saveCorrespondingInterestPointsBinary( final List< CorrespondingInterestPoints > list, final File file ) throws IOException
+	{
+		final int n = list.size();
+
+		// the labels are stored once, every correspondence refers to its label by index
+		final HashMap< String, Integer > labelIndex = new HashMap< String, Integer >();
+		final ArrayList< byte[] > labels = new ArrayList< byte[] >();
+		int labelBytes = 0;
+
+		for ( final CorrespondingInterestPoints p : list )
+			if ( !labelIndex.containsKey( p.getCorrespodingLabel() ) )
+			{
+				final byte[] label = p.getCorrespodingLabel().getBytes( UTF8 );
+				labelIndex.put( p.getCorrespodingLabel(), labels.size() );
+				labels.add( label );
+				labelBytes += 4 + label.length;
+			}
+
+		final ByteBuffer buffer = ByteBuffer.allocate( 12 + labelBytes + n * 5 * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+
+		buffer.putInt( CORRESPONDENCES_MAGIC );
+		buffer.putInt( n );
+		buffer.putInt( labels.size() );
+
+		for ( final byte[] label : labels )
+		{
+			buffer.putInt( label.length );
+			buffer.put( label );
+		}
+
+		for ( final CorrespondingInterestPoints p : list )
+			buffer.putInt( p.getDetectionId() );
+
+		for ( final CorrespondingInterestPoints p : list )
+			buffer.putInt( p.getCorrespondingViewId().getTimePointId() );
+
+		for ( final CorrespondingInterestPoints p : list )
+			buffer.putInt( p.getCorrespondingViewId().getViewSetupId() );
+
+		for ( final CorrespondingInterestPoints p : list )
+			buffer.putInt( labelIndex.get( p.getCorrespodingLabel() ) );
+
+		for ( final CorrespondingInterestPoints p : list )
+			buffer.putInt( p.getCorrespondingDetectionId() );
+
+		write( buffer, file );
+	}
+
+	public static List< CorrespondingInterestPoints > loadCorrespondingInterestPointsBinary( final File file ) throws IOException
+	{
+		final ByteBuffer buffer = read( file );
+
+		if ( buffer.getInt() != CORRESPONDENCES_MAGIC )
+			throw new IOException( "'" + file + "' is not a binary correspondence file." );
+
+		final int n = buffer.getInt();
+		final String[] labels = new String[ buffer.getInt() ];
+
+		for ( int l = 0; l < labels.length; ++l )
+		{
+			final byte[] label = new byte[ buffer.getInt() ];
+			buffer.get( label );
+			labels[ l ] = new String( label, UTF8 );
+		}
+
+		final int[] id = new int[ n ];
+		final int[] timepointId = new int[ n ];
+		final int[] viewSetupId = new int[ n ];
+		final int[] label = new int[ n ];
+		final int[] correspondingId = new int[ n ];
+
+		final IntBuffer columns = buffer.asIntBuffer();
+		columns.get( id );
+		columns.get( timepointId );
+		columns.get( viewSetupId );
+		columns.get( label );
+		columns.get( correspondingId );
+
+		final ArrayList< CorrespondingInterestPoints > list = new ArrayList< CorrespondingInterestPoints >( n );
+
+		for ( int i = 0; i < n; ++i )
+			list.add( new CorrespondingInterestPoints( id[ i ], new ViewId( timepointId[ i ], viewSetupId[ i ] ), labels[ label[ i ] ], correspondingId[ i ] ) );
+
+		return list;
+	}
+
+	protected static void write( final ByteBuffer buffer, final File file ) throws IOException
+	{
+		buffer.flip();
+
+		final FileOutputStream out = new FileOutputStream( file );
+
+		try
+		{
+			final FileChannel channel = out.getChannel();
+
+			while ( buffer.hasRemaining() )
+				channel.write( buffer );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/*
+	 * The file is read into memory with one bulk read, a memory-mapped file could not be
+	 * overwritten on Windows as long as the mapping is not garbage collected.
+	 */
+	protected static ByteBuffer read( final File file ) throws IOException
+	{
+		final FileInputStream in = new FileInputStream( file );
+
+		try
+		{
+			final FileChannel channel = in.getChannel();
+			final long size = channel.size();
+
+			if ( size > Integer.MAX_VALUE )
+				throw new IOException( "'" + file + "' is too large." );
+
+			final ByteBuffer buffer = ByteBuffer.allocate( (int)size );
+
+			while ( buffer.hasRemaining() )
+				if ( channel.read( buffer ) < 0 )
+					throw new IOException( "Unexpected end of file '" + file + "'." );
+
+			buffer.flip();
+
+			return buffer.order( ByteOrder.LITTLE_ENDIAN );
+		}
+		finally
+		{
+			in.close();
+		}
+	}
 }
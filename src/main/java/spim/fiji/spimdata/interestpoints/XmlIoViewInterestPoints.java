@@ -1,6 +1,7 @@
 package spim.fiji.spimdata.interestpoints;
 
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTSFILE_TAG;
+import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_FORMAT_ATTRIBUTE_NAME;
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_LABEL_ATTRIBUTE_NAME;
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_PARAMETERS_ATTRIBUTE_NAME;
 import static spim.fiji.spimdata.interestpoints.XmlKeysInterestPoints.VIEWINTERESTPOINTS_SETUP_ATTRIBUTE_NAME;
@@ -63,6 +64,7 @@ public class XmlIoViewInterestPoints extends XmlIoSingleton< ViewInterestPoints
 			final int setupId = Integer.parseInt( viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_SETUP_ATTRIBUTE_NAME ) );
 			final String label = viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_LABEL_ATTRIBUTE_NAME );
 			final String parameters = viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_PARAMETERS_ATTRIBUTE_NAME );
+			final String format = viewInterestPointsElement.getAttributeValue( VIEWINTERESTPOINTS_FORMAT_ATTRIBUTE_NAME );
 
 			final String interestPointFileName = viewInterestPointsElement.getTextTrim();
 
@@ -72,6 +74,13 @@ public class XmlIoViewInterestPoints extends XmlIoSingleton< ViewInterestPoints
 			// we do not load the interestpoints nor the correspondinginterestpoints, we just do that once it is requested
 			final InterestPointList list = new InterestPointList( basePath, new File( interestPointFileName ) );
 			list.setParameters( parameters );
+
+			// older XMLs do not specify the format, they always use text files
+			if ( format != null && format.equalsIgnoreCase( "binary" ) )
+				list.setStorageFormat( InterestPointList.StorageFormat.BINARY );
+			else
+				list.setStorageFormat( InterestPointList.StorageFormat.TEXT );
+
 			collection.addInterestPointList( label, list );
 		}
 
@@ -85,6 +94,10 @@ public class XmlIoViewInterestPoints extends XmlIoSingleton< ViewInterestPoints
 		elem.setAttribute( VIEWINTERESTPOINTS_SETUP_ATTRIBUTE_NAME, Integer.toString( viewId ) );
 		elem.setAttribute( VIEWINTERESTPOINTS_LABEL_ATTRIBUTE_NAME, label );
 		elem.setAttribute( VIEWINTERESTPOINTS_PARAMETERS_ATTRIBUTE_NAME, interestPointList.getParameters() );
+
+		if ( interestPointList.getStorageFormat() == InterestPointList.StorageFormat.BINARY )
+			elem.setAttribute( VIEWINTERESTPOINTS_FORMAT_ATTRIBUTE_NAME, "binary" );
+
 		// a hack so that windows does not put its backslashes in
 		elem.setText( interestPointList.getFile().toString().replace( "\\", "/" ) );
 
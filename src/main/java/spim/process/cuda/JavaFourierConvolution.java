@@ -0,0 +1,525 @@
+package spim.process.cuda;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import mpicbg.spim.io.IOFunctions;
+import spim.Threads;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.ImagePortion;
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+/**
+ * Pure-Java implementation of {@link CUDAFourierConvolution} that exposes several virtual "devices", so the
+ * block scheduling of the deconvolution (one thread per device) convolves several blocks at the same time.
+ *
+ * Like the native code it computes the circular convolution of a block with a kernel whose center is at
+ * kernelDim/2, the dimensions are given in reversed order (z, y, x). Each block is padded to a size the FFT can
+ * handle efficiently (the padded area only affects the border of the block that the deconvolution discards
+ * anyways). The FFT of each kernel is computed once per padded size and kept in a bounded cache, and every
+ * device reuses its padded work buffer for all blocks.
+ */
+public class JavaFourierConvolution implements CUDAFourierConvolution
+{
+	// 0 means min( 4, number of threads )
+	public static int defaultNumDevices = 0;
+
+	// 0 means an eighth of the maximal heap size
+	public static int defaultKernelCacheSizeMB = 0;
+
+	final int numDevices, threadsPerDevice;
+	final ExecutorService service;
+
+	// one padded work buffer per device, a device only processes one block at a time
+	final float[][] workBuffers;
+
+	final long maxCacheBytes;
+	final LinkedHashMap< KernelKey, float[] > kernelCache;
+	long cacheBytes = 0;
+
+	public JavaFourierConvolution()
+	{
+		this( numDevices(), Threads.numThreads(), kernelCacheSizeMB() );
+	}
+
+	/**
+	 * @return - how much memory the default instance uses for the FFT's of the kernels
+	 */
+	public static int kernelCacheSizeMB()
+	{
+		return defaultKernelCacheSizeMB > 0 ? defaultKernelCacheSizeMB : (int)Math.max( 1, Runtime.getRuntime().maxMemory() / ( 8 * 1024 * 1024 ) );
+	}
+
+	/**
+	 * @return - how many virtual devices the default instance uses
+	 */
+	public static int numDevices()
+	{
+		return defaultNumDevices > 0 ? defaultNumDevices : Math.min( 4, Threads.numThreads() );
+	}
+
+	/**
+	 * @param numDevices - how many blocks can be convolved at the same time
+	 * @param numThreads - how many threads are used for all devices together
+	 * @param kernelCacheSizeMB - the memory that the FFT's of the kernels may use
+	 */
+	public JavaFourierConvolution( final int numDevices, final int numThreads, final int kernelCacheSizeMB )
+	{
+		this.numDevices = Math.max( 1, numDevices );
+		this.threadsPerDevice = Math.max( 1, numThreads / this.numDevices );
+		this.service = Executors.newFixedThreadPool( Math.max( 1, numThreads ), new ThreadFactory()
+		{
+			final ThreadFactory factory = Executors.defaultThreadFactory();
+
+			// the threads must not keep the JVM alive if shutdown() is never called
+			@Override
+			public Thread newThread( final Runnable r )
+			{
+				final Thread thread = factory.newThread( r );
+				thread.setDaemon( true );
+				return thread;
+			}
+		});
+		this.workBuffers = new float[ this.numDevices ][];
+		this.maxCacheBytes = (long)kernelCacheSizeMB * 1024 * 1024;
+
+		this.kernelCache = new LinkedHashMap< KernelKey, float[] >( 16, 0.75f, true );
+	}
+
+	@Override
+	public float[] convolution3DfftCUDA( final float[] im, final int[] imDim, final float[] kernel, final int[] kernelDim, final int devCUDA )
+	{
+		final float[] result = im.clone();
+		convolution3DfftCUDAInPlace( result, imDim, kernel, kernelDim, devCUDA );
+		return result;
+	}
+
+	@Override
+	public void convolution3DfftCUDAInPlace( final float[] im, final int[] imDim, final float[] kernel, final int[] kernelDim, final int devCUDA )
+	{
+		// the dimensions are given as ( z, y, x )
+		final int w = dim( imDim, 0 ), h = dim( imDim, 1 ), d = dim( imDim, 2 );
+		final int kw = dim( kernelDim, 0 ), kh = dim( kernelDim, 1 ), kd = dim( kernelDim, 2 );
+
+		final int[] padded = new int[]{
+				FftReal.nfftFast( Math.max( w, kw ) ),
+				FftComplex.nfftFast( Math.max( h, kh ) ),
+				FftComplex.nfftFast( Math.max( d, kd ) ) };
+
+		final float[] kernelFFT = getKernelFFT( kernel, new int[]{ kw, kh, kd }, padded );
+		final int device = Math.abs( devCUDA ) % numDevices;
+
+		// only allocated once per device (or when the padded size grows)
+		final float[] spectrum = getWorkBuffer( device, spectrumSize( padded ) );
+
+		synchronized ( spectrum )
+		{
+			forward( im, w, h, d, padded, spectrum );
+			multiply( spectrum, kernelFFT, spectrumSize( padded ) );
+			inverse( spectrum, im, w, h, d, padded );
+		}
+	}
+
+	protected synchronized float[] getWorkBuffer( final int device, final int size )
+	{
+		if ( workBuffers[ device ] == null || workBuffers[ device ].length < size )
+			workBuffers[ device ] = new float[ size ];
+
+		return workBuffers[ device ];
+	}
+
+	/**
+	 * @return - the FFT of the kernel padded to the given size (scaled so that the inverse transform needs no scaling)
+	 */
+	protected float[] getKernelFFT( final float[] kernel, final int[] kernelDim, final int[] padded )
+	{
+		final KernelKey key = new KernelKey( kernel, kernelDim, padded );
+
+		synchronized ( kernelCache )
+		{
+			final float[] kernelFFT = kernelCache.get( key );
+
+			if ( kernelFFT != null )
+				return kernelFFT;
+		}
+
+		// compute outside of the lock, if two devices need the same kernel at once it is computed twice, which does no harm
+		final int p0 = padded[ 0 ], p1 = padded[ 1 ], p2 = padded[ 2 ];
+		final float[] wrapped = new float[ p0 * p1 * p2 ];
+
+		// the center of the kernel is at the origin
+		for ( int z = 0; z < kernelDim[ 2 ]; ++z )
+		{
+			final int zp = ( z - kernelDim[ 2 ] / 2 + p2 ) % p2;
+
+			for ( int y = 0; y < kernelDim[ 1 ]; ++y )
+			{
+				final int yp = ( y - kernelDim[ 1 ] / 2 + p1 ) % p1;
+
+				for ( int x = 0; x < kernelDim[ 0 ]; ++x )
+				{
+					final int xp = ( x - kernelDim[ 0 ] / 2 + p0 ) % p0;
+
+					wrapped[ xp + p0 * ( yp + p1 * zp ) ] = kernel[ x + kernelDim[ 0 ] * ( y + kernelDim[ 1 ] * z ) ];
+				}
+			}
+		}
+
+		final float[] kernelFFT = new float[ spectrumSize( padded ) ];
+		forward( wrapped, p0, p1, p2, padded, kernelFFT );
+
+		final float scale = 1.0f / ( (float)p0 * p1 * p2 );
+
+		for ( int i = 0; i < kernelFFT.length; ++i )
+			kernelFFT[ i ] *= scale;
+
+		synchronized ( kernelCache )
+		{
+			if ( !kernelCache.containsKey( key ) )
+			{
+				kernelCache.put( key, kernelFFT );
+				cacheBytes += kernelFFT.length * 4l;
+
+				// evict the least recently used kernels, but always keep the one just computed
+				while ( cacheBytes > maxCacheBytes && kernelCache.size() > 1 )
+				{
+					final Map.Entry< KernelKey, float[] > eldest = kernelCache.entrySet().iterator().next();
+					cacheBytes -= eldest.getValue().length * 4l;
+					kernelCache.remove( eldest.getKey() );
+				}
+			}
+		}
+
+		return kernelFFT;
+	}
+
+	/**
+	 * Removes all kernel FFT's from the cache
+	 */
+	public void clearCache()
+	{
+		synchronized ( kernelCache )
+		{
+			kernelCache.clear();
+			cacheBytes = 0;
+		}
+	}
+
+	/**
+	 * Shuts down the threads of this instance and releases the cached kernels and work buffers
+	 */
+	public void shutdown()
+	{
+		service.shutdown();
+		clearCache();
+
+		synchronized ( this )
+		{
+			for ( int device = 0; device < numDevices; ++device )
+				workBuffers[ device ] = null;
+		}
+	}
+
+	protected static int dim( final int[] reversedDim, final int d )
+	{
+		final int i = reversedDim.length - 1 - d;
+		return i >= 0 ? reversedDim[ i ] : 1;
+	}
+
+	protected static int spectrumSize( final int[] padded )
+	{
+		return ( padded[ 0 ] + 2 ) * padded[ 1 ] * padded[ 2 ];
+	}
+
+	/**
+	 * Real-to-complex FFT of a w x h x d image, zero-padded to the padded size. The spectrum
+	 * is stored as ( padded[0]/2 + 1 ) x padded[1] x padded[2] interleaved complex numbers.
+	 */
+	protected void forward( final float[] src, final int w, final int h, final int d, final int[] padded, final float[] spectrum )
+	{
+		final int p0 = padded[ 0 ], p1 = padded[ 1 ], p2 = padded[ 2 ];
+		final int rowLength = p0 + 2;
+
+		// x: every row of the padded volume
+		run( p1 * p2, new Pass()
+		{
+			@Override
+			public void compute( final int from, final int to )
+			{
+				final FftReal fft = new FftReal( p0 );
+				final float[] rx = new float[ p0 ];
+				final float[] cy = new float[ rowLength ];
+
+				for ( int r = from; r < to; ++r )
+				{
+					final int y = r % p1;
+					final int z = r / p1;
+					final int o = r * rowLength;
+
+					if ( y < h && z < d )
+					{
+						System.arraycopy( src, ( y + h * z ) * w, rx, 0, w );
+
+						for ( int x = w; x < p0; ++x )
+							rx[ x ] = 0;
+
+						fft.realToComplex( -1, rx, cy );
+						System.arraycopy( cy, 0, spectrum, o, rowLength );
+					}
+					else
+					{
+						for ( int i = 0; i < rowLength; ++i )
+							spectrum[ o + i ] = 0;
+					}
+				}
+			}
+		} );
+
+		// y: only the planes that contain data, all others are still zero
+		transformY( -1, spectrum, padded, d );
+		transformZ( -1, spectrum, padded );
+	}
+
+	/**
+	 * Complex-to-real inverse FFT, only the w x h x d part of the padded result is written to dst
+	 */
+	protected void inverse( final float[] spectrum, final float[] dst, final int w, final int h, final int d, final int[] padded )
+	{
+		final int p0 = padded[ 0 ], p1 = padded[ 1 ];
+		final int rowLength = p0 + 2;
+
+		transformZ( 1, spectrum, padded );
+
+		// y: only the planes that are written back
+		transformY( 1, spectrum, padded, d );
+
+		run( h * d, new Pass()
+		{
+			@Override
+			public void compute( final int from, final int to )
+			{
+				final FftReal fft = new FftReal( p0 );
+				final float[] cx = new float[ rowLength ];
+				final float[] ry = new float[ p0 ];
+
+				for ( int r = from; r < to; ++r )
+				{
+					final int y = r % h;
+					final int z = r / h;
+
+					System.arraycopy( spectrum, ( y + p1 * z ) * rowLength, cx, 0, rowLength );
+					fft.complexToReal( 1, cx, ry );
+					System.arraycopy( ry, 0, dst, r * w, w );
+				}
+			}
+		} );
+	}
+
+	protected void transformY( final int sign, final float[] spectrum, final int[] padded, final int numPlanes )
+	{
+		final int c0 = padded[ 0 ] / 2 + 1, p1 = padded[ 1 ];
+
+		run( numPlanes * c0, new Pass()
+		{
+			@Override
+			public void compute( final int from, final int to )
+			{
+				final FftComplex fft = new FftComplex( p1 );
+				final float[] line = new float[ 2 * p1 ];
+
+				for ( int i = from; i < to; ++i )
+				{
+					final int x = i % c0;
+					final int z = i / c0;
+					final int o = 2 * ( x + c0 * p1 * z );
+
+					transformLine( fft, sign, spectrum, o, 2 * c0, line, p1 );
+				}
+			}
+		} );
+	}
+
+	protected void transformZ( final int sign, final float[] spectrum, final int[] padded )
+	{
+		final int c0 = padded[ 0 ] / 2 + 1, p1 = padded[ 1 ], p2 = padded[ 2 ];
+
+		if ( p2 == 1 )
+			return;
+
+		run( c0 * p1, new Pass()
+		{
+			@Override
+			public void compute( final int from, final int to )
+			{
+				final FftComplex fft = new FftComplex( p2 );
+				final float[] line = new float[ 2 * p2 ];
+
+				for ( int i = from; i < to; ++i )
+					transformLine( fft, sign, spectrum, 2 * i, 2 * c0 * p1, line, p2 );
+			}
+		} );
+	}
+
+	protected static void transformLine( final FftComplex fft, final int sign, final float[] spectrum, final int offset, final int stride, final float[] line, final int length )
+	{
+		for ( int j = 0, o = offset; j < length; ++j, o += stride )
+		{
+			line[ 2 * j ] = spectrum[ o ];
+			line[ 2 * j + 1 ] = spectrum[ o + 1 ];
+		}
+
+		fft.complexToComplex( sign, line, line );
+
+		for ( int j = 0, o = offset; j < length; ++j, o += stride )
+		{
+			spectrum[ o ] = line[ 2 * j ];
+			spectrum[ o + 1 ] = line[ 2 * j + 1 ];
+		}
+	}
+
+	protected void multiply( final float[] spectrum, final float[] kernelFFT, final int size )
+	{
+		run( size / 2, new Pass()
+		{
+			@Override
+			public void compute( final int from, final int to )
+			{
+				for ( int i = 2 * from; i < 2 * to; i += 2 )
+				{
+					final float re = spectrum[ i ];
+					final float im = spectrum[ i + 1 ];
+
+					spectrum[ i ] = re * kernelFFT[ i ] - im * kernelFFT[ i + 1 ];
+					spectrum[ i + 1 ] = re * kernelFFT[ i + 1 ] + im * kernelFFT[ i ];
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Processes [0, size) in as many portions as this device has threads
+	 */
+	protected void run( final int size, final Pass pass )
+	{
+		if ( threadsPerDevice == 1 || size < 2 * threadsPerDevice )
+		{
+			pass.compute( 0, size );
+			return;
+		}
+
+		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( size, threadsPerDevice );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( final ImagePortion portion : portions )
+		{
+			final int from = (int)portion.getStartPosition();
+			final int to = from + (int)portion.getLoopSize();
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					pass.compute( from, to );
+					return null;
+				}
+			} );
+		}
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< Void > future : service.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute FFT convolution: " + e );
+			e.printStackTrace();
+		}
+	}
+
+	protected interface Pass
+	{
+		public void compute( final int from, final int to );
+	}
+
+	/**
+	 * Identifies the FFT of a kernel, the kernel is the same array for all blocks and iterations
+	 */
+	protected static class KernelKey
+	{
+		final float[] kernel;
+		final int[] kernelDim, padded;
+
+		public KernelKey( final float[] kernel, final int[] kernelDim, final int[] padded )
+		{
+			this.kernel = kernel;
+			this.kernelDim = kernelDim;
+			this.padded = padded;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int hash = System.identityHashCode( kernel );
+
+			for ( int d = 0; d < padded.length; ++d )
+				hash = 31 * hash + padded[ d ];
+
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof KernelKey ) )
+				return false;
+
+			final KernelKey k = (KernelKey)o;
+
+			return k.kernel == kernel && Arrays.equals( k.kernelDim, kernelDim ) && Arrays.equals( k.padded, padded );
+		}
+	}
+
+	//
+	// the "devices" are the CPU
+	//
+
+	@Override
+	public int getCUDAcomputeCapabilityMinorVersion( final int devCUDA ) { return 0; }
+
+	@Override
+	public int getCUDAcomputeCapabilityMajorVersion( final int devCUDA ) { return 0; }
+
+	@Override
+	public int getNumDevicesCUDA() { return numDevices; }
+
+	@Override
+	public void getNameDeviceCUDA( final int devCUDA, final byte[] name )
+	{
+		final byte[] n = ( "CPU (Java FFT, " + threadsPerDevice + " threads) " + ( devCUDA + 1 ) ).getBytes();
+
+		for ( int i = 0; i < name.length; ++i )
+			name[ i ] = i < n.length ? n[ i ] : 0;
+	}
+
+	@Override
+	public long getMemDeviceCUDA( final int devCUDA ) { return Runtime.getRuntime().maxMemory(); }
+
+	@Override
+	public long getFreeMemDeviceCUDA( final int devCUDA )
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+	}
+}
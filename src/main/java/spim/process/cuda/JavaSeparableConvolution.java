@@ -0,0 +1,356 @@
+package spim.process.cuda;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import spim.Threads;
+
+/**
+ * Pure-Java implementation of {@link CUDASeparableConvolution}, it can be used wherever the native
+ * library would be loaded (e.g. on machines without a GPU) and exposes exactly one "device" that is the CPU.
+ * Every dimension is convolved separately and in-place. Lines along x are copied into a padded buffer,
+ * lines along y and z are processed in bundles of neighboring lines so that all memory accesses are
+ * contiguous. The bundles are distributed over a fork-join pool.
+ *
+ * The out-of-bounds strategies are the same as for the native code:
+ * 0 == zero, 1 == value, 2 == extend last pixel
+ */
+public class JavaSeparableConvolution implements CUDASeparableConvolution
+{
+	// how many neighboring lines are convolved at once along y and z
+	public static int defaultLinesPerBundle = 256;
+
+	final int numThreads, linesPerBundle;
+
+	// created when needed, shutdown() releases the threads
+	ForkJoinPool pool = null;
+
+	public JavaSeparableConvolution()
+	{
+		this( Threads.numThreads(), defaultLinesPerBundle );
+	}
+
+	/**
+	 * @param numThreads - how many threads to use
+	 * @param linesPerBundle - how many neighboring lines along y and z are convolved at once
+	 */
+	public JavaSeparableConvolution( final int numThreads, final int linesPerBundle )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+		this.linesPerBundle = Math.max( 1, linesPerBundle );
+	}
+
+	@Override
+	public boolean convolve_127( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue, final int devCUDA )
+	{
+		return convolve( image, kernelX, kernelY, kernelZ, 63, 63, 63, imageW, imageH, imageD, convolveX, convolveY, convolveZ, outofbounds, outofboundsvalue );
+	}
+
+	@Override
+	public boolean convolve_63( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue, final int devCUDA )
+	{
+		return convolve( image, kernelX, kernelY, kernelZ, 31, 31, 31, imageW, imageH, imageD, convolveX, convolveY, convolveZ, outofbounds, outofboundsvalue );
+	}
+
+	@Override
+	public boolean convolve_31( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue, final int devCUDA )
+	{
+		return convolve( image, kernelX, kernelY, kernelZ, 15, 15, 15, imageW, imageH, imageD, convolveX, convolveY, convolveZ, outofbounds, outofboundsvalue );
+	}
+
+	@Override
+	public boolean convolve_15( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue, final int devCUDA )
+	{
+		return convolve( image, kernelX, kernelY, kernelZ, 7, 7, 7, imageW, imageH, imageD, convolveX, convolveY, convolveZ, outofbounds, outofboundsvalue );
+	}
+
+	@Override
+	public boolean convolve_7( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue, final int devCUDA )
+	{
+		return convolve( image, kernelX, kernelY, kernelZ, 3, 3, 3, imageW, imageH, imageD, convolveX, convolveY, convolveZ, outofbounds, outofboundsvalue );
+	}
+
+	@Override
+	public void convolutionCPU( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int kernelRX, final int kernelRY, final int kernelRZ, final int imageW, final int imageH, final int imageD, final int outofbounds, final float outofboundsvalue )
+	{
+		convolve( image, kernelX, kernelY, kernelZ, kernelRX, kernelRY, kernelRZ, imageW, imageH, imageD, kernelX != null, kernelY != null, kernelZ != null, outofbounds, outofboundsvalue );
+	}
+
+	/**
+	 * In-place separable convolution of a 1d/2d/3d image stored as flat float array (x is the fastest dimension)
+	 *
+	 * @return - false if the input is inconsistent
+	 */
+	public boolean convolve(
+			final float[] image,
+			final float[] kernelX, final float[] kernelY, final float[] kernelZ,
+			final int kernelRX, final int kernelRY, final int kernelRZ,
+			final int imageW, final int imageH, final int imageD,
+			final boolean convolveX, final boolean convolveY, final boolean convolveZ,
+			final int outofbounds, final float outofboundsvalue )
+	{
+		if ( image == null || imageW <= 0 || imageH <= 0 || imageD <= 0 || (long)imageW * imageH * imageD > image.length )
+			return false;
+
+		if ( outofbounds < 0 || outofbounds > 2 )
+			return false;
+
+		if ( convolveX && !validKernel( kernelX, kernelRX ) || convolveY && !validKernel( kernelY, kernelRY ) || convolveZ && !validKernel( kernelZ, kernelRZ ) )
+			return false;
+
+		final ForkJoinPool pool = pool();
+		final int wh = imageW * imageH;
+
+		// x: one bundle per line, the lines are contiguous
+		if ( convolveX && kernelRX > 0 )
+		{
+			final int r = trimmedRadius( kernelX, kernelRX );
+			pool.invoke( new LineBundles( image, trim( kernelX, kernelRX, r ), r, imageW, 1, 1, 0, imageH * imageD, outofbounds, outofboundsvalue ) );
+		}
+
+		// y: bundles of neighboring x positions within one plane
+		if ( convolveY && kernelRY > 0 && imageH > 1 )
+		{
+			final int r = trimmedRadius( kernelY, kernelRY );
+			final float[] kernel = trim( kernelY, kernelRY, r );
+
+			for ( int z = 0; z < imageD; ++z )
+				pool.invoke( new LineBundles( image, kernel, r, imageH, imageW, linesPerBundle, z * wh, imageW, outofbounds, outofboundsvalue ) );
+		}
+
+		// z: bundles of neighboring xy positions
+		if ( convolveZ && kernelRZ > 0 && imageD > 1 )
+		{
+			final int r = trimmedRadius( kernelZ, kernelRZ );
+			pool.invoke( new LineBundles( image, trim( kernelZ, kernelRZ, r ), r, imageD, wh, linesPerBundle, 0, wh, outofbounds, outofboundsvalue ) );
+		}
+
+		return true;
+	}
+
+	protected static boolean validKernel( final float[] kernel, final int kernelR )
+	{
+		return kernel != null && kernelR >= 0 && kernel.length >= 2 * kernelR + 1;
+	}
+
+	/**
+	 * The kernels of the fixed-size entry points (e.g. convolve_127) are padded with zeros around the
+	 * actual kernel, convolving with these zeros would only cost time.
+	 *
+	 * @return - the smallest radius around the center kernelR that contains all non-zero taps
+	 */
+	protected static int trimmedRadius( final float[] kernel, final int kernelR )
+	{
+		int r = kernelR;
+
+		while ( r > 0 && kernel[ kernelR - r ] == 0 && kernel[ kernelR + r ] == 0 )
+			--r;
+
+		return r;
+	}
+
+	/**
+	 * @return - the taps [kernelR - r, kernelR + r] of the kernel
+	 */
+	protected static float[] trim( final float[] kernel, final int kernelR, final int r )
+	{
+		if ( r == kernelR && kernel.length == 2 * kernelR + 1 )
+			return kernel;
+		else
+			return Arrays.copyOfRange( kernel, kernelR - r, kernelR + r + 1 );
+	}
+
+	/**
+	 * Convolves a range of lines along one dimension. For x (stride == 1) every line is its own bundle and the
+	 * lines start every length pixels, for y and z a bundle are up to linesPerBundle lines whose pixels are
+	 * neighbors in memory, the lines start at offset + i.
+	 */
+	protected static class LineBundles extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final float[] image, kernel;
+		final int kernelR, length, stride, linesPerBundle, offset, oob;
+		final float oobValue;
+
+		// the range of lines [from, to) this task is responsible for
+		final int from, to;
+
+		public LineBundles( final float[] image, final float[] kernel, final int kernelR, final int length, final int stride, final int linesPerBundle, final int offset, final int numLines, final int oob, final float oobValue )
+		{
+			this( image, kernel, kernelR, length, stride, linesPerBundle, offset, oob, oobValue, 0, numLines );
+		}
+
+		protected LineBundles( final float[] image, final float[] kernel, final int kernelR, final int length, final int stride, final int linesPerBundle, final int offset, final int oob, final float oobValue, final int from, final int to )
+		{
+			this.image = image;
+			this.kernel = kernel;
+			this.kernelR = kernelR;
+			this.length = length;
+			this.stride = stride;
+			this.linesPerBundle = linesPerBundle;
+			this.offset = offset;
+			this.oob = oob;
+			this.oobValue = oobValue;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			// split until the remaining work is a few bundles (or a few thousand pixels along x)
+			final int minLines = ( stride == 1 ) ? Math.max( 1, 16384 / length ) : 4 * linesPerBundle;
+
+			if ( to - from > minLines )
+			{
+				final int mid = ( from + to ) >>> 1;
+				invokeAll(
+						new LineBundles( image, kernel, kernelR, length, stride, linesPerBundle, offset, oob, oobValue, from, mid ),
+						new LineBundles( image, kernel, kernelR, length, stride, linesPerBundle, offset, oob, oobValue, mid, to ) );
+			}
+			else if ( stride == 1 )
+			{
+				final float[] buffer = new float[ length + 2 * kernelR ];
+
+				for ( int line = from; line < to; ++line )
+					convolveLine( image, offset + line * length, buffer );
+			}
+			else
+			{
+				final int bundle = Math.min( linesPerBundle, to - from );
+				final float[] buffer = new float[ ( length + 2 * kernelR ) * bundle ];
+				final float[] sum = new float[ bundle ];
+
+				for ( int line = from; line < to; line += linesPerBundle )
+					convolveBundle( image, offset + line, Math.min( linesPerBundle, to - line ), buffer, sum );
+			}
+		}
+
+		protected void convolveLine( final float[] image, final int start, final float[] buffer )
+		{
+			final int r = kernelR;
+
+			System.arraycopy( image, start, buffer, r, length );
+
+			final float low = ( oob == 2 ) ? image[ start ] : ( oob == 1 ) ? oobValue : 0;
+			final float high = ( oob == 2 ) ? image[ start + length - 1 ] : ( oob == 1 ) ? oobValue : 0;
+
+			for ( int i = 0; i < r; ++i )
+			{
+				buffer[ i ] = low;
+				buffer[ r + length + i ] = high;
+			}
+
+			for ( int x = 0; x < length; ++x )
+			{
+				float sum = 0;
+
+				for ( int k = -r; k <= r; ++k )
+					sum += kernel[ r - k ] * buffer[ x + r + k ];
+
+				image[ start + x ] = sum;
+			}
+		}
+
+		protected void convolveBundle( final float[] image, final int start, final int numLines, final float[] buffer, final float[] sum )
+		{
+			final int r = kernelR;
+
+			// copy the lines into the buffer, pixel j of line c is at ( j + r ) * numLines + c
+			for ( int j = 0; j < length; ++j )
+				System.arraycopy( image, start + j * stride, buffer, ( j + r ) * numLines, numLines );
+
+			for ( int j = 0; j < r; ++j )
+			{
+				final int lowRow = j * numLines;
+				final int highRow = ( r + length + j ) * numLines;
+
+				if ( oob == 2 )
+				{
+					System.arraycopy( buffer, r * numLines, buffer, lowRow, numLines );
+					System.arraycopy( buffer, ( r + length - 1 ) * numLines, buffer, highRow, numLines );
+				}
+				else
+				{
+					final float value = ( oob == 1 ) ? oobValue : 0;
+
+					for ( int c = 0; c < numLines; ++c )
+					{
+						buffer[ lowRow + c ] = value;
+						buffer[ highRow + c ] = value;
+					}
+				}
+			}
+
+			for ( int j = 0; j < length; ++j )
+			{
+				for ( int c = 0; c < numLines; ++c )
+					sum[ c ] = 0;
+
+				for ( int k = -r; k <= r; ++k )
+				{
+					final float w = kernel[ r - k ];
+					final int row = ( j + r + k ) * numLines;
+
+					for ( int c = 0; c < numLines; ++c )
+						sum[ c ] += w * buffer[ row + c ];
+				}
+
+				System.arraycopy( sum, 0, image, start + j * stride, numLines );
+			}
+		}
+	}
+
+	/**
+	 * Shuts down the threads of this instance, a later convolution starts new ones
+	 */
+	public synchronized void shutdown()
+	{
+		if ( pool != null )
+			pool.shutdown();
+
+		pool = null;
+	}
+
+	protected synchronized ForkJoinPool pool()
+	{
+		if ( pool == null )
+			pool = new ForkJoinPool( numThreads );
+
+		return pool;
+	}
+
+	//
+	// the "device" is the CPU
+	//
+
+	@Override
+	public int getCUDAcomputeCapabilityMinorVersion( final int devCUDA ) { return 0; }
+
+	@Override
+	public int getCUDAcomputeCapabilityMajorVersion( final int devCUDA ) { return 0; }
+
+	@Override
+	public int getNumDevicesCUDA() { return 1; }
+
+	@Override
+	public void getNameDeviceCUDA( final int devCUDA, final byte[] name )
+	{
+		final byte[] n = ( "CPU (Java, " + numThreads + " threads)" ).getBytes();
+
+		for ( int i = 0; i < name.length; ++i )
+			name[ i ] = i < n.length ? n[ i ] : 0;
+	}
+
+	@Override
+	public long getMemDeviceCUDA( final int devCUDA ) { return Runtime.getRuntime().maxMemory(); }
+
+	@Override
+	public long getFreeMemDeviceCUDA( final int devCUDA )
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+	}
+}
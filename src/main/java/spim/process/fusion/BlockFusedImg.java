@@ -0,0 +1,235 @@
+package spim.process.fusion;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.AbstractInterval;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * A fused image that is never held in memory as a whole. It is split into blocks that
+ * are fused when they are first accessed and kept in a bounded cache that evicts the
+ * least recently used blocks, so exporters can stream it (e.g. plane by plane) while the
+ * memory requirements only depend on the block size and the width/height of the image.
+ *
+ * @param <T>
+ */
+public class BlockFusedImg< T extends RealType< T > & NativeType< T > > extends AbstractInterval implements RandomAccessibleInterval< T >
+{
+	/**
+	 * Fuses one block of the output
+	 */
+	public interface BlockFusion< T >
+	{
+		/**
+		 * @param block - an empty image of the size of the block, its min is the offset of the block inside the fused image
+		 */
+		public void fuseBlock( final RandomAccessibleInterval< T > block );
+	}
+
+	final T type;
+	final int[] blockSize;
+	final long[] numBlocks;
+	final BlockFusion< T > fusion;
+	final int maxCachedBlocks;
+	final LinkedHashMap< Long, Img< T > > cache;
+
+	/**
+	 * @param dimensions - the dimensions of the fused image
+	 * @param blockSize - the size of the blocks that are fused at once
+	 * @param type - the type of the fused image
+	 * @param fusion - fuses one block
+	 * @param maxCachedBlocks - how many blocks are held in memory at most
+	 */
+	public BlockFusedImg(
+			final long[] dimensions,
+			final int[] blockSize,
+			final T type,
+			final BlockFusion< T > fusion,
+			final int maxCachedBlocks )
+	{
+		super( dimensions );
+
+		this.type = type;
+		this.blockSize = blockSize;
+		this.fusion = fusion;
+		this.maxCachedBlocks = Math.max( 1, maxCachedBlocks );
+		this.numBlocks = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			this.numBlocks[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+
+		this.cache = new LinkedHashMap< Long, Img< T > >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Long, Img< T > > eldest )
+			{
+				return size() > BlockFusedImg.this.maxCachedBlocks;
+			}
+		};
+	}
+
+	/**
+	 * @param dimensions - the dimensions of the fused image
+	 * @param blockSize - the size of the blocks
+	 * @return - the number of blocks that cover one layer of blocks in xy, exporters that write
+	 * plane by plane (or in xy-slabs) need at least this many cached blocks to fuse every block only once
+	 */
+	public static int blocksPerLayer( final long[] dimensions, final int[] blockSize )
+	{
+		final long nx = ( dimensions[ 0 ] + blockSize[ 0 ] - 1 ) / blockSize[ 0 ];
+		final long ny = ( dimensions[ 1 ] + blockSize[ 1 ] - 1 ) / blockSize[ 1 ];
+
+		return (int)Math.min( Integer.MAX_VALUE, nx * ny );
+	}
+
+	public int[] getBlockSize() { return blockSize; }
+	public long[] getNumBlocks() { return numBlocks; }
+
+	/**
+	 * @param blockPos - the position of the block in the grid of blocks
+	 * @return - the block, fused now if it is not in the cache
+	 */
+	public synchronized Img< T > getBlock( final long[] blockPos )
+	{
+		long index = blockPos[ n - 1 ];
+
+		for ( int d = n - 2; d >= 0; --d )
+			index = index * numBlocks[ d ] + blockPos[ d ];
+
+		Img< T > block = cache.get( index );
+
+		if ( block == null )
+		{
+			final long[] min = new long[ n ];
+			final long[] dim = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = blockPos[ d ] * blockSize[ d ];
+				dim[ d ] = Math.min( blockSize[ d ], dimension( d ) - min[ d ] );
+			}
+
+			block = new ArrayImgFactory< T >().create( dim, type );
+			fusion.fuseBlock( Views.translate( block, min ) );
+
+			cache.put( index, block );
+		}
+
+		return block;
+	}
+
+	/**
+	 * Computes min and max intensity by fusing the image block by block,
+	 * note that this requires one additional pass over all blocks
+	 *
+	 * @return - min and max intensity
+	 */
+	public float[] minMax()
+	{
+		IOFunctions.println( "Computing min/max intensity of the block-wise fused image (requires fusing all blocks once)." );
+
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+
+		final long[] blockPos = new long[ n ];
+
+		for ( blockPos[ 2 ] = 0; blockPos[ 2 ] < numBlocks[ 2 ]; ++blockPos[ 2 ] )
+			for ( blockPos[ 1 ] = 0; blockPos[ 1 ] < numBlocks[ 1 ]; ++blockPos[ 1 ] )
+				for ( blockPos[ 0 ] = 0; blockPos[ 0 ] < numBlocks[ 0 ]; ++blockPos[ 0 ] )
+				{
+					final Cursor< T > c = getBlock( blockPos ).cursor();
+
+					while ( c.hasNext() )
+					{
+						final float v = c.next().getRealFloat();
+
+						min = Math.min( min, v );
+						max = Math.max( max, v );
+					}
+				}
+
+		return new float[]{ min, max };
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess() { return new BlockFusedRandomAccess(); }
+
+	@Override
+	public RandomAccess< T > randomAccess( final Interval interval ) { return randomAccess(); }
+
+	/**
+	 * Reads from the block that contains the current position, fetches a new block from
+	 * the cache only when the position leaves the current block
+	 */
+	public class BlockFusedRandomAccess extends Point implements RandomAccess< T >
+	{
+		final long[] blockPos, blockMin, blockMax;
+		RandomAccess< T > blockAccess = null;
+
+		public BlockFusedRandomAccess()
+		{
+			super( BlockFusedImg.this.numDimensions() );
+
+			this.blockPos = new long[ n ];
+			this.blockMin = new long[ n ];
+			this.blockMax = new long[ n ];
+		}
+
+		@Override
+		public T get()
+		{
+			if ( blockAccess == null || !insideBlock() )
+				updateBlock();
+
+			for ( int d = 0; d < n; ++d )
+				blockAccess.setPosition( position[ d ] - blockMin[ d ], d );
+
+			return blockAccess.get();
+		}
+
+		protected boolean insideBlock()
+		{
+			for ( int d = 0; d < n; ++d )
+				if ( position[ d ] < blockMin[ d ] || position[ d ] > blockMax[ d ] )
+					return false;
+
+			return true;
+		}
+
+		protected void updateBlock()
+		{
+			for ( int d = 0; d < n; ++d )
+			{
+				blockPos[ d ] = position[ d ] / blockSize[ d ];
+				blockMin[ d ] = blockPos[ d ] * blockSize[ d ];
+				blockMax[ d ] = Math.min( blockMin[ d ] + blockSize[ d ], dimension( d ) ) - 1;
+			}
+
+			blockAccess = getBlock( blockPos ).randomAccess();
+		}
+
+		@Override
+		public BlockFusedRandomAccess copy() { return copyRandomAccess(); }
+
+		@Override
+		public BlockFusedRandomAccess copyRandomAccess()
+		{
+			final BlockFusedRandomAccess r = new BlockFusedRandomAccess();
+			r.setPosition( this );
+			return r;
+		}
+	}
+}
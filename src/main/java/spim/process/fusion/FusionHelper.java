@@ -86,6 +86,10 @@ public class FusionHelper
 	
 	public static < T extends RealType< T > > float[] minMax( final RandomAccessibleInterval< T > img )
 	{
+		// fuse block by block instead of requesting every pixel through the cache from many threads
+		if ( img instanceof BlockFusedImg )
+			return ( (BlockFusedImg< ? >)img ).minMax();
+
 		final IterableInterval< T > iterable = Views.iterable( img );
 		
 		// split up into many parts for multithreading
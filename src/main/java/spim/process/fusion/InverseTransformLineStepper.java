@@ -0,0 +1,172 @@
+package spim.process.fusion;
+
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Walks the fused output image line by line (along x) and computes the corresponding
+ * position in one input view incrementally. The inverse transformation is only applied
+ * once per line, every step along the line adds a precomputed increment. For each line the
+ * range of x-positions that actually maps inside the input view is computed, so the fusion
+ * does not need to test every voxel against every view.
+ */
+public class InverseTransformLineStepper
+{
+	final AffineTransform3D transform;
+	final int sx, sy, sz;
+	final int width;
+
+	final double[] offset, scale;
+
+	// the source coordinate of x=0 of the current line and the increment per output pixel
+	final double[] start = new double[ 3 ];
+	final double[] step = new double[ 3 ];
+
+	final double[] tmp = new double[ 3 ];
+
+	int minX, maxX;
+
+	/**
+	 * @param transform - the transformation of the view into the global coordinate system
+	 * @param imgSize - the size of the view
+	 * @param bb - the bounding box in global coordinates
+	 * @param downSampling - the downsampling of the fused image
+	 * @param fusedInterval - the part of the fused image that is computed (in pixel coordinates of the fused image), its lines are walked
+	 */
+	public InverseTransformLineStepper(
+			final AffineTransform3D transform,
+			final int[] imgSize,
+			final Interval bb,
+			final int downSampling,
+			final Interval fusedInterval )
+	{
+		this.transform = transform;
+		this.sx = imgSize[ 0 ];
+		this.sy = imgSize[ 1 ];
+		this.sz = imgSize[ 2 ];
+		this.width = (int)fusedInterval.dimension( 0 );
+
+		// the global coordinate of the first pixel of each line
+		this.offset = new double[]{ fusedInterval.min( 0 ) * downSampling + bb.min( 0 ), bb.min( 1 ), bb.min( 2 ) };
+		this.scale = new double[]{ downSampling, downSampling, downSampling };
+
+		// the increment in the input view when moving one pixel along x in the fused image
+		final double[] a = new double[ 3 ];
+		final double[] b = new double[ 3 ];
+
+		transform.applyInverse( a, new double[]{ 0, 0, 0 } );
+		transform.applyInverse( b, new double[]{ downSampling, 0, 0 } );
+
+		for ( int d = 0; d < 3; ++d )
+			step[ d ] = b[ d ] - a[ d ];
+	}
+
+	/**
+	 * Sets the stepper to a new line of the fused image and computes which part of
+	 * the line is covered by the input view.
+	 *
+	 * @param y - the y coordinate of the line in the fused image
+	 * @param z - the z coordinate of the line in the fused image
+	 * @return true if at least one pixel of the line is covered by the input view
+	 */
+	public boolean setLine( final long y, final long z )
+	{
+		tmp[ 0 ] = offset[ 0 ];
+		tmp[ 1 ] = y * scale[ 1 ] + offset[ 1 ];
+		tmp[ 2 ] = z * scale[ 2 ] + offset[ 2 ];
+
+		transform.applyInverse( start, tmp );
+
+		// analytically compute the range [lo, hi) along the line that is inside the view
+		double lo = 0;
+		double hi = width;
+
+		lo = Math.max( lo, lower( start[ 0 ], step[ 0 ], sx ) );
+		hi = Math.min( hi, upper( start[ 0 ], step[ 0 ], sx ) );
+		lo = Math.max( lo, lower( start[ 1 ], step[ 1 ], sy ) );
+		hi = Math.min( hi, upper( start[ 1 ], step[ 1 ], sy ) );
+		lo = Math.max( lo, lower( start[ 2 ], step[ 2 ], sz ) );
+		hi = Math.min( hi, upper( start[ 2 ], step[ 2 ], sz ) );
+
+		if ( Double.isNaN( lo ) || Double.isNaN( hi ) || lo >= hi + 1 )
+		{
+			minX = maxX = 0;
+			return false;
+		}
+
+		minX = (int)Math.max( 0, Math.floor( lo ) );
+		maxX = (int)Math.min( width, Math.ceil( hi ) + 1 );
+
+		// the analytical solution can be off by one due to rounding, make it
+		// consistent with the per-pixel test that was used before
+		while ( minX < maxX && !inside( minX ) )
+			++minX;
+
+		while ( maxX > minX && !inside( maxX - 1 ) )
+			--maxX;
+
+		return minX < maxX;
+	}
+
+	/**
+	 * @return - the first x coordinate of the current line (relative to the start of the line) that is inside the view
+	 */
+	public int getMinX() { return minX; }
+
+	/**
+	 * @return - the first x coordinate after the part of the current line that is inside the view
+	 */
+	public int getMaxX() { return maxX; }
+
+	/**
+	 * Computes the position in the input view for a certain x coordinate of the current line
+	 *
+	 * @param x - the x coordinate relative to the start of the line
+	 * @param t - the position in the input view
+	 */
+	public final void localize( final int x, final float[] t )
+	{
+		t[ 0 ] = (float)( start[ 0 ] + x * step[ 0 ] );
+		t[ 1 ] = (float)( start[ 1 ] + x * step[ 1 ] );
+		t[ 2 ] = (float)( start[ 2 ] + x * step[ 2 ] );
+	}
+
+	protected boolean inside( final int x )
+	{
+		final float x0 = (float)( start[ 0 ] + x * step[ 0 ] );
+		final float x1 = (float)( start[ 1 ] + x * step[ 1 ] );
+		final float x2 = (float)( start[ 2 ] + x * step[ 2 ] );
+
+		return FusionHelper.intersects( x0, x1, x2, sx, sy, sz );
+	}
+
+	/**
+	 * @return - the smallest x for which start + x * step &gt;= 0, NaN if there is none
+	 */
+	final private static double lower( final double start, final double step, final int size )
+	{
+		if ( step > 0 )
+			return -start / step;
+		else if ( step < 0 )
+			return ( size - start ) / step;
+		else if ( start >= 0 && start < size )
+			return Double.NEGATIVE_INFINITY;
+		else
+			return Double.NaN;
+	}
+
+	/**
+	 * @return - the largest x for which start + x * step &lt; size, NaN if there is none
+	 */
+	final private static double upper( final double start, final double step, final int size )
+	{
+		if ( step > 0 )
+			return ( size - start ) / step;
+		else if ( step < 0 )
+			return -start / step;
+		else if ( start >= 0 && start < size )
+			return Double.POSITIVE_INFINITY;
+		else
+			return Double.NaN;
+	}
+}
@@ -0,0 +1,282 @@
+package spim.process.fusion;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.AbstractInterval;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A bounded cache of blocks of the input views, keyed by (ViewId, mipmap level, block index). Blocks are
+ * copied from a lazily loading source image (e.g. the cells of an HDF5 file) when the fusion first reads
+ * them and the least recently used blocks are evicted, so only the parts of the views that intersect the
+ * output region which is currently fused have to be held in memory.
+ *
+ * @param <T>
+ */
+public class ViewBlockCache< T extends RealType< T > & NativeType< T > >
+{
+	final int[] blockSize;
+	final int maxCachedBlocks;
+	final LinkedHashMap< BlockKey, Img< T > > cache;
+
+	long numLoaded = 0;
+
+	/**
+	 * @param blockSize - the size of the blocks of the input views
+	 * @param maxCachedBlocks - how many blocks are held in memory at most (for all views together)
+	 */
+	public ViewBlockCache( final int[] blockSize, final int maxCachedBlocks )
+	{
+		this.blockSize = blockSize;
+		this.maxCachedBlocks = Math.max( 1, maxCachedBlocks );
+
+		this.cache = new LinkedHashMap< BlockKey, Img< T > >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< BlockKey, Img< T > > eldest )
+			{
+				return size() > ViewBlockCache.this.maxCachedBlocks;
+			}
+		};
+	}
+
+	/**
+	 * @param blockSize - the size of the blocks
+	 * @param cacheSizeMB - the memory the cache may use
+	 * @param bytesPerPixel - the size of one pixel of the blocks
+	 * @return - how many blocks fit into the given amount of memory
+	 */
+	public static int maxBlocks( final int[] blockSize, final long cacheSizeMB, final int bytesPerPixel )
+	{
+		long blockBytes = bytesPerPixel;
+
+		for ( final int s : blockSize )
+			blockBytes *= s;
+
+		return (int)Math.max( 1, Math.min( Integer.MAX_VALUE, ( cacheSizeMB * 1024 * 1024 ) / blockBytes ) );
+	}
+
+	public int[] getBlockSize() { return blockSize; }
+	public int getMaxCachedBlocks() { return maxCachedBlocks; }
+
+	/**
+	 * @return - how many blocks had to be copied from their source so far
+	 */
+	public synchronized long getNumLoadedBlocks() { return numLoaded; }
+
+	/**
+	 * Removes all blocks of all views from the cache
+	 */
+	public synchronized void clear() { cache.clear(); }
+
+	/**
+	 * @param viewId - the view
+	 * @param level - the mipmap level of the source
+	 * @param source - the lazily loaded image of the view at this mipmap level
+	 * @param type - the type of the cached blocks
+	 * @return - an image of the size of the source that reads all its pixels through this cache
+	 */
+	public RandomAccessibleInterval< T > getCachedView( final ViewId viewId, final int level, final RandomAccessibleInterval< T > source, final T type )
+	{
+		return new CachedView( viewId, level, source, type );
+	}
+
+	protected Img< T > getBlock( final CachedView view, final long[] blockPos )
+	{
+		long index = blockPos[ view.n - 1 ];
+
+		for ( int d = view.n - 2; d >= 0; --d )
+			index = index * view.numBlocks[ d ] + blockPos[ d ];
+
+		final BlockKey key = new BlockKey( view.viewId, view.level, index );
+
+		synchronized ( this )
+		{
+			final Img< T > block = cache.get( key );
+
+			if ( block != null )
+				return block;
+		}
+
+		// copy outside of the lock so that several threads can read from the source at the same time,
+		// if two threads request the same block at once it is copied twice, which does no harm
+		final long[] min = new long[ view.n ];
+		final long[] dim = new long[ view.n ];
+
+		for ( int d = 0; d < view.n; ++d )
+		{
+			min[ d ] = view.source.min( d ) + blockPos[ d ] * blockSize[ d ];
+			dim[ d ] = Math.min( blockSize[ d ], view.source.max( d ) + 1 - min[ d ] );
+		}
+
+		final Img< T > block = new ArrayImgFactory< T >().create( dim, view.type );
+		final Cursor< T > cursor = block.localizingCursor();
+		final RandomAccess< T > ra = view.source.randomAccess();
+		final long[] pos = new long[ view.n ];
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( pos );
+
+			for ( int d = 0; d < view.n; ++d )
+				pos[ d ] += min[ d ];
+
+			ra.setPosition( pos );
+			cursor.get().set( ra.get() );
+		}
+
+		synchronized ( this )
+		{
+			cache.put( key, block );
+			++numLoaded;
+		}
+
+		return block;
+	}
+
+	/**
+	 * Identifies one block of one view at one mipmap level
+	 */
+	public static class BlockKey
+	{
+		final int timepoint, setup, level;
+		final long index;
+
+		public BlockKey( final ViewId viewId, final int level, final long index )
+		{
+			this.timepoint = viewId.getTimePointId();
+			this.setup = viewId.getViewSetupId();
+			this.level = level;
+			this.index = index;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int hash = 31 * timepoint + setup;
+			hash = 31 * hash + level;
+			hash = 31 * hash + (int)( index ^ ( index >>> 32 ) );
+
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof BlockKey ) )
+				return false;
+
+			final BlockKey k = (BlockKey)o;
+
+			return k.timepoint == timepoint && k.setup == setup && k.level == level && k.index == index;
+		}
+	}
+
+	/**
+	 * One view that is read block-wise through the cache
+	 */
+	public class CachedView extends AbstractInterval implements RandomAccessibleInterval< T >
+	{
+		final ViewId viewId;
+		final int level;
+		final RandomAccessibleInterval< T > source;
+		final T type;
+		final long[] numBlocks;
+
+		public CachedView( final ViewId viewId, final int level, final RandomAccessibleInterval< T > source, final T type )
+		{
+			super( source );
+
+			this.viewId = viewId;
+			this.level = level;
+			this.source = source;
+			this.type = type;
+			this.numBlocks = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				this.numBlocks[ d ] = ( source.dimension( d ) + blockSize[ d ] - 1 ) / blockSize[ d ];
+		}
+
+		@Override
+		public RandomAccess< T > randomAccess() { return new CachedViewRandomAccess(); }
+
+		@Override
+		public RandomAccess< T > randomAccess( final Interval interval ) { return randomAccess(); }
+
+		/**
+		 * Reads from the block that contains the current position, fetches a new block from
+		 * the cache only when the position leaves the current block
+		 */
+		public class CachedViewRandomAccess extends Point implements RandomAccess< T >
+		{
+			final long[] blockPos, blockMin, blockMax;
+			RandomAccess< T > blockAccess = null;
+
+			public CachedViewRandomAccess()
+			{
+				super( CachedView.this.numDimensions() );
+
+				this.blockPos = new long[ n ];
+				this.blockMin = new long[ n ];
+				this.blockMax = new long[ n ];
+			}
+
+			@Override
+			public T get()
+			{
+				if ( blockAccess == null || !insideBlock() )
+					updateBlock();
+
+				for ( int d = 0; d < n; ++d )
+					blockAccess.setPosition( position[ d ] - blockMin[ d ], d );
+
+				return blockAccess.get();
+			}
+
+			protected boolean insideBlock()
+			{
+				for ( int d = 0; d < n; ++d )
+					if ( position[ d ] < blockMin[ d ] || position[ d ] > blockMax[ d ] )
+						return false;
+
+				return true;
+			}
+
+			protected void updateBlock()
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					blockPos[ d ] = ( position[ d ] - min( d ) ) / blockSize[ d ];
+					blockMin[ d ] = min( d ) + blockPos[ d ] * blockSize[ d ];
+					blockMax[ d ] = Math.min( blockMin[ d ] + blockSize[ d ] - 1, max( d ) );
+				}
+
+				blockAccess = getBlock( CachedView.this, blockPos ).randomAccess();
+			}
+
+			@Override
+			public CachedViewRandomAccess copy() { return copyRandomAccess(); }
+
+			@Override
+			public CachedViewRandomAccess copyRandomAccess()
+			{
+				final CachedViewRandomAccess r = new CachedViewRandomAccess();
+				r.setPosition( this );
+				return r;
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package spim.process.fusion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.Dimensions;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Computes once where each view lies in the global coordinate system (the bounding box of the transformed
+ * view) and answers which views intersect a certain part of the fused image. This way every block or portion
+ * of the fusion only iterates over the views that actually contribute to it, usually just a few of them.
+ */
+public class ViewOverlap
+{
+	final int numViews;
+	final double[][] viewMin, viewMax;
+
+	final Interval bb;
+	final int downSampling;
+
+	/**
+	 * @param transforms - the transformations of the views into the global coordinate system
+	 * @param sizes - the sizes of the views
+	 * @param bb - the bounding box in global coordinates
+	 * @param downSampling - the downsampling of the fused image
+	 */
+	public ViewOverlap(
+			final AffineTransform3D[] transforms,
+			final List< ? extends Dimensions > sizes,
+			final Interval bb,
+			final int downSampling )
+	{
+		this.numViews = transforms.length;
+		this.viewMin = new double[ numViews ][ 3 ];
+		this.viewMax = new double[ numViews ][ 3 ];
+		this.bb = bb;
+		this.downSampling = downSampling;
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			final Dimensions size = sizes.get( i );
+
+			// the fusion samples a view at [0, size) in each dimension
+			final FinalRealInterval interval = transforms[ i ].estimateBounds(
+					new FinalRealInterval(
+							new double[]{ 0, 0, 0 },
+							new double[]{ size.dimension( 0 ), size.dimension( 1 ), size.dimension( 2 ) } ) );
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				viewMin[ i ][ d ] = interval.realMin( d );
+				viewMax[ i ][ d ] = interval.realMax( d );
+			}
+		}
+	}
+
+	/**
+	 * @param min - the min of the part of the fused image (in pixel coordinates of the fused image)
+	 * @param max - the max of the part of the fused image (in pixel coordinates of the fused image)
+	 * @return - the indices of all views whose transformed bounding box intersects this part
+	 */
+	public int[] overlappingViews( final long[] min, final long[] max )
+	{
+		final ArrayList< Integer > views = new ArrayList< Integer >();
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			boolean intersects = true;
+
+			for ( int d = 0; d < 3 && intersects; ++d )
+			{
+				final double gMin = min[ d ] * downSampling + bb.min( d );
+				final double gMax = max[ d ] * downSampling + bb.min( d );
+
+				if ( gMax < viewMin[ i ][ d ] || gMin > viewMax[ i ][ d ] )
+					intersects = false;
+			}
+
+			if ( intersects )
+				views.add( i );
+		}
+
+		final int[] result = new int[ views.size() ];
+
+		for ( int j = 0; j < result.length; ++j )
+			result[ j ] = views.get( j );
+
+		return result;
+	}
+
+	/**
+	 * @param interval - the part of the fused image (in pixel coordinates of the fused image)
+	 * @return - the indices of all views whose transformed bounding box intersects this part
+	 */
+	public int[] overlappingViews( final Interval interval )
+	{
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		interval.min( min );
+		interval.max( max );
+
+		return overlappingViews( min, max );
+	}
+
+	/**
+	 * @param portion - a portion of the lines of the fused image (as used by the fusion tasks)
+	 * @param fusedInterval - the part of the fused image whose lines the portion refers to
+	 * @return - the indices of all views whose transformed bounding box intersects the lines of this portion
+	 */
+	public int[] overlappingViews( final ImagePortion portion, final Interval fusedInterval )
+	{
+		final long height = fusedInterval.dimension( 1 );
+		final long firstLine = portion.getStartPosition();
+		final long lastLine = portion.getStartPosition() + portion.getLoopSize() - 1;
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		min[ 0 ] = fusedInterval.min( 0 );
+		max[ 0 ] = fusedInterval.max( 0 );
+
+		min[ 2 ] = fusedInterval.min( 2 ) + firstLine / height;
+		max[ 2 ] = fusedInterval.min( 2 ) + lastLine / height;
+
+		// only if all lines are in the same plane the range in y is smaller than the whole image
+		if ( min[ 2 ] == max[ 2 ] )
+		{
+			min[ 1 ] = fusedInterval.min( 1 ) + firstLine % height;
+			max[ 1 ] = fusedInterval.min( 1 ) + lastLine % height;
+		}
+		else
+		{
+			min[ 1 ] = fusedInterval.min( 1 );
+			max[ 1 ] = fusedInterval.max( 1 );
+		}
+
+		return overlappingViews( min, max );
+	}
+
+	/**
+	 * @param list - a list with one entry per view
+	 * @param views - the indices of the views to keep
+	 * @return - a new list that only contains the entries of the given views
+	 */
+	public static < E > ArrayList< E > subset( final List< E > list, final int[] views )
+	{
+		final ArrayList< E > subset = new ArrayList< E >( views.length );
+
+		for ( final int i : views )
+			subset.add( list.get( i ) );
+
+		return subset;
+	}
+
+	/**
+	 * @param transforms - the transformations of all views
+	 * @param views - the indices of the views to keep
+	 * @return - the transformations of the given views
+	 */
+	public static AffineTransform3D[] subset( final AffineTransform3D[] transforms, final int[] views )
+	{
+		final AffineTransform3D[] subset = new AffineTransform3D[ views.length ];
+
+		for ( int j = 0; j < views.length; ++j )
+			subset[ j ] = transforms[ views[ j ] ];
+
+		return subset;
+	}
+}
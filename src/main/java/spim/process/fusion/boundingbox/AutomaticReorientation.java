@@ -4,8 +4,10 @@ import ij.gui.GenericDialog;
 
 import java.awt.Font;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
 import javax.media.j3d.Transform3D;
 import javax.vecmath.AxisAngle4d;
@@ -52,6 +54,9 @@ public class AutomaticReorientation extends BoundingBoxGUI
 	public static int defaultDetections = 1;
 	public static double defaultPercent = 10;
 
+	// if larger than 0, only a random subset of this many detections is used to find the bounding box
+	public static int maxDetections = 0;
+
 	int reorientate;
 	List< ViewId > viewIdsToApply;
 	
@@ -306,17 +311,22 @@ public class AutomaticReorientation extends BoundingBoxGUI
 	 */
 	protected Pair< AffineTransform3D, double[] > determineOptimalBoundingBox( final ArrayList< ChannelProcess > channelsToUse, final int detections )
 	{
-		final List< double[] > points = getAllDetectionsInGlobalCoordinates( channelsToUse, detections );
+		final List< double[] > allPoints = getAllDetectionsInGlobalCoordinates( channelsToUse, detections );
 
-		if ( points.size() < 1 )
+		if ( allPoints.size() < 1 )
 		{
 			IOFunctions.println( "At least one point is required. Stopping" );
 			return null;
 		}
 
+		// the most distant points and the extent along any axis are defined by the vertices of the convex hull
+		final List< double[] > points = ConvexHull3D.hullVertices( subsample( allPoints, maxDetections ) );
+
+		IOFunctions.println( "Using " + points.size() + " vertices of the convex hull of " + allPoints.size() + " detections." );
+
 		// identify most distant points
 		double[] p1 = points.get( 0 );
-		double[] p2 = points.get( 1 );
+		double[] p2 = points.get( Math.min( 1, points.size() - 1 ) );
 		double maxDist = squareDistance( p1[ 0 ], p1[ 1 ], p1[ 2 ], p2[ 0 ], p2[ 1 ], p2[ 2 ] );
 
 		for ( int i = 0; i < points.size() - 1; ++i )
@@ -404,6 +414,22 @@ public class AutomaticReorientation extends BoundingBoxGUI
 
 	
 
+	/**
+	 * @param points - all points
+	 * @param maxPoints - the maximal number of points, 0 means all
+	 * @return - all points or a random subset (always the same for the same input)
+	 */
+	protected static List< double[] > subsample( final List< double[] > points, final int maxPoints )
+	{
+		if ( maxPoints <= 0 || points.size() <= maxPoints )
+			return points;
+
+		final ArrayList< double[] > shuffled = new ArrayList< double[] >( points );
+		Collections.shuffle( shuffled, new Random( 3535 ) );
+
+		return shuffled.subList( 0, maxPoints );
+	}
+
 	/**
 	 * Test one major axis for the minimal bounding box volume required
 	 * 
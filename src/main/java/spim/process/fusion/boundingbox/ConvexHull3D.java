@@ -0,0 +1,341 @@
+package spim.process.fusion.boundingbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Computes the vertices of the 3d convex hull of a set of points (Quickhull). The extreme points of the set along
+ * any direction are vertices of the hull, so the diameter and the bounding box along any axis can be computed
+ * from the hull vertices only.
+ *
+ * If the points are degenerate (less than four points, all points on a line or a plane) or the hull could not
+ * be computed due to numerical problems, all points are returned.
+ */
+public class ConvexHull3D
+{
+	protected static class Face
+	{
+		final int[] v;
+		final double nx, ny, nz, offset;
+		final ArrayList< Integer > outside = new ArrayList< Integer >();
+		boolean visible = false, deleted = false;
+
+		public Face( final int a, final int b, final int c, final double[][] p )
+		{
+			this.v = new int[]{ a, b, c };
+
+			final double ux = p[ b ][ 0 ] - p[ a ][ 0 ], uy = p[ b ][ 1 ] - p[ a ][ 1 ], uz = p[ b ][ 2 ] - p[ a ][ 2 ];
+			final double wx = p[ c ][ 0 ] - p[ a ][ 0 ], wy = p[ c ][ 1 ] - p[ a ][ 1 ], wz = p[ c ][ 2 ] - p[ a ][ 2 ];
+
+			double x = uy * wz - uz * wy;
+			double y = uz * wx - ux * wz;
+			double z = ux * wy - uy * wx;
+
+			final double len = Math.sqrt( x * x + y * y + z * z );
+
+			if ( len > 0 )
+			{
+				x /= len;
+				y /= len;
+				z /= len;
+			}
+
+			this.nx = x;
+			this.ny = y;
+			this.nz = z;
+			this.offset = x * p[ a ][ 0 ] + y * p[ a ][ 1 ] + z * p[ a ][ 2 ];
+		}
+
+		public double distance( final double[] q ) { return nx * q[ 0 ] + ny * q[ 1 ] + nz * q[ 2 ] - offset; }
+	}
+
+	/**
+	 * @param points - the 3d points
+	 * @return - the vertices of the convex hull (the same instances as in the input list)
+	 */
+	public static List< double[] > hullVertices( final List< double[] > points )
+	{
+		final int n = points.size();
+
+		if ( n < 4 )
+			return points;
+
+		final double[][] p = points.toArray( new double[ n ][] );
+
+		final List< Integer > hull = computeHull( p );
+
+		if ( hull == null )
+			return points;
+
+		final ArrayList< double[] > vertices = new ArrayList< double[] >( hull.size() );
+
+		for ( final int i : hull )
+			vertices.add( p[ i ] );
+
+		return vertices;
+	}
+
+	/**
+	 * @param p - the 3d points
+	 * @return - the indices of the hull vertices or null if the points are degenerate or the computation failed
+	 */
+	protected static List< Integer > computeHull( final double[][] p )
+	{
+		final int n = p.length;
+
+		// tolerance relative to the magnitude of the coordinates
+		double maxAbs = 0;
+
+		for ( final double[] q : p )
+			maxAbs = Math.max( maxAbs, Math.abs( q[ 0 ] ) + Math.abs( q[ 1 ] ) + Math.abs( q[ 2 ] ) );
+
+		final double eps = 3 * 2.220446049250313E-16 * Math.max( maxAbs, 1 ) * 4;
+
+		//
+		// initial tetrahedron
+		//
+		final int[] extremes = new int[ 6 ];
+
+		for ( int i = 0; i < n; ++i )
+			for ( int d = 0; d < 3; ++d )
+			{
+				if ( p[ i ][ d ] < p[ extremes[ d * 2 ] ][ d ] )
+					extremes[ d * 2 ] = i;
+
+				if ( p[ i ][ d ] > p[ extremes[ d * 2 + 1 ] ][ d ] )
+					extremes[ d * 2 + 1 ] = i;
+			}
+
+		// the two extremes that are most distant
+		int i0 = 0, i1 = 0;
+		double maxDist = -1;
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double dist = p[ extremes[ d * 2 + 1 ] ][ d ] - p[ extremes[ d * 2 ] ][ d ];
+
+			if ( dist > maxDist )
+			{
+				maxDist = dist;
+				i0 = extremes[ d * 2 ];
+				i1 = extremes[ d * 2 + 1 ];
+			}
+		}
+
+		if ( maxDist <= eps )
+			return null;
+
+		// the point most distant from the line i0-i1
+		final double[] u = new double[]{ p[ i1 ][ 0 ] - p[ i0 ][ 0 ], p[ i1 ][ 1 ] - p[ i0 ][ 1 ], p[ i1 ][ 2 ] - p[ i0 ][ 2 ] };
+		int i2 = -1;
+		maxDist = eps;
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final double wx = p[ i ][ 0 ] - p[ i0 ][ 0 ], wy = p[ i ][ 1 ] - p[ i0 ][ 1 ], wz = p[ i ][ 2 ] - p[ i0 ][ 2 ];
+			final double cx = u[ 1 ] * wz - u[ 2 ] * wy;
+			final double cy = u[ 2 ] * wx - u[ 0 ] * wz;
+			final double cz = u[ 0 ] * wy - u[ 1 ] * wx;
+			final double dist = Math.sqrt( cx * cx + cy * cy + cz * cz );
+
+			if ( dist > maxDist )
+			{
+				maxDist = dist;
+				i2 = i;
+			}
+		}
+
+		if ( i2 < 0 )
+			return null;
+
+		// the point most distant from the plane i0-i1-i2
+		final Face base = new Face( i0, i1, i2, p );
+		int i3 = -1;
+		maxDist = eps;
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final double dist = Math.abs( base.distance( p[ i ] ) );
+
+			if ( dist > maxDist )
+			{
+				maxDist = dist;
+				i3 = i;
+			}
+		}
+
+		if ( i3 < 0 )
+			return null;
+
+		// faces of the tetrahedron, oriented so that the normals point outwards
+		final ArrayList< Face > faces = new ArrayList< Face >();
+
+		if ( base.distance( p[ i3 ] ) < 0 )
+		{
+			faces.add( new Face( i0, i1, i2, p ) );
+			faces.add( new Face( i0, i3, i1, p ) );
+			faces.add( new Face( i1, i3, i2, p ) );
+			faces.add( new Face( i2, i3, i0, p ) );
+		}
+		else
+		{
+			faces.add( new Face( i0, i2, i1, p ) );
+			faces.add( new Face( i0, i1, i3, p ) );
+			faces.add( new Face( i1, i2, i3, p ) );
+			faces.add( new Face( i2, i0, i3, p ) );
+		}
+
+		// maps each directed edge to the face that contains it
+		final HashMap< Long, Face > edges = new HashMap< Long, Face >();
+
+		for ( final Face f : faces )
+			addEdges( f, edges );
+
+		// assign all points to the first face they are outside of
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( i == i0 || i == i1 || i == i2 || i == i3 )
+				continue;
+
+			for ( final Face f : faces )
+				if ( f.distance( p[ i ] ) > eps )
+				{
+					f.outside.add( i );
+					break;
+				}
+		}
+
+		final ArrayList< Face > stack = new ArrayList< Face >();
+
+		for ( final Face f : faces )
+			if ( f.outside.size() > 0 )
+				stack.add( f );
+
+		//
+		// add the most distant outside point of a face until no face has points outside
+		//
+		while ( stack.size() > 0 )
+		{
+			final Face face = stack.remove( stack.size() - 1 );
+
+			if ( face.deleted || face.outside.size() == 0 )
+				continue;
+
+			int eye = -1;
+			double maxEyeDist = -1;
+
+			for ( final int i : face.outside )
+			{
+				final double dist = face.distance( p[ i ] );
+
+				if ( dist > maxEyeDist )
+				{
+					maxEyeDist = dist;
+					eye = i;
+				}
+			}
+
+			// all faces visible from the eye point (connected to this face) and the horizon edges
+			final ArrayList< Face > visible = new ArrayList< Face >();
+			final ArrayList< int[] > horizon = new ArrayList< int[] >();
+			final ArrayList< Face > queue = new ArrayList< Face >();
+
+			face.visible = true;
+			queue.add( face );
+
+			while ( queue.size() > 0 )
+			{
+				final Face f = queue.remove( queue.size() - 1 );
+				visible.add( f );
+
+				for ( int e = 0; e < 3; ++e )
+				{
+					final int a = f.v[ e ];
+					final int b = f.v[ ( e + 1 ) % 3 ];
+
+					final Face neighbor = edges.get( key( b, a ) );
+
+					if ( neighbor == null )
+						return null;
+
+					if ( neighbor.visible )
+						continue;
+
+					if ( neighbor.distance( p[ eye ] ) > eps )
+					{
+						neighbor.visible = true;
+						queue.add( neighbor );
+					}
+					else
+					{
+						horizon.add( new int[]{ a, b } );
+					}
+				}
+			}
+
+			// remove the visible faces
+			final ArrayList< Integer > orphans = new ArrayList< Integer >();
+
+			for ( final Face f : visible )
+			{
+				f.deleted = true;
+
+				for ( int e = 0; e < 3; ++e )
+					edges.remove( key( f.v[ e ], f.v[ ( e + 1 ) % 3 ] ) );
+
+				for ( final int i : f.outside )
+					if ( i != eye )
+						orphans.add( i );
+
+				f.outside.clear();
+			}
+
+			// connect the horizon to the eye point
+			final ArrayList< Face > newFaces = new ArrayList< Face >();
+
+			for ( final int[] edge : horizon )
+			{
+				final Face f = new Face( edge[ 0 ], edge[ 1 ], eye, p );
+
+				if ( edges.containsKey( key( edge[ 0 ], edge[ 1 ] ) ) || edges.containsKey( key( edge[ 1 ], eye ) ) || edges.containsKey( key( eye, edge[ 0 ] ) ) )
+					return null;
+
+				addEdges( f, edges );
+				newFaces.add( f );
+				faces.add( f );
+			}
+
+			// assign the points of the removed faces to the new faces, points inside the hull are dropped
+			for ( final int i : orphans )
+				for ( final Face f : newFaces )
+					if ( f.distance( p[ i ] ) > eps )
+					{
+						f.outside.add( i );
+						break;
+					}
+
+			for ( final Face f : newFaces )
+				if ( f.outside.size() > 0 )
+					stack.add( f );
+		}
+
+		final LinkedHashSet< Integer > vertices = new LinkedHashSet< Integer >();
+
+		for ( final Face f : faces )
+			if ( !f.deleted )
+				for ( final int v : f.v )
+					vertices.add( v );
+
+		return new ArrayList< Integer >( vertices );
+	}
+
+	protected static void addEdges( final Face f, final HashMap< Long, Face > edges )
+	{
+		for ( int e = 0; e < 3; ++e )
+			edges.put( key( f.v[ e ], f.v[ ( e + 1 ) % 3 ] ), f );
+	}
+
+	protected static long key( final int a, final int b ) { return ( (long)a << 32 ) | ( b & 0xffffffffL ); }
+}
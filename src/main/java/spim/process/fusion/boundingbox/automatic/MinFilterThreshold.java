@@ -95,7 +95,7 @@ public class MinFilterThreshold
 
 		IOFunctions.println( "Computing minimum filter with effective radius of " + effR + " (downsampling=" + bb.getDownSampling() + ")" );
 
-		img = computeLazyMinFilter( img, effR );
+		img = computeMinFilter( img, effR );
 
 		if ( displaySegmentationImage )
 			ImageJFunctions.show( img );
@@ -212,6 +212,138 @@ public class MinFilterThreshold
 		return true;
 	}
 	
+	/**
+	 * Separable minimum filter using the van Herk/Gil-Werman algorithm, i.e. a constant number of comparisons
+	 * per pixel and dimension independent of the radius. Each line is copied into a buffer, filtered and written
+	 * back, so the filter is computed in-place. Outside of the image the values are zero, like in
+	 * {@link #computeLazyMinFilter(Img, int)}.
+	 * 
+	 * @param img - input image (overwritten with the result)
+	 * @param radius - the integer radius of the min filter
+	 * @return - the input image or null if the computation failed
+	 */
+	final public static < T extends RealType< T > > Img< T > computeMinFilter( final Img< T > img, final int radius )
+	{
+		final int n = img.numDimensions();
+
+		// set up executor service
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+
+		for ( int dim = 0; dim < n; ++dim )
+		{
+			final int d = dim;
+			final int size = (int)img.dimension( d );
+			final long numLines = img.size() / size;
+
+			// split up into many parts for multithreading
+			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( numLines, Threads.numThreads() * 2 );
+			final ArrayList< Callable< String > > tasks = new ArrayList< Callable< String > >();
+
+			for ( final ImagePortion portion : portions )
+			{
+				tasks.add( new Callable< String >()
+						{
+							@Override
+							public String call() throws Exception
+							{
+								final RandomAccess< T > r = img.randomAccess();
+								final long[] tmp = new long[ n ];
+
+								final int extent = radius * 2 + 1;
+								final float[] line = new float[ size + radius * 2 ];
+								final float[] g = new float[ line.length ];
+								final float[] h = new float[ line.length ];
+								final float[] result = new float[ size ];
+
+								for ( long j = 0; j < portion.getLoopSize(); ++j )
+								{
+									// position of the first pixel of the line
+									long index = portion.getStartPosition() + j;
+
+									for ( int e = 0; e < n; ++e )
+									{
+										if ( e == d )
+										{
+											tmp[ e ] = 0;
+										}
+										else
+										{
+											tmp[ e ] = index % img.dimension( e );
+											index /= img.dimension( e );
+										}
+									}
+
+									// copy the line, the border is zero
+									r.setPosition( tmp );
+
+									for ( int i = 0; i < size; ++i )
+									{
+										line[ i + radius ] = r.get().getRealFloat();
+										r.fwd( d );
+									}
+
+									vanHerkGilWerman( line, g, h, extent, result );
+
+									r.setPosition( tmp );
+
+									for ( int i = 0; i < size; ++i )
+									{
+										r.get().setReal( result[ i ] );
+										r.fwd( d );
+									}
+								}
+
+								return "";
+							}
+						});
+			}
+
+			try
+			{
+				// invokeAll() returns when all tasks are complete
+				final List< Future< String > > futures = taskExecutor.invokeAll( tasks );
+
+				for ( final Future< String > future : futures )
+					future.get();
+			}
+			catch ( final Exception e )
+			{
+				IOFunctions.println( "Failed to compute min filter: " + e );
+				e.printStackTrace();
+				taskExecutor.shutdown();
+				return null;
+			}
+		}
+
+		taskExecutor.shutdown();
+
+		return img;
+	}
+
+	/**
+	 * Minimum of all windows of a certain extent in a line, the line is split into blocks of the size of the window
+	 * and each window is covered by the suffix minimum (h) of one block and the prefix minimum (g) of the next block.
+	 * 
+	 * @param line - the input (padded by extent-1 pixels)
+	 * @param g - temporary array of the size of the line
+	 * @param h - temporary array of the size of the line
+	 * @param extent - the size of the window
+	 * @param result - the minimum of each window starting at positions 0 ... line.length - extent
+	 */
+	final public static void vanHerkGilWerman( final float[] line, final float[] g, final float[] h, final int extent, final float[] result )
+	{
+		final int length = line.length;
+
+		for ( int i = 0; i < length; ++i )
+			g[ i ] = ( i % extent == 0 ) ? line[ i ] : Math.min( g[ i - 1 ], line[ i ] );
+
+		for ( int i = length - 1; i >= 0; --i )
+			h[ i ] = ( i == length - 1 || ( i + 1 ) % extent == 0 ) ? line[ i ] : Math.min( h[ i + 1 ], line[ i ] );
+
+		for ( int i = 0; i < result.length; ++i )
+			result[ i ] = Math.min( h[ i ], g[ i + extent - 1 ] );
+	}
+
 	/**
 	 * By lazy I mean I was lazy to use a second image, one could of course implement it
 	 * on a n-d line by line basis @TODO
@@ -316,6 +448,7 @@ public class MinFilterThreshold
 		Img< FloatType > img = ImageJFunctions.convertFloat( imp );
 
 		ImageJFunctions.show( img.copy() );
-		ImageJFunctions.show( computeLazyMinFilter( img, 5 ) );
+		ImageJFunctions.show( computeLazyMinFilter( img.copy(), 5 ) );
+		ImageJFunctions.show( computeMinFilter( img, 5 ) );
 	}
 }
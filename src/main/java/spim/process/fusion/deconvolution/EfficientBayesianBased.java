@@ -4,9 +4,11 @@ import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.gui.GenericDialog;
 
+import java.awt.Checkbox;
 import java.awt.Choice;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -22,9 +24,14 @@ import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.postprocessing.deconvolution2.BayesMVDeconvolution;
+import mpicbg.spim.postprocessing.deconvolution2.BayesMVDeconvolutionOutOfCore;
+import mpicbg.spim.postprocessing.deconvolution2.DeconvolutionCheckpoint;
+import mpicbg.spim.postprocessing.deconvolution2.Deconvolver;
+import mpicbg.spim.postprocessing.deconvolution2.DiskFloatImage;
 import mpicbg.spim.postprocessing.deconvolution2.LRFFT;
 import mpicbg.spim.postprocessing.deconvolution2.LRFFT.PSFTYPE;
 import mpicbg.spim.postprocessing.deconvolution2.LRInput;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.type.numeric.real.FloatType;
 import spim.fiji.ImgLib2Temp.Pair;
@@ -38,6 +45,7 @@ import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
 import spim.process.cuda.CUDADevice;
 import spim.process.cuda.CUDAFourierConvolution;
 import spim.process.cuda.CUDATools;
+import spim.process.cuda.JavaFourierConvolution;
 import spim.process.cuda.NativeLibraryTools;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
@@ -45,12 +53,13 @@ import spim.process.fusion.boundingbox.BoundingBoxGUI.ManageListeners;
 import spim.process.fusion.export.DisplayImage;
 import spim.process.fusion.export.FixedNameImgTitler;
 import spim.process.fusion.export.ImgExport;
+import spim.process.fusion.export.ImgExportRegistrationName;
 import spim.process.fusion.export.ImgExportTitle;
 import spim.process.fusion.weightedavg.WeightedAverageFusion;
 
 public class EfficientBayesianBased extends Fusion
 {
-	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU (Nvidia CUDA via JNA)" };
+	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU (Nvidia CUDA via JNA)", "CPU (Java FFT, several blocks in parallel)" };
 	public static String[] osemspeedupChoice = new String[]{ "1 (balanced)", "minimal number of overlapping views", "average number of overlapping views", "specify manually" };
 	public static String[] extractPSFChoice = new String[]{ "Extract from beads", "Provide file with PSF" };
 	public static String[] blocksChoice = new String[]{ "Entire image at once", "in 64x64x64 blocks", "in 128x128x128 blocks", "in 256x256x256 blocks", "in 512x512x512 blocks", "specify maximal blocksize manually" };
@@ -67,14 +76,20 @@ public class EfficientBayesianBased extends Fusion
 	public static int defaultIterationType = 1;
 	public static int defaultOSEMspeedupIndex = 0;
 	public static int defaultNumIterations = 10;
+	public static double defaultConvergenceThreshold = 0;
+	public static int defaultCheckpointInterval = 0;
+	public static boolean defaultResumeFromCheckpoint = false;
 	public static boolean defaultUseTikhonovRegularization = true;
 	public static double defaultLambda = 0.006;
 	public static int defaultBlockSizeIndex = 0, defaultBlockSizeX = 256, defaultBlockSizeY = 256, defaultBlockSizeZ = 256;
 	public static int defaultComputationTypeIndex = 0;
+	public static boolean defaultOutOfCore = false;
+	public static String defaultOutOfCoreDirectory = null;
 	public static int defaultExtractPSF = 0;
 	public static int defaultDisplayPSF = 1;
 	public static boolean defaultDebugMode = false;
 	public static boolean defaultAdjustBlending = false;
+	public static boolean defaultUseTabulatedBlending = false;
 	public static int defaultDebugInterval = 1;
 	public static double defaultOSEMspeedup = 1;
 	public static boolean defaultSamePSFForAllAnglesIllums = true;
@@ -92,6 +107,9 @@ public class EfficientBayesianBased extends Fusion
 	boolean justShowWeights;
 	int osemspeedupIndex;
 	int numIterations;
+	double convergenceThreshold;
+	int checkpointInterval;
+	boolean resumeFromCheckpoint;
 	boolean useTikhonovRegularization;
 	double lambda;
 	int blockSizeIndex;
@@ -100,10 +118,13 @@ public class EfficientBayesianBased extends Fusion
 	int displayPSF;
 	boolean debugMode;
 	boolean adjustBlending;
+	boolean useTabulatedBlending;
 
 	boolean useBlocks;
 	int[] blockSize;
 	boolean useCUDA;
+	boolean outOfCore;
+	File outOfCoreDirectory;
 	int debugInterval;
 	double osemSpeedUp;
 	boolean extractPSF;
@@ -122,6 +143,7 @@ public class EfficientBayesianBased extends Fusion
 	ArrayList< CUDADevice > deviceList = null;
 
 	Choice gpu, block, it;
+	Checkbox outOfCoreBox;
 
 	public EfficientBayesianBased( final SpimData2 spimData, final List< ViewId > viewIdsToProcess )
 	{
@@ -149,6 +171,13 @@ public class EfficientBayesianBased extends Fusion
 					  bb,
 					  new int[]{blendingBorderX, blendingBorderY, blendingBorderZ},
 					  new int[]{blendingRangeX, blendingRangeY, blendingRangeZ});
+			
+			pfd.setUseTabulatedBlending(useTabulatedBlending);
+			
+			// keep the transformed views on disk
+			if (outOfCore) {
+				pfd.setOutOfCoreDirectory(outOfCoreDirectory);
+			}
 
 			// set debug mode
 			BayesMVDeconvolution.debug = debugMode;
@@ -196,6 +225,29 @@ public class EfficientBayesianBased extends Fusion
 					
 					final LRInput deconvolutionData = new LRInput();
 					
+					// the size of the deconvolved image, the transformed views only cover the part they contribute to
+					final long[] bbDim = bb.getDimensions();
+					final int[] dimensions = new int[bbDim.length];
+					for (int d = 0; d < dimensions.length; ++d) {
+						dimensions[d] = (int)bbDim[d];
+					}
+					
+					// out-of-core, the blocks need space for the halo of both convolutions
+					final int[] viewBlockSize;
+					
+					if (outOfCore) {
+						final int[] maxKernelSize = new int[dimensions.length];
+						for (final ViewDescription vd : pfd.getViewDescriptions()) {
+							final Img<FloatType> psf = pfd.getExtractPSF().getTransformedPSF(vd);
+							for (int d = 0; d < maxKernelSize.length; ++d) {
+								maxKernelSize[d] = Math.max(maxKernelSize[d], (int)psf.dimension(d));
+							}
+						}
+						viewBlockSize = BayesMVDeconvolutionOutOfCore.getBlockSize(blockSize, maxKernelSize);
+					} else {
+						viewBlockSize = blockSize;
+					}
+					
 					for (final ViewDescription vd : pfd.getViewDescriptions()) {
 						// device list for CPU or CUDA processing
 						final int[] devList = new int[deviceList.size()];
@@ -203,28 +255,103 @@ public class EfficientBayesianBased extends Fusion
 							devList[i] = deviceList.get(i).getDeviceId();
 						}
 						
+						if (outOfCore) {
+							deconvolutionData.add(BayesMVDeconvolutionOutOfCore.createView(
+									  pfd.getDiskImgs().get(vd), dimensions,
+									  pfd.getExtractPSF().getTransformedPSF( vd ), devList, viewBlockSize));
+							continue;
+						}
+						
+						final long[] transformedOffset = pfd.getTransformedOffsets().get(vd);
+						final int[] offset = new int[transformedOffset.length];
+						for (int d = 0; d < offset.length; ++d) {
+							offset[d] = (int)transformedOffset[d];
+						}
+						
 						deconvolutionData.add(new LRFFT(
 								  pfd.getTransformedImgs().get(vd),
 								  pfd.getTransformedWeights().get(vd),
+								  offset, dimensions,
 								  pfd.getExtractPSF().getTransformedPSF( vd ), devList, useBlocks, blockSize));
 					}
 					
-					final Img<FloatType> deconvolved;
+					// checkpoints are stored next to the XML, one file per timepoint and channel
+					final String title = "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName(illumsToProcess) + FusionHelper.getAngleName(anglesToProcess);
 					
-					if (useTikhonovRegularization) {
-						deconvolved = LRFFT.wrap(new BayesMVDeconvolution(deconvolutionData, iterationType, numIterations, lambda, osemSpeedUp, osemspeedupIndex, "deconvolved").getPsi());
+					final File checkpointFile;
+					
+					if (checkpointInterval > 0 || resumeFromCheckpoint) {
+						checkpointFile = new File(spimData.getBasePath(), "deconvolution_checkpoint_" + title + ".raw");
 					} else {
-						deconvolved = LRFFT.wrap(new BayesMVDeconvolution(deconvolutionData, iterationType, numIterations, 0, osemSpeedUp, osemspeedupIndex, "deconvolved").getPsi());
+						checkpointFile = null;
+					}
+					
+					BayesMVDeconvolution.convergenceThreshold = convergenceThreshold;
+					
+					final Deconvolver deconvolution;
+					
+					if (outOfCore) {
+						if (checkpointInterval > 0 || resumeFromCheckpoint) {
+							IOFunctions.println("Checkpoints are not supported by the out-of-core deconvolution, ignoring them.");
+						}
+						
+						final ArrayList<DiskFloatImage> diskImgs = new ArrayList<DiskFloatImage>();
+						final ArrayList<DiskFloatImage> diskWeights = new ArrayList<DiskFloatImage>();
+						for (final ViewDescription vd : pfd.getViewDescriptions()) {
+							diskImgs.add(pfd.getDiskImgs().get(vd));
+							diskWeights.add(pfd.getDiskWeights().get(vd));
+						}
+						
+						try {
+							deconvolution = new BayesMVDeconvolutionOutOfCore(deconvolutionData, diskImgs, diskWeights, outOfCoreDirectory, iterationType, numIterations, useTikhonovRegularization ? lambda : 0, osemSpeedUp, osemspeedupIndex, "deconvolved");
+						} finally {
+							pfd.deleteDiskImgs();
+						}
+					} else if (useTikhonovRegularization) {
+						deconvolution = new BayesMVDeconvolution(deconvolutionData, iterationType, numIterations, lambda, osemSpeedUp, osemspeedupIndex, "deconvolved", checkpointFile, checkpointInterval, resumeFromCheckpoint);
+					} else {
+						deconvolution = new BayesMVDeconvolution(deconvolutionData, iterationType, numIterations, 0, osemSpeedUp, osemspeedupIndex, "deconvolved", checkpointFile, checkpointInterval, resumeFromCheckpoint);
+					}
+					
+					final RandomAccessibleInterval<FloatType> deconvolved;
+					
+					// the out-of-core result is streamed from disk, only displaying it needs it in memory
+					if (outOfCore && !(exporter instanceof DisplayImage)) {
+						deconvolved = ((BayesMVDeconvolutionOutOfCore) deconvolution).getPsiOnDisk().stream();
+					} else {
+						deconvolved = LRFFT.wrap(deconvolution.getPsi());
+					}
+					
+					// document the number of iterations in the log and, if supported, the XML
+					final String iterations = deconvolution.getCurrentIteration() + " iterations" + (deconvolution.hasConverged() ? " (converged)" : "");
+					
+					IOFunctions.println("Deconvolved " + title + " with " + iterations + ", relative change of the last iteration: " + deconvolution.getLastRelativeChange());
+					
+					if (exporter instanceof ImgExportRegistrationName) {
+						((ImgExportRegistrationName) exporter).setRegistrationName("fusion bounding box, deconvolved with " + iterations);
 					}
 
 					// export the final image
-					titler.setTitle("TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName(illumsToProcess) + FusionHelper.getAngleName(anglesToProcess));
-					exporter.exportImage(
-							  deconvolved,
-							  bb,
-							  t,
-							  newViewsetups.get(SpimData2.getViewSetup(spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get(0), illumsToProcess.get(0))),
-							  0, 1);
+					titler.setTitle(title);
+					final boolean exported;
+					
+					try {
+						exported = exporter.exportImage(
+								  deconvolved,
+								  bb,
+								  t,
+								  newViewsetups.get(SpimData2.getViewSetup(spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get(0), illumsToProcess.get(0))),
+								  0, 1);
+					} finally {
+						if (outOfCore) {
+							((BayesMVDeconvolutionOutOfCore) deconvolution).delete();
+						}
+					}
+					
+					// the result is saved, a later run must not resume from it
+					if (exported && checkpointFile != null && !outOfCore) {
+						DeconvolutionCheckpoint.delete(checkpointFile);
+					}
 				}
 			}
 			
@@ -232,6 +359,12 @@ public class EfficientBayesianBased extends Fusion
 			IJ.log("Out of Memory");
 			IJ.error("Multi-View Registration", "Out of memory.  Check \"Edit > Options > Memory & Threads\"");
 			return false;
+		} finally {
+			// the Java FFT holds threads and the FFT's of the kernels, every run creates its own
+			if (LRFFT.cuda instanceof JavaFourierConvolution) {
+				((JavaFourierConvolution) LRFFT.cuda).shutdown();
+				LRFFT.cuda = null;
+			}
 		}
 		
 		return true;
@@ -243,6 +376,10 @@ public class EfficientBayesianBased extends Fusion
 		// check blocks
 		if ( !getBlocks() )
 			return false;
+
+		// check out-of-core, might need blocks
+		if ( !getOutOfCore() )
+			return false;
 		
 		// check CUDA
 		if ( !getCUDA() )
@@ -279,6 +416,8 @@ public class EfficientBayesianBased extends Fusion
 	{
 		block.addItemListener( new ItemListener() { @Override
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
+		outOfCoreBox.addItemListener( new ItemListener() { @Override
+		public void itemStateChanged(ItemEvent e) { m.update(); } });
 		gpu.addItemListener( new ItemListener() { @Override
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
 	}
@@ -290,12 +429,18 @@ public class EfficientBayesianBased extends Fusion
 		it = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "OSEM_acceleration", osemspeedupChoice, osemspeedupChoice[ defaultOSEMspeedupIndex ] );
 		gd.addNumericField( "Number_of_iterations", defaultNumIterations, 0 );
+		gd.addNumericField( "Stop_if_relative_change_below (0 = never)", defaultConvergenceThreshold, 5 );
+		gd.addNumericField( "Save_checkpoint_every_n_iterations (0 = never)", defaultCheckpointInterval, 0 );
+		gd.addCheckbox( "Resume_from_checkpoint (if available)", defaultResumeFromCheckpoint );
 		gd.addCheckbox( "Debug_mode", defaultDebugMode );
 		gd.addCheckbox( "Adjust_blending_parameters (if stripes are visible)", defaultAdjustBlending );
+		gd.addCheckbox( "Tabulated_blending_weights (faster, approximate)", defaultUseTabulatedBlending );
 		gd.addCheckbox( "Use_Tikhonov_regularization", defaultUseTikhonovRegularization );
 		gd.addNumericField( "Tikhonov_parameter", defaultLambda, 4 );
 		gd.addChoice( "Compute", blocksChoice, blocksChoice[ defaultBlockSizeIndex ] );
 		block = (Choice)gd.getChoices().lastElement();
+		gd.addCheckbox( "Out_of_core (keep the transformed views and the deconvolved image on disk)", defaultOutOfCore );
+		outOfCoreBox = (Checkbox)gd.getCheckboxes().lastElement();
 		gd.addChoice( "Compute_on", computationOnChoice, computationOnChoice[ defaultComputationTypeIndex ] );
 		gpu = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "PSF_estimation", extractPSFChoice, extractPSFChoice[ defaultExtractPSF ] );
@@ -322,11 +467,16 @@ public class EfficientBayesianBased extends Fusion
 		
 		osemspeedupIndex = defaultOSEMspeedupIndex = gd.getNextChoiceIndex();
 		numIterations = defaultNumIterations = (int)Math.round( gd.getNextNumber() );		
+		convergenceThreshold = defaultConvergenceThreshold = Math.max( 0, gd.getNextNumber() );
+		checkpointInterval = defaultCheckpointInterval = Math.max( 0, (int)Math.round( gd.getNextNumber() ) );
+		resumeFromCheckpoint = defaultResumeFromCheckpoint = gd.getNextBoolean();
 		debugMode = defaultDebugMode = gd.getNextBoolean();
 		adjustBlending = defaultAdjustBlending = gd.getNextBoolean();
+		useTabulatedBlending = defaultUseTabulatedBlending = gd.getNextBoolean();
 		useTikhonovRegularization = defaultUseTikhonovRegularization = gd.getNextBoolean();
 		lambda = defaultLambda = gd.getNextNumber();
 		blockSizeIndex = defaultBlockSizeIndex = gd.getNextChoiceIndex();
+		outOfCore = defaultOutOfCore = gd.getNextBoolean();
 		computationTypeIndex = defaultComputationTypeIndex = gd.getNextChoiceIndex();
 		extractPSFIndex = defaultExtractPSF = gd.getNextChoiceIndex();
 		displayPSF = defaultDisplayPSF = gd.getNextChoiceIndex();
@@ -373,23 +523,35 @@ public class EfficientBayesianBased extends Fusion
 		else
 			blockSize = fusedSizeMB;
 		
-		// transformed weight images + input data
-		long totalRam = fusedSizeMB * getMaxNumViewsPerTimepoint() * 2;
+		// transformed weight images + input data, fused to disk in slabs of at most an eighth of the memory if they are stored on disk
+		long totalRam;
+
+		if ( outOfCoreBox.getState() )
+			totalRam = Math.min( fusedSizeMB * 2, Runtime.getRuntime().maxMemory() / 8 / ( 1024 * 1024 ) );
+		else
+			totalRam = fusedSizeMB * getMaxNumViewsPerTimepoint() * 2;
 		
 		// fft of psf's
 		if ( gpu.getSelectedIndex() == 0 )
 			totalRam += blockSize * getMaxNumViewsPerTimepoint() * 1.5; // cpu
+		else if ( gpu.getSelectedIndex() == 2 )
+			totalRam += blockSize * getMaxNumViewsPerTimepoint() * 2 * 1.5; // cpu, cached for kernel1 and kernel2
 		else
 			totalRam += (40 * 40 * 100 * bytePerPixel)/(1024*1024) * getMaxNumViewsPerTimepoint(); // gpu
 		
 		// memory estimate for computing fft convolutions for images in RAM
 		if ( gpu.getSelectedIndex() == 0 )
 			totalRam += blockSize * 6 * 1.5;
+		else if ( gpu.getSelectedIndex() == 2 )
+			totalRam += blockSize * 2 * 1.5 * JavaFourierConvolution.numDevices(); // one work buffer and block per device
 		else
 			totalRam += blockSize * 2;
 		
-		// the output image
-		totalRam += fusedSizeMB;
+		// the output image, the out-of-core deconvolution streams it from disk in slabs of at most an eighth of the memory
+		if ( outOfCoreBox.getState() )
+			totalRam += Math.min( fusedSizeMB, Runtime.getRuntime().maxMemory() / 8 / ( 1024 * 1024 ) );
+		else
+			totalRam += fusedSizeMB;
 		
 		return totalRam;
 	}
@@ -403,6 +565,7 @@ public class EfficientBayesianBased extends Fusion
 		if ( useBlocks )
 			IOFunctions.println( "Block size: " + Util.printCoordinates( blockSize ) );
 		IOFunctions.println( "Using CUDA: " + useCUDA );
+		IOFunctions.println( "Out-of-core: " + outOfCore + ( outOfCore ? " (in '" + outOfCoreDirectory + "')" : "" ) );
 
 		IOFunctions.println( "Blending border: " + blendingBorderX + "x" + blendingBorderY + "x" + blendingBorderZ );
 		IOFunctions.println( "Blending range: " + blendingRangeX + "x" + blendingRangeY + "x" + blendingRangeZ );
@@ -1011,6 +1174,50 @@ public class EfficientBayesianBased extends Fusion
 		return true;
 	}
 	
+	protected boolean getOutOfCore()
+	{
+		if ( !outOfCore || justShowWeights )
+		{
+			outOfCoreDirectory = null;
+			return true;
+		}
+
+		if ( defaultOutOfCoreDirectory == null )
+			defaultOutOfCoreDirectory = System.getProperty( "java.io.tmpdir" );
+
+		final GenericDialogPlus gd = new GenericDialogPlus( "Out-of-core deconvolution" );
+
+		gd.addDirectoryField( "Temporary_directory", defaultOutOfCoreDirectory, 50 );
+		gd.addMessage( "The transformed views, their weights and two copies of the deconvolved image are stored in this\n" +
+					   "directory during the deconvolution, make sure there is enough space. The deconvolution is computed\n" +
+					   "block by block and the deconvolved image is streamed from disk to the export. Only displaying the\n" +
+					   "result loads the whole deconvolved image into memory.", GUIHelper.mediumstatusfont );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		outOfCoreDirectory = new File( defaultOutOfCoreDirectory = gd.getNextString() );
+
+		if ( !outOfCoreDirectory.isDirectory() )
+		{
+			IOFunctions.println( "Directory '" + outOfCoreDirectory + "' does not exist." );
+			return false;
+		}
+
+		// the blocks are read from disk one by one
+		if ( !useBlocks )
+		{
+			useBlocks = true;
+			blockSize = new int[]{ 256, 256, 256 };
+
+			IOFunctions.println( "The out-of-core deconvolution needs blocks, using " + Util.printCoordinates( blockSize ) + "." );
+		}
+
+		return true;
+	}
+
 	protected boolean getCUDA()
 	{
 		// we need to popluate the deviceList in any case
@@ -1021,6 +1228,24 @@ public class EfficientBayesianBased extends Fusion
 			deviceList.add( new CUDADevice( -1, "CPU", Runtime.getRuntime().maxMemory(), Runtime.getRuntime().freeMemory(), 0, 0 ) );
 			useCUDA = false;
 		}
+		else if ( computationTypeIndex == 2 )
+		{
+			// the Java FFT behaves like several CUDA devices, each of them convolves one block at a time
+			final JavaFourierConvolution javaFFT = new JavaFourierConvolution();
+			LRFFT.cuda = javaFFT;
+
+			final byte[] name = new byte[ 256 ];
+
+			for ( int i = 0; i < javaFFT.getNumDevicesCUDA(); ++i )
+			{
+				javaFFT.getNameDeviceCUDA( i, name );
+				deviceList.add( new CUDADevice( i, new String( name ).trim(), javaFFT.getMemDeviceCUDA( i ), javaFFT.getFreeMemDeviceCUDA( i ), 0, 0 ) );
+			}
+
+			IOFunctions.println( "Using " + deviceList.size() + " Java FFT devices" + ( useBlocks ? "." : " (the image is one block, so only one is busy)." ) );
+
+			useCUDA = true;
+		}
 		else
 		{
 			final ArrayList< String > potentialNames = new ArrayList< String >();
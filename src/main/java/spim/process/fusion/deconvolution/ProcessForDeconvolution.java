@@ -1,6 +1,9 @@
 package spim.process.fusion.deconvolution;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -18,12 +21,20 @@ import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.postprocessing.deconvolution2.DiskFloatImage;
 import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalRealInterval;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import spim.Threads;
 import spim.fiji.ImgLib2Temp;
 import spim.fiji.ImgLib2Temp.Pair;
@@ -38,6 +49,7 @@ import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.export.DisplayImage;
 import spim.process.fusion.weightedavg.ProcessFusion;
 import spim.process.fusion.weights.Blending;
+import spim.process.fusion.weights.BlendingTabulated;
 
 /**
  * Fused individual images for each input stack, uses the exporter directly
@@ -52,6 +64,9 @@ public class ProcessForDeconvolution
 	public static int[] defaultBlendingRange = new int[]{ defaultBlendingRangeNumber, defaultBlendingRangeNumber, defaultBlendingRangeNumber };
 	public static int[] defaultBlendingBorder = null;
 
+	// store the transformed images and weights only where the view contributes to the bounding box
+	public static boolean cropToViews = true;
+
 	final protected SpimData2 spimData;
 	final protected List< ViewId > viewIdsToProcess;
 	final BoundingBoxGUI bb;
@@ -62,7 +77,15 @@ public class ProcessForDeconvolution
 	double avgOverlappingViews;
 	ArrayList< ViewDescription > viewDescriptions;
 	HashMap< ViewId, Img< FloatType > > imgs, weights;
+	HashMap< ViewId, long[] > offsets;
 	ExtractPSF< FloatType > ePSF;
+
+	// if set, the transformed images and weights are written to this directory instead of being kept in memory
+	File outOfCoreDirectory = null;
+
+	// tabulate the blending function (faster, approximate)
+	boolean useTabulatedBlending = false;
+	HashMap< ViewId, DiskFloatImage > diskImgs, diskWeights;
 	
 	public ProcessForDeconvolution(
 			final SpimData2 spimData,
@@ -81,10 +104,39 @@ public class ProcessForDeconvolution
 	public ExtractPSF< FloatType > getExtractPSF() { return ePSF; }
 	public HashMap< ViewId, Img< FloatType > > getTransformedImgs() { return imgs; }
 	public HashMap< ViewId, Img< FloatType > > getTransformedWeights() { return weights; }
+	public HashMap< ViewId, long[] > getTransformedOffsets() { return offsets; }
+	public HashMap< ViewId, DiskFloatImage > getDiskImgs() { return diskImgs; }
+	public HashMap< ViewId, DiskFloatImage > getDiskWeights() { return diskWeights; }
 	public ArrayList< ViewDescription > getViewDescriptions() { return viewDescriptions; }
 	public int getMinOverlappingViews() { return minOverlappingViews; }
 	public double getAvgOverlappingViews() { return avgOverlappingViews; }
 
+	/**
+	 * @param directory - where the transformed images and weights are stored, null to keep them in memory
+	 */
+	public void setOutOfCoreDirectory( final File directory ) { this.outOfCoreDirectory = directory; }
+
+	/**
+	 * @param useTabulatedBlending - compute the blending weights with a lookup table (faster, approximate)
+	 */
+	public void setUseTabulatedBlending( final boolean useTabulatedBlending ) { this.useTabulatedBlending = useTabulatedBlending; }
+
+	/**
+	 * Deletes the transformed images and weights stored on disk
+	 */
+	public void deleteDiskImgs()
+	{
+		if ( diskImgs != null )
+			for ( final DiskFloatImage img : diskImgs.values() )
+				img.delete();
+
+		if ( diskWeights != null )
+			for ( final DiskFloatImage img : diskWeights.values() )
+				img.delete();
+
+		diskImgs = diskWeights = null;
+	}
+
 	/** 
 	 * Fuses one stack, i.e. all angles/illuminations for one timepoint and channel
 	 * 
@@ -111,6 +163,17 @@ public class ProcessForDeconvolution
 
 		this.imgs = new HashMap< ViewId, Img< FloatType > >();
 		this.weights = new HashMap< ViewId, Img< FloatType > >();
+		this.offsets = new HashMap< ViewId, long[] >();
+
+		final boolean onDisk = !weightsOnly && outOfCoreDirectory != null;
+
+		deleteDiskImgs();
+
+		if ( onDisk )
+		{
+			this.diskImgs = new HashMap< ViewId, DiskFloatImage >();
+			this.diskWeights = new HashMap< ViewId, DiskFloatImage >();
+		}
 		
 		final Img< FloatType > overlapImg;
 		
@@ -140,8 +203,50 @@ public class ProcessForDeconvolution
 		// we will need to run some batches until all is fused
 		for ( int i = 0; i < viewDescriptions.size(); ++i )
 		{
+			final ViewDescription inputData = viewDescriptions.get( i );
+
+			// the part of the bounding box the view contributes to
+			final long[] offset = new long[ bb.numDimensions() ];
+			final long[] dim = bb.getDimensions();
+
+			if ( !weightsOnly && cropToViews )
+				getTransformedExtent( inputData, offset, dim );
+
 			IOFunctions.println( "Fusing view " + i + " of " + (viewDescriptions.size()-1) );
-			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Reserving memory for fused & weight image.");
+
+			// same as in the paralell fusion now more or less
+			final RandomAccessibleInterval< FloatType > img;
+			
+			if ( weightsOnly && !extractPSFs )
+				img = null;
+			else
+				img = ProcessFusion.getImage( new FloatType(), spimData, inputData, true );
+
+			if ( onDisk )
+			{
+				// the transformed view is never held in memory as a whole
+				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Fusing view & weight image slab by slab (" + Util.printCoordinates( dim ) + " px at " + Util.printCoordinates( offset ) + ") to '" + outOfCoreDirectory + "'.");
+
+				try
+				{
+					fuseToDisk( inputData, img, offset, dim );
+				}
+				catch ( final Exception e )
+				{
+					IOFunctions.println( "Failed to write fused & weight image to '" + outOfCoreDirectory + "': " + e );
+					e.printStackTrace();
+					deleteDiskImgs();
+					return false;
+				}
+
+				if ( extractPSFs )
+					extractPSF( timepoint, channel, inputData, img, extractPSFLabels, psfSize );
+
+				offsets.put( inputData, offset );
+				continue;
+			}
+
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Reserving memory for fused & weight image (" + Util.printCoordinates( dim ) + " px at " + Util.printCoordinates( offset ) + ").");
 
 			// try creating the output (type needs to be there to define T)
 			final Img< FloatType > fusedImg; 
@@ -149,26 +254,16 @@ public class ProcessForDeconvolution
 			if ( weightsOnly )
 				fusedImg = overlapImg;
 			else
-				fusedImg = bb.getImgFactory( new FloatType() ).create( bb.getDimensions(), new FloatType() );
+				fusedImg = bb.getImgFactory( new FloatType() ).create( dim, new FloatType() );
 			
-			final Img< FloatType > weightImg = fusedImg.factory().create( bb.getDimensions(), new FloatType() );
+			final Img< FloatType > weightImg = fusedImg.factory().create( dim, new FloatType() );
 
 			if ( fusedImg == null || weightImg == null )
 			{
 				IOFunctions.println( "ProcessForDeconvolution: Cannot create output images."  );
 				return false;
 			}
-	
-			final ViewDescription inputData = viewDescriptions.get( i );
-			
-			// same as in the paralell fusion now more or less
-			final RandomAccessibleInterval< FloatType > img;
-			
-			if ( weightsOnly && !extractPSFs )
-				img = null;
-			else
-				img = ProcessFusion.getImage( new FloatType(), spimData, inputData, true );
-						
+
 			// split up into many parts for multithreading
 			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
 
@@ -186,7 +281,7 @@ public class ProcessForDeconvolution
 					tasks.add( new ProcessForOverlapOnlyPortion(
 							portion,
 							imgInterval,
-							getBlending( imgInterval, blendingBorder, blendingRange, inputData ),
+							getBlending( imgInterval, blendingBorder, blendingRange, useTabulatedBlending, inputData ),
 							spimData.getViewRegistrations().getViewRegistration( inputData ).getModel(),
 							overlapImg,
 							weightImg,
@@ -197,10 +292,11 @@ public class ProcessForDeconvolution
 					tasks.add( new ProcessForDeconvolutionPortion(
 							portion,
 							img,
-							getBlending( img, blendingBorder, blendingRange, inputData ),
+							getBlending( img, blendingBorder, blendingRange, useTabulatedBlending, inputData ),
 							spimData.getViewRegistrations().getViewRegistration( inputData ).getModel(),
 							fusedImg,
 							weightImg,
+							offset,
 							bb ) );
 				}
 			try
@@ -219,33 +315,40 @@ public class ProcessForDeconvolution
 			
 			// extract PSFs if wanted
 			if ( extractPSFs )
-			{
-				final ArrayList< double[] > llist = getLocationsOfCorrespondingBeads( timepoint, inputData, extractPSFLabels.get( channel ).getLabel() );
-				
-				IOFunctions.println( "Extracting PSF for viewsetup " + inputData.getViewSetupId() + " using label '" + extractPSFLabels.get( channel ).getLabel() + "'" +
-						" (" +llist.size() + " corresponding detections available)" );
-				
-				ePSF.extractNextImg(
-						img,
-						inputData,
-						spimData.getViewRegistrations().getViewRegistration( inputData ).getModel(),
-						llist,
-						psfSize );
-			}
-			
+				extractPSF( timepoint, channel, inputData, img, extractPSFLabels, psfSize );
+
 			if ( !weightsOnly )
 				imgs.put( inputData, fusedImg );
 			weights.put( inputData, weightImg );
+
+			offsets.put( inputData, offset );
 		}
 		
 		// normalize the weights
 		final ArrayList< Img< FloatType > > weightsSorted = new ArrayList< Img< FloatType> >();
+		final ArrayList< long[] > offsetsSorted = new ArrayList< long[] >();
 
-		for ( final ViewDescription vd : viewDescriptions )
-			weightsSorted.add( weights.get( vd ) );
+		if ( onDisk )
+		{
+			final ArrayList< DiskFloatImage > diskWeightsSorted = new ArrayList< DiskFloatImage >();
 
-		if ( !normalizeWeightsAndComputeMinAvgViews( weightsSorted ) )
-			return false;
+			for ( final ViewDescription vd : viewDescriptions )
+				diskWeightsSorted.add( diskWeights.get( vd ) );
+
+			if ( !normalizeWeightsAndComputeMinAvgViewsOnDisk( diskWeightsSorted ) )
+				return false;
+		}
+		else
+		{
+			for ( final ViewDescription vd : viewDescriptions )
+			{
+				weightsSorted.add( weights.get( vd ) );
+				offsetsSorted.add( offsets.get( vd ) );
+			}
+
+			if ( !normalizeWeightsAndComputeMinAvgViews( weightsSorted, offsetsSorted ) )
+				return false;
+		}
 				
 		IOFunctions.println( "Minimal number of overlapping views: " + getMinOverlappingViews() + ", using " + (this.minOverlappingViews = Math.max( 1, this.minOverlappingViews ) ) );
 		IOFunctions.println( "Average number of overlapping views: " + getAvgOverlappingViews() + ", using " + (this.avgOverlappingViews = Math.max( 1, this.avgOverlappingViews ) ) );
@@ -418,6 +521,356 @@ public class ProcessForDeconvolution
 		d.exportImage( wosem, bb, "OSEM=" + osemspeedup + ", sum of weights per pixel" );
 	}
 	
+	/**
+	 * Computes the part of the bounding box that the transformed view can contribute to
+	 * 
+	 * @param viewDescription - the view
+	 * @param offset - the position of the part relative to the bounding box (output)
+	 * @param dim - the size of the part (output)
+	 */
+	protected void getTransformedExtent( final ViewDescription viewDescription, final long[] offset, final long[] dim )
+	{
+		final Dimensions size = ViewSetupUtils.getSizeOrLoad( viewDescription.getViewSetup(), viewDescription.getTimePoint(), spimData.getSequenceDescription().getImgLoader() );
+		final double[] min = new double[]{ 0, 0, 0 };
+		final double[] max = new double[]{
+				size.dimension( 0 ) - 1,
+				size.dimension( 1 ) - 1,
+				size.dimension( 2 ) - 1 };
+
+		final FinalRealInterval interval = spimData.getViewRegistrations().getViewRegistration( viewDescription ).getModel().estimateBounds( new FinalRealInterval( min, max ) );
+		final long[] bbDim = bb.getDimensions();
+
+		for ( int d = 0; d < offset.length; ++d )
+		{
+			// one pixel more on each side for rounding of the transformation
+			final long minD = Math.max( 0, (long)Math.floor( interval.realMin( d ) ) - bb.min( d ) - 1 );
+			final long maxD = Math.min( bbDim[ d ] - 1, (long)Math.ceil( interval.realMax( d ) ) - bb.min( d ) + 1 );
+
+			if ( maxD < minD )
+			{
+				// does not overlap with the bounding box, keep one pixel (with zero weight)
+				offset[ d ] = Math.min( minD, bbDim[ d ] - 1 );
+				dim[ d ] = 1;
+			}
+			else
+			{
+				offset[ d ] = minD;
+				dim[ d ] = maxD - minD + 1;
+			}
+		}
+	}
+
+	protected boolean normalizeWeightsAndComputeMinAvgViews( final List< Img< FloatType > > weights, final List< long[] > offsets )
+	{
+		final long[] bbDim = bb.getDimensions();
+		final int n = bbDim.length;
+
+		boolean cropped = false;
+		long numPixels = 1;
+
+		for ( int i = 0; i < weights.size(); ++i )
+			for ( int d = 0; d < n; ++d )
+				cropped |= offsets.get( i )[ d ] != 0 || weights.get( i ).dimension( d ) != bbDim[ d ];
+
+		if ( !cropped )
+			return normalizeWeightsAndComputeMinAvgViews( weights );
+
+		for ( int d = 0; d < n; ++d )
+			numPixels *= bbDim[ d ];
+
+		// split up into many parts for multithreading
+		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( numPixels, Threads.numThreads() * 2 );
+
+		// set up executor service
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ArrayList< Callable< double[] > > tasks = new ArrayList< Callable< double[] > >();
+		
+		for ( final ImagePortion portion : portions )
+		{
+			tasks.add( new Callable< double[] >() 
+					{
+						@Override
+						public double[] call() throws Exception
+						{
+							final int numViews = weights.size();
+							final ArrayList< RandomAccess< FloatType > > randomAccesses = new ArrayList< RandomAccess< FloatType > >(); 
+
+							for ( final Img< FloatType > imgW : weights )
+								randomAccesses.add( imgW.randomAccess() );
+
+							// the views that contain the current position
+							final int[] inside = new int[ numViews ];
+							final long[] pos = new long[ n ];
+
+							IntervalIndexer.indexToPosition( portion.getStartPosition(), bbDim, pos );
+
+							int minNumViews = numViews;
+							long countViews = 0;
+							
+							for ( long j = 0; j < portion.getLoopSize(); ++j )
+							{
+								double sumW = 0;
+								int count = 0;
+								int numInside = 0;
+
+								for ( int i = 0; i < numViews; ++i )
+								{
+									final long[] offset = offsets.get( i );
+									final Img< FloatType > imgW = weights.get( i );
+
+									boolean isInside = true;
+
+									for ( int d = 0; d < n && isInside; ++d )
+										isInside = pos[ d ] >= offset[ d ] && pos[ d ] < offset[ d ] + imgW.dimension( d );
+
+									if ( !isInside )
+										continue;
+
+									final RandomAccess< FloatType > r = randomAccesses.get( i );
+
+									for ( int d = 0; d < n; ++d )
+										r.setPosition( pos[ d ] - offset[ d ], d );
+
+									final float w = r.get().get();
+									sumW += w;
+
+									if ( w > 0 )
+										++count;
+
+									inside[ numInside++ ] = i;
+								}
+
+								countViews += count;
+								minNumViews = Math.min( minNumViews, count );
+
+								if ( sumW > 1 )
+									for ( int k = 0; k < numInside; ++k )
+									{
+										final FloatType w = randomAccesses.get( inside[ k ] ).get();
+										w.set( (float)( w.get() / sumW ) );
+									}
+
+								// next position
+								for ( int d = 0; d < n; ++d )
+								{
+									if ( ++pos[ d ] < bbDim[ d ] )
+										break;
+
+									pos[ d ] = 0;
+								}
+							}
+							
+							final double avgNumViews = (double)countViews / (double)( portion.getLoopSize() );
+							
+							return new double[]{ minNumViews, avgNumViews };
+						}
+					});
+		}
+
+		return collectMinAvgViews( taskExecutor, tasks, weights.size() );
+	}
+
+	/**
+	 * Same as normalizeWeightsAndComputeMinAvgViews for weights stored on disk, processes the bounding box slab by slab
+	 */
+	protected boolean normalizeWeightsAndComputeMinAvgViewsOnDisk( final List< DiskFloatImage > weights )
+	{
+		final long[] bbDim = bb.getDimensions();
+		final int n = bbDim.length;
+		final int[] dimensions = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			dimensions[ d ] = (int)bbDim[ d ];
+
+		final int numViews = weights.size();
+		final int slices = DiskFloatImage.slicesPerSlab( dimensions, numViews );
+
+		final int[] min = new int[ n ];
+		final int[] size = dimensions.clone();
+		size[ n - 1 ] = slices;
+
+		final int slabPixels = (int)Intervals.numElements( size );
+		final float[][] w = new float[ numViews ][];
+		final int[] overlapping = new int[ numViews ];
+
+		int minNumViews = numViews;
+		long countViews = 0;
+		long numPixels = 0;
+
+		try
+		{
+			for ( int z = 0; z < dimensions[ n - 1 ]; z += slices )
+			{
+				min[ n - 1 ] = z;
+				size[ n - 1 ] = Math.min( slices, dimensions[ n - 1 ] - z );
+
+				// only read the weights that overlap with the slab
+				int numOverlapping = 0;
+
+				for ( int i = 0; i < numViews; ++i )
+				{
+					if ( !weights.get( i ).intersects( min, size ) )
+						continue;
+
+					if ( w[ i ] == null )
+						w[ i ] = new float[ slabPixels ];
+
+					weights.get( i ).read( min, size, w[ i ] );
+					overlapping[ numOverlapping++ ] = i;
+				}
+
+				final int slabSize = (int)Intervals.numElements( size );
+
+				for ( int j = 0; j < slabSize; ++j )
+				{
+					double sumW = 0;
+					int count = 0;
+
+					for ( int k = 0; k < numOverlapping; ++k )
+					{
+						final float weight = w[ overlapping[ k ] ][ j ];
+						sumW += weight;
+
+						if ( weight > 0 )
+							++count;
+					}
+
+					countViews += count;
+					minNumViews = Math.min( minNumViews, count );
+
+					if ( sumW > 1 )
+						for ( int k = 0; k < numOverlapping; ++k )
+							w[ overlapping[ k ] ][ j ] /= sumW;
+				}
+
+				for ( int k = 0; k < numOverlapping; ++k )
+					weights.get( overlapping[ k ] ).write( min, size, w[ overlapping[ k ] ] );
+
+				numPixels += slabSize;
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to compute weight normalization for deconvolution: " + e );
+			e.printStackTrace();
+			return false;
+		}
+
+		this.minOverlappingViews = minNumViews;
+		this.avgOverlappingViews = (double)countViews / (double)numPixels;
+
+		return true;
+	}
+
+	/**
+	 * Fuses a view and its weight into temporary files in the out-of-core directory, one slab of planes at a time
+	 * so that only the slab is held in memory
+	 *
+	 * @param offset - the position of the transformed view relative to the bounding box
+	 * @param dim - the size of the transformed view
+	 */
+	protected void fuseToDisk( final ViewDescription inputData, final RandomAccessibleInterval< FloatType > img, final long[] offset, final long[] dim ) throws Exception
+	{
+		final int n = offset.length;
+		final int[] pos = new int[ n ];
+		final int[] size = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			pos[ d ] = (int)offset[ d ];
+			size[ d ] = (int)dim[ d ];
+		}
+
+		final DiskFloatImage diskImg = DiskFloatImage.createTemp( outOfCoreDirectory, "view", pos, size );
+		diskImgs.put( inputData, diskImg );
+
+		final DiskFloatImage diskWeight = DiskFloatImage.createTemp( outOfCoreDirectory, "weight", pos, size );
+		diskWeights.put( inputData, diskWeight );
+
+		final int slices = DiskFloatImage.slicesPerSlab( size, 2 );
+
+		final int[] min = pos.clone();
+		final int[] slabSize = size.clone();
+		final long[] slabDim = dim.clone();
+		slabDim[ n - 1 ] = slices;
+
+		final float[] fused = new float[ (int)Intervals.numElements( slabDim ) ];
+		final float[] weight = new float[ fused.length ];
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+
+		try
+		{
+			for ( int z = 0; z < size[ n - 1 ]; z += slices )
+			{
+				min[ n - 1 ] = pos[ n - 1 ] + z;
+				slabSize[ n - 1 ] = Math.min( slices, size[ n - 1 ] - z );
+				slabDim[ n - 1 ] = slabSize[ n - 1 ];
+
+				final long[] slabOffset = offset.clone();
+				slabOffset[ n - 1 ] = min[ n - 1 ];
+
+				final int slabPixels = (int)Intervals.numElements( slabDim );
+
+				// pixels the view does not cover are not touched by the fusion
+				Arrays.fill( fused, 0, slabPixels, 0 );
+				Arrays.fill( weight, 0, slabPixels, 0 );
+
+				final Img< FloatType > fusedSlab = ArrayImgs.floats( fused, slabDim );
+				final Img< FloatType > weightSlab = ArrayImgs.floats( weight, slabDim );
+
+				final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( slabPixels, Threads.numThreads() * 4 );
+				final ArrayList< Callable< String > > tasks = new ArrayList< Callable< String > >();
+
+				for ( final ImagePortion portion : portions )
+					tasks.add( new ProcessForDeconvolutionPortion(
+							portion,
+							img,
+							getBlending( img, blendingBorder, blendingRange, useTabulatedBlending, inputData ),
+							spimData.getViewRegistrations().getViewRegistration( inputData ).getModel(),
+							fusedSlab,
+							weightSlab,
+							slabOffset,
+							bb ) );
+
+				// invokeAll() returns when all tasks are complete
+				for ( final Future< String > future : taskExecutor.invokeAll( tasks ) )
+					future.get();
+
+				diskImg.write( min, slabSize, fused );
+				diskWeight.write( min, slabSize, weight );
+			}
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Extracts the PSF of a view from the beads that have correspondences
+	 */
+	protected void extractPSF(
+			final TimePoint timepoint,
+			final Channel channel,
+			final ViewDescription inputData,
+			final RandomAccessibleInterval< FloatType > img,
+			final HashMap< Channel, ChannelPSF > extractPSFLabels,
+			final long[] psfSize )
+	{
+		final ArrayList< double[] > llist = getLocationsOfCorrespondingBeads( timepoint, inputData, extractPSFLabels.get( channel ).getLabel() );
+		
+		IOFunctions.println( "Extracting PSF for viewsetup " + inputData.getViewSetupId() + " using label '" + extractPSFLabels.get( channel ).getLabel() + "'" +
+				" (" +llist.size() + " corresponding detections available)" );
+		
+		ePSF.extractNextImg(
+				img,
+				inputData,
+				spimData.getViewRegistrations().getViewRegistration( inputData ).getModel(),
+				llist,
+				psfSize );
+	}
+
 	protected boolean normalizeWeightsAndComputeMinAvgViews( final List< Img< FloatType > > weights )
 	{
 		// split up into many parts for multithreading
@@ -474,14 +927,19 @@ public class ProcessForDeconvolution
 						}
 					});
 		}
-		
+
+		return collectMinAvgViews( taskExecutor, tasks, weights.size() );
+	}
+
+	protected boolean collectMinAvgViews( final ExecutorService taskExecutor, final ArrayList< Callable< double[] > > tasks, final int numViews )
+	{
 		// run threads
 		try
 		{
 			// invokeAll() returns when all tasks are complete
 			final List< Future< double[] > > futures = taskExecutor.invokeAll( tasks );
 			
-			this.minOverlappingViews = weights.size();
+			this.minOverlappingViews = numViews;
 			this.avgOverlappingViews = 0;
 			
 			for ( final Future< double[] > f : futures )
@@ -506,7 +964,7 @@ public class ProcessForDeconvolution
 		return true;
 	}
 
-	protected Blending getBlending( final Interval interval, final int[] blendingBorder, final int[] blendingRange, final ViewDescription desc )
+	protected Blending getBlending( final Interval interval, final int[] blendingBorder, final int[] blendingRange, final boolean useTabulatedBlending, final ViewDescription desc )
 	{
 		final float[] blending = new float[ 3 ];
 		final float[] border = new float[ 3 ];
@@ -519,6 +977,9 @@ public class ProcessForDeconvolution
 		border[ 1 ] = blendingBorder[ 1 ];
 		border[ 2 ] = blendingBorder[ 2 ];
 
-		return new Blending( interval, border, blending );
+		if ( useTabulatedBlending )
+			return new BlendingTabulated( interval, border, blending );
+		else
+			return new Blending( interval, border, blending );
 	}
 }
@@ -28,6 +28,7 @@ public class ProcessForDeconvolutionPortion implements Callable< String >
 	final Img< FloatType > weightImg, fusedImg;
 	final BoundingBoxGUI bb;
 	final Blending blending;
+	final long[] offset;
 	
 	public ProcessForDeconvolutionPortion(
 			final ImagePortion portion,
@@ -37,6 +38,22 @@ public class ProcessForDeconvolutionPortion implements Callable< String >
 			final Img< FloatType > fusedImg,
 			final Img< FloatType > weightImg,
 			final BoundingBoxGUI bb )
+	{
+		this( portion, img, blending, transform, fusedImg, weightImg, new long[ fusedImg.numDimensions() ], bb );
+	}
+
+	/**
+	 * @param offset - the position of fusedImg and weightImg relative to the bounding box
+	 */
+	public ProcessForDeconvolutionPortion(
+			final ImagePortion portion,
+			final RandomAccessibleInterval< FloatType > img,
+			final Blending blending,
+			final AffineTransform3D transform,
+			final Img< FloatType > fusedImg,
+			final Img< FloatType > weightImg,
+			final long[] offset,
+			final BoundingBoxGUI bb )
 	{
 		this.portion = portion;
 		this.img = img;
@@ -45,6 +62,7 @@ public class ProcessForDeconvolutionPortion implements Callable< String >
 		this.fusedImg = fusedImg;
 		this.blending = blending;
 		this.bb = bb;
+		this.offset = offset;
 	}
 	
 	@Override
@@ -76,9 +94,9 @@ public class ProcessForDeconvolutionPortion implements Callable< String >
 			// move weight cursor forward and get the value 
 			final FloatType w = cursorW.next();
 
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
+			s[ 0 ] += bb.min( 0 ) + offset[ 0 ];
+			s[ 1 ] += bb.min( 1 ) + offset[ 1 ];
+			s[ 2 ] += bb.min( 2 ) + offset[ 2 ];
 			
 			transform.applyInverse( t, s );
 			
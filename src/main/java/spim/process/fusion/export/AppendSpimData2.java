@@ -30,7 +30,7 @@ import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.export.ExportSpimData2TIFF.FileNamePattern;
 import bdv.img.hdf5.Hdf5ImageLoader;
 
-public class AppendSpimData2 implements ImgExport
+public class AppendSpimData2 implements ImgExportRegistrationName
 {
 	public static String defaultPath = null;
 
@@ -42,6 +42,8 @@ public class AppendSpimData2 implements ImgExport
 
 	AppendSpimData2HDF5 appendToHdf5 = null;
 
+	String registrationName = "fusion bounding box";
+
 	@Override
 	public < T extends RealType< T > & NativeType< T > > boolean exportImage( final RandomAccessibleInterval<T> img, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
 	{
@@ -55,7 +57,10 @@ public class AppendSpimData2 implements ImgExport
 	public < T extends RealType< T > & NativeType< T > > boolean exportImage( final RandomAccessibleInterval<T> img, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs, final double min, final double max )
 	{
 		if ( appendToHdf5 != null )
+		{
+			appendToHdf5.setRegistrationName( registrationName );
 			return appendToHdf5.exportImage( img, bb, tp, vs, min, max );
+		}
 
 		// write the image
 		if ( !this.saver.exportImage( img, bb, tp, vs, min, max ) )
@@ -69,7 +74,7 @@ public class AppendSpimData2 implements ImgExport
 		m.set( scale, 0.0f, 0.0f, bb.min( 0 ),
 			   0.0f, scale, 0.0f, bb.min( 1 ),
 			   0.0f, 0.0f, scale, bb.min( 2 ) );
-		final ViewTransform vt = new ViewTransformAffine( "fusion bounding box", m );
+		final ViewTransform vt = new ViewTransformAffine( registrationName, m );
 
 		vr.getTransformList().clear();
 		vr.getTransformList().add( vt );
@@ -77,6 +82,12 @@ public class AppendSpimData2 implements ImgExport
 		return true;
 	}
 
+	@Override
+	public void setRegistrationName( final String registrationName ) { this.registrationName = registrationName; }
+
+	@Override
+	public String getRegistrationName() { return registrationName; }
+
 	@Override
 	public boolean finish()
 	{
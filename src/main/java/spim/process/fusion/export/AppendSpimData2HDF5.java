@@ -37,7 +37,7 @@ import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.Partition;
 import bdv.spimdata.tools.MergePartitionList;
 
-public class AppendSpimData2HDF5 implements ImgExport
+public class AppendSpimData2HDF5 implements ImgExportRegistrationName
 {
 	public static String defaultPath = null;
 
@@ -57,6 +57,14 @@ public class AppendSpimData2HDF5 implements ImgExport
 
 	private final ProgressWriter progressWriter = new ProgressWriterIJ();
 
+	private String registrationName = "fusion bounding box";
+
+	@Override
+	public void setRegistrationName( final String registrationName ) { this.registrationName = registrationName; }
+
+	@Override
+	public String getRegistrationName() { return registrationName; }
+
 	@Override
 	public boolean finish()
 	{
@@ -175,7 +183,7 @@ public class AppendSpimData2HDF5 implements ImgExport
 		m.set( scale, 0.0f, 0.0f, bb.min( 0 ),
 			   0.0f, scale, 0.0f, bb.min( 1 ),
 			   0.0f, 0.0f, scale, bb.min( 2 ) );
-		final ViewTransform vt = new ViewTransformAffine( "fusion bounding box", m );
+		final ViewTransform vt = new ViewTransformAffine( registrationName, m );
 
 		vr.getTransformList().clear();
 		vr.getTransformList().add( vt );
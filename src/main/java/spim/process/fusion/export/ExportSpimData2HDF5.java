@@ -50,7 +50,7 @@ import bdv.export.WriteSequenceToHdf5;
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.Partition;
 
-public class ExportSpimData2HDF5 implements ImgExport
+public class ExportSpimData2HDF5 implements ImgExportRegistrationName
 {
 
 	private List< TimePoint > newTimepoints;
@@ -67,6 +67,14 @@ public class ExportSpimData2HDF5 implements ImgExport
 
 	private final ProgressWriter progressWriter = new ProgressWriterIJ();
 
+	private String registrationName = "fusion bounding box";
+
+	@Override
+	public void setRegistrationName( final String registrationName ) { this.registrationName = registrationName; }
+
+	@Override
+	public String getRegistrationName() { return registrationName; }
+
 	@Override
 	public boolean finish()
 	{
@@ -268,7 +276,7 @@ public class ExportSpimData2HDF5 implements ImgExport
 		m.set( scale, 0.0f, 0.0f, bb.min( 0 ),
 			   0.0f, scale, 0.0f, bb.min( 1 ),
 			   0.0f, 0.0f, scale, bb.min( 2 ) );
-		final ViewTransform vt = new ViewTransformAffine( "fusion bounding box", m );
+		final ViewTransform vt = new ViewTransformAffine( registrationName, m );
 
 		vr.getTransformList().clear();
 		vr.getTransformList().add( vt );
@@ -38,7 +38,7 @@ import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
-public class ExportSpimData2TIFF implements ImgExport
+public class ExportSpimData2TIFF implements ImgExportRegistrationName
 {
 	List< TimePoint > newTimepoints;
 	List< ViewSetup > newViewSetups;
@@ -47,6 +47,14 @@ public class ExportSpimData2TIFF implements ImgExport
 	Save3dTIFF saver;
 	SpimData2 spimData;
 
+	String registrationName = "fusion bounding box";
+
+	@Override
+	public void setRegistrationName( final String registrationName ) { this.registrationName = registrationName; }
+
+	@Override
+	public String getRegistrationName() { return registrationName; }
+
 	public static class FileNamePattern
 	{
 		public int layoutTP = 0, layoutChannels = 0, layoutIllum = 0, layoutAngles = 0;
@@ -74,7 +82,7 @@ public class ExportSpimData2TIFF implements ImgExport
 		m.set( scale, 0.0f, 0.0f, bb.min( 0 ), 
 			   0.0f, scale, 0.0f, bb.min( 1 ),
 			   0.0f, 0.0f, scale, bb.min( 2 ) );
-		final ViewTransform vt = new ViewTransformAffine( "fusion bounding box", m );
+		final ViewTransform vt = new ViewTransformAffine( registrationName, m );
 
 		vr.getTransformList().clear();
 		vr.getTransformList().add( vt );
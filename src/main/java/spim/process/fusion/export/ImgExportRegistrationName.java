@@ -0,0 +1,11 @@
+package spim.process.fusion.export;
+
+/**
+ * An {@link ImgExport} that stores a registration for each exported image in the XML, the name
+ * of the registration can be used to document how the image was computed.
+ */
+public interface ImgExportRegistrationName extends ImgExport
+{
+	public void setRegistrationName( final String registrationName );
+	public String getRegistrationName();
+}
@@ -18,6 +18,7 @@ import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.BlockFusedImg;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
@@ -74,7 +75,10 @@ public class Save3dTIFF implements ImgExportTitle
 		if ( img instanceof ImagePlusImg )
 			try { imp = ((ImagePlusImg<T, ?>)img).getImagePlus(); } catch (ImgLibException e) {}
 
-		if ( imp == null )
+		// a block-wise fused image is saved as a virtual stack so that it is fused while it is written
+		if ( imp == null && img instanceof BlockFusedImg )
+			imp = ImageJFunctions.wrap( img, getImgTitler().getImageTitle( tp, vs ) );
+		else if ( imp == null )
 			imp = ImageJFunctions.wrap( img, getImgTitler().getImageTitle( tp, vs ) ).duplicate();
 
 		imp.setTitle( getImgTitler().getImageTitle( tp, vs ) );
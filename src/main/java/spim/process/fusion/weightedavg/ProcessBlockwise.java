@@ -0,0 +1,162 @@
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.Threads;
+import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.BlockFusedImg;
+import spim.process.fusion.BlockFusedImg.BlockFusion;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.ImagePortion;
+import spim.process.fusion.ViewBlockCache;
+import spim.process.fusion.ViewOverlap;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * Fuses all views like {@link ProcessParalell}, but the output is fused block by block when the
+ * exporter requests it, so the fused image (and no weight image) is ever held in memory as a whole.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ *
+ */
+public class ProcessBlockwise extends ProcessParalell
+{
+	public static int defaultBlockSize = 256;
+
+	// the input views are read in blocks of this size through a cache of limited size (if the ImgLoader supports it)
+	public static int defaultSourceBlockSize = 64;
+	public static int defaultSourceCacheSizeMB = 1024;
+
+	final int[] blockSize;
+
+	// fuses the portions of every block, the blocks are fused lazily while exporting so it lives until shutdown()
+	final ExecutorService taskExecutor;
+
+	public ProcessBlockwise(
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final BoundingBoxGUI bb,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final int blockSize )
+	{
+		super( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
+
+		this.blockSize = new int[]{ blockSize, blockSize, blockSize };
+		this.taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+	}
+
+	/**
+	 * Stops the threads that fuse the blocks, call it once all images returned by
+	 * {@link #fuseStackBlockwise(RealType, InterpolatorFactory, TimePoint, Channel)} are exported
+	 */
+	public void shutdown()
+	{
+		taskExecutor.shutdown();
+	}
+
+	/**
+	 * Fuses one stack, i.e. all angles/illuminations for one timepoint and channel. The returned
+	 * image fuses its blocks lazily when they are accessed and only keeps one layer of blocks in memory.
+	 *
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param timepoint
+	 * @param channel
+	 * @return - the lazily fused image or null if there is nothing to fuse
+	 */
+	public < T extends RealType< T > & NativeType< T > > BlockFusedImg< T > fuseStackBlockwise(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final TimePoint timepoint,
+			final Channel channel )
+	{
+		// get all views that are fused
+		final ArrayList< ViewDescription > inputData =
+				FusionHelper.assembleInputData( spimData, timepoint, channel, viewIdsToProcess );
+
+		// it can be that for a certain comination of timepoint/channel there is nothing to do
+		// (e.g. fuse timepoint 1 channel 1 and timepoint 2 channel 2)
+		if ( inputData.size() == 0 )
+			return null;
+
+		final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
+
+		// only the blocks of the views that are needed for the blocks of the output that are currently fused are held in memory
+		final int[] sourceBlockSize = new int[]{ defaultSourceBlockSize, defaultSourceBlockSize, defaultSourceBlockSize };
+		final int bytesPerPixel = Math.max( 1, type.getBitsPerPixel() / 8 );
+		final ViewBlockCache< T > cache = new ViewBlockCache< T >( sourceBlockSize, ViewBlockCache.maxBlocks( sourceBlockSize, defaultSourceCacheSizeMB, bytesPerPixel ) );
+
+		for ( int i = 0; i < inputData.size(); ++i )
+		{
+			final ViewDescription vd = inputData.get( i );
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+			imgs.add( getCachedImage( type, spimData, vd, cache ) );
+		}
+
+		// get all weighting methods
+		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
+
+		final AffineTransform3D[] transforms = getTransforms( inputData );
+		final ViewOverlap overlap = new ViewOverlap( transforms, imgs, bb, bb.getDownSampling() );
+		final long[] dim = bb.getDimensions();
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusing in blocks of " + blockSize[ 0 ] + "x" + blockSize[ 1 ] + "x" + blockSize[ 2 ] + " px." );
+
+		return new BlockFusedImg< T >( dim, blockSize, type, new BlockFusion< T >()
+		{
+			@Override
+			public void fuseBlock( final RandomAccessibleInterval< T > block )
+			{
+				// only the views that intersect this block are fused, if there are none it remains 0
+				final int[] views = overlap.overlappingViews( block );
+
+				if ( views.length == 0 )
+					return;
+
+				// split up into many parts (lines of the block) for multithreading
+				final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( block.dimension( 1 ) * block.dimension( 2 ), Threads.numThreads() * 4 );
+
+				// a virtually displayed image can still be accessed after shutdown(), then the block gets its own threads
+				final boolean ownExecutor = taskExecutor.isShutdown();
+				final ExecutorService executor = ownExecutor ? Executors.newFixedThreadPool( Threads.numThreads() ) : taskExecutor;
+				final ArrayList< ProcessParalellPortion< T > > tasks = createTasks( portions, imgs, weights, interpolatorFactory, transforms, block, views );
+
+				try
+				{
+					// invokeAll() returns when all tasks are complete
+					executor.invokeAll( tasks );
+				}
+				catch ( final InterruptedException e )
+				{
+					IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute fusion of block: " + e );
+					e.printStackTrace();
+				}
+
+				if ( ownExecutor )
+					executor.shutdown();
+			}
+		}, BlockFusedImg.blocksPerLayer( dim, blockSize ) );
+	}
+}
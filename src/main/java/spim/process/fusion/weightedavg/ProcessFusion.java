@@ -24,8 +24,10 @@ import net.imglib2.type.numeric.real.FloatType;
 import spim.fiji.ImgLib2Temp;
 import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.ViewSetupUtils;
+import spim.process.fusion.ViewBlockCache;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.weights.Blending;
+import spim.process.fusion.weights.BlendingTabulated;
 import spim.process.fusion.weights.ContentBased;
 import bdv.img.hdf5.Hdf5ImageLoader;
 
@@ -34,10 +36,16 @@ public abstract class ProcessFusion
 	public static float[] defaultBlendingRange = new float[]{ 40, 40, 40 };
 	public static float[] defaultBlendingBorder = new float[]{ 0, 0, 0 };
 	public static boolean defaultAdjustBlendingForAnisotropy = true;
+
+	// look up the cosine of the blending function from a table instead of computing it for every sample (approximate)
+	public static boolean defaultUseTabulatedBlending = false;
 	
 	public static double[] defaultContentBasedSigma1 = new double[]{ 20, 20, 20 };
 	public static double[] defaultContentBasedSigma2 = new double[]{ 40, 40, 40 };
 	public static boolean defaultAdjustContentBasedSigmaForAnisotropy = true;
+
+	// compute the content-based weights on a downsampled image (1, 2 or 4), they are interpolated when fusing
+	public static int defaultContentBasedDownsampling = 1;
 	
 	final protected SpimData2 spimData;
 	final List< ViewId > viewIdsToProcess;
@@ -82,7 +90,10 @@ public abstract class ProcessFusion
 			}
 		}
 		
-		return new Blending( interval, border, blending );
+		if ( ProcessFusion.defaultUseTabulatedBlending )
+			return new BlendingTabulated( interval, border, blending );
+		else
+			return new Blending( interval, border, blending );
 	}
 	
 	protected < T extends RealType< T > > ContentBased< T > getContentBased( final RandomAccessibleInterval< T > img, final ViewDescription desc, final ImgLoader< ? > imgLoader )
@@ -102,7 +113,7 @@ public abstract class ProcessFusion
 			}
 		}
 
-		return new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2);
+		return new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2, ProcessFusion.defaultContentBasedDownsampling );
 	}
 	
 	protected < T extends RealType< T > > ArrayList< RealRandomAccessible< FloatType > > getAllWeights(
@@ -161,4 +172,18 @@ public abstract class ProcessFusion
 		else
 			return null;
 	}
+
+	/**
+	 * @return - the image of the view that is read block-wise through the cache if the ImgLoader supports loading
+	 * parts of the image, otherwise the complete image as returned by getImage()
+	 */
+	public static < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< T > getCachedImage( final T type, final SpimData2 spimData, final ViewId view, final ViewBlockCache< T > cache )
+	{
+		final RandomAccessibleInterval< T > lazy = ViewSetupUtils.getLazyImage( type, spimData, view, 0 );
+
+		if ( lazy == null )
+			return getImage( type, spimData, view, false );
+		else
+			return cache.getCachedView( view, 0, lazy, type );
+	}
 }
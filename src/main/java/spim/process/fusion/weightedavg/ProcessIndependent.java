@@ -100,8 +100,8 @@ public class ProcessIndependent extends ProcessFusion
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + inputData.getTimePointId() + ", setup=" + inputData.getViewSetupId() + ")" );
 			final RandomAccessibleInterval< T > img = getImage( type, spimData, inputData, false );
 						
-			// split up into many parts for multithreading
-			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
+			// split up into many parts (lines of the fused image) for multithreading
+			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.dimension( 1 ) * fusedImg.dimension( 2 ), Threads.numThreads() * 4 );
 
 			// set up executor service
 			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
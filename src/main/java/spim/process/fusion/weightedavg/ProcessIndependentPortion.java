@@ -2,21 +2,22 @@ package spim.process.fusion.weightedavg;
 
 import java.util.concurrent.Callable;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
-import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.InverseTransformLineStepper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 /**
- * Fuse one portion of a paralell fusion, supports no weights
+ * Fuse one portion of a paralell fusion, supports no weights.
+ * The {@link ImagePortion} is defined in lines (along x) of the fused image, which
+ * can also be just a block of the output (then its min defines the offset).
  * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
@@ -28,10 +29,9 @@ public class ProcessIndependentPortion< T extends RealType< T > > implements Cal
 	final RandomAccessibleInterval< T > img;
 	final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory;
 	final AffineTransform3D transform;
-	final Img< T > fusedImg;
+	final RandomAccessibleInterval< T > fusedImg;
 	final BoundingBoxGUI bb;
 	
-	final boolean doDownSampling;
 	final int downSampling;
 	
 	public ProcessIndependentPortion(
@@ -39,7 +39,7 @@ public class ProcessIndependentPortion< T extends RealType< T > > implements Cal
 			final RandomAccessibleInterval< T > img,
 			final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory,
 			final AffineTransform3D transform,
-			final Img< T > fusedImg,
+			final RandomAccessibleInterval< T > fusedImg,
 			final BoundingBoxGUI bb )
 	{
 		this.portion = portion;
@@ -49,49 +49,44 @@ public class ProcessIndependentPortion< T extends RealType< T > > implements Cal
 		this.fusedImg = fusedImg;
 		this.bb = bb;
 		this.downSampling = bb.getDownSampling();
-		
-		if ( downSampling == 1 )
-			doDownSampling = false;
-		else
-			doDownSampling = true;
 	}
 	
 	@Override
 	public String call() throws Exception 
 	{
-		// make the interpolators and get the transformations
+		final long height = fusedImg.dimension( 1 );
+
+		// make the interpolator and the line stepper
 		final RealRandomAccess< T > r = Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess();
 		final int[] imgSize = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
+		final InverseTransformLineStepper stepper = new InverseTransformLineStepper( transform, imgSize, bb, downSampling, fusedImg );
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final float[] s = new float[ 3 ];
+		final RandomAccess< T > randomAccess = fusedImg.randomAccess();
 		final float[] t = new float[ 3 ];
 		
-		cursor.jumpFwd( portion.getStartPosition() );
+		final long lastLine = portion.getStartPosition() + portion.getLoopSize();
 		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
+		for ( long line = portion.getStartPosition(); line < lastLine; ++line )
 		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
-			
-			if ( doDownSampling )
-			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
+			final long y = fusedImg.min( 1 ) + line % height;
+			final long z = fusedImg.min( 2 ) + line / height;
 			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			transform.applyInverse( t, s );
-			
-			if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSize[ 0 ], imgSize[ 1 ], imgSize[ 2 ] ) )
+			// the view does not cover the current line
+			if ( !stepper.setLine( y, z ) )
+				continue;
+
+			final int maxX = stepper.getMaxX();
+
+			randomAccess.setPosition( fusedImg.min( 0 ) + stepper.getMinX(), 0 );
+			randomAccess.setPosition( y, 1 );
+			randomAccess.setPosition( z, 2 );
+
+			for ( int x = stepper.getMinX(); x < maxX; ++x )
 			{
+				stepper.localize( x, t );
 				r.setPosition( t );
-				v.setReal( r.get().getRealFloat() );
+				randomAccess.get().setReal( r.get().getRealFloat() );
+				randomAccess.fwd( 0 );
 			}
 		}
 		
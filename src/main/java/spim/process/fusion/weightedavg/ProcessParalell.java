@@ -17,6 +17,7 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -24,6 +25,7 @@ import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.ViewOverlap;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 public class ProcessParalell extends ProcessFusion
@@ -89,33 +91,12 @@ public class ProcessParalell extends ProcessFusion
 		for ( int i = 0; i < inputData.size(); ++i )
 			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
 		
-		// split up into many parts for multithreading
-		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
+		// split up into many parts (lines of the fused image) for multithreading
+		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.dimension( 1 ) * fusedImg.dimension( 2 ), Threads.numThreads() * 4 );
 
 		// set up executor service
 		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
-		final ArrayList< ProcessParalellPortion< T > > tasks = new ArrayList< ProcessParalellPortion< T > >();
-
-		if ( weights.get( 0 ).size() == 0 ) // no weights
-		{		
-			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortion< T >( portion, imgs, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
-		}
-		else if ( weights.get( 0 ).size() > 1 ) // many weights
-		{
-			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortionWeights< T >( portion, imgs, weights, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
-		}
-		else // one weight
-		{
-			final ArrayList< RealRandomAccessible< FloatType > > singleWeight = new ArrayList< RealRandomAccessible< FloatType > >();
-			
-			for ( int i = 0; i < inputData.size(); ++i )
-				singleWeight.add( weights.get( i ).get( 0 ) );
-			
-			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
-		}
+		final ArrayList< ProcessParalellPortion< T > > tasks = createTasks( portions, imgs, weights, interpolatorFactory, getTransforms( inputData ), fusedImg );
 
 		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
 
@@ -135,4 +116,107 @@ public class ProcessParalell extends ProcessFusion
 		
 		return fusedImg;
 	}
+
+	/**
+	 * Creates the fusion tasks for all portions depending on the number of weights, each task
+	 * only gets the views whose transformed bounding box intersects its portion
+	 *
+	 * @param portions - the portions (lines) of the fused image
+	 * @param imgs - the input images
+	 * @param weights - all weights for each input image
+	 * @param interpolatorFactory
+	 * @param transforms - the transformations of the input images
+	 * @param fusedImg - the image (or block of the image) to fuse into
+	 * @return
+	 */
+	protected < T extends RealType< T > > ArrayList< ProcessParalellPortion< T > > createTasks(
+			final List< ImagePortion > portions,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final RandomAccessibleInterval< T > fusedImg )
+	{
+		final ArrayList< ProcessParalellPortion< T > > tasks = new ArrayList< ProcessParalellPortion< T > >();
+
+		// where are the views in the fused image
+		final ViewOverlap overlap = new ViewOverlap( transforms, imgs, bb, bb.getDownSampling() );
+
+		// only one weight per view
+		final ArrayList< RealRandomAccessible< FloatType > > singleWeight = new ArrayList< RealRandomAccessible< FloatType > >();
+
+		if ( weights.get( 0 ).size() == 1 )
+			for ( int i = 0; i < imgs.size(); ++i )
+				singleWeight.add( weights.get( i ).get( 0 ) );
+
+		for ( final ImagePortion portion : portions )
+		{
+			// only the views that intersect the lines of this portion are fused
+			final int[] views = overlap.overlappingViews( portion, fusedImg );
+
+			// nothing to do, the fused image is 0 there
+			if ( views.length == 0 )
+				continue;
+
+			final ArrayList< RandomAccessibleInterval< T > > portionImgs = ViewOverlap.subset( imgs, views );
+			final AffineTransform3D[] portionTransforms = ViewOverlap.subset( transforms, views );
+
+			if ( weights.get( 0 ).size() == 0 ) // no weights
+				tasks.add( new ProcessParalellPortion< T >( portion, portionImgs, interpolatorFactory, portionTransforms, fusedImg, bb ) );
+			else if ( weights.get( 0 ).size() > 1 ) // many weights
+				tasks.add( new ProcessParalellPortionWeights< T >( portion, portionImgs, ViewOverlap.subset( weights, views ), interpolatorFactory, portionTransforms, fusedImg, bb ) );
+			else // one weight
+				tasks.add( new ProcessParalellPortionWeight< T >( portion, portionImgs, ViewOverlap.subset( singleWeight, views ), interpolatorFactory, portionTransforms, fusedImg, bb ) );
+		}
+
+		return tasks;
+	}
+
+	/**
+	 * Creates the fusion tasks for all portions depending on the number of weights, all tasks fuse the
+	 * same views (e.g. the views that intersect the block the portions belong to)
+	 *
+	 * @param portions - the portions (lines) of the fused image
+	 * @param imgs - the input images
+	 * @param weights - all weights for each input image
+	 * @param interpolatorFactory
+	 * @param transforms - the transformations of the input images
+	 * @param fusedImg - the image (or block of the image) to fuse into
+	 * @param views - the indices of the views that are fused
+	 * @return
+	 */
+	protected < T extends RealType< T > > ArrayList< ProcessParalellPortion< T > > createTasks(
+			final List< ImagePortion > portions,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final RandomAccessibleInterval< T > fusedImg,
+			final int[] views )
+	{
+		final ArrayList< ProcessParalellPortion< T > > tasks = new ArrayList< ProcessParalellPortion< T > >();
+
+		final ArrayList< RandomAccessibleInterval< T > > viewImgs = ViewOverlap.subset( imgs, views );
+		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > viewWeights = ViewOverlap.subset( weights, views );
+		final AffineTransform3D[] viewTransforms = ViewOverlap.subset( transforms, views );
+
+		// only one weight per view
+		final ArrayList< RealRandomAccessible< FloatType > > singleWeight = new ArrayList< RealRandomAccessible< FloatType > >();
+
+		if ( weights.get( 0 ).size() == 1 )
+			for ( int i = 0; i < viewImgs.size(); ++i )
+				singleWeight.add( viewWeights.get( i ).get( 0 ) );
+
+		for ( final ImagePortion portion : portions )
+		{
+			if ( weights.get( 0 ).size() == 0 ) // no weights
+				tasks.add( new ProcessParalellPortion< T >( portion, viewImgs, interpolatorFactory, viewTransforms, fusedImg, bb ) );
+			else if ( weights.get( 0 ).size() > 1 ) // many weights
+				tasks.add( new ProcessParalellPortionWeights< T >( portion, viewImgs, viewWeights, interpolatorFactory, viewTransforms, fusedImg, bb ) );
+			else // one weight
+				tasks.add( new ProcessParalellPortionWeight< T >( portion, viewImgs, singleWeight, interpolatorFactory, viewTransforms, fusedImg, bb ) );
+		}
+
+		return tasks;
+	}
 }
@@ -1,20 +1,20 @@
 package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.InverseTransformLineStepper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 /**
@@ -34,7 +34,7 @@ public class ProcessParalellPortionWeights< T extends RealType< T > > extends Pr
 			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
 			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
 			final AffineTransform3D[] transforms,
-			final Img< T > fusedImg,
+			final RandomAccessibleInterval< T > fusedImg,
 			final BoundingBoxGUI bb )
 	{
 		super( portion, imgs, interpolatorFactory, transforms, fusedImg, bb );
@@ -46,18 +46,17 @@ public class ProcessParalellPortionWeights< T extends RealType< T > > extends Pr
 	public String call() throws Exception 
 	{
 		final int numViews = imgs.size();
+		final int width = (int)fusedImg.dimension( 0 );
+		final long height = fusedImg.dimension( 1 );
 		
-		// make the interpolators, weights and get the transformations
+		// make the interpolators, weights and the line steppers
 		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >( numViews );
 		final ArrayList< ArrayList< RealRandomAccess< FloatType > > > weightAccess = new ArrayList< ArrayList< RealRandomAccess< FloatType > > >();
-		final int[][] imgSizes = new int[ numViews ][ 3 ];
+		final InverseTransformLineStepper[] steppers = createLineSteppers();
 		
 		for ( int i = 0; i < numViews; ++i )
 		{
-			final RandomAccessibleInterval< T > img = imgs.get( i );
-			imgSizes[ i ] = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
-			
-			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
+			interpolators.add( Views.interpolate( Views.extendMirrorSingle( imgs.get( i ) ), interpolatorFactory ).realRandomAccess() );
 			
 			final ArrayList< RealRandomAccess< FloatType > > list = new ArrayList< RealRandomAccess< FloatType > >();
 
@@ -67,56 +66,64 @@ public class ProcessParalellPortionWeights< T extends RealType< T > > extends Pr
 			weightAccess.add( list );
 		}
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final float[] s = new float[ 3 ];
+		final RandomAccess< T > randomAccess = fusedImg.randomAccess();
 		final float[] t = new float[ 3 ];
 		
-		cursor.jumpFwd( portion.getStartPosition() );
+		// the intensities and weights of the current line
+		final double[] sum = new double[ width ];
+		final double[] sumW = new double[ width ];
 		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
+		final long lastLine = portion.getStartPosition() + portion.getLoopSize();
+
+		for ( long line = portion.getStartPosition(); line < lastLine; ++line )
 		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
-			
-			if ( doDownSampling )
-			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
+			final long y = fusedImg.min( 1 ) + line % height;
+			final long z = fusedImg.min( 2 ) + line / height;
 			
-			double sum = 0;
-			double sumW = 0;
+			Arrays.fill( sum, 0 );
+			Arrays.fill( sumW, 0 );
 			
 			for ( int i = 0; i < numViews; ++i )
 			{				
-				transforms[ i ].applyInverse( t, s );
+				final InverseTransformLineStepper stepper = steppers[ i ];
 				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				// this view does not cover the current line
+				if ( !stepper.setLine( y, z ) )
+					continue;
+
+				final RealRandomAccess< T > r = interpolators.get( i );
+				final ArrayList< RealRandomAccess< FloatType > > weightList = weightAccess.get( i );
+				final int maxX = stepper.getMaxX();
+
+				for ( int x = stepper.getMinX(); x < maxX; ++x )
 				{
-					final RealRandomAccess< T > r = interpolators.get( i );
+					stepper.localize( x, t );
 					r.setPosition( t );
 					
 					double w = 1;
 					
-					for ( final RealRandomAccess< FloatType > weight : weightAccess.get( i ) )
+					for ( final RealRandomAccess< FloatType > weight : weightList )
 					{
 						weight.setPosition( t );
 						w *= weight.get().get();
 					}
 					
-					sum += r.get().getRealDouble() * w;
-					sumW += w;
+					sum[ x ] += r.get().getRealDouble() * w;
+					sumW[ x ] += w;
 				}
 			}
 			
-			if ( sumW > 0 )
-				v.setReal( sum / sumW );
+			randomAccess.setPosition( fusedImg.min( 0 ), 0 );
+			randomAccess.setPosition( y, 1 );
+			randomAccess.setPosition( z, 2 );
+
+			for ( int x = 0; x < width; ++x )
+			{
+				if ( sumW[ x ] > 0 )
+					randomAccess.get().setReal( sum[ x ] / sumW[ x ] );
+
+				randomAccess.fwd( 0 );
+			}
 		}
 		
 		return portion + " finished successfully (many weights).";
@@ -19,6 +19,7 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -26,6 +27,7 @@ import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.ViewOverlap;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 public class ProcessSequential extends ProcessFusion
@@ -119,32 +121,40 @@ public class ProcessSequential extends ProcessFusion
 			for ( int i = 0; i < inputData.size(); ++i )
 				weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
 			
-			// split up into many parts for multithreading
-			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
+			// split up into many parts (lines of the fused image) for multithreading
+			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.dimension( 1 ) * fusedImg.dimension( 2 ), Threads.numThreads() * 4 );
 
 			// set up executor service
 			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
 			final ArrayList< ProcessSequentialPortion< T > > tasks = new ArrayList< ProcessSequentialPortion< T > >();
 
-			if ( weights.get( 0 ).size() == 0 ) // no weights
-			{		
-				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortion< T >( portion, imgs, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
-			}
-			else if ( weights.get( 0 ).size() > 1 ) // many weights
-			{
-				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortionWeights< T >( portion, imgs, weights, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
-			}
-			else // one weight
-			{
-				final ArrayList< RealRandomAccessible< FloatType > > singleWeight = new ArrayList< RealRandomAccessible< FloatType > >();
-				
+			// where are the views of this batch in the fused image
+			final AffineTransform3D[] transforms = getTransforms( inputData );
+			final ViewOverlap overlap = new ViewOverlap( transforms, imgs, bb, bb.getDownSampling() );
+
+			final ArrayList< RealRandomAccessible< FloatType > > singleWeight = new ArrayList< RealRandomAccessible< FloatType > >();
+
+			if ( weights.get( 0 ).size() == 1 )
 				for ( int i = 0; i < inputData.size(); ++i )
 					singleWeight.add( weights.get( i ).get( 0 ) );
-				
-				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
+
+			for ( final ImagePortion portion : portions )
+			{
+				// only the views that intersect the lines of this portion are fused
+				final int[] views = overlap.overlappingViews( portion, fusedImg );
+
+				if ( views.length == 0 )
+					continue;
+
+				final ArrayList< RandomAccessibleInterval< T > > portionImgs = ViewOverlap.subset( imgs, views );
+				final AffineTransform3D[] portionTransforms = ViewOverlap.subset( transforms, views );
+
+				if ( weights.get( 0 ).size() == 0 ) // no weights
+					tasks.add( new ProcessSequentialPortion< T >( portion, portionImgs, interpolatorFactory, portionTransforms, fusedImg, weightImg, bb ) );
+				else if ( weights.get( 0 ).size() > 1 ) // many weights
+					tasks.add( new ProcessSequentialPortionWeights< T >( portion, portionImgs, ViewOverlap.subset( weights, views ), interpolatorFactory, portionTransforms, fusedImg, weightImg, bb ) );
+				else // one weight
+					tasks.add( new ProcessSequentialPortionWeight< T >( portion, portionImgs, ViewOverlap.subset( singleWeight, views ), interpolatorFactory, portionTransforms, fusedImg, weightImg, bb ) );
 			}
 
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
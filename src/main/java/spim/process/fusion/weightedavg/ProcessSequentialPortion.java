@@ -1,19 +1,19 @@
 package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
-import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.InverseTransformLineStepper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 /**
@@ -26,15 +26,15 @@ import spim.process.fusion.boundingbox.BoundingBoxGUI;
  */
 public class ProcessSequentialPortion< T extends RealType< T > > extends ProcessParalellPortion< T >
 {
-	final Img< FloatType > weightImg;
+	final RandomAccessibleInterval< FloatType > weightImg;
 	
 	public ProcessSequentialPortion(
 			final ImagePortion portion,
 			final ArrayList< RandomAccessibleInterval< T > > imgs,
 			final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory,
 			final AffineTransform3D[] transforms,
-			final Img< T > fusedImg,
-			final Img< FloatType > weightImg,
+			final RandomAccessibleInterval< T > fusedImg,
+			final RandomAccessibleInterval< FloatType > weightImg,
 			final BoundingBoxGUI bb )
 	{
 		super( portion, imgs, interpolatorFactory, transforms, fusedImg, bb );
@@ -46,68 +46,75 @@ public class ProcessSequentialPortion< T extends RealType< T > > extends Process
 	public String call() throws Exception 
 	{
 		final int numViews = imgs.size();
+		final int width = (int)fusedImg.dimension( 0 );
+		final long height = fusedImg.dimension( 1 );
 		
-		// make the interpolators and get the transformations
+		// make the interpolators and the line steppers
 		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >( numViews );
-		final int[][] imgSizes = new int[ numViews ][ 3 ];
+		final InverseTransformLineStepper[] steppers = createLineSteppers();
 		
 		for ( int i = 0; i < numViews; ++i )
-		{
-			final RandomAccessibleInterval< T > img = imgs.get( i );
-			imgSizes[ i ] = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
+			interpolators.add( Views.interpolate( Views.extendMirrorSingle( imgs.get( i ) ), interpolatorFactory ).realRandomAccess() );
 			
-			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
-		}
-
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final Cursor< FloatType > cursorW = weightImg.cursor();
-		
-		final float[] s = new float[ 3 ];
+		final RandomAccess< T > randomAccess = fusedImg.randomAccess();
+		final RandomAccess< FloatType > randomAccessW = weightImg.randomAccess();
 		final float[] t = new float[ 3 ];
 		
-		cursor.jumpFwd( portion.getStartPosition() );
-		cursorW.jumpFwd( portion.getStartPosition() );
+		// the intensities and weights of the current line
+		final double[] sum = new double[ width ];
+		final int[] sumW = new int[ width ];
 		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
+		final long lastLine = portion.getStartPosition() + portion.getLoopSize();
+
+		for ( long line = portion.getStartPosition(); line < lastLine; ++line )
 		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
-			
-			// move weight cursor forward and get the value 
-			final FloatType w = cursorW.next();
-			
-			if ( doDownSampling )
-			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
+			final long y = fusedImg.min( 1 ) + line % height;
+			final long z = fusedImg.min( 2 ) + line / height;
 			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			double sum = 0;
-			int sumW = 0;
+			Arrays.fill( sum, 0 );
+			Arrays.fill( sumW, 0 );
 			
 			for ( int i = 0; i < numViews; ++i )
 			{				
-				transforms[ i ].applyInverse( t, s );
+				final InverseTransformLineStepper stepper = steppers[ i ];
 				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				// this view does not cover the current line
+				if ( !stepper.setLine( y, z ) )
+					continue;
+
+				final RealRandomAccess< T > r = interpolators.get( i );
+				final int maxX = stepper.getMaxX();
+
+				for ( int x = stepper.getMinX(); x < maxX; ++x )
 				{
-					final RealRandomAccess< T > r = interpolators.get( i );
+					stepper.localize( x, t );
 					r.setPosition( t );
-					sum += r.get().getRealDouble();
-					++sumW;
+					sum[ x ] += r.get().getRealDouble();
+					++sumW[ x ];
 				}
 			}
 			
-			if ( sumW > 0 )
+			randomAccess.setPosition( fusedImg.min( 0 ), 0 );
+			randomAccess.setPosition( y, 1 );
+			randomAccess.setPosition( z, 2 );
+
+			randomAccessW.setPosition( fusedImg.min( 0 ), 0 );
+			randomAccessW.setPosition( y, 1 );
+			randomAccessW.setPosition( z, 2 );
+
+			for ( int x = 0; x < width; ++x )
 			{
-				v.setReal( v.getRealFloat() + sum );
-				w.set( w.get() + sumW );
+				if ( sumW[ x ] > 0 )
+				{
+					final T v = randomAccess.get();
+					final FloatType w = randomAccessW.get();
+
+					v.setReal( v.getRealFloat() + sum[ x ] );
+					w.set( w.get() + sumW[ x ] );
+				}
+
+				randomAccess.fwd( 0 );
+				randomAccessW.fwd( 0 );
 			}
 		}
 		
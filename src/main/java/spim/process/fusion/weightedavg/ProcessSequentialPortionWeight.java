@@ -1,20 +1,20 @@
 package spim.process.fusion.weightedavg;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
+import spim.process.fusion.InverseTransformLineStepper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
 /**
@@ -35,8 +35,8 @@ public class ProcessSequentialPortionWeight< T extends RealType< T > > extends P
 			final ArrayList< RealRandomAccessible< FloatType > > weights,
 			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
 			final AffineTransform3D[] transforms,
-			final Img< T > fusedImg,
-			final Img< FloatType > weightImg,
+			final RandomAccessibleInterval< T > fusedImg,
+			final RandomAccessibleInterval< FloatType > weightImg,
 			final BoundingBoxGUI bb )
 	{
 		super( portion, imgs, interpolatorFactory, transforms, fusedImg, weightImg, bb );
@@ -48,77 +48,84 @@ public class ProcessSequentialPortionWeight< T extends RealType< T > > extends P
 	public String call() throws Exception 
 	{
 		final int numViews = imgs.size();
+		final int width = (int)fusedImg.dimension( 0 );
+		final long height = fusedImg.dimension( 1 );
 		
-		// make the interpolators, weights and get the transformations
+		// make the interpolators, weights and the line steppers
 		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >( numViews );
 		final ArrayList< RealRandomAccess< FloatType > > weightAccess = new ArrayList< RealRandomAccess< FloatType > >();
-		final int[][] imgSizes = new int[ numViews ][ 3 ];
+		final InverseTransformLineStepper[] steppers = createLineSteppers();
 		
 		for ( int i = 0; i < numViews; ++i )
 		{
-			final RandomAccessibleInterval< T > img = imgs.get( i );
-			imgSizes[ i ] = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
-			
-			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
-						
+			interpolators.add( Views.interpolate( Views.extendMirrorSingle( imgs.get( i ) ), interpolatorFactory ).realRandomAccess() );
 			weightAccess.add( weights.get( i ).realRandomAccess() );
 		}
 
-		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final Cursor< FloatType > cursorW = weightImg.cursor();
-
-		final float[] s = new float[ 3 ];
+		final RandomAccess< T > randomAccess = fusedImg.randomAccess();
+		final RandomAccess< FloatType > randomAccessW = weightImg.randomAccess();
 		final float[] t = new float[ 3 ];
 		
-		cursor.jumpFwd( portion.getStartPosition() );
-		cursorW.jumpFwd( portion.getStartPosition() );
+		// the intensities and weights of the current line
+		final double[] sum = new double[ width ];
+		final double[] sumW = new double[ width ];
 		
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
-		{
-			// move img cursor forward any get the value (saves one access)
-			final T v = cursor.next();
-			cursor.localize( s );
+		final long lastLine = portion.getStartPosition() + portion.getLoopSize();
 
-			// move weight cursor forward and get the value 
-			final FloatType w = cursorW.next();
+		for ( long line = portion.getStartPosition(); line < lastLine; ++line )
+		{
+			final long y = fusedImg.min( 1 ) + line % height;
+			final long z = fusedImg.min( 2 ) + line / height;
 
-			if ( doDownSampling )
-			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
-			double sum = 0;
-			double sumW = 0;
+			Arrays.fill( sum, 0 );
+			Arrays.fill( sumW, 0 );
 			
 			for ( int i = 0; i < numViews; ++i )
 			{				
-				transforms[ i ].applyInverse( t, s );
+				final InverseTransformLineStepper stepper = steppers[ i ];
 				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+				// this view does not cover the current line
+				if ( !stepper.setLine( y, z ) )
+					continue;
+
+				final RealRandomAccess< T > r = interpolators.get( i );
+				final RealRandomAccess< FloatType > weight = weightAccess.get( i );
+				final int maxX = stepper.getMaxX();
+
+				for ( int x = stepper.getMinX(); x < maxX; ++x )
 				{
-					final RealRandomAccess< T > r = interpolators.get( i );
+					stepper.localize( x, t );
 					r.setPosition( t );
-					
-					final RealRandomAccess< FloatType > weight = weightAccess.get( i );
 					weight.setPosition( t );
 					
 					final double w1 = weight.get().get();
 					
-					sum += r.get().getRealDouble() * w1;
-					sumW += w1;
+					sum[ x ] += r.get().getRealDouble() * w1;
+					sumW[ x ] += w1;
 				}
 			}
 			
-			if ( sumW > 0 )
+			randomAccess.setPosition( fusedImg.min( 0 ), 0 );
+			randomAccess.setPosition( y, 1 );
+			randomAccess.setPosition( z, 2 );
+
+			randomAccessW.setPosition( fusedImg.min( 0 ), 0 );
+			randomAccessW.setPosition( y, 1 );
+			randomAccessW.setPosition( z, 2 );
+
+			for ( int x = 0; x < width; ++x )
 			{
-				v.setReal( v.getRealFloat() + sum );
-				w.set( w.get() + (float)sumW );
+				if ( sumW[ x ] > 0 )
+				{
+					final T v = randomAccess.get();
+					final FloatType w = randomAccessW.get();
+
+					v.setReal( v.getRealFloat() + sum[ x ] );
+					w.set( w.get() + (float)sumW[ x ] );
+				}
+
+				randomAccess.fwd( 0 );
+				randomAccessW.fwd( 0 );
 			}
 		}
 		
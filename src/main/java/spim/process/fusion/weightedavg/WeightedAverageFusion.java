@@ -17,9 +17,11 @@ import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -39,6 +41,12 @@ public class WeightedAverageFusion extends Fusion
 	
 	public static int defaultNumParalellViewsIndex = 0;
 	protected int numParalellViews = 1;
+
+	public static String[] contentBasedDownsamplingChoice = new String[]{ "Full resolution", "2x downsampled", "4x downsampled" };
+	public static int defaultContentBasedDownsamplingIndex = 0;
+
+	public static boolean defaultFuseBlockwise = false;
+	protected boolean fuseBlockwise = false;
 	
 	protected Choice sequentialViews = null;
 
@@ -72,7 +80,9 @@ public class WeightedAverageFusion extends Fusion
 
 		final ProcessFusion process;
 		
-		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && numParalellViews == 0 )
+		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && fuseBlockwise )
+			process = new ProcessBlockwise( spimData, viewIdsToProcess, bb, useBlending, useContentBased, ProcessBlockwise.defaultBlockSize );
+		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && numParalellViews == 0 )
 			process = new ProcessParalell( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
 		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA )
 			process = new ProcessSequential( spimData, viewIdsToProcess, bb, useBlending, useContentBased, numParalellViews );
@@ -80,34 +90,58 @@ public class WeightedAverageFusion extends Fusion
 			process = new ProcessIndependent( spimData, viewIdsToProcess, bb, exporter, newViewsetups );
 
 
-		for ( final TimePoint t : timepointsToProcess )
-			for ( final Channel c : channelsToProcess )
-			{
-				final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
-				final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
-
-				titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
-				if ( bb.getPixelType() == 0 )
-				{
-					exporter.exportImage(
-							process.fuseStack( new FloatType(), getInterpolatorFactory( new FloatType() ), t , c ),
-							bb,
-							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
-				}
-				else
+		try
+		{
+			for ( final TimePoint t : timepointsToProcess )
+				for ( final Channel c : channelsToProcess )
 				{
-					exporter.exportImage(
-							process.fuseStack( new UnsignedShortType(), getInterpolatorFactory( new UnsignedShortType() ), t , c ),
-							bb,
-							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+					final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+					final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+
+					titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
+					if ( bb.getPixelType() == 0 )
+					{
+						exporter.exportImage(
+								fuse( process, new FloatType(), t, c ),
+								bb,
+								t,
+								newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+					}
+					else
+					{
+						exporter.exportImage(
+								fuse( process, new UnsignedShortType(), t, c ),
+								bb,
+								t,
+								newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+					}
 				}
-			}
+		}
+		finally
+		{
+			// the block-wise fusion keeps its threads until everything is exported
+			if ( process instanceof ProcessBlockwise )
+				( (ProcessBlockwise)process ).shutdown();
+		}
 
 		return true;
 	}
 
+	/**
+	 * Fuses one timepoint/channel, the block-wise fusion returns an image that is fused while the exporter reads it
+	 */
+	protected < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< T > fuse(
+			final ProcessFusion process,
+			final T type,
+			final TimePoint t,
+			final Channel c )
+	{
+		if ( process instanceof ProcessBlockwise )
+			return ( (ProcessBlockwise)process ).fuseStackBlockwise( type, getInterpolatorFactory( type ), t, c );
+		else
+			return process.fuseStack( type, getInterpolatorFactory( type ), t, c );
+	}
+
 	@Override
 	public boolean queryParameters()
 	{
@@ -170,7 +204,10 @@ public class WeightedAverageFusion extends Fusion
 		if ( this.getFusionType() == WeightedAvgFusionType.FUSEDATA )
 		{
 			gd.addCheckbox( "Blend images smoothly", Fusion.defaultUseBlending );
+			gd.addCheckbox( "Tabulated_blending_weights (faster, approximate)", ProcessFusion.defaultUseTabulatedBlending );
 			gd.addCheckbox( "Content-based fusion", Fusion.defaultUseContentBased );
+			gd.addChoice( "Compute_content-based_weights_on", contentBasedDownsamplingChoice, contentBasedDownsamplingChoice[ defaultContentBasedDownsamplingIndex ] );
+			gd.addCheckbox( "Fuse_in_blocks (streams to the export, low memory)", defaultFuseBlockwise );
 		}
 		gd.addChoice( "Interpolation", Fusion.interpolationTypes, Fusion.interpolationTypes[ Fusion.defaultInterpolation ] );
 	}
@@ -183,11 +220,15 @@ public class WeightedAverageFusion extends Fusion
 			defaultNumParalellViewsIndex = gd.getNextChoiceIndex();
 			this.numParalellViews = defaultNumParalellViewsIndex;
 			this.useBlending = Fusion.defaultUseBlending = gd.getNextBoolean();
+			ProcessFusion.defaultUseTabulatedBlending = gd.getNextBoolean();
 			this.useContentBased = Fusion.defaultUseContentBased = gd.getNextBoolean();
+			defaultContentBasedDownsamplingIndex = gd.getNextChoiceIndex();
+			ProcessFusion.defaultContentBasedDownsampling = 1 << defaultContentBasedDownsamplingIndex;
+			this.fuseBlockwise = defaultFuseBlockwise = gd.getNextBoolean();
 		}
 		else
 		{
-			this.useBlending = this.useContentBased = false;
+			this.useBlending = this.useContentBased = this.fuseBlockwise = false;
 		}
 		this.interpolation = Fusion.defaultInterpolation = gd.getNextChoiceIndex();
 
@@ -52,11 +52,33 @@ public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 	@Override
 	public FloatType get()
 	{
-		v.set( computeWeight( l, min, dimMinus1, border, blending, n ) );
+		final float distance = computeDistance( l, min, dimMinus1, border, blending, n );
+
+		if ( distance >= 1 )
+			v.set( 1 );
+		else if ( distance <= 0 )
+			v.set( 0 );
+		else
+			v.set( computeWeight( distance ) );
+
 		return v;
 	}
 
-	final private static float computeWeight(
+	/**
+	 * The blending profile, subclasses may compute it differently
+	 *
+	 * @param distance - the multiplicative distance to the borders, in (0...1)
+	 * @return - the weight
+	 */
+	protected float computeWeight( final float distance )
+	{
+		return (float)( Math.cos( (1 - distance) * Math.PI ) + 1 ) / 2;
+	}
+
+	/**
+	 * @return - the multiplicative distance to the respective borders [0...1]
+	 */
+	final protected static float computeDistance(
 			final float[] location,
 			final int[] min, 
 			final int[] dimMinus1,
@@ -78,12 +100,7 @@ public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 			minDistance *= Math.min( 1, dist / blending[ d ] );
 		}
 
-		if ( minDistance >= 1 )
-			return 1;
-		else if ( minDistance <= 0)
-			return 0;
-		else
-			return (float)( Math.cos( (1 - minDistance) * Math.PI ) + 1 ) / 2;
+		return minDistance;
 	}
 
 	@Override
@@ -0,0 +1,33 @@
+package spim.process.fusion.weights;
+
+import net.imglib2.Interval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Same blending function as {@link Blending}, but the cosine is looked up from a
+ * precomputed table instead of being evaluated for every sample
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ *
+ */
+public class BlendingTabulated extends Blending
+{
+	/**
+	 * RealRandomAccess that computes a tabulated blending function for a certain {@link Interval}
+	 *
+	 * @param interval - the interval it is defined on (return zero outside of it)
+	 * @param border - how many pixels to skip before starting blending (on each side of each dimension)
+	 * @param blending - how many pixels to compute the blending function on (on each side of each dimension)
+	 */
+	public BlendingTabulated( final Interval interval, final float[] border, final float[] blending )
+	{
+		super( interval, border, blending );
+	}
+
+	@Override
+	public RealRandomAccess<FloatType> realRandomAccess()
+	{
+		return new BlendingTabulatedRealRandomAccess( interval, border, blending );
+	}
+}
@@ -0,0 +1,61 @@
+package spim.process.fusion.weights;
+
+import net.imglib2.Interval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Computes the same weights as {@link BlendingRealRandomAccess}, only the cosine profile is taken from
+ * a lookup table with linear interpolation (max error ~6e-7 for the default table size)
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ *
+ */
+public class BlendingTabulatedRealRandomAccess extends BlendingRealRandomAccess
+{
+	/**
+	 * number of intervals the blending function is tabulated with
+	 */
+	final public static int lutSize = 1024;
+
+	/**
+	 * ( cos( (1 - x) * PI ) + 1 ) / 2 for x in [0...1]
+	 */
+	final private static float[] lut = createLUT( lutSize );
+
+	public BlendingTabulatedRealRandomAccess(
+			final Interval interval,
+			final float[] border,
+			final float[] blending )
+	{
+		super( interval, border, blending );
+	}
+
+	@Override
+	protected float computeWeight( final float distance )
+	{
+		final float x = distance * lutSize;
+		final int i = (int)x;
+		final float f = x - i;
+
+		return lut[ i ] + f * ( lut[ i + 1 ] - lut[ i ] );
+	}
+
+	final private static float[] createLUT( final int size )
+	{
+		final float[] lut = new float[ size + 1 ];
+
+		for ( int i = 0; i <= size; ++i )
+			lut[ i ] = (float)( Math.cos( ( 1 - (double)i / (double)size ) * Math.PI ) + 1 ) / 2;
+
+		return lut;
+	}
+
+	@Override
+	public RealRandomAccess<FloatType> copyRealRandomAccess()
+	{
+		final BlendingTabulatedRealRandomAccess r = new BlendingTabulatedRealRandomAccess( interval, border, blending );
+		r.setPosition( this );
+		return r;
+	}
+}
@@ -24,6 +24,7 @@ import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import spim.process.fusion.FusionHelper;
+import spim.process.interestpointdetection.Downsample;
 
 /**
  * Computes the content-based fusion on a given image
@@ -36,26 +37,96 @@ public class ContentBased< T extends RealType< T > > implements RealRandomAccess
 {
 	/**
 	 * The Img containing the approxmimated content-based weights
+	 * (possibly computed on a downsampled version of the input)
 	 */
 	final Img< FloatType > contentBasedImg;
 	final int n;
-	
+
+	/**
+	 * The downsampling of contentBasedImg relative to the input in each dimension
+	 */
+	final double[] scale;
+	final boolean isDownsampled;
+
 	public ContentBased(
 			final RandomAccessibleInterval< T > input,
 			final ImgFactory< ComplexFloatType > imgFactory,
 			final double[] sigma1,
 			final double[] sigma2 )
+	{
+		this( input, imgFactory, sigma1, sigma2, 1 );
+	}
+
+	/**
+	 * @param input - the input image
+	 * @param imgFactory - the factory for the FFT convolutions
+	 * @param sigma1 - sigma of the first gaussian (in pixels of the input)
+	 * @param sigma2 - sigma of the second gaussian (in pixels of the input)
+	 * @param downsampling - compute the weights on an image that is downsampled by up to this factor (1, 2, 4, ...) in
+	 * every dimension where the sigmas are large enough, the weights are interpolated when they are accessed
+	 */
+	public ContentBased(
+			final RandomAccessibleInterval< T > input,
+			final ImgFactory< ComplexFloatType > imgFactory,
+			final double[] sigma1,
+			final double[] sigma2,
+			final int downsampling )
 	{
 		this.n = input.numDimensions();
-		
-		this.contentBasedImg = approximateEntropy(
-				new ConvertedRandomAccessibleInterval< T, FloatType >( input, new RealFloatConverter< T >(),  new FloatType() ),
-				imgFactory,
-				sigma1,
-				sigma2 );		
+		this.scale = new double[ n ];
+
+		RandomAccessibleInterval< FloatType > img = new ConvertedRandomAccessibleInterval< T, FloatType >( input, new RealFloatConverter< T >(),  new FloatType() );
+
+		ImgFactory<FloatType> f;
+		try { f = imgFactory.imgFactory( new FloatType() ); } catch (IncompatibleTypeException e) { f = new ArrayImgFactory< FloatType >(); }
+
+		for ( int d = 0; d < n; ++d )
+			scale[ d ] = 1;
+
+		// downsample by 2 as long as the gaussians still cover at least one pixel
+		for ( int ds = 2; ds <= downsampling; ds *= 2 )
+		{
+			final boolean[] downsampleInDim = new boolean[ n ];
+			boolean downsample = false;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				downsampleInDim[ d ] = sigma1[ d ] / ( scale[ d ] * 2 ) >= 1 && img.dimension( d ) >= 4;
+				downsample |= downsampleInDim[ d ];
+			}
+
+			if ( !downsample )
+				break;
+
+			img = Downsample.simple2x( img, f, downsampleInDim );
+
+			for ( int d = 0; d < n; ++d )
+				if ( downsampleInDim[ d ] )
+					scale[ d ] *= 2;
+		}
+
+		final double[] s1 = new double[ n ];
+		final double[] s2 = new double[ n ];
+
+		boolean isDownsampled = false;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			s1[ d ] = sigma1[ d ] / scale[ d ];
+			s2[ d ] = sigma2[ d ] / scale[ d ];
+			isDownsampled |= scale[ d ] > 1;
+		}
+
+		this.isDownsampled = isDownsampled;
+		this.contentBasedImg = approximateEntropy( img, imgFactory, s1, s2 );
 	}
 	
 	public Img< FloatType > getContentBasedImg() { return contentBasedImg; }
+
+	/**
+	 * @return - the downsampling of the content-based weight image relative to the input in each dimension
+	 */
+	public double[] getScale() { return scale; }
 	
 	protected Img< FloatType > approximateEntropy(
 			final RandomAccessibleInterval< FloatType > input,
@@ -103,6 +174,17 @@ public class ContentBased< T extends RealType< T > > implements RealRandomAccess
 	@Override
 	public RealRandomAccess<FloatType> realRandomAccess()
 	{ 
+		if ( isDownsampled )
+		{
+			// the border of the downsampled image lies up to half a (downsampled) pixel inside the input
+			return new ScaledRealRandomAccess< FloatType >(
+				Views.interpolate(
+					Views.extendBorder( this.contentBasedImg ),
+					new NLinearInterpolatorFactory< FloatType >()
+					).realRandomAccess(),
+				scale );
+		}
+
 		return Views.interpolate(
 			Views.extendZero( this.contentBasedImg ),
 			new NLinearInterpolatorFactory< FloatType >()
@@ -112,6 +194,9 @@ public class ContentBased< T extends RealType< T > > implements RealRandomAccess
 	@Override
 	public RealRandomAccess<FloatType> realRandomAccess( final RealInterval interval )
 	{
+		if ( isDownsampled )
+			return realRandomAccess();
+
 		return Views.interpolate(
 				Views.extendZero( this.contentBasedImg ),
 				new NLinearInterpolatorFactory< FloatType >()
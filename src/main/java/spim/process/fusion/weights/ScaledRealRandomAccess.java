@@ -0,0 +1,49 @@
+package spim.process.fusion.weights;
+
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+
+/**
+ * RealRandomAccess on a downsampled image that is positioned in the coordinates of the full resolution image,
+ * i.e. the position is divided by the downsampling factor of each dimension before the underlying
+ * (interpolated) RealRandomAccess is read.
+ *
+ * @param <T>
+ */
+public class ScaledRealRandomAccess< T > extends RealPoint implements RealRandomAccess< T >
+{
+	final RealRandomAccess< T > source;
+	final double[] scale;
+
+	/**
+	 * @param source - the RealRandomAccess on the downsampled image
+	 * @param scale - the downsampling factor of each dimension
+	 */
+	public ScaledRealRandomAccess( final RealRandomAccess< T > source, final double[] scale )
+	{
+		super( source.numDimensions() );
+
+		this.source = source;
+		this.scale = scale;
+	}
+
+	@Override
+	public T get()
+	{
+		for ( int d = 0; d < n; ++d )
+			source.setPosition( position[ d ] / scale[ d ], d );
+
+		return source.get();
+	}
+
+	@Override
+	public ScaledRealRandomAccess< T > copy() { return copyRealRandomAccess(); }
+
+	@Override
+	public ScaledRealRandomAccess< T > copyRealRandomAccess()
+	{
+		final ScaledRealRandomAccess< T > r = new ScaledRealRandomAccess< T >( source.copyRealRandomAccess(), scale );
+		r.setPosition( this );
+		return r;
+	}
+}
@@ -15,9 +15,20 @@ import spim.fiji.spimdata.interestpoints.InterestPoint;
 
 public class Localization
 {
+	/**
+	 * How often the quadratic fit may move a peak to a neighboring pixel
+	 */
+	public static final int maxNumMoves = 10;
+
 	public static ArrayList< InterestPoint > noLocalization( final ArrayList< SimplePeak > peaks, final boolean findMin, final boolean findMax )
 	{
-		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): NO subpixel localization" );
+		return noLocalization( peaks, findMin, findMax, true );
+	}
+
+	public static ArrayList< InterestPoint > noLocalization( final ArrayList< SimplePeak > peaks, final boolean findMin, final boolean findMax, final boolean verbose )
+	{
+		if ( verbose )
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): NO subpixel localization" );
 
 		final int n = peaks.get( 0 ).location.length;
 		final ArrayList< InterestPoint > peaks2 = new ArrayList< InterestPoint >();
@@ -42,7 +53,13 @@ public class Localization
 
 	public static ArrayList< InterestPoint > computeQuadraticLocalization( final ArrayList< SimplePeak > peaks, final Image< FloatType > domImg, final boolean findMin, final boolean findMax, final float threshold )
 	{
-		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Subpixel localization using quadratic n-dimensional fit");
+		return computeQuadraticLocalization( peaks, domImg, findMin, findMax, threshold, Threads.numThreads(), true );
+	}
+
+	public static ArrayList< InterestPoint > computeQuadraticLocalization( final ArrayList< SimplePeak > peaks, final Image< FloatType > domImg, final boolean findMin, final boolean findMax, final float threshold, final int numThreads, final boolean verbose )
+	{
+		if ( verbose )
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Subpixel localization using quadratic n-dimensional fit");
 
 		final ArrayList< DifferenceOfGaussianPeak<FloatType> > peakList = new ArrayList<DifferenceOfGaussianPeak<FloatType>>();
 
@@ -53,8 +70,8 @@ public class Localization
 
 		final SubpixelLocalization<FloatType> spl = new SubpixelLocalization<FloatType>( domImg, peakList );
 		spl.setAllowMaximaTolerance( true );
-		spl.setMaxNumMoves( 10 );
-		spl.setNumThreads( Threads.numThreads() );
+		spl.setMaxNumMoves( maxNumMoves );
+		spl.setNumThreads( numThreads );
 
 		if ( !spl.checkInput() || !spl.process() )
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Warning! Failed to compute subpixel localization " + spl.getErrorMessage() );
@@ -3,15 +3,24 @@ package spim.process.interestpointdetection;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
 import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.imglib.wrapper.ImgLib2;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.registration.bead.laplace.LaPlaceFunctions;
 import mpicbg.spim.segmentation.SimplePeak;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import spim.Threads;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.cuda.CUDADevice;
@@ -20,6 +29,12 @@ import spim.process.fusion.FusionHelper;
 
 public class ProcessDOG
 {
+	/**
+	 * How many pixels the quadratic fit may move a peak when computing tiles, one pixel per move
+	 * plus the neighborhood it fits at the final position, so tiles give the same result as the whole image
+	 */
+	public static final int localizationSupport = Localization.maxNumMoves + 1;
+
 	/**
 	 * @param deviceList - a list of CUDA capable devices (or null if classic CPU computation in Java)
 	 * @param accurateCUDA - use accurate CUDA implementation (including out of bounds or not)
@@ -84,24 +99,14 @@ public class ProcessDOG
 		// normalize image
 		FusionHelper.normalizeImage( imglib2img, min, max );
 
-		final float k = LaPlaceFunctions.computeK( 4 );
-		final float K_MIN1_INV = LaPlaceFunctions.computeKWeight(k);
-		final int steps = 3;
-		
+		final float K_MIN1_INV = LaPlaceFunctions.computeKWeight( LaPlaceFunctions.computeK( 4 ) );
+
 		//
 		// Compute the Sigmas for the gaussian convolution
 		//
-		final float[] sigmaStepsX = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
-		final float[] sigmaStepsDiffX = LaPlaceFunctions.computeSigmaDiff( sigmaStepsX, (float)imageSigmaX );
-		
-		final float[] sigmaStepsY = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
-		final float[] sigmaStepsDiffY = LaPlaceFunctions.computeSigmaDiff( sigmaStepsY, (float)imageSigmaY );
-		
-		final float[] sigmaStepsZ = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
-		final float[] sigmaStepsDiffZ = LaPlaceFunctions.computeSigmaDiff( sigmaStepsZ, (float)imageSigmaZ );
-		
-		final double[] sigma1 = new double[]{ sigmaStepsDiffX[0], sigmaStepsDiffY[0], sigmaStepsDiffZ[0] };
-		final double[] sigma2 = new double[]{ sigmaStepsDiffX[1], sigmaStepsDiffY[1], sigmaStepsDiffZ[1] };
+		final double[][] sigmas = computeSigmas( initialSigma, imageSigmaX, imageSigmaY, imageSigmaZ );
+		final double[] sigma1 = sigmas[ 0 ];
+		final double[] sigma2 = sigmas[ 1 ];
 
 		// compute difference of gaussian
 		DifferenceOfGaussianNewPeakFinder dog;
@@ -175,4 +180,275 @@ public class ProcessDOG
 
 		return finalPeaks;
 	}
+
+	/**
+	 * Same as compute() (on the CPU), but the view is processed in overlapping tiles that are copied from the input one
+	 * after the other (several in parallel). The halo around each tile covers the gaussian kernel, the peak neighborhood
+	 * and the support of the subpixel localization, so the detections inside the core of each tile are the same as when
+	 * processing the whole image. Only peaks inside the core of a tile are kept, so peaks found in the halo regions are
+	 * not reported twice. The input is not modified and may be a lazily loaded image that does not fit into memory.
+	 *
+	 * @param input - the (potentially lazily loaded) image
+	 * @param tileSize - the size of the core of each tile
+	 * @param sigma
+	 * @param threshold
+	 * @param localization
+	 * @param imageSigmaX
+	 * @param imageSigmaY
+	 * @param imageSigmaZ
+	 * @param findMin
+	 * @param findMax
+	 * @param minIntensity
+	 * @param maxIntensity
+	 * @return
+	 */
+	public static ArrayList< InterestPoint > computeTiled(
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final int tileSize,
+			final float sigma,
+			final float threshold,
+			final int localization,
+			final double imageSigmaX,
+			final double imageSigmaY,
+			final double imageSigmaZ,
+			final boolean findMin,
+			final boolean findMax,
+			final double minIntensity,
+			final double maxIntensity )
+	{
+		final int n = input.numDimensions();
+		final float minPeakValue = threshold;
+		final float minInitialPeakValue;
+
+		if ( localization == 0 )
+			minInitialPeakValue = minPeakValue;
+		else
+			minInitialPeakValue = threshold/10.0f;
+
+		final float min, max;
+
+		// the normalization has to be the same for all tiles
+		if ( Double.isNaN( minIntensity ) || Double.isNaN( maxIntensity ) || Double.isInfinite( minIntensity ) || Double.isInfinite( maxIntensity ) || minIntensity == maxIntensity )
+		{
+			final float[] minmax = FusionHelper.minMax( input );
+			min = minmax[ 0 ];
+			max = minmax[ 1 ];
+		}
+		else
+		{
+			min = (float)minIntensity;
+			max = (float)maxIntensity;
+		}
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): min intensity = " + min + ", max intensity = " + max );
+
+		// like FusionHelper.normalizeImage(), the tiles are not normalized if min and max do not allow it
+		if ( !canNormalize( min, max ) )
+			IOFunctions.println( "Cannot normalize image, min=" + min + "  + max=" + max );
+
+		final float K_MIN1_INV = LaPlaceFunctions.computeKWeight( LaPlaceFunctions.computeK( 4 ) );
+		final double[][] sigmas = computeSigmas( sigma, imageSigmaX, imageSigmaY, imageSigmaZ );
+		final double[] sigma1 = sigmas[ 0 ];
+		final double[] sigma2 = sigmas[ 1 ];
+
+		// the kernel of the larger gaussian, the 3x3x3 neighborhood of the peaks and the moves of the quadratic fit
+		final long[] halo = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			halo[ d ] = (long)Math.ceil( 3 * Math.max( sigma1[ d ], sigma2[ d ] ) ) + 1 + ( localization == 1 ? localizationSupport : 0 );
+
+		final long[] numTiles = new long[ n ];
+		long numTilesTotal = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			numTiles[ d ] = ( input.dimension( d ) + tileSize - 1 ) / tileSize;
+			numTilesTotal *= numTiles[ d ];
+		}
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): computing difference-of-gausian in " + numTilesTotal + " tiles of " + tileSize + "px " +
+				"(halo=" + Util.printCoordinates( halo ) + ", sigma=" + sigma + ", threshold=" + minPeakValue + ", sigma1=" + Util.printCoordinates( sigma1 ) + ", sigma2=" + Util.printCoordinates( sigma2 ) + ")" );
+
+		// the tiles are processed in paralell, each of them single-threaded
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ArrayList< Callable< ArrayList< InterestPoint > > > tasks = new ArrayList< Callable< ArrayList< InterestPoint > > >();
+
+		for ( long i = 0; i < numTilesTotal; ++i )
+		{
+			final long[] coreMin = new long[ n ];
+			final long[] coreMax = new long[ n ];
+			final long[] tileMin = new long[ n ];
+			final long[] tileMax = new long[ n ];
+
+			long index = i;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				coreMin[ d ] = input.min( d ) + ( index % numTiles[ d ] ) * tileSize;
+				coreMax[ d ] = Math.min( coreMin[ d ] + tileSize - 1, input.max( d ) );
+				tileMin[ d ] = Math.max( coreMin[ d ] - halo[ d ], input.min( d ) );
+				tileMax[ d ] = Math.min( coreMax[ d ] + halo[ d ], input.max( d ) );
+
+				index /= numTiles[ d ];
+			}
+
+			tasks.add( new Callable< ArrayList< InterestPoint > >()
+			{
+				@Override
+				public ArrayList< InterestPoint > call() throws Exception
+				{
+					return computeTile( input, tileMin, tileMax, coreMin, coreMax, min, max, sigma, sigma1, sigma2, minInitialPeakValue, K_MIN1_INV, minPeakValue, localization, findMin, findMax );
+				}
+			});
+		}
+
+		final ArrayList< InterestPoint > finalPeaks = new ArrayList< InterestPoint >();
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< ArrayList< InterestPoint > > future : taskExecutor.invokeAll( tasks ) )
+				finalPeaks.addAll( future.get() );
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute tiled difference-of-gaussian: " + e );
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+
+		// the ids of the points of each tile start at zero
+		final ArrayList< InterestPoint > result = new ArrayList< InterestPoint >( finalPeaks.size() );
+
+		for ( final InterestPoint p : finalPeaks )
+			result.add( new InterestPoint( result.size(), p.getL() ) );
+
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + result.size() + " peaks." );
+
+		return result;
+	}
+
+	protected static ArrayList< InterestPoint > computeTile(
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final long[] tileMin,
+			final long[] tileMax,
+			final long[] coreMin,
+			final long[] coreMax,
+			final float min,
+			final float max,
+			final float sigma,
+			final double[] sigma1,
+			final double[] sigma2,
+			final float minInitialPeakValue,
+			final float K_MIN1_INV,
+			final float minPeakValue,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax )
+	{
+		final int n = input.numDimensions();
+		final long[] dim = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			dim[ d ] = tileMax[ d ] - tileMin[ d ] + 1;
+
+		// copy and normalize the tile
+		final Img< net.imglib2.type.numeric.real.FloatType > tile = ArrayImgs.floats( dim );
+		final Cursor< net.imglib2.type.numeric.real.FloatType > cursorIn = Views.flatIterable( Views.interval( input, tileMin, tileMax ) ).cursor();
+		final Cursor< net.imglib2.type.numeric.real.FloatType > cursorOut = tile.cursor();
+		final float diff = max - min;
+
+		if ( canNormalize( min, max ) )
+		{
+			while ( cursorOut.hasNext() )
+				cursorOut.next().set( ( cursorIn.next().get() - min ) / diff );
+		}
+		else
+		{
+			while ( cursorOut.hasNext() )
+				cursorOut.next().set( cursorIn.next().get() );
+		}
+
+		final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( tile );
+
+		final DifferenceOfGaussianNewPeakFinder dog = new DifferenceOfGaussianNewPeakFinder( img, new OutOfBoundsStrategyMirrorFactory<FloatType>(), sigma1, sigma2, minInitialPeakValue, K_MIN1_INV );
+		dog.setComputeConvolutionsParalell( false );
+		dog.setNumThreads( 1 );
+		dog.setKeepDoGImage( localization == 1 );
+		dog.process();
+
+		// only keep the peaks inside the core of the tile, the others are found by the neighboring tiles
+		final ArrayList< SimplePeak > peaks = new ArrayList< SimplePeak >();
+
+		for ( final SimplePeak peak : dog.getSimplePeaks() )
+		{
+			boolean inside = true;
+
+			for ( int d = 0; d < n && inside; ++d )
+			{
+				final long l = peak.location[ d ] + tileMin[ d ];
+				inside = l >= coreMin[ d ] && l <= coreMax[ d ];
+			}
+
+			if ( inside )
+				peaks.add( peak );
+		}
+
+		final ArrayList< InterestPoint > tilePeaks;
+
+		if ( peaks.size() == 0 )
+			tilePeaks = new ArrayList< InterestPoint >();
+		else if ( localization == 0 )
+			tilePeaks = Localization.noLocalization( peaks, findMin, findMax, false );
+		else if ( localization == 1 )
+			tilePeaks = Localization.computeQuadraticLocalization( peaks, dog.getDoGImage(), findMin, findMax, minPeakValue, 1, false );
+		else
+			tilePeaks = Localization.computeGaussLocalization( peaks, null, sigma, findMin, findMax, minPeakValue );
+
+		if ( localization == 1 )
+			dog.getDoGImage().close();
+
+		img.close();
+
+		// back to the coordinates of the input
+		for ( final InterestPoint p : tilePeaks )
+			for ( int d = 0; d < n; ++d )
+				p.getL()[ d ] += tileMin[ d ];
+
+		return tilePeaks;
+	}
+
+	/**
+	 * @return - if the image can be normalized with min and max, same test as FusionHelper.normalizeImage()
+	 */
+	protected static boolean canNormalize( final float min, final float max )
+	{
+		final float diff = max - min;
+
+		return !( Float.isNaN( diff ) || Float.isInfinite( diff ) || diff == 0 );
+	}
+
+	protected static double[][] computeSigmas( final float initialSigma, final double imageSigmaX, final double imageSigmaY, final double imageSigmaZ )
+	{
+		final float k = LaPlaceFunctions.computeK( 4 );
+		final int steps = 3;
+
+		final float[] sigmaStepsX = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffX = LaPlaceFunctions.computeSigmaDiff( sigmaStepsX, (float)imageSigmaX );
+
+		final float[] sigmaStepsY = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffY = LaPlaceFunctions.computeSigmaDiff( sigmaStepsY, (float)imageSigmaY );
+
+		final float[] sigmaStepsZ = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffZ = LaPlaceFunctions.computeSigmaDiff( sigmaStepsZ, (float)imageSigmaZ );
+
+		final double[] sigma1 = new double[]{ sigmaStepsDiffX[0], sigmaStepsDiffY[0], sigmaStepsDiffZ[0] };
+		final double[] sigma2 = new double[]{ sigmaStepsDiffX[1], sigmaStepsDiffY[1], sigmaStepsDiffZ[1] };
+
+		return new double[][]{ sigma1, sigma2 };
+	}
 }
@@ -0,0 +1,138 @@
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Computes the descriptors (KD-trees, point descriptors, ...) of each list of interest points only once
+ * and shares them between all pairwise matchings that use this list, i.e. all pairs a view is part of.
+ *
+ * The lists are identified by instance, a list that was restricted to a part of the view (see
+ * {@link spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType#setOverlapCriteria})
+ * is a new list and gets its own descriptors. The first thread requesting a list computes its descriptors,
+ * all other threads requesting the same list wait for the result.
+ *
+ * @param <D> - the type of the descriptors of one list
+ */
+public class DescriptorCache< D >
+{
+	public static interface DescriptorFactory< D >
+	{
+		/**
+		 * @param detections - the detections of one view, the returned descriptors must not be modified by the matching
+		 * @return - the descriptors of this list of detections
+		 */
+		public D createDescriptors( final ArrayList< Detection > detections );
+	}
+
+	final DescriptorFactory< D > factory;
+	final IdentityHashMap< List< InterestPoint >, FutureTask< D > > cache = new IdentityHashMap< List< InterestPoint >, FutureTask< D > >();
+
+	public DescriptorCache( final DescriptorFactory< D > factory )
+	{
+		this.factory = factory;
+	}
+
+	/**
+	 * @param points - the interest points of one view
+	 * @return - the descriptors of this list, computed on the first request
+	 */
+	public D get( final List< InterestPoint > points )
+	{
+		FutureTask< D > task;
+		boolean compute = false;
+
+		synchronized ( cache )
+		{
+			task = cache.get( points );
+
+			if ( task == null )
+			{
+				task = new FutureTask< D >( new Callable< D >()
+				{
+					@Override
+					public D call() throws Exception
+					{
+						return factory.createDescriptors( createDetections( points ) );
+					}
+				} );
+
+				cache.put( points, task );
+				compute = true;
+			}
+		}
+
+		// compute outside of the lock so that descriptors of different views are created in parallel
+		if ( compute )
+			task.run();
+
+		try
+		{
+			return task.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Interrupted while waiting for descriptors: " + e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( "Failed to create descriptors: " + e.getCause(), e.getCause() );
+		}
+	}
+
+	public void clear()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+		}
+	}
+
+	public static ArrayList< Detection > createDetections( final List< InterestPoint > points )
+	{
+		final ArrayList< Detection > list = new ArrayList< Detection >( points.size() );
+
+		for ( final InterestPoint i : points )
+			list.add( new Detection( i.getId(), i.getL() ) );
+
+		return list;
+	}
+
+	/**
+	 * The candidates found using cached descriptors point to detections that are shared by all pairs,
+	 * RANSAC and the global optimization however change the world coordinates of the detections.
+	 *
+	 * @param candidates - the correspondence candidates of one pair
+	 * @return - the same correspondences on new {@link Detection} instances owned by this pair
+	 */
+	public static ArrayList< PointMatchGeneric< Detection > > detach( final ArrayList< PointMatchGeneric< Detection > > candidates )
+	{
+		final IdentityHashMap< Detection, Detection > copies = new IdentityHashMap< Detection, Detection >();
+		final ArrayList< PointMatchGeneric< Detection > > detached = new ArrayList< PointMatchGeneric< Detection > >( candidates.size() );
+
+		for ( final PointMatchGeneric< Detection > pm : candidates )
+			detached.add( new PointMatchGeneric< Detection >( copy( pm.getPoint1(), copies ), copy( pm.getPoint2(), copies ), pm.getWeight() ) );
+
+		return detached;
+	}
+
+	protected static Detection copy( final Detection d, final IdentityHashMap< Detection, Detection > copies )
+	{
+		Detection c = copies.get( d );
+
+		if ( c == null )
+		{
+			c = new Detection( d.getId(), d.getL() );
+			copies.put( d, c );
+		}
+
+		return c;
+	}
+}
@@ -27,6 +27,7 @@ import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationSubset;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType;
+import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType.GlobalSolver;
 
 /**
  * 
@@ -71,13 +72,36 @@ public class GlobalOpt
 		// now perform the global optimization
 		try 
 		{
-			int unaligned = tc.preAlign().size();
-			if ( unaligned > 0 )
-				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): pre-aligned all tiles but " + unaligned );
+			final double avgError, minError, maxError;
+
+			if ( registrationType.getGlobalSolver() == GlobalSolver.LEAST_SQUARES && LeastSquaresGlobalOpt.isSupported( model ) )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Solving the global least-squares problem for all tiles" );
+
+				final double[] errors = LeastSquaresGlobalOpt.optimize( views, map, tc, pairs );
+
+				avgError = errors[ 0 ];
+				minError = errors[ 1 ];
+				maxError = errors[ 2 ];
+			}
 			else
-				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): prealigned all tiles" );
-			
-			tc.optimize( 10, 10000, 200 );
+			{
+				if ( registrationType.getGlobalSolver() == GlobalSolver.LEAST_SQUARES )
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Least-squares global optimization is only supported for " +
+							"translation, rigid and affine models without regularization, using the iterative optimization." );
+
+				int unaligned = tc.preAlign().size();
+				if ( unaligned > 0 )
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): pre-aligned all tiles but " + unaligned );
+				else
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): prealigned all tiles" );
+				
+				tc.optimize( 10, 10000, 200 );
+
+				avgError = tc.getError();
+				minError = tc.getMinError();
+				maxError = tc.getMaxError();
+			}
 			
 			if ( considerTimePointsAsUnit )
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Global optimization of " + 
@@ -85,9 +109,9 @@ public class GlobalOpt
 			else
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Global optimization of " + 
 					tc.getTiles().size() +  " view-tiles (Model=" + model.getClass().getSimpleName()  + "):" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Avg Error: " + tc.getError() + "px" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Min Error: " + tc.getMinError() + "px" );
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Max Error: " + tc.getMaxError() + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Avg Error: " + avgError + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Min Error: " + minError + "px" );
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Max Error: " + maxError + "px" );
 		}
 		catch (NotEnoughDataPointsException e)
 		{
@@ -0,0 +1,963 @@
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mpicbg.models.Affine3D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+
+/**
+ * Global optimization that assembles the point matches of all pairs of tiles into one sparse linear least-squares
+ * problem and solves it at once, instead of relaxing one tile after the other like {@link TileConfiguration#optimize}.
+ *
+ * Translation and affine models are linear in their parameters, the three dimensions are independent and share the
+ * same normal equations. Rigid models are initialized with the closest rigid transformation of the affine solution and
+ * refined by Gauss-Newton iterations that linearize the rotation of every tile. Small systems are solved directly
+ * (Cholesky), large ones with conjugate gradients preconditioned by the inverse diagonal blocks.
+ */
+public class LeastSquaresGlobalOpt
+{
+	// up to this many unknowns the normal equations are solved directly, otherwise with conjugate gradients
+	public static int maxDirectUnknowns = 2000;
+
+	public static int maxIterationsCG = 10000;
+	public static double toleranceCG = 1e-12;
+
+	// Gauss-Newton iterations for rigid models and when to stop them (change of the parameters)
+	public static int maxIterationsRigid = 50;
+	public static double toleranceRigid = 1e-10;
+
+	// relative damping of the diagonal of the normal equations
+	public static double damping = 1e-12;
+
+	/**
+	 * @param model
+	 * @return - true if the model can be optimized with least-squares (translation, rigid, affine without regularization)
+	 */
+	public static boolean isSupported( final Model< ? > model )
+	{
+		return model instanceof TranslationModel3D || model instanceof RigidModel3D || model instanceof AffineModel3D;
+	}
+
+	/**
+	 * Computes the models of all tiles of the {@link TileConfiguration}, the fixed tiles keep their models.
+	 *
+	 * @param views - all views, defines the order of the tiles
+	 * @param map - which view belongs to which tile
+	 * @param tc - the tiles that are connected and the fixed tiles
+	 * @param pairs - the pairs of views with their inliers
+	 * @return - the average, minimal and maximal error of the tiles after the optimization
+	 */
+	public static < M extends Model< M > > double[] optimize(
+			final List< ViewId > views,
+			final HashMap< ViewId, Tile< M > > map,
+			final TileConfiguration tc,
+			final List< PairwiseMatch > pairs ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		// all tiles that are part of the optimization
+		final ArrayList< Tile< M > > tiles = new ArrayList< Tile< M > >();
+		final HashMap< Tile< M >, Integer > index = new HashMap< Tile< M >, Integer >();
+
+		for ( final ViewId viewId : views )
+		{
+			final Tile< M > tile = map.get( viewId );
+
+			if ( tc.getTiles().contains( tile ) && !index.containsKey( tile ) )
+			{
+				index.put( tile, tiles.size() );
+				tiles.add( tile );
+			}
+		}
+
+		final int numTiles = tiles.size();
+		final M model = tiles.get( 0 ).getModel();
+
+		// the constraints between the tiles
+		final ArrayList< Constraint > constraints = new ArrayList< Constraint >();
+
+		for ( final PairwiseMatch pair : pairs )
+		{
+			final Integer a = index.get( map.get( pair.getViewIdA() ) );
+			final Integer b = index.get( map.get( pair.getViewIdB() ) );
+
+			if ( a == null || b == null || a.intValue() == b.intValue() || pair.getInliers() == null || pair.getInliers().size() == 0 )
+				continue;
+
+			constraints.add( new Constraint( a, b, pair.getInliers() ) );
+		}
+
+		// fixed tiles and one tile per connected component that contains no fixed tile
+		final boolean[] fixed = new boolean[ numTiles ];
+		final Set< Tile< ? > > fixedTiles = tc.getFixedTiles();
+
+		for ( int k = 0; k < numTiles; ++k )
+			fixed[ k ] = fixedTiles.contains( tiles.get( k ) );
+
+		final int numAdditionallyFixed = fixOneTilePerComponent( numTiles, constraints, fixed );
+
+		if ( numAdditionallyFixed > 0 )
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Fixed " + numAdditionallyFixed + " tile(s) of groups of tiles that were not connected to a fixed tile." );
+
+		// the current models of all tiles as 3x4 matrices
+		final double[][][] m = new double[ numTiles ][ 3 ][ 4 ];
+
+		for ( int k = 0; k < numTiles; ++k )
+			( (Affine3D< ? >)tiles.get( k ).getModel() ).toMatrix( m[ k ] );
+
+		// the index of the first unknown of each tile
+		final int[] unknown = new int[ numTiles ];
+		int numFree = 0;
+
+		for ( int k = 0; k < numTiles; ++k )
+			unknown[ k ] = fixed[ k ] ? -1 : numFree++;
+
+		if ( numFree == 0 )
+			return computeErrors( tiles );
+
+		if ( (Model< ? >)model instanceof TranslationModel3D )
+		{
+			solveLinear( m, unknown, numFree, constraints, true );
+		}
+		else
+		{
+			solveLinear( m, unknown, numFree, constraints, false );
+
+			if ( (Model< ? >)model instanceof RigidModel3D )
+				solveRigid( m, unknown, numFree, constraints );
+		}
+
+		// set the models
+		for ( int k = 0; k < numTiles; ++k )
+			if ( !fixed[ k ] )
+				setModel( tiles.get( k ).getModel(), m[ k ] );
+
+		return computeErrors( tiles );
+	}
+
+	/**
+	 * The inliers of one pair of tiles, p are the local coordinates in tile a, q in tile b
+	 */
+	protected static class Constraint
+	{
+		final int a, b;
+		final double[][] p, q;
+		final double[] w;
+
+		public Constraint( final int a, final int b, final List< PointMatchGeneric< Detection > > matches )
+		{
+			this.a = a;
+			this.b = b;
+			this.p = new double[ matches.size() ][];
+			this.q = new double[ matches.size() ][];
+			this.w = new double[ matches.size() ];
+
+			for ( int i = 0; i < matches.size(); ++i )
+			{
+				p[ i ] = matches.get( i ).getP1().getL();
+				q[ i ] = matches.get( i ).getP2().getL();
+				w[ i ] = matches.get( i ).getWeight();
+			}
+		}
+	}
+
+	/**
+	 * Solves for translation or affine models, each dimension d is independent:
+	 * r = x_a[d] * u - x_b[d] * v + c[d], with u = (p,1), v = (q,1), c = 0 (affine) or u = v = 1, c = p - q (translation)
+	 */
+	protected static void solveLinear(
+			final double[][][] m,
+			final int[] unknown,
+			final int numFree,
+			final List< Constraint > constraints,
+			final boolean translationOnly )
+	{
+		final int bs = translationOnly ? 1 : 4;
+		final BlockSparseMatrix h = new BlockSparseMatrix( numFree, bs );
+		final double[][] rhs = new double[ 3 ][ numFree * bs ];
+
+		final double[] u = new double[ bs ];
+		final double[] v = new double[ bs ];
+		final double[] c = new double[ 3 ];
+
+		for ( final Constraint con : constraints )
+		{
+			final int ia = unknown[ con.a ];
+			final int ib = unknown[ con.b ];
+
+			if ( ia < 0 && ib < 0 )
+				continue;
+
+			final double[] haa = ia >= 0 ? h.block( ia, ia ) : null;
+			final double[] hbb = ib >= 0 ? h.block( ib, ib ) : null;
+			final double[] hab = ia >= 0 && ib >= 0 ? h.block( ia, ib ) : null;
+			final double[] hba = ia >= 0 && ib >= 0 ? h.block( ib, ia ) : null;
+
+			for ( int i = 0; i < con.w.length; ++i )
+			{
+				final double[] p = con.p[ i ];
+				final double[] q = con.q[ i ];
+				final double w = con.w[ i ];
+
+				if ( translationOnly )
+				{
+					u[ 0 ] = v[ 0 ] = 1;
+
+					for ( int d = 0; d < 3; ++d )
+						c[ d ] = p[ d ] - q[ d ];
+				}
+				else
+				{
+					for ( int d = 0; d < 3; ++d )
+					{
+						u[ d ] = p[ d ];
+						v[ d ] = q[ d ];
+						c[ d ] = 0;
+					}
+
+					u[ 3 ] = v[ 3 ] = 1;
+				}
+
+				if ( ia >= 0 )
+					addOuter( haa, u, u, w, bs );
+
+				if ( ib >= 0 )
+					addOuter( hbb, v, v, w, bs );
+
+				if ( ia >= 0 && ib >= 0 )
+				{
+					addOuter( hab, u, v, -w, bs );
+					addOuter( hba, v, u, -w, bs );
+				}
+
+				for ( int d = 0; d < 3; ++d )
+				{
+					if ( ia >= 0 )
+					{
+						final double known = ib >= 0 ? 0 : dot( m[ con.b ][ d ], v, translationOnly );
+
+						for ( int j = 0; j < bs; ++j )
+							rhs[ d ][ ia * bs + j ] += w * u[ j ] * ( known - c[ d ] );
+					}
+
+					if ( ib >= 0 )
+					{
+						final double known = ia >= 0 ? 0 : dot( m[ con.a ][ d ], u, translationOnly );
+
+						for ( int j = 0; j < bs; ++j )
+							rhs[ d ][ ib * bs + j ] += w * v[ j ] * ( known + c[ d ] );
+					}
+				}
+			}
+		}
+
+		// a tiny damping towards the current parameters keeps tiles with degenerate matches (e.g. coplanar points) solvable
+		final double minDamping = 1e-15 * h.meanDiagonal();
+
+		for ( int k = 0; k < m.length; ++k )
+		{
+			if ( unknown[ k ] < 0 )
+				continue;
+
+			final double[] hkk = h.block( unknown[ k ], unknown[ k ] );
+
+			for ( int j = 0; j < bs; ++j )
+			{
+				final double epsilon = damping * hkk[ j * bs + j ] + minDamping;
+				hkk[ j * bs + j ] += epsilon;
+
+				for ( int d = 0; d < 3; ++d )
+					rhs[ d ][ unknown[ k ] * bs + j ] += epsilon * ( translationOnly ? m[ k ][ d ][ 3 ] : m[ k ][ d ][ j ] );
+			}
+		}
+
+		final double[][] x = solve( h, rhs );
+
+		for ( int k = 0; k < m.length; ++k )
+		{
+			if ( unknown[ k ] < 0 )
+				continue;
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				if ( translationOnly )
+					m[ k ][ d ][ 3 ] = x[ d ][ unknown[ k ] ];
+				else
+					for ( int j = 0; j < 4; ++j )
+						m[ k ][ d ][ j ] = x[ d ][ unknown[ k ] * 4 + j ];
+			}
+		}
+	}
+
+	/**
+	 * Refines rigid models starting from the affine solution, every iteration linearizes the rotation
+	 * R = (I + [w]x) R of each tile and solves for the change of rotation w and translation t
+	 */
+	protected static void solveRigid(
+			final double[][][] m,
+			final int[] unknown,
+			final int numFree,
+			final List< Constraint > constraints )
+	{
+		final int numTiles = m.length;
+		final double[][] r = new double[ numTiles ][ 9 ];
+		final double[][] t = new double[ numTiles ][ 3 ];
+
+		// initialize with the closest rigid transformations of the affine solution (fixed tiles are rigid already)
+		for ( int k = 0; k < numTiles; ++k )
+		{
+			if ( unknown[ k ] >= 0 )
+				closestRigid( m[ k ], samplePoints( k, constraints ) );
+
+			for ( int i = 0; i < 3; ++i )
+			{
+				for ( int j = 0; j < 3; ++j )
+					r[ k ][ i * 3 + j ] = m[ k ][ i ][ j ];
+
+				t[ k ][ i ] = m[ k ][ i ][ 3 ];
+			}
+		}
+
+		final double[] pa = new double[ 3 ];
+		final double[] qb = new double[ 3 ];
+		final double[] e = new double[ 3 ];
+		final double[][] ja = new double[ 3 ][ 6 ];
+		final double[][] jb = new double[ 3 ][ 6 ];
+
+		for ( int it = 0; it < maxIterationsRigid; ++it )
+		{
+			final BlockSparseMatrix h = new BlockSparseMatrix( numFree, 6 );
+			final double[][] g = new double[ 1 ][ numFree * 6 ];
+
+			for ( final Constraint con : constraints )
+			{
+				final int ia = unknown[ con.a ];
+				final int ib = unknown[ con.b ];
+
+				if ( ia < 0 && ib < 0 )
+					continue;
+
+				final double[] haa = ia >= 0 ? h.block( ia, ia ) : null;
+				final double[] hbb = ib >= 0 ? h.block( ib, ib ) : null;
+				final double[] hab = ia >= 0 && ib >= 0 ? h.block( ia, ib ) : null;
+				final double[] hba = ia >= 0 && ib >= 0 ? h.block( ib, ia ) : null;
+
+				for ( int i = 0; i < con.w.length; ++i )
+				{
+					// the rotated points (without translation)
+					rotate( r[ con.a ], con.p[ i ], pa );
+					rotate( r[ con.b ], con.q[ i ], qb );
+
+					for ( int d = 0; d < 3; ++d )
+						e[ d ] = ( pa[ d ] + t[ con.a ][ d ] ) - ( qb[ d ] + t[ con.b ][ d ] );
+
+					// d(w x p)/dw = -[p]x
+					jacobian( pa, -1, ja );
+					jacobian( qb, 1, jb );
+
+					final double w = con.w[ i ];
+
+					if ( ia >= 0 )
+						addJtJ( haa, ja, ja, w, g[ 0 ], ia * 6, e );
+
+					if ( ib >= 0 )
+						addJtJ( hbb, jb, jb, w, g[ 0 ], ib * 6, e );
+
+					if ( ia >= 0 && ib >= 0 )
+					{
+						addJtJ( hab, ja, jb, w, null, 0, null );
+						addJtJ( hba, jb, ja, w, null, 0, null );
+					}
+				}
+			}
+
+			final double minDamping = 1e-15 * h.meanDiagonal();
+
+			for ( int k = 0; k < numFree; ++k )
+			{
+				final double[] hkk = h.block( k, k );
+
+				for ( int j = 0; j < 6; ++j )
+					hkk[ j * 6 + j ] += damping * hkk[ j * 6 + j ] + minDamping;
+			}
+
+			final double[] delta = solve( h, g )[ 0 ];
+			double maxChange = 0;
+
+			for ( int k = 0; k < numTiles; ++k )
+			{
+				final int ik = unknown[ k ];
+
+				if ( ik < 0 )
+					continue;
+
+				r[ k ] = multiply( rodrigues( delta[ ik * 6 ], delta[ ik * 6 + 1 ], delta[ ik * 6 + 2 ] ), r[ k ] );
+
+				for ( int d = 0; d < 3; ++d )
+					t[ k ][ d ] += delta[ ik * 6 + 3 + d ];
+
+				for ( int j = 0; j < 6; ++j )
+					maxChange = Math.max( maxChange, Math.abs( delta[ ik * 6 + j ] ) );
+			}
+
+			if ( maxChange < toleranceRigid )
+				break;
+		}
+
+		for ( int k = 0; k < numTiles; ++k )
+		{
+			if ( unknown[ k ] < 0 )
+				continue;
+
+			for ( int i = 0; i < 3; ++i )
+			{
+				for ( int j = 0; j < 3; ++j )
+					m[ k ][ i ][ j ] = r[ k ][ i * 3 + j ];
+
+				m[ k ][ i ][ 3 ] = t[ k ][ i ];
+			}
+		}
+	}
+
+	/**
+	 * Sets the model to the transformation defined by the 3x4 matrix by fitting it to
+	 * the corners of a cube (exact for translation, rigid and affine transformations)
+	 */
+	protected static void setModel( final Model< ? > model, final double[][] m ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+
+		for ( int i = 0; i < 8; ++i )
+		{
+			final double[] p = new double[]{ ( i & 1 ) * 1000.0, ( ( i >> 1 ) & 1 ) * 1000.0, ( ( i >> 2 ) & 1 ) * 1000.0 };
+			matches.add( new PointMatch( new Point( p ), new Point( apply( m, p ) ) ) );
+		}
+
+		model.fit( matches );
+	}
+
+	/**
+	 * Replaces the affine transformation by the rigid transformation that maps the sample points most similarly
+	 */
+	protected static void closestRigid( final double[][] m, final List< double[] > samples )
+	{
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+
+		for ( final double[] p : samples )
+			matches.add( new PointMatch( new Point( p.clone() ), new Point( apply( m, p ) ) ) );
+
+		// not enough samples, use the corners of a cube
+		if ( matches.size() < 4 )
+			for ( int i = 0; i < 8; ++i )
+			{
+				final double[] p = new double[]{ ( i & 1 ) * 1000.0, ( ( i >> 1 ) & 1 ) * 1000.0, ( ( i >> 2 ) & 1 ) * 1000.0 };
+				matches.add( new PointMatch( new Point( p ), new Point( apply( m, p ) ) ) );
+			}
+
+		final RigidModel3D rigid = new RigidModel3D();
+
+		try
+		{
+			rigid.fit( matches );
+			rigid.toMatrix( m );
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Could not compute the closest rigid transformation, starting from the affine solution: " + e );
+		}
+	}
+
+	protected static List< double[] > samplePoints( final int tile, final List< Constraint > constraints )
+	{
+		final ArrayList< double[] > samples = new ArrayList< double[] >();
+
+		for ( final Constraint con : constraints )
+		{
+			if ( con.a == tile )
+				for ( final double[] p : con.p )
+					samples.add( p );
+
+			if ( con.b == tile )
+				for ( final double[] q : con.q )
+					samples.add( q );
+		}
+
+		return samples;
+	}
+
+	/**
+	 * Makes sure every connected group of tiles has at least one fixed tile, otherwise the system is singular
+	 *
+	 * @return - how many tiles were fixed additionally
+	 */
+	protected static int fixOneTilePerComponent( final int numTiles, final List< Constraint > constraints, final boolean[] fixed )
+	{
+		final HashMap< Integer, ArrayList< Integer > > neighbors = new HashMap< Integer, ArrayList< Integer > >();
+
+		for ( int k = 0; k < numTiles; ++k )
+			neighbors.put( k, new ArrayList< Integer >() );
+
+		for ( final Constraint con : constraints )
+		{
+			neighbors.get( con.a ).add( con.b );
+			neighbors.get( con.b ).add( con.a );
+		}
+
+		final int[] component = new int[ numTiles ];
+		for ( int k = 0; k < numTiles; ++k )
+			component[ k ] = -1;
+
+		int numComponents = 0, numAdditionallyFixed = 0;
+
+		for ( int k = 0; k < numTiles; ++k )
+		{
+			if ( component[ k ] >= 0 )
+				continue;
+
+			// collect the component
+			final ArrayList< Integer > members = new ArrayList< Integer >();
+			members.add( k );
+			component[ k ] = numComponents;
+
+			boolean hasFixed = false;
+
+			for ( int i = 0; i < members.size(); ++i )
+			{
+				final int tile = members.get( i );
+				hasFixed |= fixed[ tile ];
+
+				for ( final int n : neighbors.get( tile ) )
+					if ( component[ n ] < 0 )
+					{
+						component[ n ] = numComponents;
+						members.add( n );
+					}
+			}
+
+			if ( !hasFixed )
+			{
+				fixed[ k ] = true;
+				++numAdditionallyFixed;
+			}
+
+			++numComponents;
+		}
+
+		return numAdditionallyFixed;
+	}
+
+	protected static < M extends Model< M > > double[] computeErrors( final List< Tile< M > > tiles )
+	{
+		for ( final Tile< M > tile : tiles )
+			tile.apply();
+
+		double sum = 0, min = Double.MAX_VALUE, max = 0;
+
+		for ( final Tile< M > tile : tiles )
+		{
+			tile.updateCost();
+
+			final double d = tile.getDistance();
+			sum += d;
+			min = Math.min( min, d );
+			max = Math.max( max, d );
+		}
+
+		return new double[]{ sum / tiles.size(), min, max };
+	}
+
+	/**
+	 * Solves H x = rhs for every right hand side, directly for small systems, otherwise with conjugate gradients
+	 */
+	protected static double[][] solve( final BlockSparseMatrix h, final double[][] rhs )
+	{
+		final int n = h.numBlocks * h.blockSize;
+		final double[][] x = new double[ rhs.length ][];
+
+		if ( n <= maxDirectUnknowns )
+		{
+			final double[][] l = cholesky( h.toDense() );
+
+			for ( int i = 0; i < rhs.length; ++i )
+				x[ i ] = choleskySolve( l, rhs[ i ] );
+		}
+		else
+		{
+			final BlockSparseMatrix preconditioner = h.invertedDiagonal();
+
+			for ( int i = 0; i < rhs.length; ++i )
+				x[ i ] = conjugateGradients( h, preconditioner, rhs[ i ] );
+		}
+
+		return x;
+	}
+
+	protected static double[] conjugateGradients( final BlockSparseMatrix h, final BlockSparseMatrix preconditioner, final double[] b )
+	{
+		final int n = b.length;
+		final double[] x = new double[ n ];
+		final double[] r = b.clone();
+		final double[] z = new double[ n ];
+		final double[] p = new double[ n ];
+		final double[] hp = new double[ n ];
+
+		final double normB = Math.sqrt( dot( b, b ) );
+
+		if ( normB == 0 )
+			return x;
+
+		preconditioner.multiply( r, z );
+		System.arraycopy( z, 0, p, 0, n );
+
+		double rz = dot( r, z );
+
+		for ( int it = 0; it < maxIterationsCG; ++it )
+		{
+			h.multiply( p, hp );
+
+			final double alpha = rz / dot( p, hp );
+
+			for ( int i = 0; i < n; ++i )
+			{
+				x[ i ] += alpha * p[ i ];
+				r[ i ] -= alpha * hp[ i ];
+			}
+
+			if ( Math.sqrt( dot( r, r ) ) <= toleranceCG * normB )
+				break;
+
+			preconditioner.multiply( r, z );
+
+			final double rzNew = dot( r, z );
+			final double beta = rzNew / rz;
+			rz = rzNew;
+
+			for ( int i = 0; i < n; ++i )
+				p[ i ] = z[ i ] + beta * p[ i ];
+		}
+
+		return x;
+	}
+
+	protected static double[][] cholesky( final double[][] a )
+	{
+		final int n = a.length;
+		final double[][] l = new double[ n ][];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			l[ i ] = new double[ i + 1 ];
+
+			for ( int j = 0; j <= i; ++j )
+			{
+				double sum = a[ i ][ j ];
+
+				for ( int k = 0; k < j; ++k )
+					sum -= l[ i ][ k ] * l[ j ][ k ];
+
+				if ( i == j )
+					l[ i ][ i ] = Math.sqrt( Math.max( sum, Double.MIN_NORMAL ) );
+				else
+					l[ i ][ j ] = sum / l[ j ][ j ];
+			}
+		}
+
+		return l;
+	}
+
+	protected static double[] choleskySolve( final double[][] l, final double[] b )
+	{
+		final int n = b.length;
+		final double[] y = new double[ n ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			double sum = b[ i ];
+
+			for ( int k = 0; k < i; ++k )
+				sum -= l[ i ][ k ] * y[ k ];
+
+			y[ i ] = sum / l[ i ][ i ];
+		}
+
+		final double[] x = new double[ n ];
+
+		for ( int i = n - 1; i >= 0; --i )
+		{
+			double sum = y[ i ];
+
+			for ( int k = i + 1; k < n; ++k )
+				sum -= l[ k ][ i ] * x[ k ];
+
+			x[ i ] = sum / l[ i ][ i ];
+		}
+
+		return x;
+	}
+
+	/**
+	 * A symmetric matrix made of square blocks, only the non-zero blocks are stored
+	 */
+	protected static class BlockSparseMatrix
+	{
+		final int numBlocks, blockSize;
+		final ArrayList< HashMap< Integer, double[] > > rows;
+
+		public BlockSparseMatrix( final int numBlocks, final int blockSize )
+		{
+			this.numBlocks = numBlocks;
+			this.blockSize = blockSize;
+			this.rows = new ArrayList< HashMap< Integer, double[] > >( numBlocks );
+
+			for ( int i = 0; i < numBlocks; ++i )
+				rows.add( new HashMap< Integer, double[] >() );
+		}
+
+		/**
+		 * @return - the block (row-major), created if it does not exist yet
+		 */
+		public double[] block( final int i, final int j )
+		{
+			double[] block = rows.get( i ).get( j );
+
+			if ( block == null )
+			{
+				block = new double[ blockSize * blockSize ];
+				rows.get( i ).put( j, block );
+			}
+
+			return block;
+		}
+
+		public void multiply( final double[] x, final double[] y )
+		{
+			for ( int i = 0; i < numBlocks; ++i )
+			{
+				final int oi = i * blockSize;
+
+				for ( int r = 0; r < blockSize; ++r )
+					y[ oi + r ] = 0;
+
+				for ( final Map.Entry< Integer, double[] > entry : rows.get( i ).entrySet() )
+				{
+					final int oj = entry.getKey() * blockSize;
+					final double[] block = entry.getValue();
+
+					for ( int r = 0; r < blockSize; ++r )
+					{
+						double sum = 0;
+
+						for ( int c = 0; c < blockSize; ++c )
+							sum += block[ r * blockSize + c ] * x[ oj + c ];
+
+						y[ oi + r ] += sum;
+					}
+				}
+			}
+		}
+
+		public double meanDiagonal()
+		{
+			double sum = 0;
+
+			for ( int i = 0; i < numBlocks; ++i )
+			{
+				final double[] block = rows.get( i ).get( i );
+
+				if ( block != null )
+					for ( int r = 0; r < blockSize; ++r )
+						sum += block[ r * blockSize + r ];
+			}
+
+			return numBlocks == 0 ? 0 : sum / ( numBlocks * blockSize );
+		}
+
+		public double[][] toDense()
+		{
+			final int n = numBlocks * blockSize;
+			final double[][] a = new double[ n ][ n ];
+
+			for ( int i = 0; i < numBlocks; ++i )
+				for ( final Map.Entry< Integer, double[] > entry : rows.get( i ).entrySet() )
+				{
+					final int j = entry.getKey();
+					final double[] block = entry.getValue();
+
+					for ( int r = 0; r < blockSize; ++r )
+						for ( int c = 0; c < blockSize; ++c )
+							a[ i * blockSize + r ][ j * blockSize + c ] = block[ r * blockSize + c ];
+				}
+
+			return a;
+		}
+
+		/**
+		 * @return - a block diagonal matrix containing the inverses of the diagonal blocks (block-Jacobi preconditioner)
+		 */
+		public BlockSparseMatrix invertedDiagonal()
+		{
+			final BlockSparseMatrix inv = new BlockSparseMatrix( numBlocks, blockSize );
+			final double[][] a = new double[ blockSize ][ blockSize ];
+			final double[] e = new double[ blockSize ];
+
+			for ( int i = 0; i < numBlocks; ++i )
+			{
+				final double[] block = block( i, i );
+
+				for ( int r = 0; r < blockSize; ++r )
+					for ( int c = 0; c < blockSize; ++c )
+						a[ r ][ c ] = block[ r * blockSize + c ];
+
+				final double[][] l = cholesky( a );
+				final double[] invBlock = inv.block( i, i );
+
+				for ( int c = 0; c < blockSize; ++c )
+				{
+					for ( int r = 0; r < blockSize; ++r )
+						e[ r ] = r == c ? 1 : 0;
+
+					final double[] col = choleskySolve( l, e );
+
+					for ( int r = 0; r < blockSize; ++r )
+						invBlock[ r * blockSize + c ] = col[ r ];
+				}
+			}
+
+			return inv;
+		}
+	}
+
+	protected static void addOuter( final double[] block, final double[] a, final double[] b, final double w, final int bs )
+	{
+		for ( int r = 0; r < bs; ++r )
+		{
+			final double wa = w * a[ r ];
+
+			for ( int c = 0; c < bs; ++c )
+				block[ r * bs + c ] += wa * b[ c ];
+		}
+	}
+
+	/**
+	 * block += w * ja^T jb, and if g != null also g -= w * ja^T e
+	 */
+	protected static void addJtJ( final double[] block, final double[][] ja, final double[][] jb, final double w, final double[] g, final int offset, final double[] e )
+	{
+		for ( int r = 0; r < 6; ++r )
+		{
+			for ( int c = 0; c < 6; ++c )
+			{
+				double sum = 0;
+
+				for ( int d = 0; d < 3; ++d )
+					sum += ja[ d ][ r ] * jb[ d ][ c ];
+
+				block[ r * 6 + c ] += w * sum;
+			}
+
+			if ( g != null )
+			{
+				double sum = 0;
+
+				for ( int d = 0; d < 3; ++d )
+					sum += ja[ d ][ r ] * e[ d ];
+
+				g[ offset + r ] -= w * sum;
+			}
+		}
+	}
+
+	/**
+	 * The jacobian of the rotated point p with respect to (w, t): ( sign * [p]x | -sign * I )
+	 */
+	protected static void jacobian( final double[] p, final double sign, final double[][] j )
+	{
+		j[ 0 ][ 0 ] = 0;                j[ 0 ][ 1 ] = -sign * p[ 2 ];   j[ 0 ][ 2 ] = sign * p[ 1 ];
+		j[ 1 ][ 0 ] = sign * p[ 2 ];    j[ 1 ][ 1 ] = 0;                j[ 1 ][ 2 ] = -sign * p[ 0 ];
+		j[ 2 ][ 0 ] = -sign * p[ 1 ];   j[ 2 ][ 1 ] = sign * p[ 0 ];    j[ 2 ][ 2 ] = 0;
+
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+				j[ r ][ 3 + c ] = r == c ? -sign : 0;
+	}
+
+	protected static double[] rodrigues( final double wx, final double wy, final double wz )
+	{
+		final double theta = Math.sqrt( wx * wx + wy * wy + wz * wz );
+		final double[] r = new double[]{ 1, 0, 0, 0, 1, 0, 0, 0, 1 };
+
+		if ( theta == 0 )
+			return r;
+
+		final double kx = wx / theta, ky = wy / theta, kz = wz / theta;
+		final double[] k = new double[]{ 0, -kz, ky, kz, 0, -kx, -ky, kx, 0 };
+		final double[] k2 = multiply( k, k );
+		final double s = Math.sin( theta ), c = 1 - Math.cos( theta );
+
+		for ( int i = 0; i < 9; ++i )
+			r[ i ] += s * k[ i ] + c * k2[ i ];
+
+		return r;
+	}
+
+	protected static double[] multiply( final double[] a, final double[] b )
+	{
+		final double[] c = new double[ 9 ];
+
+		for ( int i = 0; i < 3; ++i )
+			for ( int j = 0; j < 3; ++j )
+				for ( int k = 0; k < 3; ++k )
+					c[ i * 3 + j ] += a[ i * 3 + k ] * b[ k * 3 + j ];
+
+		return c;
+	}
+
+	protected static void rotate( final double[] r, final double[] p, final double[] result )
+	{
+		for ( int i = 0; i < 3; ++i )
+			result[ i ] = r[ i * 3 ] * p[ 0 ] + r[ i * 3 + 1 ] * p[ 1 ] + r[ i * 3 + 2 ] * p[ 2 ];
+	}
+
+	protected static double[] apply( final double[][] m, final double[] p )
+	{
+		final double[] result = new double[ 3 ];
+
+		for ( int i = 0; i < 3; ++i )
+			result[ i ] = m[ i ][ 0 ] * p[ 0 ] + m[ i ][ 1 ] * p[ 1 ] + m[ i ][ 2 ] * p[ 2 ] + m[ i ][ 3 ];
+
+		return result;
+	}
+
+	protected static double dot( final double[] m, final double[] v, final boolean translationOnly )
+	{
+		if ( translationOnly )
+			return m[ 3 ] * v[ 0 ];
+		else
+			return m[ 0 ] * v[ 0 ] + m[ 1 ] * v[ 1 ] + m[ 2 ] * v[ 2 ] + m[ 3 ] * v[ 3 ];
+	}
+
+	protected static double dot( final double[] a, final double[] b )
+	{
+		double sum = 0;
+
+		for ( int i = 0; i < a.length; ++i )
+			sum += a[ i ] * b[ i ];
+
+		return sum;
+	}
+}
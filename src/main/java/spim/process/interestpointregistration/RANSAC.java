@@ -2,6 +2,11 @@ package spim.process.interestpointregistration;
 
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import spim.fiji.ImgLib2Temp.Pair;
 import spim.fiji.ImgLib2Temp.ValuePair;
@@ -9,6 +14,7 @@ import mpicbg.models.Model;
 import mpicbg.models.NotEnoughDataPointsException;
 import mpicbg.models.PointMatch;
 import mpicbg.pointdescriptor.LinkedPoint;
+import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 
 /**
@@ -18,6 +24,15 @@ import mpicbg.spim.mpicbg.PointMatchGeneric;
  */
 public class RANSAC
 {
+	// adapt the number of iterations to the inlier ratio of the best model found so far, numIterations is the upper bound
+	public static boolean adaptiveIterations = true;
+
+	// the probability that at least one of the random samples contains only inliers (for the adaptive number of iterations)
+	public static double confidence = 0.99;
+
+	// only use more than one thread for a single RANSAC if there are at least this many candidates per thread
+	public static int minCandidatesPerThread = 250;
+
 	public static Pair< String, Double > computeRANSAC( 
 			final ArrayList< PointMatchGeneric < Detection > > correspondenceCandidates, 
 			final ArrayList< PointMatchGeneric < Detection > > inlierList, 
@@ -26,6 +41,22 @@ public class RANSAC
 			final double minInlierRatio, 
 			final double minNumberInlierFactor, 
 			final int numIterations )
+	{
+		return computeRANSAC( correspondenceCandidates, inlierList, model, maxEpsilon, minInlierRatio, minNumberInlierFactor, numIterations, 1 );
+	}
+
+	/**
+	 * @param maxThreads - how many threads this RANSAC may use, e.g. the share of one pair of views if several pairs are matched at the same time
+	 */
+	public static Pair< String, Double > computeRANSAC( 
+			final ArrayList< PointMatchGeneric < Detection > > correspondenceCandidates, 
+			final ArrayList< PointMatchGeneric < Detection > > inlierList, 
+			final Model<?> model, 
+			final double maxEpsilon, 
+			final double minInlierRatio, 
+			final double minNumberInlierFactor, 
+			final int numIterations,
+			final int maxThreads )
 	{
 		final int numCorrespondences = correspondenceCandidates.size();
 		final int minNumCorrespondences = Math.max( model.getMinNumMatches(), (int)Math.round( model.getMinNumMatches() * minNumberInlierFactor ) );
@@ -62,7 +93,10 @@ public class RANSAC
 		}
 		
 		boolean modelFound = false;
-		
+
+		// more threads only pay off if there are enough candidates
+		final int numThreads = Math.max( 1, Math.min( maxThreads, numCorrespondences / minCandidatesPerThread ) );
+
 		try
 		{
 			/*modelFound = m.ransac(
@@ -70,12 +104,13 @@ public class RANSAC
 					inliers,
 					numIterations,
 					maxEpsilon, minInlierRatio );*/
-		
-			modelFound = model.filterRansac(
-					candidates,
-					inliers,
-					numIterations,
-					maxEpsilon, minInlierRatio ); 
+
+			// same as model.filterRansac( candidates, inliers, numIterations, maxEpsilon, minInlierRatio ),
+			// but with an adaptive number of iterations, multithreaded and scoring on primitive arrays
+			final ArrayList< PointMatch > ransacInliers = new ArrayList< PointMatch >();
+
+			if ( ransac( candidates, ransacInliers, model, numIterations, maxEpsilon, minInlierRatio, numThreads ) )
+				modelFound = model.filter( ransacInliers, inliers );
 		}
 		catch ( NotEnoughDataPointsException e )
 		{
@@ -108,4 +143,248 @@ public class RANSAC
 				return new ValuePair< String, Double >( "NO Model found after RANSAC of " + candidates.size(), Double.NaN );
 		}
 	}
+
+	/**
+	 * Finds the model that is supported by most candidates, every hypothesis is fitted to a minimal random
+	 * sample of the candidates. Like {@link Model#ransac(List, java.util.Collection, int, double, double)}, but
+	 * the hypotheses are scored on primitive copies of the coordinates (the candidates are not modified), they
+	 * are distributed over several threads, and the search stops once the number of iterations required to draw
+	 * at least one sample of only inliers with the given {@link #confidence} is reached.
+	 *
+	 * @param candidates - the candidates
+	 * @param inliers - the inliers of the best hypothesis are added here
+	 * @param model - the type of model to fit, it is not modified
+	 * @param maxIterations - the maximal number of hypotheses
+	 * @param maxEpsilon - the maximal distance of a transformed candidate to be an inlier
+	 * @param minInlierRatio - the minimal ratio of inliers of an accepted hypothesis
+	 * @param numThreads - how many threads test hypotheses
+	 * @return - true if a hypothesis with enough inliers was found
+	 * @throws NotEnoughDataPointsException
+	 */
+	public static boolean ransac(
+			final List< PointMatch > candidates,
+			final List< PointMatch > inliers,
+			final Model< ? > model,
+			final int maxIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int numThreads ) throws NotEnoughDataPointsException
+	{
+		final int n = candidates.size();
+		final int minNumMatches = model.getMinNumMatches();
+
+		if ( n < minNumMatches )
+			throw new NotEnoughDataPointsException( n + " data points are not enough to solve the Model, at least " + minNumMatches + " data points required." );
+
+		// the local coordinates of the first point and the world coordinates of the second point of every candidate
+		final int numDimensions = candidates.get( 0 ).getP1().getL().length;
+		final double[][] l = new double[ numDimensions ][ n ];
+		final double[][] w = new double[ numDimensions ][ n ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final double[] p1 = candidates.get( i ).getP1().getL();
+			final double[] p2 = candidates.get( i ).getP2().getW();
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				l[ d ][ i ] = p1[ d ];
+				w[ d ][ i ] = p2[ d ];
+			}
+		}
+
+		final double maxEpsilonSquared = maxEpsilon * maxEpsilon;
+		final Hypotheses hypotheses = new Hypotheses( n, minNumMatches, maxIterations, Math.max( minNumMatches, (int)Math.ceil( minInlierRatio * n ) ) );
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( int t = 0; t < numThreads; ++t )
+		{
+			final Random rnd = new Random( 69997 + t );
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final Model< ? > hypothesis = model.copy();
+					final ArrayList< PointMatch > sample = new ArrayList< PointMatch >( minNumMatches );
+					final int[] indices = new int[ minNumMatches ];
+					final double[] tmp = new double[ numDimensions ];
+
+					while ( hypotheses.nextIteration() )
+					{
+						// draw a minimal sample of distinct candidates
+						sample.clear();
+
+						for ( int i = 0; i < minNumMatches; ++i )
+						{
+							boolean drawn;
+
+							do
+							{
+								indices[ i ] = rnd.nextInt( n );
+								drawn = false;
+
+								for ( int j = 0; j < i; ++j )
+									if ( indices[ j ] == indices[ i ] )
+										drawn = true;
+							}
+							while ( drawn );
+
+							sample.add( candidates.get( indices[ i ] ) );
+						}
+
+						try
+						{
+							hypothesis.fit( sample );
+						}
+						catch ( final Exception e )
+						{
+							// ill-defined sample, e.g. collinear points
+							continue;
+						}
+
+						int numInliers = 0;
+						double cost = 0;
+
+						for ( int i = 0; i < n; ++i )
+						{
+							for ( int d = 0; d < numDimensions; ++d )
+								tmp[ d ] = l[ d ][ i ];
+
+							hypothesis.applyInPlace( tmp );
+
+							double dist = 0;
+
+							for ( int d = 0; d < numDimensions; ++d )
+							{
+								final double diff = tmp[ d ] - w[ d ][ i ];
+								dist += diff * diff;
+							}
+
+							if ( dist < maxEpsilonSquared )
+							{
+								++numInliers;
+								cost += dist;
+							}
+						}
+
+						hypotheses.update( hypothesis, numInliers, cost );
+					}
+
+					return null;
+				}
+			} );
+		}
+
+		if ( numThreads == 1 )
+		{
+			try
+			{
+				tasks.get( 0 ).call();
+			}
+			catch ( final Exception e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+		else
+		{
+			final ExecutorService taskExecutor = Executors.newFixedThreadPool( numThreads );
+
+			try
+			{
+				// invokeAll() returns when all tasks are complete
+				taskExecutor.invokeAll( tasks );
+			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "Failed to compute RANSAC: " + e );
+				e.printStackTrace();
+			}
+
+			taskExecutor.shutdown();
+		}
+
+		final Model< ? > best = hypotheses.getBestModel();
+
+		if ( best == null )
+			return false;
+
+		final double[] tmp = new double[ numDimensions ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+				tmp[ d ] = l[ d ][ i ];
+
+			best.applyInPlace( tmp );
+
+			double dist = 0;
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				final double diff = tmp[ d ] - w[ d ][ i ];
+				dist += diff * diff;
+			}
+
+			if ( dist < maxEpsilonSquared )
+				inliers.add( candidates.get( i ) );
+		}
+
+		return true;
+	}
+
+	/**
+	 * The best hypothesis found by all threads so far and the number of iterations that are still required
+	 */
+	protected static class Hypotheses
+	{
+		final int n, sampleSize, minNumInliers;
+
+		int iteration = 0, maxIterations;
+		int bestNumInliers = 0;
+		double bestCost = Double.MAX_VALUE;
+		Model< ? > bestModel = null;
+
+		public Hypotheses( final int n, final int sampleSize, final int maxIterations, final int minNumInliers )
+		{
+			this.n = n;
+			this.sampleSize = sampleSize;
+			this.maxIterations = maxIterations;
+			this.minNumInliers = minNumInliers;
+		}
+
+		public synchronized boolean nextIteration()
+		{
+			return iteration++ < maxIterations;
+		}
+
+		public synchronized void update( final Model< ? > hypothesis, final int numInliers, final double cost )
+		{
+			if ( numInliers < minNumInliers )
+				return;
+
+			if ( numInliers > bestNumInliers || ( numInliers == bestNumInliers && cost < bestCost ) )
+			{
+				bestNumInliers = numInliers;
+				bestCost = cost;
+				bestModel = hypothesis.copy();
+
+				if ( adaptiveIterations )
+				{
+					// probability that a random sample contains only inliers
+					final double p = Math.pow( (double)numInliers / (double)n, sampleSize );
+
+					if ( p >= 1 )
+						maxIterations = 0;
+					else
+						maxIterations = (int)Math.min( maxIterations, Math.ceil( Math.log( 1 - confidence ) / Math.log( 1 - p ) ) );
+				}
+			}
+		}
+
+		public synchronized Model< ? > getBestModel() { return bestModel; }
+	}
 }
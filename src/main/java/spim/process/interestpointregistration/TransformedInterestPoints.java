@@ -0,0 +1,102 @@
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointList;
+
+/**
+ * Caches the interest points of an {@link InterestPointList} transformed into world coordinates, so that
+ * repeated registrations (e.g. several rounds of ICP) do not transform the same points again.
+ *
+ * An {@link InterestPointList} is unique for a ViewId and label, an entry is valid as long as the list
+ * holds the same loaded interest points and the registration of the view did not change. The returned
+ * lists are shared and must not be modified.
+ */
+public class TransformedInterestPoints
+{
+	public static boolean useCache = true;
+
+	final static WeakHashMap< InterestPointList, TransformedInterestPoints > cache = new WeakHashMap< InterestPointList, TransformedInterestPoints >();
+
+	final List< InterestPoint > source;
+	final double[] matrix;
+	final List< InterestPoint > transformed;
+
+	protected TransformedInterestPoints( final List< InterestPoint > source, final double[] matrix, final List< InterestPoint > transformed )
+	{
+		this.source = source;
+		this.matrix = matrix;
+		this.transformed = transformed;
+	}
+
+	/**
+	 * @param list - the list of interest points, must be loaded
+	 * @param model - the current registration of the view
+	 * @return - the interest points in world coordinates
+	 */
+	public static List< InterestPoint > get( final InterestPointList list, final AffineTransform3D model )
+	{
+		final List< InterestPoint > source = list.getInterestPoints();
+		final double[] matrix = model.getRowPackedCopy();
+
+		if ( !useCache )
+			return transform( source, matrix );
+
+		synchronized ( cache )
+		{
+			final TransformedInterestPoints entry = cache.get( list );
+
+			if ( entry != null && entry.source == source && entry.transformed.size() == source.size() && Arrays.equals( entry.matrix, matrix ) )
+				return entry.transformed;
+		}
+
+		final List< InterestPoint > transformed = transform( source, matrix );
+
+		synchronized ( cache )
+		{
+			cache.put( list, new TransformedInterestPoints( source, matrix, transformed ) );
+		}
+
+		return transformed;
+	}
+
+	public static void clear()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+		}
+	}
+
+	/**
+	 * @param points - the interest points in local coordinates
+	 * @param m - the row-packed 3x4 affine matrix
+	 * @return - new interest points with the same ids in world coordinates
+	 */
+	public static List< InterestPoint > transform( final List< InterestPoint > points, final double[] m )
+	{
+		final double m00 = m[ 0 ], m01 = m[ 1 ], m02 = m[ 2 ], m03 = m[ 3 ];
+		final double m10 = m[ 4 ], m11 = m[ 5 ], m12 = m[ 6 ], m13 = m[ 7 ];
+		final double m20 = m[ 8 ], m21 = m[ 9 ], m22 = m[ 10 ], m23 = m[ 11 ];
+
+		final ArrayList< InterestPoint > list = new ArrayList< InterestPoint >( points.size() );
+
+		for ( final InterestPoint p : points )
+		{
+			final double[] l = p.getL();
+			final double x = l[ 0 ], y = l[ 1 ], z = l[ 2 ];
+
+			list.add( new InterestPoint( p.getId(), new double[]{
+					m00 * x + m01 * y + m02 * z + m03,
+					m10 * x + m11 * y + m12 * z + m13,
+					m20 * x + m21 * y + m22 * z + m23 } ) );
+		}
+
+		return list;
+	}
+}
@@ -2,6 +2,7 @@ package spim.process.interestpointregistration.geometricdescriptor;
 
 import ij.gui.GenericDialog;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import mpicbg.spim.data.sequence.ViewId;
@@ -9,9 +10,14 @@ import spim.fiji.plugin.Interest_Point_Registration.RegistrationType;
 import spim.fiji.plugin.interestpointregistration.InterestPointRegistration;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.interestpointregistration.ChannelProcess;
+import spim.process.interestpointregistration.DescriptorCache;
+import spim.process.interestpointregistration.DescriptorCache.DescriptorFactory;
+import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
+import spim.process.interestpointregistration.geometricdescriptor.RGLDMMatcher.RGLDMDescriptors;
+import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationSubset;
 
 /**
  * Redundant Geometric Local Descriptor Matching (RGLDM)
@@ -28,6 +34,9 @@ public class RGLDM extends InterestPointRegistration
 	protected RGLDMParameters parameters;
 	protected RANSACParameters ransacParams;
 
+	// the descriptors of each view, shared by all pairs of the subset that is currently matched
+	protected DescriptorCache< RGLDMDescriptors > descriptorCache = null;
+
 	public RGLDM(
 			final SpimData2 spimData,
 			final List< ViewId > viewIdsToProcess,
@@ -39,7 +48,29 @@ public class RGLDM extends InterestPointRegistration
 	@Override
 	protected RGLDMPairwise pairwiseMatchingInstance( final PairwiseMatch pair, final String description )
 	{
-		return new RGLDMPairwise( pair, model, description, ransacParams, parameters );
+		return new RGLDMPairwise( pair, model, description, ransacParams, parameters, descriptorCache, getThreadsPerPair() );
+	}
+
+	@Override
+	protected void prepareSubset( final GlobalOptimizationSubset subset )
+	{
+		final int numNeighbors = parameters.getNumNeighbors();
+		final int redundancy = parameters.getRedundancy();
+
+		descriptorCache = new DescriptorCache< RGLDMDescriptors >( new DescriptorFactory< RGLDMDescriptors >()
+		{
+			@Override
+			public RGLDMDescriptors createDescriptors( final ArrayList< Detection > detections )
+			{
+				return RGLDMMatcher.createDescriptors( detections, numNeighbors, redundancy );
+			}
+		} );
+	}
+
+	@Override
+	protected void finishSubset( final GlobalOptimizationSubset subset )
+	{
+		descriptorCache = null;
 	}
 
 	@Override
@@ -67,6 +98,7 @@ public class RGLDM extends InterestPointRegistration
 		gd.addSlider( "Redundancy for descriptor matching", 0, 10, RGLDMParameters.redundancy );		
 		gd.addSlider( "Significance required for a descriptor match", 1.0, 10.0, RGLDMParameters.ratioOfDistance );
 		gd.addSlider( "Allowed_error_for_RANSAC (px)", 0.5, 20.0, RANSACParameters.max_epsilon );
+		gd.addCheckbox( "Fast_descriptor_matching (KD-tree, identical result)", RGLDMParameters.useKDTree );
 	}
 
 	@Override
@@ -84,8 +116,9 @@ public class RGLDM extends InterestPointRegistration
 		final int redundancy = RGLDMParameters.redundancy = (int)Math.round( gd.getNextNumber() );
 		final float significance = RGLDMParameters.ratioOfDistance = (float)gd.getNextNumber();
 		final float maxEpsilon = RANSACParameters.max_epsilon = (float)gd.getNextNumber();
+		final boolean useKDTree = RGLDMParameters.useKDTree = gd.getNextBoolean();
 		
-		this.parameters = new RGLDMParameters( RGLDMParameters.differenceThreshold, significance, numNeighbors, redundancy );
+		this.parameters = new RGLDMParameters( RGLDMParameters.differenceThreshold, significance, numNeighbors, redundancy, useKDTree );
 		this.ransacParams = new RANSACParameters( maxEpsilon, RANSACParameters.min_inlier_ratio, RANSACParameters.min_inlier_factor, RANSACParameters.num_iterations );
 		
 		return true;
@@ -2,6 +2,7 @@ package spim.process.interestpointregistration.geometricdescriptor;
 
 import fiji.util.KDTree;
 import fiji.util.NNearestNeighborSearch;
+import fiji.util.node.Leaf;
 
 import java.util.ArrayList;
 
@@ -25,20 +26,231 @@ public class RGLDMMatcher
 			final double ratioOfDistance,
 			final double differenceThreshold ) 
 	{
-		/* create KDTrees */	
-		final KDTree< Detection > treeA = new KDTree< Detection >( nodeListA );
-		final KDTree< Detection > treeB = new KDTree< Detection >( nodeListB );
-		
+		return extractCorrespondenceCandidates( nodeListA, nodeListB, numNeighbors, redundancy, ratioOfDistance, differenceThreshold, false );
+	}
+
+	/**
+	 * @param useKDTree - search the best and second best descriptor of B using a KD-tree instead of comparing all pairs, the result is identical
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
+			final ArrayList< Detection > nodeListA, 
+			final ArrayList< Detection > nodeListB, 
+			final int numNeighbors,
+			final int redundancy,
+			final double ratioOfDistance,
+			final double differenceThreshold,
+			final boolean useKDTree ) 
+	{
+		final RGLDMDescriptors descriptorsA = createDescriptors( nodeListA, numNeighbors, redundancy );
+		final RGLDMDescriptors descriptorsB = createDescriptors( nodeListB, numNeighbors, redundancy );
+
+		return extractCorrespondenceCandidates( descriptorsA, descriptorsB, ratioOfDistance, differenceThreshold, useKDTree );
+	}
+
+	/**
+	 * Matches descriptors that were computed before, e.g. once per view for all pairs the view is part of
+	 *
+	 * @param useKDTree - search the best and second best descriptor of B using a KD-tree instead of comparing all pairs, the result is identical
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates(
+			final RGLDMDescriptors descriptorsA,
+			final RGLDMDescriptors descriptorsB,
+			final double ratioOfDistance,
+			final double differenceThreshold,
+			final boolean useKDTree )
+	{
+		if ( useKDTree )
+			return findCorrespondingDescriptorsKDTree( descriptorsA.getDescriptors(), descriptorsB, ratioOfDistance, differenceThreshold );
+		else
+			return findCorrespondingDescriptors( descriptorsA.getDescriptors(), descriptorsB.getDescriptors(), ratioOfDistance, differenceThreshold );
+	}
+
+	/**
+	 * @param nodeList - the detections of one view
+	 * @param numNeighbors - number of neighbors of each descriptor
+	 * @param redundancy - number of additional neighbors
+	 * @return - the descriptors of all detections, they are not modified by the matching
+	 */
+	public static RGLDMDescriptors createDescriptors( final ArrayList< Detection > nodeList, final int numNeighbors, final int redundancy )
+	{
+		/* create KDTree */
+		final KDTree< Detection > tree = new KDTree< Detection >( nodeList );
+
 		/* extract point descriptors */
-		final Matcher matcher = new SubsetMatcher( numNeighbors, numNeighbors + redundancy );
+		final SubsetMatcher matcher = new SubsetMatcher( numNeighbors, numNeighbors + redundancy );
 		final int numRequiredNeighbors = matcher.getRequiredNumNeighbors();
-		
+
 		final SimilarityMeasure similarityMeasure = new SquareDistance();
-		
-		final ArrayList< SimplePointDescriptor<Detection> > descriptorsA = createSimplePointDescriptors( treeA, nodeListA, numRequiredNeighbors, matcher, similarityMeasure );
-		final ArrayList< SimplePointDescriptor<Detection> > descriptorsB = createSimplePointDescriptors( treeB, nodeListB, numRequiredNeighbors, matcher, similarityMeasure );
 
-		return findCorrespondingDescriptors( descriptorsA, descriptorsB, ratioOfDistance, differenceThreshold );
+		return new RGLDMDescriptors( createSimplePointDescriptors( tree, nodeList, numRequiredNeighbors, matcher, similarityMeasure ), matcher );
+	}
+
+	/**
+	 * The descriptors of all detections of one view and (once needed) the KD-tree of all their subsets
+	 */
+	public static class RGLDMDescriptors
+	{
+		final ArrayList< SimplePointDescriptor< Detection > > descriptors;
+		final SubsetMatcher matcher;
+		KDTree< DescriptorSubset > subsetTree = null;
+
+		public RGLDMDescriptors( final ArrayList< SimplePointDescriptor< Detection > > descriptors, final SubsetMatcher matcher )
+		{
+			this.descriptors = descriptors;
+			this.matcher = matcher;
+		}
+
+		public ArrayList< SimplePointDescriptor< Detection > > getDescriptors() { return descriptors; }
+		public SubsetMatcher getMatcher() { return matcher; }
+
+		/**
+		 * @return - the KD-tree of all subsets of neighbors of all descriptors, created on the first call
+		 */
+		public synchronized KDTree< DescriptorSubset > getSubsetTree()
+		{
+			if ( subsetTree == null )
+			{
+				final int[][] subsets = matcher.getNeighbors();
+				final ArrayList< DescriptorSubset > list = new ArrayList< DescriptorSubset >( descriptors.size() * subsets.length );
+
+				for ( int j = 0; j < descriptors.size(); ++j )
+					for ( final int[] subset : subsets )
+						list.add( new DescriptorSubset( descriptors.get( j ), j, subset ) );
+
+				subsetTree = new KDTree< DescriptorSubset >( list );
+			}
+
+			return subsetTree;
+		}
+	}
+
+	/**
+	 * Same result as {@link #findCorrespondingDescriptors(ArrayList, ArrayList, double, double)}, but instead of comparing
+	 * all pairs of descriptors it puts all subsets of neighbors of all descriptors of B into a KD-tree. The distance
+	 * of two descriptors is the smallest distance of any of their subsets, so querying the tree with each subset of a
+	 * descriptor of A yields the best and the second best descriptor of B.
+	 *
+	 * A descriptor of B has numCombinations subsets in the tree, so the numCombinations + 1 nearest subsets always contain
+	 * the nearest subset of the second best descriptor as well.
+	 */
+	protected static final ArrayList< PointMatchGeneric< Detection > > findCorrespondingDescriptorsKDTree(
+			final ArrayList< SimplePointDescriptor< Detection > > descriptorsA,
+			final RGLDMDescriptors rgldmDescriptorsB,
+			final double nTimesBetter,
+			final double differenceThreshold )
+	{
+		final ArrayList< PointMatchGeneric< Detection > > correspondenceCandidates = new ArrayList< PointMatchGeneric< Detection > >();
+		final ArrayList< SimplePointDescriptor< Detection > > descriptorsB = rgldmDescriptorsB.getDescriptors();
+
+		if ( descriptorsA.size() == 0 || descriptorsB.size() == 0 )
+			return correspondenceCandidates;
+
+		final int[][] subsets = rgldmDescriptorsB.getMatcher().getNeighbors();
+		final NNearestNeighborSearch< DescriptorSubset > nnsearch = new NNearestNeighborSearch< DescriptorSubset >( rgldmDescriptorsB.getSubsetTree() );
+		final int numHits = Math.min( subsets.length + 1, descriptorsB.size() * subsets.length );
+
+		for ( final SimplePointDescriptor< Detection > descriptorA : descriptorsA )
+		{
+			int best = -1, secondBest = -1;
+			float bestDistance = Float.MAX_VALUE, secondBestDistance = Float.MAX_VALUE;
+
+			for ( final int[] subset : subsets )
+			{
+				final DescriptorSubset query = new DescriptorSubset( descriptorA, -1, subset );
+
+				for ( final DescriptorSubset hit : nnsearch.findNNearestNeighbors( query, numHits ) )
+				{
+					final float distance = query.distanceTo( hit );
+
+					if ( hit.index == best )
+					{
+						bestDistance = Math.min( bestDistance, distance );
+					}
+					else if ( distance < secondBestDistance )
+					{
+						secondBest = hit.index;
+						secondBestDistance = distance;
+
+						if ( secondBestDistance < bestDistance )
+						{
+							secondBest = best;
+							secondBestDistance = bestDistance;
+							best = hit.index;
+							bestDistance = distance;
+						}
+					}
+				}
+			}
+
+			// compute the exact differences the same way as when comparing all pairs
+			final SimplePointDescriptor< Detection > bestMatch = descriptorsB.get( best );
+			final double bestDifference = descriptorA.descriptorDistance( bestMatch );
+			final double secondBestDifference = secondBest >= 0 ? descriptorA.descriptorDistance( descriptorsB.get( secondBest ) ) : Double.MAX_VALUE;
+
+			if ( bestDifference < differenceThreshold && bestDifference * nTimesBetter < secondBestDifference )
+			{
+				// add correspondence for the two basis points of the descriptor
+				final Detection detectionA = descriptorA.getBasisPoint();
+				final Detection detectionB = bestMatch.getBasisPoint();
+
+				// for RANSAC
+				correspondenceCandidates.add( new PointMatchGeneric< Detection >( detectionA, detectionB ) );
+			}
+		}
+
+		return correspondenceCandidates;
+	}
+
+	/**
+	 * One subset of the neighbors of a descriptor as a point in a 3*subsetSize-dimensional space,
+	 * the squared euclidean distance of two of them is what {@link SquareDistance} computes (times numDimensions)
+	 */
+	public static class DescriptorSubset implements Leaf< DescriptorSubset >
+	{
+		final int index;
+		final float[] l;
+
+		public DescriptorSubset( final AbstractPointDescriptor< Detection, ? > descriptor, final int index, final int[] subset )
+		{
+			final int n = descriptor.numDimensions();
+
+			this.index = index;
+			this.l = new float[ subset.length * n ];
+
+			for ( int i = 0; i < subset.length; ++i )
+			{
+				final double[] p = descriptor.getDescriptorPoint( subset[ i ] ).getL();
+
+				for ( int d = 0; d < n; ++d )
+					l[ i * n + d ] = (float)p[ d ];
+			}
+		}
+
+		@Override
+		public boolean isLeaf() { return true; }
+
+		@Override
+		public float distanceTo( final DescriptorSubset o )
+		{
+			double sum = 0;
+
+			for ( int d = 0; d < l.length; ++d )
+			{
+				final double diff = l[ d ] - o.l[ d ];
+				sum += diff * diff;
+			}
+
+			return (float)Math.sqrt( sum );
+		}
+
+		@Override
+		public float get( final int k ) { return l[ k ]; }
+
+		@Override
+		public int getNumDimensions() { return l.length; }
+
+		@Override
+		public DescriptorSubset[] createArray( final int n ) { return new DescriptorSubset[ n ]; }
 	}
 	
 	protected static final <D extends AbstractPointDescriptor<Detection, D>> ArrayList<PointMatchGeneric< Detection >> findCorrespondingDescriptors(
@@ -7,12 +7,13 @@ import java.util.concurrent.Callable;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import spim.fiji.ImgLib2Temp.Pair;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.interestpointregistration.DescriptorCache;
 import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
 import spim.process.interestpointregistration.RANSAC;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
+import spim.process.interestpointregistration.geometricdescriptor.RGLDMMatcher.RGLDMDescriptors;
 
 public class RGLDMPairwise implements Callable< PairwiseMatch >
 {	
@@ -21,29 +22,40 @@ public class RGLDMPairwise implements Callable< PairwiseMatch >
 	final RANSACParameters rp;
 	final RGLDMParameters dp;
 	final String comparison;
+	final DescriptorCache< RGLDMDescriptors > descriptorCache;
+	final int numThreads;
 
-	public RGLDMPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final RGLDMParameters dp  )
+	/**
+	 * @param descriptorCache - the descriptors shared by all pairs of a subset, or null to compute them for this pair only
+	 * @param numThreads - how many threads the RANSAC of this pair may use
+	 */
+	public RGLDMPairwise(
+			final PairwiseMatch pair,
+			final TransformationModel model,
+			final String comparison,
+			final RANSACParameters rp,
+			final RGLDMParameters dp,
+			final DescriptorCache< RGLDMDescriptors > descriptorCache,
+			final int numThreads )
 	{
 		this.pair = pair;
 		this.rp = rp;
 		this.dp = dp;
 		this.model = model;
 		this.comparison = comparison;
+		this.descriptorCache = descriptorCache;
+		this.numThreads = numThreads;
+	}
+
+	public RGLDMPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final RGLDMParameters dp  )
+	{
+		this( pair, model, comparison, rp, dp, null, 1 );
 	}
 	
 	@Override
 	public PairwiseMatch call() throws Exception
 	{
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
-
-		if ( listA.size() < 4 || listB.size() < 4 )
+		if ( pair.getListA().size() < 4 || pair.getListB().size() < 4 )
 		{
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + comparison + ": Not enough detections to match" );
 			pair.setCandidates( new ArrayList< PointMatchGeneric< Detection > >() );
@@ -52,20 +64,36 @@ public class RGLDMPairwise implements Callable< PairwiseMatch >
 		}
 
 		final RGLDMMatcher matcher = new RGLDMMatcher();
-		final ArrayList< PointMatchGeneric< Detection > > candidates = matcher.extractCorrespondenceCandidates( 
-				listA, 
-				listB,
+		final ArrayList< PointMatchGeneric< Detection > > candidates;
+
+		if ( descriptorCache == null )
+		{
+			candidates = matcher.extractCorrespondenceCandidates( 
+				DescriptorCache.createDetections( pair.getListA() ), 
+				DescriptorCache.createDetections( pair.getListB() ),
 				dp.getNumNeighbors(),
 				dp.getRedundancy(),
 				dp.getRatioOfDistance(),
-				dp.getDifferenceThreshold() );
+				dp.getDifferenceThreshold(),
+				dp.useKDTree() );
+		}
+		else
+		{
+			// the descriptors of each view are computed only once for all pairs
+			candidates = DescriptorCache.detach( matcher.extractCorrespondenceCandidates(
+				descriptorCache.get( pair.getListA() ),
+				descriptorCache.get( pair.getListB() ),
+				dp.getRatioOfDistance(),
+				dp.getDifferenceThreshold(),
+				dp.useKDTree() ) );
+		}
 
 		pair.setCandidates( candidates );
 
 		// compute ransac and remove inconsistent candidates
 		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
 	
-		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations() );
+		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations(), numThreads );
 	
 		pair.setInliers( inliers, result.getB() );
 	
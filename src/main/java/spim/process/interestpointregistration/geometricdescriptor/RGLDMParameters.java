@@ -7,9 +7,13 @@ public class RGLDMParameters
 
 	public static int numNeighbors = 3;
 	public static int redundancy = 1;
+
+	// search the descriptors of view B with a KD-tree instead of comparing all pairs (same result)
+	public static boolean useKDTree = true;
 	
 	protected final float dt, rod;
 	protected final int nn, re;
+	protected final boolean kd;
 	
 	public RGLDMParameters()
 	{
@@ -17,18 +21,26 @@ public class RGLDMParameters
 		this.rod = ratioOfDistance;
 		this.nn = numNeighbors;
 		this.re = redundancy;
+		this.kd = useKDTree;
 	}
 	
 	public RGLDMParameters( final float differenceThreshold, final float ratioOfDistance, final int numNeighbors, final int redundancy )
+	{
+		this( differenceThreshold, ratioOfDistance, numNeighbors, redundancy, useKDTree );
+	}
+
+	public RGLDMParameters( final float differenceThreshold, final float ratioOfDistance, final int numNeighbors, final int redundancy, final boolean useKDTree )
 	{
 		this.dt = differenceThreshold;
 		this.rod = ratioOfDistance;
 		this.nn = numNeighbors;
 		this.re = redundancy;
+		this.kd = useKDTree;
 	}
 	
 	public float getDifferenceThreshold() { return dt; }
 	public float getRatioOfDistance() { return rod; }
 	public int getNumNeighbors() { return nn; }
 	public int getRedundancy() { return re; }
+	public boolean useKDTree() { return kd; }
 }
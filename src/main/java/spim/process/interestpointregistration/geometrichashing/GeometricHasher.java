@@ -27,30 +27,71 @@ public class GeometricHasher
 			double ratioOfDistance, 
 			final boolean useAssociatedBeads ) 
 	{
-		final int numNeighbors = 3;
-		
-		final KDTree< Detection > tree1 = new KDTree< Detection >( nodeListA );
-		final KDTree< Detection > tree2 = new KDTree< Detection >( nodeListB );
+		return extractCorrespondenceCandidates( createDescriptors( nodeListA ), createDescriptors( nodeListB ), differenceThreshold, ratioOfDistance );
+	}
+
+	/**
+	 * Matches descriptors that were computed before, e.g. once per view for all pairs the view is part of
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates(
+			final GeometricHashingDescriptors descriptorsA,
+			final GeometricHashingDescriptors descriptorsB,
+			final double differenceThreshold,
+			final double ratioOfDistance )
+	{
+		// lookup tree for descriptors2
+		final NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > > nnsearch = new NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > >( descriptorsB.getLookUpTree() );
 
-		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors1 = 
-			createLocalCoordinateSystemPointDescriptors( tree1, nodeListA, numNeighbors, false );
-		
-		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors2 = 
-			createLocalCoordinateSystemPointDescriptors( tree2, nodeListB, numNeighbors, false );
-		
-		// create lookup tree for descriptors2		
-		final KDTree< LocalCoordinateSystemPointDescriptor< Detection > > lookUpTree2 = new KDTree< LocalCoordinateSystemPointDescriptor< Detection > >( descriptors2 );
-		final NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > > nnsearch = new NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > >( lookUpTree2 );
-	
 		// store the candidates for corresponding beads
 		final ArrayList<PointMatchGeneric< Detection >> correspondences = new ArrayList<PointMatchGeneric<Detection>>();
-		
+
 		/* compute matching */
-		computeMatching( descriptors1, nnsearch, correspondences, differenceThreshold, ratioOfDistance );
-		
+		computeMatching( descriptorsA.getDescriptors(), nnsearch, correspondences, differenceThreshold, ratioOfDistance );
+
 		return correspondences;
 	}
-	
+
+	/**
+	 * @param nodeList - the detections of one view
+	 * @return - the descriptors of all detections, they are not modified by the matching
+	 */
+	public static GeometricHashingDescriptors createDescriptors( final ArrayList< Detection > nodeList )
+	{
+		final int numNeighbors = 3;
+
+		final KDTree< Detection > tree = new KDTree< Detection >( nodeList );
+
+		return new GeometricHashingDescriptors( createLocalCoordinateSystemPointDescriptors( tree, nodeList, numNeighbors, false ) );
+	}
+
+	/**
+	 * The descriptors of all detections of one view and (once needed) the lookup tree for them
+	 */
+	public static class GeometricHashingDescriptors
+	{
+		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors;
+		KDTree< LocalCoordinateSystemPointDescriptor< Detection > > lookUpTree = null;
+
+		public GeometricHashingDescriptors( final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors )
+		{
+			this.descriptors = descriptors;
+		}
+
+		public ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > getDescriptors() { return descriptors; }
+
+		/**
+		 * @return - the KD-tree of all descriptors, created on the first call
+		 */
+		public synchronized KDTree< LocalCoordinateSystemPointDescriptor< Detection > > getLookUpTree()
+		{
+			// the KDTree might reorder the list it is built from, other threads may be iterating the descriptors at the same time
+			if ( lookUpTree == null )
+				lookUpTree = new KDTree< LocalCoordinateSystemPointDescriptor< Detection > >( new ArrayList< LocalCoordinateSystemPointDescriptor< Detection > >( descriptors ) );
+
+			return lookUpTree;
+		}
+	}
+
 	protected void computeMatching( 
 			final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors1, 
 			final NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > > nnsearch2,
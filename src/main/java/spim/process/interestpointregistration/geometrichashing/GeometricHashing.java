@@ -2,6 +2,7 @@ package spim.process.interestpointregistration.geometrichashing;
 
 import ij.gui.GenericDialog;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import mpicbg.spim.data.sequence.ViewId;
@@ -9,9 +10,14 @@ import spim.fiji.plugin.Interest_Point_Registration.RegistrationType;
 import spim.fiji.plugin.interestpointregistration.InterestPointRegistration;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.interestpointregistration.ChannelProcess;
+import spim.process.interestpointregistration.DescriptorCache;
+import spim.process.interestpointregistration.DescriptorCache.DescriptorFactory;
+import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
+import spim.process.interestpointregistration.geometrichashing.GeometricHasher.GeometricHashingDescriptors;
+import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationSubset;
 
 public class GeometricHashing extends InterestPointRegistration
 {
@@ -22,6 +28,9 @@ public class GeometricHashing extends InterestPointRegistration
 	protected RANSACParameters ransacParams;
 	protected GeometricHashingParameters ghParams;
 
+	// the descriptors of each view, shared by all pairs of the subset that is currently matched
+	protected DescriptorCache< GeometricHashingDescriptors > descriptorCache = null;
+
 	public GeometricHashing(
 			final SpimData2 spimData,
 			final List< ViewId > viewIdsToProcess,
@@ -33,7 +42,26 @@ public class GeometricHashing extends InterestPointRegistration
 	@Override
 	protected GeometricHashingPairwise pairwiseMatchingInstance( final PairwiseMatch pair, final String description )
 	{
-		return new GeometricHashingPairwise( pair, model, description, ransacParams, ghParams );
+		return new GeometricHashingPairwise( pair, model, description, ransacParams, ghParams, descriptorCache, getThreadsPerPair() );
+	}
+
+	@Override
+	protected void prepareSubset( final GlobalOptimizationSubset subset )
+	{
+		descriptorCache = new DescriptorCache< GeometricHashingDescriptors >( new DescriptorFactory< GeometricHashingDescriptors >()
+		{
+			@Override
+			public GeometricHashingDescriptors createDescriptors( final ArrayList< Detection > detections )
+			{
+				return GeometricHasher.createDescriptors( detections );
+			}
+		} );
+	}
+
+	@Override
+	protected void finishSubset( final GlobalOptimizationSubset subset )
+	{
+		descriptorCache = null;
 	}
 
 	@Override
@@ -7,12 +7,13 @@ import java.util.concurrent.Callable;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import spim.fiji.ImgLib2Temp.Pair;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.interestpointregistration.DescriptorCache;
 import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
 import spim.process.interestpointregistration.RANSAC;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
+import spim.process.interestpointregistration.geometrichashing.GeometricHasher.GeometricHashingDescriptors;
 
 public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 {
@@ -21,14 +22,34 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 	final RANSACParameters rp;
 	final GeometricHashingParameters gp;
 	final String comparison;
-	
-	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final GeometricHashingParameters gp )
+	final DescriptorCache< GeometricHashingDescriptors > descriptorCache;
+	final int numThreads;
+
+	/**
+	 * @param descriptorCache - the descriptors shared by all pairs of a subset, or null to compute them for this pair only
+	 * @param numThreads - how many threads the RANSAC of this pair may use
+	 */
+	public GeometricHashingPairwise(
+			final PairwiseMatch pair,
+			final TransformationModel model,
+			final String comparison,
+			final RANSACParameters rp,
+			final GeometricHashingParameters gp,
+			final DescriptorCache< GeometricHashingDescriptors > descriptorCache,
+			final int numThreads )
 	{ 
 		this.pair = pair;
 		this.rp = rp;
 		this.gp = gp;
 		this.model = model;
 		this.comparison = comparison;
+		this.descriptorCache = descriptorCache;
+		this.numThreads = numThreads;
+	}
+
+	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp, final GeometricHashingParameters gp )
+	{
+		this( pair, model, comparison, rp, gp, null, 1 );
 	}
 
 	public GeometricHashingPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final RANSACParameters rp )
@@ -46,16 +67,7 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 	{
 		final GeometricHasher hasher = new GeometricHasher();
 		
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
-
-		if ( listA.size() < 4 || listB.size() < 4 )
+		if ( pair.getListA().size() < 4 || pair.getListB().size() < 4 )
 		{
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + comparison + ": Not enough detections to match" );
 			pair.setCandidates( new ArrayList< PointMatchGeneric< Detection > >() );
@@ -63,19 +75,33 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 			return pair;
 		}
 
-		final ArrayList< PointMatchGeneric< Detection > > candidates = hasher.extractCorrespondenceCandidates( 
-				listA,
-				listB,
+		final ArrayList< PointMatchGeneric< Detection > > candidates;
+
+		if ( descriptorCache == null )
+		{
+			candidates = hasher.extractCorrespondenceCandidates( 
+				DescriptorCache.createDetections( pair.getListA() ),
+				DescriptorCache.createDetections( pair.getListB() ),
 				gp.getDifferenceThreshold(), 
 				gp.getRatioOfDistance(), 
 				gp.getUseAssociatedBeads() );
+		}
+		else
+		{
+			// the descriptors of each view are computed only once for all pairs
+			candidates = DescriptorCache.detach( hasher.extractCorrespondenceCandidates(
+				descriptorCache.get( pair.getListA() ),
+				descriptorCache.get( pair.getListB() ),
+				gp.getDifferenceThreshold(),
+				gp.getRatioOfDistance() ) );
+		}
 
 		pair.setCandidates( candidates );
 
 		// compute ransac and remove inconsistent candidates
 		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
 
-		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations() );
+		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations(), numThreads );
 
 		pair.setInliers( inliers, result.getB() );
 
@@ -37,7 +37,7 @@ public class IterativeClosestPoint extends InterestPointRegistration
 	@Override
 	protected IterativeClosestPointPairwise pairwiseMatchingInstance( final PairwiseMatch pair, final String description)
 	{
-		return new IterativeClosestPointPairwise( pair, model, description, parameters );
+		return new IterativeClosestPointPairwise( pair, model, description, parameters, getThreadsPerPair() );
 	}
 
 	@Override
@@ -50,6 +50,7 @@ public class IterativeClosestPoint extends InterestPointRegistration
 		gd.addCheckbox( "Regularize_model", defaultRegularize );
 		gd.addSlider( "Maximal_distance for correspondence (px)", 0.25, 40.0, IterativeClosestPointParameters.maxDistance );
 		gd.addNumericField( "Maximal_number of iterations", IterativeClosestPointParameters.maxIterations, 0 );
+		gd.addCheckbox( "Fast_ICP (fixed KD-tree of the reference, multithreaded, searches from the moving points)", IterativeClosestPointParameters.fixedReferenceTree );
 	}
 
 	@Override
@@ -65,8 +66,9 @@ public class IterativeClosestPoint extends InterestPointRegistration
 
 		final double maxDistance = IterativeClosestPointParameters.maxDistance = gd.getNextNumber();
 		final int maxIterations = IterativeClosestPointParameters.maxIterations = (int)Math.round( gd.getNextNumber() );
+		final boolean fixedTree = IterativeClosestPointParameters.fixedReferenceTree = gd.getNextBoolean();
 		
-		this.parameters = new IterativeClosestPointParameters( maxDistance, maxIterations );
+		this.parameters = new IterativeClosestPointParameters( maxDistance, maxIterations, fixedTree );
 		
 		return true;
 	}
@@ -6,6 +6,7 @@ import java.util.Random;
 import java.util.concurrent.Callable;
 
 import net.imglib2.util.Util;
+import mpicbg.icp.FixedReferenceICP;
 import mpicbg.icp.ICP;
 import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.Model;
@@ -27,13 +28,23 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 	final TransformationModel model;
 	final IterativeClosestPointParameters ip;
 	final String comparison;
+	final int numThreads;
 
-	public IterativeClosestPointPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final IterativeClosestPointParameters ip  )
+	/**
+	 * @param numThreads - how many threads the ICP of this pair may use (only with a fixed reference tree)
+	 */
+	public IterativeClosestPointPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final IterativeClosestPointParameters ip, final int numThreads )
 	{
 		this.pair = pair;
 		this.ip = ip;
 		this.model = model;
 		this.comparison = comparison;
+		this.numThreads = numThreads;
+	}
+
+	public IterativeClosestPointPairwise( final PairwiseMatch pair, final TransformationModel model, final String comparison, final IterativeClosestPointParameters ip  )
+	{
+		this( pair, model, comparison, ip, 1 );
 	}
 
 	@Override
@@ -66,7 +77,12 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 		for ( final Detection d : listB )
 			d.setUseW( true );
 
-		final ICP< Detection > icp = new ICP< Detection >( listA, listB, (float)ip.getMaxDistance() );
+		final ICP< Detection > icp;
+
+		if ( ip.useFixedReferenceTree() )
+			icp = new FixedReferenceICP< Detection >( listA, listB, (float)ip.getMaxDistance(), numThreads );
+		else
+			icp = new ICP< Detection >( listA, listB, (float)ip.getMaxDistance() );
 
 		int i = 0;
 		double lastAvgError = 0;
@@ -74,37 +90,45 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 
 		boolean converged = false;
 
-		do
+		try
 		{
-			try
-			{
-				icp.runICPIteration( model, model );
-			}
-			catch ( NotEnoughDataPointsException e )
-			{
-				failWith( "ICP", "NotEnoughDataPointsException", pair, e );
-				throw new NotEnoughDataPointsException( e );
-			}
-			catch ( IllDefinedDataPointsException e )
+			do
 			{
-				failWith( "ICP", "IllDefinedDataPointsException", pair, e );
-				throw new IllDefinedDataPointsException( e );
-			}
-			catch ( NoSuitablePointsException e )
-			{
-				failWith( "ICP", "NoSuitablePointsException", pair, e );
-				throw new NoSuitablePointsException( e.toString() );
-			}
-
-			if ( lastNumCorresponding == icp.getNumPointMatches() && lastAvgError == icp.getAverageError() )
-				converged = true;
-
-			lastNumCorresponding = icp.getNumPointMatches();
-			lastAvgError = icp.getAverageError();
+				try
+				{
+					icp.runICPIteration( model, model );
+				}
+				catch ( NotEnoughDataPointsException e )
+				{
+					failWith( "ICP", "NotEnoughDataPointsException", pair, e );
+					throw new NotEnoughDataPointsException( e );
+				}
+				catch ( IllDefinedDataPointsException e )
+				{
+					failWith( "ICP", "IllDefinedDataPointsException", pair, e );
+					throw new IllDefinedDataPointsException( e );
+				}
+				catch ( NoSuitablePointsException e )
+				{
+					failWith( "ICP", "NoSuitablePointsException", pair, e );
+					throw new NoSuitablePointsException( e.toString() );
+				}
+
+				if ( lastNumCorresponding == icp.getNumPointMatches() && lastAvgError == icp.getAverageError() )
+					converged = true;
+
+				lastNumCorresponding = icp.getNumPointMatches();
+				lastAvgError = icp.getAverageError();
 			
-			System.out.println( i + ": " + icp.getNumPointMatches() + " matches, avg error [px] " + icp.getAverageError() + ", max error [px] " + icp.getMaximalError() );
+				System.out.println( i + ": " + icp.getNumPointMatches() + " matches, avg error [px] " + icp.getAverageError() + ", max error [px] " + icp.getMaximalError() );
+			}
+			while ( !converged && ++i < ip.getMaxNumIterations() );
+		}
+		finally
+		{
+			if ( icp instanceof FixedReferenceICP )
+				( (FixedReferenceICP< Detection >)icp ).close();
 		}
-		while ( !converged && ++i < ip.getMaxNumIterations() );
 
 		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
 		
@@ -4,22 +4,35 @@ public class IterativeClosestPointParameters
 {
 	public static double maxDistance = 5; 
 	public static int maxIterations = 100;
+	public static boolean fixedReferenceTree = false;
 
 	final protected double d;
 	final protected int maxIt;
+	final protected boolean fixedTree;
 	
 	public IterativeClosestPointParameters()
 	{
 		this.d = maxDistance;
 		this.maxIt = maxIterations;
+		this.fixedTree = fixedReferenceTree;
 	}
 	
 	public IterativeClosestPointParameters( final double maxDistance, final int maxIterations )
+	{
+		this( maxDistance, maxIterations, false );
+	}
+
+	/**
+	 * @param fixedTree - build the KD-tree of the reference once and search the nearest neighbors of the moving points multithreaded (see {@link mpicbg.icp.FixedReferenceICP})
+	 */
+	public IterativeClosestPointParameters( final double maxDistance, final int maxIterations, final boolean fixedTree )
 	{
 		this.d = maxDistance;
 		this.maxIt = maxIterations;
+		this.fixedTree = fixedTree;
 	}
 	
 	public double getMaxDistance() { return d; }
 	public int getMaxNumIterations() { return maxIt; }
+	public boolean useFixedReferenceTree() { return fixedTree; }
 }
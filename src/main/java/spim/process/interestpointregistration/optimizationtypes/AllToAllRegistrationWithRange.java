@@ -71,8 +71,14 @@ public class AllToAllRegistrationWithRange extends GlobalOptimizationType
 
 					// in case we consider timepoints as units and the pair has the same timepoint, do not add;
 					// i.e. add the pair always if the above statement is false
-					if ( !( considerTimePointsAsUnit() && ( viewIdA.getTimePointId() == viewIdB.getTimePointId() ) ) )
-						viewPairs.add( new PairwiseMatch( viewIdA, viewIdB, listA, listB ) );
+					if ( considerTimePointsAsUnit() && ( viewIdA.getTimePointId() == viewIdB.getTimePointId() ) )
+						continue;
+
+					// skip pairs that do not overlap (if requested)
+					if ( !isOverlapping( viewIdA, viewIdB ) )
+						continue;
+
+					viewPairs.add( createPairwiseMatch( viewIdA, viewIdB, listA, listB ) );
 				}
 			}
 
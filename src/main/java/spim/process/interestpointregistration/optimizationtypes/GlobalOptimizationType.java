@@ -6,6 +6,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import mpicbg.models.AbstractModel;
 import mpicbg.spim.data.registration.ViewRegistration;
@@ -18,8 +23,13 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.realtransform.AffineTransform3D;
+import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.ViewSetupUtils;
 import spim.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
@@ -29,6 +39,7 @@ import spim.process.interestpointregistration.ChannelProcess;
 import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.MatchPointList;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.TransformedInterestPoints;
 
 /**
  * A certain type of global optimization, must be able to define all view pairs
@@ -49,6 +60,27 @@ public abstract class GlobalOptimizationType
 	Set< ViewId > fixedTiles;
 	Map< GlobalOptimizationSubset, ViewId > referenceTiles;
 	AbstractModel<?> mapBackModel;
+
+	// only match pairs of views whose transformed bounding boxes overlap by at least minOverlap (fraction of the smaller one)
+	boolean onlyOverlappingPairs = false;
+	double minOverlap = 0;
+
+	// only use the interest points inside the overlap of the bounding boxes (plus a margin) for matching
+	boolean restrictToOverlap = false;
+	double overlapMargin = 0;
+
+	final HashMap< ViewId, RealInterval > boundingBoxes = new HashMap< ViewId, RealInterval >();
+	int numPairsTested = 0, numPairsSkipped = 0;
+
+	/**
+	 * ITERATIVE relaxes one tile after the other (TileConfiguration), LEAST_SQUARES solves for all tiles at once
+	 */
+	public static enum GlobalSolver { ITERATIVE, LEAST_SQUARES };
+
+	GlobalSolver globalSolver = GlobalSolver.ITERATIVE;
+
+	// the interest points of all views in world coordinates, loaded on the first request
+	HashMap< ViewId, List< InterestPoint > > transformedInterestPoints = null;
 	
 	public GlobalOptimizationType(
 			final SpimData2 spimData,
@@ -82,11 +114,154 @@ public abstract class GlobalOptimizationType
 	public List< GlobalOptimizationSubset > getAllViewPairs()
 	{
 		if ( subsets == null )
+		{
 			this.subsets = assembleAllViewPairs();
 
+			if ( onlyOverlappingPairs )
+				IOFunctions.println( "Skipped " + numPairsSkipped + " of " + numPairsTested + " pairs of views that do not overlap." );
+		}
+
 		return subsets;
 	}
 
+	/**
+	 * Defines which pairs of views are matched, must be called before the pairs are assembled
+	 *
+	 * @param onlyOverlappingPairs - only match pairs of views whose bounding boxes (transformed by the current registration) overlap
+	 * @param minOverlap - the minimal overlap as fraction of the volume of the smaller bounding box [0...1], 0 means they just have to touch
+	 * @param restrictToOverlap - only use interest points inside the overlap of the two bounding boxes for matching
+	 * @param overlapMargin - the overlap is extended by this many pixels in each direction when restricting the interest points
+	 */
+	public void setOverlapCriteria( final boolean onlyOverlappingPairs, final double minOverlap, final boolean restrictToOverlap, final double overlapMargin )
+	{
+		this.onlyOverlappingPairs = onlyOverlappingPairs;
+		this.minOverlap = minOverlap;
+		this.restrictToOverlap = restrictToOverlap;
+		this.overlapMargin = overlapMargin;
+	}
+
+	/**
+	 * @param viewIdA
+	 * @param viewIdB
+	 * @return - true if this pair of views should be matched, i.e. if overlapping pairs are not required or they overlap sufficiently
+	 */
+	protected boolean isOverlapping( final ViewId viewIdA, final ViewId viewIdB )
+	{
+		if ( !onlyOverlappingPairs )
+			return true;
+
+		++numPairsTested;
+
+		final RealInterval a = getBoundingBox( viewIdA );
+		final RealInterval b = getBoundingBox( viewIdB );
+		final RealInterval overlap = intersect( a, b, 0 );
+
+		if ( overlap == null || volume( overlap ) < minOverlap * Math.min( volume( a ), volume( b ) ) )
+		{
+			++numPairsSkipped;
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return - a new {@link PairwiseMatch}, if requested only containing the interest points within the overlap of both views
+	 */
+	protected PairwiseMatch createPairwiseMatch( final ViewId viewIdA, final ViewId viewIdB, final MatchPointList listA, final MatchPointList listB )
+	{
+		if ( !restrictToOverlap )
+			return new PairwiseMatch( viewIdA, viewIdB, listA, listB );
+
+		final RealInterval overlap = intersect( getBoundingBox( viewIdA ), getBoundingBox( viewIdB ), overlapMargin );
+
+		return new PairwiseMatch( viewIdA, viewIdB, pointsInside( listA, overlap ), pointsInside( listB, overlap ) );
+	}
+
+	/**
+	 * @param viewId
+	 * @return - the bounding box of the view transformed by its current registration
+	 */
+	protected RealInterval getBoundingBox( final ViewId viewId )
+	{
+		RealInterval bb = boundingBoxes.get( viewId );
+
+		if ( bb == null )
+		{
+			final ViewDescription vd = spimData.getSequenceDescription().getViewDescription( viewId );
+			final Dimensions size = ViewSetupUtils.getSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), spimData.getSequenceDescription().getImgLoader() );
+
+			final ViewRegistration r = spimData.getViewRegistrations().getViewRegistration( viewId );
+			r.updateModel();
+
+			bb = r.getModel().estimateBounds(
+					new FinalRealInterval(
+							new double[]{ 0, 0, 0 },
+							new double[]{ size.dimension( 0 ) - 1, size.dimension( 1 ) - 1, size.dimension( 2 ) - 1 } ) );
+
+			boundingBoxes.put( viewId, bb );
+		}
+
+		return bb;
+	}
+
+	/**
+	 * @return - the intersection of both intervals extended by margin, or null if they do not intersect
+	 */
+	protected static RealInterval intersect( final RealInterval a, final RealInterval b, final double margin )
+	{
+		final int n = a.numDimensions();
+		final double[] min = new double[ n ];
+		final double[] max = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Math.max( a.realMin( d ), b.realMin( d ) );
+			max[ d ] = Math.min( a.realMax( d ), b.realMax( d ) );
+
+			if ( max[ d ] < min[ d ] )
+				return null;
+
+			min[ d ] -= margin;
+			max[ d ] += margin;
+		}
+
+		return new FinalRealInterval( min, max );
+	}
+
+	protected static double volume( final RealInterval interval )
+	{
+		double v = 1;
+
+		for ( int d = 0; d < interval.numDimensions(); ++d )
+			v *= interval.realMax( d ) - interval.realMin( d );
+
+		return v;
+	}
+
+	protected static MatchPointList pointsInside( final MatchPointList list, final RealInterval interval )
+	{
+		final ArrayList< InterestPoint > inside = new ArrayList< InterestPoint >();
+
+		if ( interval != null )
+		{
+			for ( final InterestPoint p : list.getInterestpointList() )
+			{
+				final double[] l = p.getL();
+				boolean isInside = true;
+
+				for ( int d = 0; d < l.length && isInside; ++d )
+					if ( l[ d ] < interval.realMin( d ) || l[ d ] > interval.realMax( d ) )
+						isInside = false;
+
+				if ( isInside )
+					inside.add( p );
+			}
+		}
+
+		return new MatchPointList( inside, list.getChannelProcessed() );
+	}
+
 	/**
 	 * @param viewId
 	 * @return - true if a certain tile is fixed, otherwise false
@@ -146,6 +321,8 @@ public abstract class GlobalOptimizationType
 	 * @return - true if timepoints should be considered as one unit
 	 */
 	public boolean considerTimePointsAsUnit() { return considerTimePointsAsUnit; }
+	public GlobalSolver getGlobalSolver() { return globalSolver; }
+	public void setGlobalSolver( final GlobalSolver globalSolver ) { this.globalSolver = globalSolver; }
 
 	public SpimData2 getSpimData() { return spimData; }
 
@@ -153,17 +330,53 @@ public abstract class GlobalOptimizationType
 	 * Creates lists of input points for the registration, based on the current transformation of the views
 	 * 
 	 * Note: this always duplicates the location array from the input List&gt; InterestPoint &lt; !!!
+	 * The duplicated lists are cached (see {@link TransformedInterestPoints}) and must not be modified.
 	 * 
 	 * @param timepoint
 	 */
 	protected HashMap< ViewId, MatchPointList > getInterestPoints( final TimePoint timepoint )
 	{
+		// the interest points of all views to process are loaded and transformed at once, in parallel
+		if ( transformedInterestPoints == null )
+			transformedInterestPoints = loadTransformedInterestPoints();
+
 		final HashMap< ViewId, MatchPointList > interestPoints = new HashMap< ViewId, MatchPointList >();
+
+		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, timepoint) )
+		{
+			final List< InterestPoint > list = transformedInterestPoints.get( vd );
+
+			// not present, no registration for this viewdescription or no interest points
+			if ( list == null )
+				continue;
+
+			final ChannelProcess c = getChannelProcessForChannel( channelsToProcess, vd.getViewSetup().getChannel() );
+
+			interestPoints.put( vd, new MatchPointList( list, c ) );
+		}
+
+		return interestPoints;
+	}
+
+	/**
+	 * Loads (if necessary) the interest points of all views to process concurrently and transforms them into world
+	 * coordinates using the current registrations. The transformed points are taken from {@link TransformedInterestPoints}
+	 * if neither the points nor the registration of a view changed since the last registration.
+	 * 
+	 * @return - the transformed interest points of all views that could be loaded
+	 */
+	protected HashMap< ViewId, List< InterestPoint > > loadTransformedInterestPoints()
+	{
 		final ViewRegistrations registrations = spimData.getViewRegistrations();
 		final ViewInterestPoints interestpoints = spimData.getViewInterestPoints();
-		
-		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, timepoint) )
+
+		final ArrayList< ViewId > views = new ArrayList< ViewId >();
+		final ArrayList< Callable< List< InterestPoint > > > tasks = new ArrayList< Callable< List< InterestPoint > > >();
+
+		for ( final ViewId viewId : viewIdsToProcess )
 		{
+			final ViewDescription vd = spimData.getSequenceDescription().getViewDescription( viewId );
+
 			if ( !vd.isPresent() )
 				continue;
 
@@ -175,50 +388,74 @@ public abstract class GlobalOptimizationType
 
 			final Angle a = vd.getViewSetup().getAngle();
 			final Illumination i = vd.getViewSetup().getIllumination();
-
-			// assemble a new list
-			final ArrayList< InterestPoint > list = new ArrayList< InterestPoint >();
+			final String description = "timepoint: " + vd.getTimePointId() + " angle: " + a.getId() + " channel: " + c.getChannel().getId() + " illum: " + i.getId();
 
 			// check the existing lists of points
 			final ViewInterestPointLists lists = interestpoints.getViewInterestPointLists( vd );
 
 			if ( !lists.contains( c.getLabel() ) )
 			{
-				IOFunctions.println( "Interest points for label '" + c.getLabel() + "' not found for timepoint: " + timepoint.getId() + " angle: " + 
-						a.getId() + " channel: " + c.getChannel().getId() + " illum: " + i.getId() );
-				
+				IOFunctions.println( "Interest points for label '" + c.getLabel() + "' not found for " + description );
 				continue;
 			}
-			
-			if ( lists.getInterestPointList( c.getLabel() ).getInterestPoints() == null )
+
+			final InterestPointList ipl = lists.getInterestPointList( c.getLabel() );
+
+			final ViewRegistration r = registrations.getViewRegistration( vd );
+			r.updateModel();
+			final AffineTransform3D m = r.getModel().copy();
+
+			views.add( vd );
+			tasks.add( new Callable< List< InterestPoint > >()
 			{
-				if ( !lists.getInterestPointList( c.getLabel() ).loadInterestPoints() )
+				@Override
+				public List< InterestPoint > call()
 				{
-					IOFunctions.println( "Interest points for label '" + c.getLabel() + "' could not be loaded for timepoint: " + timepoint.getId() + " angle: " + 
-							a.getId() + " channel: " + c.getChannel().getId() + " illum: " + i.getId() );
-					
-					continue;
+					if ( ipl.getInterestPoints() == null && !ipl.loadInterestPoints() )
+					{
+						IOFunctions.println( "Interest points for label '" + c.getLabel() + "' could not be loaded for " + description );
+						return null;
+					}
+
+					return TransformedInterestPoints.get( ipl, m );
 				}
-			}
-			
-			final List< InterestPoint > ptList = lists.getInterestPointList( c.getLabel() ).getInterestPoints();
-			
-			final ViewRegistration r = registrations.getViewRegistration( vd );
-			r.updateModel();
-			final AffineTransform3D m = r.getModel();
-			
-			for ( final InterestPoint p : ptList )
+			} );
+		}
+
+		final HashMap< ViewId, List< InterestPoint > > transformed = new HashMap< ViewId, List< InterestPoint > >();
+
+		if ( tasks.size() == 0 )
+			return transformed;
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Math.min( tasks.size(), Threads.numThreads() ) );
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			final List< Future< List< InterestPoint > > > futures = taskExecutor.invokeAll( tasks );
+
+			for ( int j = 0; j < views.size(); ++j )
 			{
-				final double[] l = new double[ 3 ];
-				m.apply( p.getL(), l );
-				
-				list.add( new InterestPoint( p.getId(), l ) );
+				final List< InterestPoint > list = futures.get( j ).get();
+
+				if ( list != null )
+					transformed.put( views.get( j ), list );
 			}
-			
-			interestPoints.put( vd, new MatchPointList( list, c ) );
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Loading of the interest points was interrupted: " + e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( "Failed to load the interest points: " + e.getCause(), e.getCause() );
+		}
+		finally
+		{
+			taskExecutor.shutdown();
 		}
 
-		return interestPoints;
+		return transformed;
 	}
 
 	protected static ChannelProcess getChannelProcessForChannel( final List< ChannelProcess > cpList, final Channel c )
@@ -66,7 +66,11 @@ public class IndividualTimepointRegistration extends GlobalOptimizationType
 							if ( !isValid( viewIdB, listB ) )
 								continue;
 
-							viewPairs.add( new PairwiseMatch( viewIdA, viewIdB, listA, listB ) );
+							// skip pairs that do not overlap (if requested)
+							if ( !isOverlapping( viewIdA, viewIdB ) )
+								continue;
+
+							viewPairs.add( createPairwiseMatch( viewIdA, viewIdB, listA, listB ) );
 						}
 					}
 			}